@@ -0,0 +1,135 @@
+package com.rph.paritizer.fileaccessservice;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+
+/**
+ * Compares JMH results (written with -rf json) against a baseline, benchmark by benchmark, and reports
+ * each change in score and in allocation per operation (from -prof gc). Exits with status 1 if anything
+ * got worse by more than the threshold, so that it can gate a build.
+ *
+ * The JDK and processor count the baseline was recorded with are read from a properties file beside it
+ * (baseline.properties, for baseline.json; see the jmhBaseline task). If the results come from another JDK,
+ * or this machine has a different number of processors, the scores are not comparable: the changes
+ * are still reported, but nothing is counted as a regression.
+ *
+ * Usage: BenchmarkComparison baseline.json results.json [thresholdPercent (default 10)]
+ */
+public class BenchmarkComparison {
+
+    private static final String ALLOCATION_METRIC = "\u00b7gc.alloc.rate.norm";   // bytes per operation
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: BenchmarkComparison baseline.json results.json [thresholdPercent]");
+            System.exit(2);
+        }
+        double threshold = (args.length > 2) ? Double.parseDouble(args[2]) : 10.0;
+        Map<String, JsonNode> baseline = load(new File(args[0]));
+        Map<String, JsonNode> results = load(new File(args[1]));
+        boolean comparable = checkEnvironment(new File(args[0]), results);
+
+        int regressions = 0;
+        for (Map.Entry<String, JsonNode> result : results.entrySet()) {
+            JsonNode before = baseline.get(result.getKey());
+            if (before == null) {
+                System.out.printf("%-90s  (not in baseline)%n", result.getKey());
+                continue;
+            }
+            JsonNode after = result.getValue();
+            boolean higherIsBetter = "thrpt".equals(after.path("mode").asText());
+            double scoreBefore = before.path("primaryMetric").path("score").asDouble();
+            double scoreAfter = after.path("primaryMetric").path("score").asDouble();
+            double scoreChange = percentChange(scoreBefore, scoreAfter);
+            boolean scoreWorse = higherIsBetter ? (scoreChange < -threshold) : (scoreChange > threshold);
+
+            double allocationBefore = before.path("secondaryMetrics").path(ALLOCATION_METRIC).path("score").asDouble(-1);
+            double allocationAfter = after.path("secondaryMetrics").path(ALLOCATION_METRIC).path("score").asDouble(-1);
+            boolean hasAllocation = (allocationBefore >= 0) && (allocationAfter >= 0);
+            double allocationChange = hasAllocation ? percentChange(allocationBefore, allocationAfter) : 0;
+            // tiny allocations are noisy; only flag growth of more than 64 bytes per operation
+            boolean allocationWorse = hasAllocation && (allocationChange > threshold)
+                                      && (allocationAfter - allocationBefore > 64);
+
+            System.out.printf("%-90s  %12.3f -> %12.3f %-6s (%+6.1f%%)", result.getKey(), scoreBefore, scoreAfter,
+                              after.path("primaryMetric").path("scoreUnit").asText(), scoreChange);
+            if (hasAllocation) {
+                System.out.printf("  alloc %10.0f -> %10.0f B/op (%+6.1f%%)", allocationBefore, allocationAfter, allocationChange);
+            }
+            if ((scoreWorse || allocationWorse) && comparable) {
+                System.out.print("  REGRESSION");
+                regressions++;
+            } else if (scoreWorse || allocationWorse) {
+                System.out.print("  (worse, not comparable)");
+            }
+            System.out.println();
+        }
+        System.out.println(regressions + " regression(s) beyond " + threshold + "%");
+        if (regressions > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Returns true if the results were run on the JDK, and with the processor count, that the baseline
+     * was recorded with; otherwise says why not. A baseline without a properties file is assumed comparable.
+     */
+    private static boolean checkEnvironment(File baselineFile, Map<String, JsonNode> results) throws IOException {
+        File propertiesFile = new File(baselineFile.getPath().replaceFirst("\\.json$", "") + ".properties");
+        if (!propertiesFile.isFile() || results.isEmpty()) {
+            return true;
+        }
+        Properties recorded = new Properties();
+        try (InputStream in = new FileInputStream(propertiesFile)) {
+            recorded.load(in);
+        }
+        String jdkVersion = results.values().iterator().next().path("jdkVersion").asText();
+        String processors = Integer.toString(Runtime.getRuntime().availableProcessors());
+        boolean comparable = true;
+        if (!jdkVersion.equals(recorded.getProperty("jdkVersion", jdkVersion))) {
+            System.out.println("baseline was recorded on JDK " + recorded.getProperty("jdkVersion")
+                               + ", results are from JDK " + jdkVersion);
+            comparable = false;
+        }
+        if (!processors.equals(recorded.getProperty("availableProcessors", processors))) {
+            System.out.println("baseline was recorded with " + recorded.getProperty("availableProcessors")
+                               + " processor(s), this machine has " + processors);
+            comparable = false;
+        }
+        if (!comparable) {
+            System.out.println("not gating on this comparison; record a baseline here with ./gradlew jmhBaseline");
+        }
+        return comparable;
+    }
+
+    /**
+     * Returns the results in a JMH JSON file, keyed by benchmark name and parameters.
+     */
+    private static Map<String, JsonNode> load(File file) throws IOException {
+        Map<String, JsonNode> results = new LinkedHashMap<>();
+        for (JsonNode result : new ObjectMapper().readTree(file)) {
+            StringBuilder key = new StringBuilder(result.path("benchmark").asText());
+            Iterator<Map.Entry<String, JsonNode>> params = result.path("params").fields();
+            while (params.hasNext()) {
+                Map.Entry<String, JsonNode> param = params.next();
+                key.append(' ').append(param.getKey()).append('=').append(param.getValue().asText());
+            }
+            results.put(key.toString(), result);
+        }
+        return results;
+    }
+
+    private static double percentChange(double before, double after) {
+        return (before == 0) ? 0 : (after - before) * 100 / before;
+    }
+}
@@ -0,0 +1,67 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * %-encodes relative paths, as is done for every URL in a file list: with UrlEncoder, and with the
+ * getBytes() and StringBuilder encoder it replaced (legacyEncode), for comparison. Run with -prof gc
+ * to compare allocation too.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodeBenchmark {
+
+    @Param({"Trip012/Roll34/IMG_0012345.jpg",            // nothing to encode
+            "Trip 012/Roll 34/IMG_0012345 (copy).jpg",   // a few spaces
+            "Fotos/Gr\u00f6\u00dfe & \u00c4hnlichkeit/\u00e9t\u00e9 2017.jpg"})   // non-ASCII and punctuation
+    public String relativePath;
+
+    @Benchmark
+    public String encode() {
+        return UrlEncoder.encode(relativePath);
+    }
+
+    @Benchmark
+    public String legacyEncode() {
+        return legacyEncode(relativePath);
+    }
+
+    /**
+     * FileAccessorRESTService.encode() as it was before UrlEncoder.
+     */
+    static String legacyEncode(String s) {
+        StringBuilder resultStr = new StringBuilder();
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c < 32) || (c >= 127) || (" +%$&,:;=?@<>#".indexOf(c) >= 0)) {
+                resultStr.append('%');
+                resultStr.append(toHex(c / 16));
+                resultStr.append(toHex(c % 16));
+            } else {
+                resultStr.append(c);
+            }
+        }
+        return resultStr.toString();
+    }
+
+    private static char toHex(int n) {
+        return (char) ((n < 10) ? '0' + n : 'A' + n - 10);
+    }
+}
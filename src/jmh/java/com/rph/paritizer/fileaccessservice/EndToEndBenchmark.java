@@ -0,0 +1,145 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.eclipse.jetty.server.Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+
+/**
+ * Runs the whole service (Jetty, Jersey and all) in this JVM, and reads from it over loopback
+ * with keep-alive connections, from four client threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class EndToEndBenchmark {
+
+    private static final String DISK_NAME = "EndToEnd";
+
+    private Server server;
+    private Path top;
+    private String apiUri;
+    private String smallFileEntityTag;
+
+    /**
+     * Per-thread read buffer.
+     */
+    @State(Scope.Thread)
+    public static class Buffer {
+        final byte[] bytes = new byte[64 * 1024];
+    }
+
+    @Setup(Level.Trial)
+    public void startServer() throws Exception {
+        top = Files.createTempDirectory("EndToEndBenchmark");
+        Random random = new Random(1);
+        for (int dir = 0; dir < 10; dir++) {
+            Path directory = Files.createDirectory(top.resolve("Roll " + dir));
+            for (int i = 0; i < 100; i++) {
+                byte[] content = new byte[1024 + random.nextInt(8192)];
+                random.nextBytes(content);
+                Files.write(directory.resolve(String.format("IMG_%04d.jpg", i)), content);
+            }
+        }
+        byte[] small = new byte[4096];
+        random.nextBytes(small);
+        Files.write(top.resolve("small.jpg"), small);
+        byte[] large = new byte[1024 * 1024];
+        random.nextBytes(large);
+        Files.write(top.resolve("large.jpg"), large);
+
+        server = EmbeddedJerseyService.startServer(new String[] {"--disk", DISK_NAME, top.toString()});
+        apiUri = server.getURI() + "/api/fileAccessor";
+        HttpURLConnection connection = open("/file/" + DISK_NAME + "/small.jpg");
+        smallFileEntityTag = connection.getHeaderField("ETag");
+        drain(connection, new byte[4096]);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws Exception {
+        server.stop();
+        FileAccessor.removeDisk(DISK_NAME);
+        try (Stream<Path> paths = Files.walk(top)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public long readSmallFile(Buffer buffer) throws IOException {
+        return drain(open("/file/" + DISK_NAME + "/small.jpg"), buffer.bytes);
+    }
+
+    @Benchmark
+    public long readLargeFile(Buffer buffer) throws IOException {
+        return drain(open("/file/" + DISK_NAME + "/large.jpg"), buffer.bytes);
+    }
+
+    @Benchmark
+    public long readRange(Buffer buffer) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(apiUri + "/file/" + DISK_NAME + "/large.jpg").openConnection();
+        connection.setRequestProperty("Range", "bytes=65536-131071");
+        return drain(connection, buffer.bytes);
+    }
+
+    @Benchmark
+    public int revalidateSmallFile() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(apiUri + "/file/" + DISK_NAME + "/small.jpg").openConnection();
+        connection.setRequestProperty("If-None-Match", smallFileEntityTag);
+        int status = connection.getResponseCode();   // 304, with no body
+        drain(connection, null);
+        return status;
+    }
+
+    @Benchmark
+    public long fileList(Buffer buffer) throws IOException {
+        return drain(open("/fileList/" + DISK_NAME), buffer.bytes);
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        return (HttpURLConnection) new URL(apiUri + path).openConnection();
+    }
+
+    /**
+     * Reads the whole response and closes the stream, so that the connection goes back to the keep-alive pool.
+     */
+    private static long drain(HttpURLConnection connection, byte[] buffer) throws IOException {
+        if (connection.getResponseCode() >= 300) {
+            return 0;
+        }
+        long count = 0;
+        try (InputStream in = connection.getInputStream()) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                count += n;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,84 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Copies a file to an output stream that discards it, as readFile does when the response
+ * stream is not Jetty's own (so without the zero-copy path).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileCopyBenchmark {
+
+    @Param({"1024", "65536", "1048576", "16777216"})
+    public int fileSize;
+
+    private File file;
+    private OutputStream out;
+
+    @Setup(Level.Trial)
+    public void createFile(Blackhole blackhole) throws IOException {
+        file = File.createTempFile("FileCopyBenchmark", ".bin");
+        byte[] content = new byte[fileSize];
+        new Random(fileSize).nextBytes(content);
+        Files.write(file.toPath(), content);
+        out = new DiscardingOutputStream(blackhole);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Benchmark
+    public long copyFileToOutputStream() throws IOException {
+        return FileAccessor.copyFileToOutputStream(file.getPath(), out);
+    }
+
+    /**
+     * Hands whatever is written to a Blackhole, so the copy cannot be optimized away.
+     */
+    static class DiscardingOutputStream extends OutputStream {
+        private final Blackhole blackhole;
+
+        DiscardingOutputStream(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(int b) {
+            blackhole.consume(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            blackhole.consume(b);
+            blackhole.consume(len);
+        }
+    }
+}
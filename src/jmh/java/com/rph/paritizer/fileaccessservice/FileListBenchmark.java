@@ -0,0 +1,108 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Lists synthetic disks of 10k, 100k and 1M files: into a String (as getJsonUrlList does), streamed
+ * (as the fileList operation does), and one page of 1000 from the middle of the disk. legacyStreamJsonUrlList
+ * streams the list as it was before UrlEncoder (through a Writer, encoding each path as it goes), for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class FileListBenchmark {
+
+    private static final String URI = "http://localhost:8080/FileAccessService/api/fileAccessor/file/Synthetic";
+
+    @Param({"10000", "100000", "1000000"})
+    public int fileCount;
+
+    private DiskIndex diskIndex;
+    private String middle;
+
+    @Setup(Level.Trial)
+    public void createIndex() {
+        Map<String, DiskIndex.FileInfo> files = new TreeMap<>();
+        DiskIndex.FileInfo info = new DiskIndex.FileInfo(4000000, System.currentTimeMillis());
+        for (int i = 0; i < fileCount; i++) {
+            files.put(syntheticPath(i), info);
+        }
+        diskIndex = DiskIndex.of("Synthetic", Paths.get("/nonexistent"), files);
+        middle = syntheticPath(fileCount / 2);
+    }
+
+    /**
+     * Paths like "Trip 012/Roll 34/IMG_0012345.jpg": 100 files to a directory, 100 directories to a trip.
+     */
+    static String syntheticPath(int i) {
+        return String.format("Trip %03d/Roll %02d/IMG_%07d.jpg", i / 10000, (i / 100) % 100, i);
+    }
+
+    @Benchmark
+    public String getJsonUrlList() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FileAccessor.writeJsonUrlList(out, URI, diskIndex, null, Integer.MAX_VALUE);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void streamJsonUrlList(Blackhole blackhole) throws IOException {
+        FileAccessor.writeJsonUrlList(new FileCopyBenchmark.DiscardingOutputStream(blackhole), URI, diskIndex, null,
+                                      Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public void legacyStreamJsonUrlList(Blackhole blackhole) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileCopyBenchmark.DiscardingOutputStream(blackhole),
+                                                                  StandardCharsets.UTF_8));
+        writer.write("{ \"disk\" : \"");
+        writer.write(diskIndex.getDiskName());
+        writer.write("\",\n");
+        writer.write("  \"urls\" : [\n");
+        int count = 0;
+        for (String relativePath : diskIndex.relativePaths()) {
+            if (count++ > 0) {
+                writer.write(",\n");
+            }
+            writer.write("    \"");
+            writer.write(URI);
+            writer.write('/');
+            writer.write(EncodeBenchmark.legacyEncode(relativePath));
+            writer.write('"');
+        }
+        writer.write("\n] }\n");
+        writer.flush();
+    }
+
+    @Benchmark
+    public void pageOfJsonUrlList(Blackhole blackhole) throws IOException {
+        FileAccessor.writeJsonUrlList(new FileCopyBenchmark.DiscardingOutputStream(blackhole), URI, diskIndex, middle, 1000);
+    }
+}
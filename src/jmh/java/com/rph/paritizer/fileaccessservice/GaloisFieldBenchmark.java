@@ -0,0 +1,65 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Combines 4 MB direct buffers (the default span a parity task reads of each disk) the ways ParityGroup
+ * does: XOR for parity row 0, and multiply-and-add for the Reed-Solomon rows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GaloisFieldBenchmark {
+
+    private static final int LENGTH = 4 * 1024 * 1024;
+
+    private ByteBuffer source;
+    private ByteBuffer target;
+
+    @Setup(Level.Trial)
+    public void createBuffers() {
+        source = ByteBuffer.allocateDirect(LENGTH).order(ByteOrder.nativeOrder());
+        target = ByteBuffer.allocateDirect(LENGTH).order(ByteOrder.nativeOrder());
+        byte[] bytes = new byte[LENGTH];
+        new Random(42).nextBytes(bytes);
+        source.put(bytes);
+    }
+
+    @TearDown(Level.Trial)
+    public void freeBuffers() {
+        BufferCleaner.free(source);
+        BufferCleaner.free(target);
+    }
+
+    @Benchmark
+    public ByteBuffer xor() {
+        GaloisField.xor(target, source, LENGTH);
+        return target;
+    }
+
+    @Benchmark
+    public ByteBuffer multiplyAdd() {
+        GaloisField.multiplyAdd(target, source, 0x53, LENGTH);
+        return target;
+    }
+}
@@ -0,0 +1,38 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Maps file names to media types, as is done when a file's metadata is loaded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MediaTypeBenchmark {
+
+    @Param({"/Volumes/Photos/Trip 012/Roll 34/IMG_0012345.JPG",   // first suffix checked
+            "/Volumes/Photos/Trip 012/notes.xml",                 // last suffix checked
+            "/Volumes/Photos/Trip 012/movie.mov",                 // no match
+            "/Volumes/Photos/Trip 012/README"})                   // no suffix
+    public String filePath;
+
+    @Benchmark
+    public String getMediaType() {
+        return FileAccessorRESTService.getMediaType(filePath);
+    }
+}
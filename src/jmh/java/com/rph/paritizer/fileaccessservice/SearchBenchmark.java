@@ -0,0 +1,78 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Searches synthetic disks of 100k and 1M files (laid out as in FileListBenchmark): by prefix, by glob
+ * across the whole disk, and by a size range that nothing matches, so that every file is tested;
+ * and builds the search index itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class SearchBenchmark {
+
+    @Param({"100000", "1000000"})
+    public int fileCount;
+
+    private Map<String, DiskIndex.FileInfo> files;
+    private PathSearchIndex searchIndex;
+    private PathSearchIndex.Query prefixQuery;
+    private PathSearchIndex.Query globQuery;
+    private PathSearchIndex.Query sizeQuery;
+
+    @Setup(Level.Trial)
+    public void createIndex() {
+        files = new TreeMap<>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < fileCount; i++) {
+            files.put(FileListBenchmark.syntheticPath(i), new DiskIndex.FileInfo(4000000 + i, now - i * 1000L));
+        }
+        searchIndex = DiskIndex.of("Synthetic", Paths.get("/nonexistent"), files).getSearchIndex();
+        prefixQuery = PathSearchIndex.Query.parse("Trip 005/Roll 5", null, null, null, null, null, null);
+        globQuery = PathSearchIndex.Query.parse(null, "**/IMG_*77.jpg", null, null, null, null, null);
+        sizeQuery = PathSearchIndex.Query.parse(null, null, "jpg", "1", "2", null, null);
+    }
+
+    @Benchmark
+    public PathSearchIndex build() {
+        return PathSearchIndex.build("Synthetic", "0", files.entrySet(), fileCount);
+    }
+
+    @Benchmark
+    public String searchPrefix(Blackhole blackhole) throws IOException {
+        return searchIndex.search(prefixQuery, null, 1000, (path, size, lastModified) -> blackhole.consume(path));
+    }
+
+    @Benchmark
+    public String searchGlob(Blackhole blackhole) throws IOException {
+        return searchIndex.search(globQuery, null, Integer.MAX_VALUE, (path, size, lastModified) -> blackhole.consume(path));
+    }
+
+    @Benchmark
+    public String searchNothing(Blackhole blackhole) throws IOException {
+        return searchIndex.search(sizeQuery, null, 1000, (path, size, lastModified) -> blackhole.consume(path));
+    }
+}
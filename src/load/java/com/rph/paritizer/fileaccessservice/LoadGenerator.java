@@ -0,0 +1,379 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Drives the service with an open-loop workload and reports throughput, latency percentiles and GC counts.
+ *
+ * The service is started in this JVM, on a free port, serving a generated disk (or an existing directory tree).
+ * Requests are started at a fixed rate (or with Poisson arrivals) regardless of how quickly earlier ones
+ * complete, and each latency is measured from when its request was due to start rather than from when it
+ * was sent, so a stalled server shows up in the percentiles instead of quietly lowering the request rate.
+ *
+ * Files are chosen with a Zipfian popularity skew. A fraction of the requests are fileList requests
+ * (a page at a time), and a fraction of the file reads are single Range requests of up to 64 KB.
+ * Latencies are recorded in HdrHistograms, per kind of request, and can also be logged for later
+ * analysis (--hlog, readable with HdrHistogram's HistogramLogProcessor).
+ *
+ * Usage: LoadGenerator [options] [-- service args]
+ *     --rate n             requests started per second (default 1000)
+ *     --duration s         seconds of measurement (default 30)
+ *     --warmup s           seconds of unmeasured load first (default 5)
+ *     --poisson            exponentially distributed gaps between requests, rather than even ones
+ *     --connections n      maximum client connections, i.e. concurrent requests (default 1000)
+ *     --max-queued n       requests allowed to wait for a connection before more are dropped (default 100000)
+ *     --files n            files to generate (default 5000)
+ *     --min-size b         smallest generated file (default 1024)
+ *     --max-size b         largest generated file (default 262144)
+ *     --tree dir           serve an existing directory tree instead of generating one
+ *     --zipf s             popularity skew exponent; 0 is uniform (default 1.0)
+ *     --list-fraction f    fraction of requests that are fileList pages (default 0.01)
+ *     --list-limit n       URLs per fileList page (default 1000)
+ *     --range-fraction f   fraction of file reads that are Range requests (default 0.2)
+ *     --report-interval s  seconds between progress lines (default 5)
+ *     --hlog file          write interval histograms to an HdrHistogram log
+ * Arguments after "--" are passed to the service, as on its command line.
+ */
+public class LoadGenerator {
+
+    private static final String DISK_NAME = "LoadDisk";
+    private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(10);
+    private static final int MAX_RANGE_LENGTH = 64 * 1024;
+
+    enum Kind { FILE, RANGE, LIST }
+
+    private int rate = 1000;
+    private int durationSeconds = 30;
+    private int warmupSeconds = 5;
+    private boolean poisson = false;
+    private int connections = 1000;
+    private int maxQueued = 100000;
+    private int fileCount = 5000;
+    private int minSize = 1024;
+    private int maxSize = 256 * 1024;
+    private String tree = null;
+    private double zipfExponent = 1.0;
+    private double listFraction = 0.01;
+    private int listLimit = 1000;
+    private double rangeFraction = 0.2;
+    private int reportIntervalSeconds = 5;
+    private String histogramLog = null;
+    private final List<String> serviceArgs = new ArrayList<>();
+
+    private SyntheticDisk disk;
+    private ZipfianSampler sampler;
+    private String fileUriPrefix;
+    private String listUri;
+    private HttpClient client;
+
+    private final Map<Kind, Recorder> latencies = new EnumMap<>(Kind.class);
+    private final Map<Kind, Histogram> totals = new EnumMap<>(Kind.class);
+    private final Recorder timeToFirstByte = new Recorder(MAX_LATENCY_MICROS, 3);
+    private final Histogram totalTimeToFirstByte = new Histogram(MAX_LATENCY_MICROS, 3);
+    private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final AtomicInteger outstanding = new AtomicInteger(0);
+    private final AtomicInteger maxOutstanding = new AtomicInteger(0);
+    private volatile long measureFrom = Long.MAX_VALUE;   // nanoTime; requests due earlier are warmup
+    private long[] gcAtStart;                             // collections and milliseconds, when drive() started
+    private HistogramLogWriter logWriter;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        generator.processArgs(args);
+        generator.run();
+        System.exit(0);   // the service's threads are not daemons
+    }
+
+    private void processArgs(String[] args) {
+        int n = 0;
+        while (n < args.length) {
+            String arg = args[n++];
+            if ("--".equals(arg)) {
+                serviceArgs.addAll(Arrays.asList(args).subList(n, args.length));
+                return;
+            }
+            if ("--poisson".equals(arg)) {
+                poisson = true;
+                continue;
+            }
+            if (n >= args.length) {
+                throw new IllegalArgumentException("missing value for " + arg);
+            }
+            String value = args[n++];
+            switch (arg) {
+                case "--rate": rate = Integer.parseInt(value); break;
+                case "--duration": durationSeconds = Integer.parseInt(value); break;
+                case "--warmup": warmupSeconds = Integer.parseInt(value); break;
+                case "--connections": connections = Integer.parseInt(value); break;
+                case "--max-queued": maxQueued = Integer.parseInt(value); break;
+                case "--files": fileCount = Integer.parseInt(value); break;
+                case "--min-size": minSize = Integer.parseInt(value); break;
+                case "--max-size": maxSize = Integer.parseInt(value); break;
+                case "--tree": tree = value; break;
+                case "--zipf": zipfExponent = Double.parseDouble(value); break;
+                case "--list-fraction": listFraction = Double.parseDouble(value); break;
+                case "--list-limit": listLimit = Integer.parseInt(value); break;
+                case "--range-fraction": rangeFraction = Double.parseDouble(value); break;
+                case "--report-interval": reportIntervalSeconds = Integer.parseInt(value); break;
+                case "--hlog": histogramLog = value; break;
+                default: throw new IllegalArgumentException("unknown option: " + arg);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        for (Kind kind : Kind.values()) {
+            latencies.put(kind, new Recorder(MAX_LATENCY_MICROS, 3));
+            totals.put(kind, new Histogram(MAX_LATENCY_MICROS, 3));
+        }
+        long start = System.currentTimeMillis();
+        disk = (tree == null) ? SyntheticDisk.generate(fileCount, minSize, maxSize, 1)
+                              : SyntheticDisk.existing(Paths.get(tree), 1);
+        System.out.printf("disk: %d files, %d MB, at %s (%d ms)%n", disk.files.size(), disk.totalSize() >> 20,
+                          disk.top, System.currentTimeMillis() - start);
+        sampler = new ZipfianSampler(disk.files.size(), zipfExponent);
+        System.out.printf("zipf %.2f: the top 1%% of files get %.1f%% of reads%n", zipfExponent,
+                          100 * sampler.share(Math.max(1, disk.files.size() / 100)));
+
+        List<String> args = new ArrayList<>(Arrays.asList("--disk", DISK_NAME, disk.top.toString()));
+        args.addAll(serviceArgs);
+        Server server = EmbeddedJerseyService.startServer(args.toArray(new String[0]));
+        String apiUri = server.getURI() + "/api/fileAccessor";
+        fileUriPrefix = apiUri + "/file/" + DISK_NAME + "/";
+        listUri = apiUri + "/fileList/" + DISK_NAME + "?limit=" + listLimit;
+        System.out.println("service: " + apiUri);
+
+        QueuedThreadPool clientThreads = new QueuedThreadPool(Math.max(8, Runtime.getRuntime().availableProcessors() * 2));
+        clientThreads.setName("LoadGenerator-client");
+        clientThreads.setDaemon(true);
+        client = new HttpClient();
+        client.setExecutor(clientThreads);
+        client.setMaxConnectionsPerDestination(connections);
+        client.setMaxRequestsQueuedPerDestination(maxQueued);
+        client.setFollowRedirects(false);
+        client.start();
+
+        if (histogramLog != null) {
+            logWriter = new HistogramLogWriter(new PrintStream(new File(histogramLog)));
+            logWriter.outputLogFormatVersion();
+            logWriter.outputStartTime(System.currentTimeMillis());
+            logWriter.outputLegend();
+        }
+        try {
+            drive();
+        } finally {
+            client.stop();
+            server.stop();
+            FileAccessor.removeDisk(DISK_NAME);
+            disk.delete();
+            if (logWriter != null) {
+                logWriter.close();
+            }
+        }
+    }
+
+    /**
+     * Starts requests on schedule for the warmup and measurement periods, then waits for the stragglers.
+     */
+    private void drive() throws InterruptedException {
+        double meanGapNanos = 1e9 / rate;
+        long start = System.nanoTime();
+        long warmupEnd = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = warmupEnd + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long reportInterval = TimeUnit.SECONDS.toNanos(reportIntervalSeconds);
+        long nextReport = warmupEnd + reportInterval;
+        measureFrom = warmupEnd;
+        gcAtStart = gcTotals();
+        System.out.printf("warming up for %d s, then measuring for %d s at %d requests/s%n",
+                          warmupSeconds, durationSeconds, rate);
+
+        double due = start;
+        long completedAtLastReport = 0;
+        while (due < end) {
+            long now = System.nanoTime();
+            if (due > now) {
+                LockSupport.parkNanos((long) due - now);
+            }
+            if (due >= nextReport) {
+                completedAtLastReport = report(completedAtLastReport, reportIntervalSeconds);
+                nextReport += reportInterval;
+            }
+            send((long) due);
+            due += poisson ? -Math.log(1 - ThreadLocalRandom.current().nextDouble()) * meanGapNanos : meanGapNanos;
+        }
+        long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while ((outstanding.get() > 0) && (System.nanoTime() < drainDeadline)) {
+            Thread.sleep(10);
+        }
+        report(completedAtLastReport, -1);
+        summarize();
+    }
+
+    private void send(long due) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Kind kind;
+        Request request;
+        if (random.nextDouble() < listFraction) {
+            kind = Kind.LIST;
+            request = client.newRequest(listUri);
+        } else {
+            SyntheticDisk.FileEntry file = disk.files.get(sampler.next());
+            request = client.newRequest(fileUriPrefix + FileAccessorRESTService.encode(file.relativePath));
+            if ((file.size > 1) && (random.nextDouble() < rangeFraction)) {
+                kind = Kind.RANGE;
+                long first = random.nextLong(file.size);
+                long last = Math.min(file.size - 1, first + random.nextInt(MAX_RANGE_LENGTH));
+                request.header(HttpHeader.RANGE, "bytes=" + first + '-' + last);
+            } else {
+                kind = Kind.FILE;
+            }
+        }
+        int count = outstanding.incrementAndGet();
+        maxOutstanding.accumulateAndGet(count, Math::max);
+        boolean measured = (due >= measureFrom);
+        request.timeout(MAX_LATENCY_MICROS, TimeUnit.MICROSECONDS)
+                .onResponseHeaders(response -> {
+                    if (measured) {
+                        timeToFirstByte.recordValue(micros(System.nanoTime() - due));
+                    }
+                })
+                .send(new Response.Listener.Adapter() {
+                    @Override
+                    public void onContent(Response response, ByteBuffer content) {
+                        bytes.add(content.remaining());
+                    }
+
+                    @Override
+                    public void onComplete(Result result) {
+                        outstanding.decrementAndGet();
+                        if (!measured) {
+                            return;
+                        }
+                        if (result.isFailed()) {
+                            if (result.getFailure() instanceof RejectedExecutionException) {
+                                dropped.increment();
+                            } else {
+                                failures.increment();
+                            }
+                            return;
+                        }
+                        latencies.get(kind).recordValue(micros(System.nanoTime() - due));
+                        statuses.computeIfAbsent(result.getResponse().getStatus(), status -> new LongAdder()).increment();
+                    }
+                });
+    }
+
+    private static long micros(long nanos) {
+        return Math.min(MAX_LATENCY_MICROS, Math.max(1, nanos / 1000));
+    }
+
+    /**
+     * Folds the latest interval into the totals, and prints a progress line.
+     *
+     * @return the number of measured requests completed so far
+     */
+    private long report(long completedBefore, int intervalSeconds) {
+        Histogram interval = new Histogram(MAX_LATENCY_MICROS, 3);
+        for (Kind kind : Kind.values()) {
+            Histogram histogram = latencies.get(kind).getIntervalHistogram();
+            totals.get(kind).add(histogram);
+            interval.add(histogram);
+            if (logWriter != null) {
+                histogram.setTag(kind.name());
+                logWriter.outputIntervalHistogram(histogram);
+            }
+        }
+        totalTimeToFirstByte.add(timeToFirstByte.getIntervalHistogram());
+        long completed = completedBefore + interval.getTotalCount();
+        if (intervalSeconds > 0) {
+            System.out.printf("%8d requests/s  p50 %8.2f ms  p99 %8.2f ms  max %8.2f ms  outstanding %6d%n",
+                              interval.getTotalCount() / intervalSeconds, millis(interval.getValueAtPercentile(50)),
+                              millis(interval.getValueAtPercentile(99)), millis(interval.getMaxValue()),
+                              outstanding.get());
+        }
+        return completed;
+    }
+
+    private void summarize() {
+        Histogram all = new Histogram(MAX_LATENCY_MICROS, 3);
+        System.out.println();
+        System.out.printf("%-6s %10s %10s %10s %10s %10s %10s %10s%n",
+                          "kind", "count", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Kind kind : Kind.values()) {
+            Histogram histogram = totals.get(kind);
+            all.add(histogram);
+            printRow(kind.name(), histogram);
+        }
+        printRow("all", all);
+        printRow("ttfb", totalTimeToFirstByte);
+        System.out.println();
+        System.out.printf("throughput: %.0f requests/s, %.1f MB/s (offered %d requests/s)%n",
+                          (double) all.getTotalCount() / durationSeconds,
+                          bytes.sum() / (1024.0 * 1024.0) / (warmupSeconds + durationSeconds), rate);
+        long[] gc = gcTotals();
+        System.out.printf("gc: %d collections, %d ms (client and service together)%n",
+                          gc[0] - gcAtStart[0], gc[1] - gcAtStart[1]);
+        System.out.println("statuses: " + statuses + "  failures: " + failures.sum() + "  dropped: " + dropped.sum()
+                           + "  max outstanding: " + maxOutstanding.get());
+    }
+
+    /**
+     * Returns the number of collections, and the milliseconds spent in them, of all the collectors so far.
+     */
+    private static long[] gcTotals() {
+        long[] totals = new long[2];
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            totals[0] += Math.max(0, collector.getCollectionCount());   // -1 if not known
+            totals[1] += Math.max(0, collector.getCollectionTime());
+        }
+        return totals;
+    }
+
+    private void printRow(String name, Histogram histogram) {
+        if (histogram.getTotalCount() == 0) {
+            System.out.printf("%-6s %10d%n", name, 0);
+            return;
+        }
+        System.out.printf("%-6s %10d %10.0f %10.2f %10.2f %10.2f %10.2f %10.2f%n", name, histogram.getTotalCount(),
+                          (double) histogram.getTotalCount() / durationSeconds,
+                          millis(histogram.getValueAtPercentile(50)), millis(histogram.getValueAtPercentile(90)),
+                          millis(histogram.getValueAtPercentile(99)), millis(histogram.getValueAtPercentile(99.9)),
+                          millis(histogram.getMaxValue()));
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+}
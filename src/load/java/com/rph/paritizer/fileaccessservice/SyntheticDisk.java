@@ -0,0 +1,122 @@
+package com.rph.paritizer.fileaccessservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+
+/**
+ * A directory tree of files for load testing: either generated (photo-like names, 100 files to a directory,
+ * sizes spread log-uniformly between a minimum and a maximum) or an existing tree.
+ */
+class SyntheticDisk {
+
+    /**
+     * A file on the disk.
+     */
+    static class FileEntry {
+        final String relativePath;
+        final long size;
+
+        FileEntry(String relativePath, long size) {
+            this.relativePath = relativePath;
+            this.size = size;
+        }
+    }
+
+    final Path top;
+    final List<FileEntry> files;
+    private final boolean generated;
+
+    private SyntheticDisk(Path top, List<FileEntry> files, boolean generated) {
+        this.top = top;
+        this.files = files;
+        this.generated = generated;
+    }
+
+    /**
+     * Generates a tree of fileCount files in a new temporary directory.
+     */
+    static SyntheticDisk generate(int fileCount, int minSize, int maxSize, long seed) throws IOException {
+        Path top = Files.createTempDirectory("LoadGenerator");
+        Random random = new Random(seed);
+        byte[] content = new byte[maxSize];
+        random.nextBytes(content);
+        List<FileEntry> files = new ArrayList<>(fileCount);
+        Path directory = null;
+        for (int i = 0; i < fileCount; i++) {
+            if (i % 100 == 0) {
+                directory = Files.createDirectories(top.resolve(String.format("Trip %03d/Roll %02d", i / 10000, (i / 100) % 100)));
+            }
+            double logSize = Math.log(minSize) + random.nextDouble() * (Math.log(maxSize) - Math.log(minSize));
+            int size = (int) Math.exp(logSize);
+            String name = String.format("IMG_%07d.jpg", i);
+            try (OutputStream out = Files.newOutputStream(directory.resolve(name))) {
+                out.write(content, random.nextInt(maxSize - size + 1), size);
+            }
+            files.add(new FileEntry(top.relativize(directory.resolve(name)).toString().replace(File.separatorChar, '/'), size));
+        }
+        shuffle(files, seed);
+        return new SyntheticDisk(top, files, true);
+    }
+
+    /**
+     * Uses the regular files already in a directory tree.
+     */
+    static SyntheticDisk existing(Path top, long seed) throws IOException {
+        List<FileEntry> files = new ArrayList<>();
+        Files.walkFileTree(top, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && (attrs.size() > 0)) {
+                    files.add(new FileEntry(top.relativize(file).toString().replace(File.separatorChar, '/'), attrs.size()));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        if (files.isEmpty()) {
+            throw new IOException("no files in " + top);
+        }
+        shuffle(files, seed);
+        return new SyntheticDisk(top, files, false);
+    }
+
+    long totalSize() {
+        long total = 0;
+        for (FileEntry file : files) {
+            total += file.size;
+        }
+        return total;
+    }
+
+    /**
+     * Deletes the tree, if it was generated.
+     */
+    void delete() throws IOException {
+        if (!generated) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(top)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * Shuffles the files so that popularity (which follows list position) is not correlated with directory.
+     */
+    private static void shuffle(List<FileEntry> files, long seed) {
+        files.sort(Comparator.comparing(file -> file.relativePath));
+        Collections.shuffle(files, new Random(seed));
+    }
+}
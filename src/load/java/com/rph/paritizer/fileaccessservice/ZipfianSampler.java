@@ -0,0 +1,42 @@
+package com.rph.paritizer.fileaccessservice;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * Samples ranks 0..n-1 with probability proportional to 1 / (rank + 1)^exponent, so that a few items
+ * are very popular and most are rarely chosen. An exponent of 0 gives a uniform distribution.
+ */
+class ZipfianSampler {
+
+    private final double[] cumulative;
+
+    ZipfianSampler(int n, double exponent) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("nothing to sample");
+        }
+        cumulative = new double[n];
+        double sum = 0;
+        for (int rank = 0; rank < n; rank++) {
+            sum += 1.0 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = sum;
+        }
+        for (int rank = 0; rank < n; rank++) {
+            cumulative[rank] /= sum;
+        }
+    }
+
+    int next() {
+        double u = ThreadLocalRandom.current().nextDouble();
+        int index = Arrays.binarySearch(cumulative, u);
+        return Math.min((index >= 0) ? index : -index - 1, cumulative.length - 1);
+    }
+
+    /**
+     * Returns the probability that one of the most popular count ranks is chosen.
+     */
+    double share(int count) {
+        return cumulative[Math.min(count, cumulative.length) - 1];
+    }
+}
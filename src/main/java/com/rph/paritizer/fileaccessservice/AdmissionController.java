@@ -0,0 +1,262 @@
+package com.rph.paritizer.fileaccessservice;
+
+import com.rph.paritizer.fileaccessservice.exceptions.NotAdmittedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Decides whether a file read may start, and keeps track of the reads in progress.
+ *
+ * A read is refused if the service is paused, if its disk is paused, or if the configured maximum number
+ * of reads is already in progress (so that an overloaded server answers 503 promptly rather than queueing
+ * requests until Jetty's thread pool is exhausted). Admission costs a few atomic operations; no lock is taken.
+ *
+ * An admitted read holds a Permit until its response has been written (see AdmissionEventListener).
+ * Pausing can optionally wait for the reads in progress to finish ("draining").
+ *
+ * Reads are counted per disk only for registered disks, so that requests naming disks that do not exist
+ * (which are refused later) cannot grow the table of counts; a disk's count is dropped when it is removed.
+ *
+ * Configured with system properties:
+ *     fileaccessservice.admission.maxInFlight         (default 0, meaning no limit)
+ *     fileaccessservice.admission.retryAfterSeconds   (default 1; sent with 503 responses)
+ */
+class AdmissionController {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdmissionController.class);
+
+    static final String MAX_IN_FLIGHT_PROPERTY = "fileaccessservice.admission.maxInFlight";
+    static final String RETRY_AFTER_SECONDS_PROPERTY = "fileaccessservice.admission.retryAfterSeconds";
+
+    /**
+     * Request property holding the Permit of an admitted request.
+     */
+    static final String PERMIT_PROPERTY = AdmissionController.class.getName() + ".permit";
+
+    /**
+     * Held by an admitted read until it is done. Releasing more than once has no further effect.
+     */
+    static class Permit {
+        private final AdmissionController owner;
+        private final AtomicInteger diskInFlight;   // null if the disk is not registered
+        private final AtomicBoolean released = new AtomicBoolean(false);
+        private final List<Runnable> whenReleased = new ArrayList<>(1);   // guarded by this
+
+        private Permit(AdmissionController owner, AtomicInteger diskInFlight) {
+            this.owner = owner;
+            this.diskInFlight = diskInFlight;
+        }
+
+        /**
+         * Runs action when the permit is released (at once, if it already has been), for whatever the read
+         * holds that must outlast the sending of its response, such as a file that must not be deleted yet.
+         */
+        void whenReleased(Runnable action) {
+            synchronized (this) {
+                if (!released.get()) {
+                    whenReleased.add(action);
+                    return;
+                }
+            }
+            action.run();
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                owner.release(this);
+                List<Runnable> actions;
+                synchronized (this) {
+                    actions = new ArrayList<>(whenReleased);
+                    whenReleased.clear();
+                }
+                for (Runnable action : actions) {
+                    action.run();
+                }
+            }
+        }
+    }
+
+    private final int maxInFlight;
+    private final int retryAfterSeconds;
+
+    private volatile boolean paused = false;
+    private final Set<String> pausedDisks = ConcurrentHashMap.newKeySet();
+
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final Map<String, AtomicInteger> diskInFlight = new ConcurrentHashMap<>();
+    private final AtomicInteger drainWaiters = new AtomicInteger(0);
+    private final Object drainLock = new Object();
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejectedPaused = new LongAdder();
+    private final LongAdder rejectedOverloaded = new LongAdder();
+
+    AdmissionController(int maxInFlight, int retryAfterSeconds) {
+        this.maxInFlight = maxInFlight;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * Returns a controller configured from the system properties listed above.
+     */
+    static AdmissionController fromSystemProperties() {
+        int maxInFlight = Integer.getInteger(MAX_IN_FLIGHT_PROPERTY, 0);
+        int retryAfterSeconds = Integer.getInteger(RETRY_AFTER_SECONDS_PROPERTY, 1);
+        AdmissionController controller = new AdmissionController(maxInFlight, retryAfterSeconds);
+        if (maxInFlight > 0) {
+            LOGGER.info("fromSystemProperties: {}", controller);
+        }
+        return controller;
+    }
+
+    /**
+     * Admits a read from a disk, or explains why not.
+     *
+     * @return the permit, which must be released when the read is done
+     */
+    Permit acquire(String diskName) throws NotAdmittedException {
+        // Count the read before checking for a pause, so that a drain either sees it or it sees the pause.
+        AtomicInteger diskCount = diskCounter(diskName);
+        int count = inFlight.incrementAndGet();
+        if (diskCount != null) {
+            diskCount.incrementAndGet();
+        }
+        Permit permit = new Permit(this, diskCount);
+        if (paused || (!pausedDisks.isEmpty() && pausedDisks.contains(diskName))) {
+            permit.release();
+            rejectedPaused.increment();
+            throw new NotAdmittedException(paused ? "paused" : "disk paused: " + diskName, retryAfterSeconds);
+        }
+        if ((maxInFlight > 0) && (count > maxInFlight)) {
+            permit.release();
+            rejectedOverloaded.increment();
+            throw new NotAdmittedException("too many requests in progress", retryAfterSeconds);
+        }
+        admitted.increment();
+        return permit;
+    }
+
+    /**
+     * Returns the count of reads in progress on a disk, or null if no disk of that name is registered.
+     */
+    private AtomicInteger diskCounter(String diskName) {
+        AtomicInteger diskCount = diskInFlight.get(diskName);
+        if ((diskCount != null) || !FileAccessor.isRegistered(diskName)) {
+            return diskCount;
+        }
+        return diskInFlight.computeIfAbsent(diskName, name -> new AtomicInteger(0));
+    }
+
+    /**
+     * Forgets the count of reads in progress on a disk that has been removed. Reads still in progress
+     * on it release their permits as usual.
+     */
+    void diskRemoved(String diskName) {
+        diskInFlight.remove(diskName);
+    }
+
+    private void release(Permit permit) {
+        int diskCount = (permit.diskInFlight == null) ? -1 : permit.diskInFlight.decrementAndGet();
+        int count = inFlight.decrementAndGet();
+        if (((count == 0) || (diskCount == 0)) && (drainWaiters.get() > 0)) {
+            synchronized (drainLock) {
+                drainLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Pauses the service (diskName null) or one disk. Reads already in progress continue.
+     */
+    void pause(String diskName) {
+        if (diskName == null) {
+            paused = true;
+        } else {
+            pausedDisks.add(diskName);
+        }
+    }
+
+    /**
+     * Resumes the service (diskName null) or one disk.
+     */
+    void resume(String diskName) {
+        if (diskName == null) {
+            paused = false;
+        } else {
+            pausedDisks.remove(diskName);
+        }
+    }
+
+    boolean isPaused(String diskName) {
+        return (diskName == null) ? paused : pausedDisks.contains(diskName);
+    }
+
+    /**
+     * Waits until no reads are in progress, on the service as a whole (diskName null) or on one disk.
+     *
+     * @return the number of reads still in progress when the wait ended (0 unless it timed out)
+     */
+    int awaitDrained(String diskName, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        drainWaiters.incrementAndGet();
+        try {
+            synchronized (drainLock) {
+                while (true) {
+                    int count = getInFlight(diskName);
+                    long remaining = deadline - System.currentTimeMillis();
+                    if ((count == 0) || (remaining <= 0)) {
+                        return count;
+                    }
+                    drainLock.wait(remaining);
+                }
+            }
+        } finally {
+            drainWaiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the number of reads in progress, on the service as a whole (diskName null) or on one disk.
+     */
+    int getInFlight(String diskName) {
+        if (diskName == null) {
+            return inFlight.get();
+        }
+        AtomicInteger count = diskInFlight.get(diskName);
+        return (count == null) ? 0 : count.get();
+    }
+
+    int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    long getAdmitted() {
+        return admitted.sum();
+    }
+
+    long getRejectedPaused() {
+        return rejectedPaused.sum();
+    }
+
+    long getRejectedOverloaded() {
+        return rejectedOverloaded.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "AdmissionController[maxInFlight=" + maxInFlight + " retryAfterSeconds=" + retryAfterSeconds
+               + " paused=" + paused + " pausedDisks=" + pausedDisks + " inFlight=" + inFlight.get()
+               + " admitted=" + getAdmitted() + " rejectedPaused=" + getRejectedPaused()
+               + " rejectedOverloaded=" + getRejectedOverloaded() + "]";
+    }
+}
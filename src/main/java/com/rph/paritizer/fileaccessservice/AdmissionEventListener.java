@@ -0,0 +1,38 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+
+import javax.ws.rs.ext.Provider;
+
+
+/**
+ * Releases the AdmissionController.Permit of a request once Jersey has finished with it: after the
+ * response has been written, or failed, whichever way the resource method returned. Content still
+ * being sent by a FileSender.AsyncSend keeps its permit until it has been sent.
+ */
+@Provider
+public class AdmissionEventListener implements ApplicationEventListener {
+
+    private static final RequestEventListener RELEASER = event -> {
+        if (event.getType() == RequestEvent.Type.FINISHED) {
+            Object permit = event.getContainerRequest().getProperty(AdmissionController.PERMIT_PROPERTY);
+            if (permit instanceof AdmissionController.Permit) {
+                FileSender.whenSent(event.getContainerRequest().getProperty(FileSender.ASYNC_SEND_PROPERTY),
+                                    ((AdmissionController.Permit) permit)::release);
+            }
+        }
+    };
+
+    @Override
+    public void onEvent(ApplicationEvent event) {
+        // nothing to do
+    }
+
+    @Override
+    public RequestEventListener onRequest(RequestEvent requestEvent) {
+        return RELEASER;
+    }
+}
@@ -0,0 +1,510 @@
+package com.rph.paritizer.fileaccessservice;
+
+import com.rph.paritizer.fileaccessservice.exceptions.NotFileException;
+import com.rph.paritizer.fileaccessservice.exceptions.NotReadableException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Streams many files of one disk back in a single response, as a multipart/mixed body or as an
+ * (uncompressed) tar archive, so that a client that needs hundreds of small files pays for one request
+ * rather than hundreds.
+ *
+ * The files are named by their paths relative to the top of the disk, %-encoded as in the URLs returned by
+ * fileList, one per line. The list can be sent with the request, or saved beforehand as a manifest, whose
+ * ID can then be fetched with a GET (and so cached, bookmarked, or fetched again cheaply). Manifests are
+ * kept in memory, the least recently used being dropped once there are too many.
+ *
+ * Every file's metadata is looked up before anything is written, so the response has a Content-Length.
+ * Files that cannot be read (missing, not regular files, unreadable, or outside the disk) are left out,
+ * and counted in an X-Batch-Skipped header. While one file is being written, the next few are read
+ * into memory by a small pool of prefetch threads (or taken from the content cache), so the disk
+ * and the network are kept busy at the same time. Files too large to prefetch are copied on the
+ * request thread when their turn comes.
+ *
+ * Configured with system properties:
+ *     fileaccessservice.batch.maxFiles               (default 10000; the most files in one batch)
+ *     fileaccessservice.batch.maxManifests           (default 1000)
+ *     fileaccessservice.batch.prefetchThreads        (default 4)
+ *     fileaccessservice.batch.prefetchDepth          (default 4; files read ahead of the one being written,
+ *                                                     0 for none)
+ *     fileaccessservice.batch.prefetchMaxFileBytes   (default 1048576; larger files are not read ahead)
+ */
+class BatchFetcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchFetcher.class);
+
+    static final String MAX_FILES_PROPERTY = "fileaccessservice.batch.maxFiles";
+    static final String MAX_MANIFESTS_PROPERTY = "fileaccessservice.batch.maxManifests";
+    static final String PREFETCH_THREADS_PROPERTY = "fileaccessservice.batch.prefetchThreads";
+    static final String PREFETCH_DEPTH_PROPERTY = "fileaccessservice.batch.prefetchDepth";
+    static final String PREFETCH_MAX_FILE_BYTES_PROPERTY = "fileaccessservice.batch.prefetchMaxFileBytes";
+
+    /**
+     * How a batch is laid out in the response.
+     */
+    enum Format {
+
+        /**
+         * A multipart/mixed body, one part per file, each with Content-Type, Content-Length and
+         * Content-Location (the %-encoded relative path) headers.
+         */
+        MULTIPART {
+            @Override
+            String contentType(String boundary) {
+                return "multipart/mixed; boundary=" + boundary;
+            }
+
+            @Override
+            byte[] header(Part part, String boundary) {
+                String header = "\r\n--" + boundary + "\r\n"
+                                + "Content-Type: " + part.metadata.mediaType + "\r\n"
+                                + "Content-Length: " + part.metadata.size + "\r\n"
+                                + "Content-Location: " + FileAccessorRESTService.encode(part.relativePath) + "\r\n"
+                                + "\r\n";
+                return header.getBytes(StandardCharsets.US_ASCII);
+            }
+
+            @Override
+            int padding(Part part) {
+                return 0;
+            }
+
+            @Override
+            byte[] trailer(String boundary) {
+                return ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+            }
+        },
+
+        /**
+         * A POSIX (ustar) tar archive, one regular file entry per file. Paths too long for a ustar header
+         * are given in a GNU long name entry first, which tar implementations in common use understand.
+         */
+        TAR {
+            @Override
+            String contentType(String boundary) {
+                return "application/x-tar";
+            }
+
+            @Override
+            byte[] header(Part part, String boundary) {
+                return TarHeaders.header(part.relativePath, part.metadata.size, part.metadata.lastModified);
+            }
+
+            @Override
+            int padding(Part part) {
+                return TarHeaders.padding(part.metadata.size);
+            }
+
+            @Override
+            byte[] trailer(String boundary) {
+                return new byte[2 * TarHeaders.BLOCK_SIZE];
+            }
+        };
+
+        abstract String contentType(String boundary);
+
+        /**
+         * Returns the bytes written before a file's content.
+         */
+        abstract byte[] header(Part part, String boundary);
+
+        /**
+         * Returns the number of zero bytes written after a file's content.
+         */
+        abstract int padding(Part part);
+
+        /**
+         * Returns the bytes written after the last file.
+         */
+        abstract byte[] trailer(String boundary);
+
+        /**
+         * Returns the format named by a format query parameter: "multipart" (the default) or "tar".
+         */
+        static Format parse(String name) throws IllegalArgumentException {
+            if ((name == null) || name.isEmpty() || "multipart".equalsIgnoreCase(name)) {
+                return MULTIPART;
+            }
+            if ("tar".equalsIgnoreCase(name)) {
+                return TAR;
+            }
+            throw new IllegalArgumentException("unknown batch format (use multipart or tar): " + name);
+        }
+    }
+
+    /**
+     * One file of a batch, whose metadata has been looked up.
+     */
+    static class Part {
+        final String relativePath;
+        final FileMetadataCache.Entry metadata;
+
+        Part(String relativePath, FileMetadataCache.Entry metadata) {
+            this.relativePath = relativePath;
+            this.metadata = metadata;
+        }
+    }
+
+    /**
+     * The files of a batch that can be sent, in the order they were asked for.
+     */
+    class Batch {
+        final Disk disk;
+        final List<Part> parts;
+        final int skipped;
+
+        private Batch(Disk disk, List<Part> parts, int skipped) {
+            this.disk = disk;
+            this.parts = parts;
+            this.skipped = skipped;
+        }
+
+        /**
+         * Returns the exact length of the batch in the given format, so it can be sent with a Content-Length.
+         */
+        long length(Format format, String boundary) {
+            long length = format.trailer(boundary).length;
+            for (Part part : parts) {
+                length += format.header(part, boundary).length + part.metadata.size + format.padding(part);
+            }
+            return length;
+        }
+
+        /**
+         * Writes the batch to out, reading ahead of the file being written.
+         *
+         * @return the number of bytes written
+         */
+        long write(Format format, String boundary, OutputStream out) throws IOException {
+            Deque<Future<Prefetched>> prefetches = new ArrayDeque<>(prefetchDepth + 1);
+            Iterator<Part> ahead = parts.iterator();
+            for (int i = 0; (i < prefetchDepth) && ahead.hasNext(); i++) {
+                prefetches.add(prefetch(ahead.next()));
+            }
+            long count = 0;
+            try {
+                for (Part part : parts) {
+                    // with no read-ahead, every file is copied on this thread when its turn comes
+                    Prefetched prefetched = prefetches.isEmpty() ? null : await(prefetches.remove());
+                    try {
+                        if ((prefetchDepth > 0) && ahead.hasNext()) {
+                            prefetches.add(prefetch(ahead.next()));
+                        }
+                        byte[] header = format.header(part, boundary);
+                        out.write(header);
+                        count += header.length + writeContent(part, prefetched, out);
+                        int padding = format.padding(part);
+                        if (padding > 0) {
+                            out.write(new byte[padding]);
+                            count += padding;
+                        }
+                    } finally {
+                        if (prefetched != null) {
+                            prefetched.release();
+                        }
+                    }
+                }
+                byte[] trailer = format.trailer(boundary);
+                out.write(trailer);
+                out.flush();
+                return count + trailer.length;
+            } finally {
+                // let the reads already started finish, so whatever they hold is released
+                for (Future<Prefetched> prefetch : prefetches) {
+                    try {
+                        Prefetched prefetched = await(prefetch);
+                        if (prefetched != null) {
+                            prefetched.release();
+                        }
+                    } catch (IOException ex) {
+                        // never going to be written anyway
+                    }
+                }
+            }
+        }
+
+        private Future<Prefetched> prefetch(Part part) {
+            if (part.metadata.size > prefetchMaxFileBytes) {
+                return CompletableFuture.completedFuture(null);   // copied when its turn comes
+            }
+            return prefetchExecutor.submit(() -> Prefetched.read(part.metadata));
+        }
+
+        private long writeContent(Part part, Prefetched prefetched, OutputStream out) throws IOException {
+            long size = part.metadata.size;
+            long count;
+            try {
+                if (prefetched != null) {
+                    count = prefetched.writeTo(out);
+                } else {
+                    try (FileChannel channel = FileChannel.open(Paths.get(part.metadata.filePath), StandardOpenOption.READ)) {
+                        count = FileSender.copy(channel, 0, size, out);
+                    }
+                }
+            } catch (IOException ex) {
+                disk.stats.recordReadError();
+                throw ex;
+            }
+            if (count != size) {
+                // the Content-Length has been sent, so there is no way to carry on
+                disk.stats.recordReadError();
+                throw new IOException("file changed while being sent: " + part.metadata.filePath);
+            }
+            disk.stats.recordRead(count);
+            return count;
+        }
+    }
+
+    /**
+     * The content of a file, read ahead of its turn.
+     */
+    private static class Prefetched {
+        private final ByteBuffer content;
+        private final FileContentCache.Entry cached;   // or null, if content was read from the file
+
+        private Prefetched(ByteBuffer content, FileContentCache.Entry cached) {
+            this.content = content;
+            this.cached = cached;
+        }
+
+        static Prefetched read(FileMetadataCache.Entry file) throws IOException {
+            FileContentCache.Entry cached = FileAccessor.acquireContent(file);
+            if (cached != null) {
+                return new Prefetched(cached.content(), cached);
+            }
+            ByteBuffer content = ByteBuffer.allocate((int) file.size);
+            try (FileChannel channel = FileChannel.open(Paths.get(file.filePath), StandardOpenOption.READ)) {
+                while (content.hasRemaining() && (channel.read(content, content.position()) >= 0)) {
+                    // keep reading
+                }
+            }
+            content.flip();   // a file that shrank is caught by writeContent()
+            return new Prefetched(content, null);
+        }
+
+        long writeTo(OutputStream out) throws IOException {
+            int count = content.remaining();
+            if (content.hasArray()) {
+                out.write(content.array(), content.arrayOffset() + content.position(), count);
+            } else {
+                byte[] buffer = new byte[Math.min(count, FileSender.BUFFER_SIZE)];
+                while (content.hasRemaining()) {
+                    int n = Math.min(buffer.length, content.remaining());
+                    content.get(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                }
+            }
+            return count;
+        }
+
+        void release() {
+            if (cached != null) {
+                cached.release();
+            }
+        }
+    }
+
+    /**
+     * A saved list of files on a disk.
+     */
+    static class Manifest {
+        final String id;
+        final String diskName;
+        final List<String> relativePaths;
+
+        Manifest(String id, String diskName, List<String> relativePaths) {
+            this.id = id;
+            this.diskName = diskName;
+            this.relativePaths = relativePaths;
+        }
+    }
+
+    private final int maxFiles;
+    private final int prefetchDepth;
+    private final long prefetchMaxFileBytes;
+    private final ExecutorService prefetchExecutor;
+    private final Map<String, Manifest> manifests;   // guarded by itself
+
+    BatchFetcher(int maxFiles, int maxManifests, int prefetchThreads, int prefetchDepth, long prefetchMaxFileBytes) {
+        this.maxFiles = maxFiles;
+        this.prefetchDepth = Math.max(0, prefetchDepth);
+        this.prefetchMaxFileBytes = (prefetchThreads > 0) ? Math.min(prefetchMaxFileBytes, Integer.MAX_VALUE) : -1;
+        AtomicInteger threadCount = new AtomicInteger(0);
+        this.prefetchExecutor = Executors.newFixedThreadPool(Math.max(1, prefetchThreads), runnable -> {
+            Thread thread = new Thread(runnable, "batch-prefetch-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.manifests = new LinkedHashMap<String, Manifest>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Manifest> eldest) {
+                return size() > maxManifests;
+            }
+        };
+    }
+
+    /**
+     * Returns a fetcher configured from the system properties listed above.
+     */
+    static BatchFetcher fromSystemProperties() {
+        return new BatchFetcher(Integer.getInteger(MAX_FILES_PROPERTY, 10000),
+                                Integer.getInteger(MAX_MANIFESTS_PROPERTY, 1000),
+                                Integer.getInteger(PREFETCH_THREADS_PROPERTY, 4),
+                                Integer.getInteger(PREFETCH_DEPTH_PROPERTY, 4),
+                                Long.getLong(PREFETCH_MAX_FILE_BYTES_PROPERTY, 1024L * 1024));
+    }
+
+    /**
+     * Parses a list of files: one %-encoded relative path per line. Blank lines are ignored.
+     *
+     * @throws IllegalArgumentException if the list is empty, too long, or a path cannot be decoded
+     */
+    List<String> parseFileList(String fileList) throws IllegalArgumentException {
+        List<String> relativePaths = new ArrayList<>();
+        if (fileList != null) {
+            for (String line : fileList.split("\r?\n")) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (relativePaths.size() == maxFiles) {
+                    throw new IllegalArgumentException("too many files in batch (at most " + maxFiles + ")");
+                }
+                relativePaths.add(decode(line.startsWith("/") ? line.substring(1) : line));
+            }
+        }
+        if (relativePaths.isEmpty()) {
+            throw new IllegalArgumentException("empty file list");
+        }
+        return relativePaths;
+    }
+
+    private static String decode(String encodedPath) throws IllegalArgumentException {
+        try {
+            // '+' is not a space here; encode() always %-encodes it
+            return URLDecoder.decode(encodedPath.replace("+", "%2B"), StandardCharsets.UTF_8.toString());
+        } catch (UnsupportedEncodingException ex) {   // this should never happen
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Looks up the metadata of each file of a batch, leaving out the files that cannot be sent.
+     */
+    Batch prepare(Disk disk, List<String> relativePaths) throws IOException {
+        List<Part> parts = new ArrayList<>(relativePaths.size());
+        int skipped = 0;
+        for (String relativePath : relativePaths) {
+            if (!isInsideDisk(relativePath)) {
+                LOGGER.info("prepare: skipping \"{}\": outside the disk", relativePath);
+                skipped++;
+                continue;
+            }
+            try {
+                parts.add(new Part(relativePath, FileAccessor.getFileMetadata(disk, relativePath)));
+            } catch (IllegalArgumentException | FileNotFoundException | NotFileException | NotReadableException ex) {
+                LOGGER.info("prepare: skipping \"{}\": {}", relativePath, ex.toString());
+                skipped++;
+            }
+        }
+        return new Batch(disk, parts, skipped);
+    }
+
+    private static boolean isInsideDisk(String relativePath) {
+        try {
+            Path path = Paths.get(relativePath);
+            return !path.isAbsolute() && !path.normalize().startsWith("..");
+        } catch (InvalidPathException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Saves a list of files as a manifest. The ID is derived from the disk name and the list,
+     * so saving the same list again returns the same ID.
+     */
+    Manifest saveManifest(String diskName, List<String> relativePaths) {
+        Manifest manifest = new Manifest(manifestId(diskName, relativePaths), diskName,
+                                         Collections.unmodifiableList(relativePaths));
+        synchronized (manifests) {
+            manifests.put(manifest.id, manifest);
+        }
+        return manifest;
+    }
+
+    /**
+     * Returns a saved manifest of the given disk, or null if there is none (or it has been dropped).
+     */
+    Manifest getManifest(String diskName, String id) {
+        Manifest manifest;
+        synchronized (manifests) {
+            manifest = manifests.get(id);
+        }
+        return ((manifest == null) || !manifest.diskName.equals(diskName)) ? null : manifest;
+    }
+
+    private static String manifestId(String diskName, List<String> relativePaths) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(diskName.getBytes(StandardCharsets.UTF_8));
+            for (String relativePath : relativePaths) {
+                digest.update((byte) '\n');
+                digest.update(relativePath.getBytes(StandardCharsets.UTF_8));
+            }
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest.digest(), 16));
+        } catch (NoSuchAlgorithmException ex) {   // every JVM has SHA-256
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static Prefetched await(Future<Prefetched> prefetch) throws IOException {
+        try {
+            return prefetch.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while reading ahead");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BatchFetcher[maxFiles=" + maxFiles + " prefetchDepth=" + prefetchDepth
+               + " prefetchMaxFileBytes=" + prefetchMaxFileBytes + "]";
+    }
+}
@@ -0,0 +1,65 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Releases the memory behind a direct or memory-mapped ByteBuffer immediately, rather than whenever
+ * the garbage collector gets around to it. There is no public API for this, so the JDK's own cleaner
+ * is found reflectively: Unsafe.invokeCleaner() on Java 9 and later, DirectBuffer.cleaner() on Java 8.
+ * If neither can be found, free() does nothing, and the memory is released by the garbage collector.
+ *
+ * The buffer must not be used (nor any duplicate or slice of it) after it has been freed.
+ */
+class BufferCleaner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BufferCleaner.class);
+
+    private static final Object unsafe;
+    private static final Method invokeCleaner;   // Java 9+
+
+    static {
+        Object theUnsafe = null;
+        Method method = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            method = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            theUnsafe = field.get(null);
+        } catch (Exception ex) {
+            method = null;   // Java 8: fall back to DirectBuffer.cleaner()
+        }
+        unsafe = theUnsafe;
+        invokeCleaner = method;
+    }
+
+    /**
+     * Frees the memory of a buffer returned by ByteBuffer.allocateDirect() or FileChannel.map().
+     * Heap buffers are ignored.
+     */
+    static void free(ByteBuffer buffer) {
+        if ((buffer == null) || !buffer.isDirect()) {
+            return;
+        }
+        try {
+            if (invokeCleaner != null) {
+                invokeCleaner.invoke(unsafe, buffer);
+            } else {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (Exception ex) {
+            LOGGER.debug("free: unable to free buffer, leaving it to the garbage collector: {}", ex.toString());
+        }
+    }
+}
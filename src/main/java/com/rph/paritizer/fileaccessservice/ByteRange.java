@@ -0,0 +1,173 @@
+package com.rph.paritizer.fileaccessservice;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * An inclusive range of byte offsets within a file, as requested by an HTTP Range header (RFC 7233).
+ */
+class ByteRange {
+
+    static final int MAX_RANGES = 64;   // more than this (after coalescing) and the whole file is sent
+
+    final long first;
+    final long last;
+
+    ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    long length() {
+        return last - first + 1;
+    }
+
+    /**
+     * Returns the value of a Content-Range header for this range, e.g. "bytes 0-499/1234".
+     */
+    String contentRange(long fileLength) {
+        return "bytes " + first + '-' + last + '/' + fileLength;
+    }
+
+    /**
+     * Parses a Range header value against a file of the given length.
+     * Overlapping or adjacent ranges are coalesced, and the result is sorted by offset.
+     *
+     * @param header the value of the Range header, such as "bytes=0-499,1000-" or "bytes=-500"
+     * @param fileLength the length of the file, in bytes
+     * @return the satisfiable ranges (an empty list means 416 Range Not Satisfiable),
+     *         or null if the header is malformed, has no ranges at all (such as "bytes=,"),
+     *         or asks for too many ranges, in which case it must be ignored and the whole file sent
+     */
+    static List<ByteRange> parse(String header, long fileLength) {
+        if ((header == null) || !header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<>();
+        int specs = 0;
+        for (String spec : header.substring(6).split(",")) {
+            spec = spec.trim();
+            if (spec.isEmpty()) {
+                continue;   // empty list elements are allowed
+            }
+            specs++;
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long first;
+            long last;
+            if (dash == 0) {   // suffix range: the final N bytes
+                long suffixLength = parseDigits(spec.substring(1));
+                if (suffixLength < 0) {
+                    return null;
+                }
+                if (suffixLength == 0) {
+                    continue;   // unsatisfiable
+                }
+                first = Math.max(0, fileLength - suffixLength);
+                last = fileLength - 1;
+            } else {
+                first = parseDigits(spec.substring(0, dash).trim());
+                if (first < 0) {
+                    return null;
+                }
+                String lastSpec = spec.substring(dash + 1).trim();
+                if (lastSpec.isEmpty()) {
+                    last = fileLength - 1;
+                } else {
+                    last = parseDigits(lastSpec);
+                    if (last < first) {
+                        return null;   // not a number, or syntactically invalid
+                    }
+                    last = Math.min(last, fileLength - 1);
+                }
+            }
+            if ((first >= fileLength) || (last < first)) {
+                continue;   // unsatisfiable
+            }
+            ranges.add(new ByteRange(first, last));
+        }
+        if (specs == 0) {
+            return null;
+        }
+        ranges = coalesce(ranges);
+        return (ranges.size() > MAX_RANGES) ? null : ranges;
+    }
+
+    /**
+     * Returns the value of a string of decimal digits, or -1 if it is empty, has anything but digits in it
+     * (Long.parseLong() would take a sign), or does not fit in a long.
+     */
+    private static long parseDigits(String s) {
+        if (s.isEmpty()) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c < '0') || (c > '9') || (value > (Long.MAX_VALUE - (c - '0')) / 10)) {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static List<ByteRange> coalesce(List<ByteRange> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        Collections.sort(ranges, Comparator.comparingLong(r -> r.first));
+        List<ByteRange> result = new ArrayList<>();
+        ByteRange current = ranges.get(0);
+        for (ByteRange range : ranges.subList(1, ranges.size())) {
+            if (range.first <= current.last + 1) {
+                current = new ByteRange(current.first, Math.max(current.last, range.last));
+            } else {
+                result.add(current);
+                current = range;
+            }
+        }
+        result.add(current);
+        return result;
+    }
+
+    /**
+     * Returns the bytes that precede the content of one part of a multipart/byteranges body.
+     */
+    static byte[] partHeader(String boundary, String contentType, ByteRange range, long fileLength) {
+        String header = "\r\n--" + boundary + "\r\n"
+                        + "Content-Type: " + contentType + "\r\n"
+                        + "Content-Range: " + range.contentRange(fileLength) + "\r\n"
+                        + "\r\n";
+        return header.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Returns the bytes that follow the last part of a multipart/byteranges body.
+     */
+    static byte[] multipartTrailer(String boundary) {
+        return ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Returns the exact length of a multipart/byteranges body, so it can be sent with a Content-Length.
+     */
+    static long multipartLength(String boundary, String contentType, List<ByteRange> ranges, long fileLength) {
+        long length = multipartTrailer(boundary).length;
+        for (ByteRange range : ranges) {
+            length += partHeader(boundary, contentType, range, fileLength).length + range.length();
+        }
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return first + "-" + last;
+    }
+}
@@ -0,0 +1,467 @@
+package com.rph.paritizer.fileaccessservice;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
+import org.eclipse.jetty.client.util.BytesContentProvider;
+import org.eclipse.jetty.client.util.InputStreamResponseListener;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Runs several instances of the service as one: a static list of nodes (each named by the scheme, host and port
+ * its peers reach it at, such as http://10.0.0.2:8080), with disks placed on them by consistent hashing of the disk
+ * name (see HashRing). Every node is given the same list, so every node agrees on where each disk is placed.
+ *
+ * A request for a disk that is not registered here, but is placed on a peer, is sent on to the peer:
+ *     proxy     forwarded over a pool of keep-alive connections to each peer, and the peer's response
+ *               streamed back as it arrives (the default); the client talks only to the node it chose
+ *     redirect  answered with a 307 (Temporary Redirect) to the same URL on the peer; the client follows it,
+ *               and the data does not pass through this node
+ * The body of a POST is sent on with it (see forward()). Parity requests are always redirected, since
+ * a run can take longer than a forwarded request may (see FileAccessorRESTService.forwardParity()).
+ * A forwarded request carries a FORWARDED_HEADER, and is never forwarded again, so nodes that disagree
+ * about the placement cannot bounce a request between them. A disk registered here is always served here.
+ *
+ * The lists of disks of the peers are fetched in parallel, for an aggregated diskList.
+ *
+ * Configured with system properties, or with --self and --peers on the command line:
+ *     fileaccessservice.cluster.self                   (this node, as its peers reach it; no default)
+ *     fileaccessservice.cluster.peers                  (the other nodes, comma-separated; no default, which
+ *                                                       leaves clustering off)
+ *     fileaccessservice.cluster.mode                   (default proxy; or redirect)
+ *     fileaccessservice.cluster.virtualNodes           (default 128; points on the ring per node)
+ *     fileaccessservice.cluster.maxConnectionsPerPeer  (default 64)
+ *     fileaccessservice.cluster.timeoutMillis          (default 10000; for a peer to start responding, or
+ *                                                       to send the next part of a response)
+ */
+class Cluster {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Cluster.class);
+
+    static final String SELF_PROPERTY = "fileaccessservice.cluster.self";
+    static final String PEERS_PROPERTY = "fileaccessservice.cluster.peers";
+    static final String MODE_PROPERTY = "fileaccessservice.cluster.mode";
+    static final String VIRTUAL_NODES_PROPERTY = "fileaccessservice.cluster.virtualNodes";
+    static final String MAX_CONNECTIONS_PROPERTY = "fileaccessservice.cluster.maxConnectionsPerPeer";
+    static final String TIMEOUT_MILLIS_PROPERTY = "fileaccessservice.cluster.timeoutMillis";
+
+    /**
+     * Set, to the forwarding node, on requests forwarded to a peer.
+     */
+    static final String FORWARDED_HEADER = "X-FileAccessService-Forwarded-By";
+
+    private static final long IDLE_CONNECTION_MILLIS = 60000;   // how long a pooled connection is kept unused
+    private static final int MAX_DISK_LIST_BYTES = 1024 * 1024;
+    private static final int COPY_BUFFER_SIZE = 32 * 1024;
+
+    // not forwarded either way: they describe the connection, not the request (Host is sent on, so that
+    // the URLs in a forwarded listing lead back to the node the client chose)
+    private static final Set<String> HOP_BY_HOP_HEADERS = new HashSet<>(Arrays.asList(
+            "connection", "keep-alive", "proxy-authenticate", "proxy-authorization", "proxy-connection",
+            "te", "trailer", "transfer-encoding", "upgrade", "date", "server"));
+
+    enum Mode {
+        PROXY, REDIRECT
+    }
+
+    /**
+     * What has been sent to one peer.
+     */
+    static class PeerStats {
+        final LongAdder forwarded = new LongAdder();
+        final LongAdder redirected = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder diskListFailures = new LongAdder();
+    }
+
+    private final Mode mode;
+    private final int virtualNodes;
+    private final int maxConnectionsPerPeer;
+    private final long timeoutMillis;
+
+    private volatile String self;       // null until configured
+    private volatile HashRing ring;     // null until configured
+    private HttpClient client;          // started when first configured
+    private final Map<String, PeerStats> peerStats = new ConcurrentHashMap<>();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    Cluster(Mode mode, int virtualNodes, int maxConnectionsPerPeer, long timeoutMillis) {
+        this.mode = mode;
+        this.virtualNodes = virtualNodes;
+        this.maxConnectionsPerPeer = maxConnectionsPerPeer;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Returns a Cluster configured from the system properties listed above; not clustered unless
+     * both fileaccessservice.cluster.self and fileaccessservice.cluster.peers are set.
+     */
+    static Cluster fromSystemProperties() {
+        Cluster cluster = new Cluster(parseMode(System.getProperty(MODE_PROPERTY, "proxy")),
+                                      Integer.getInteger(VIRTUAL_NODES_PROPERTY, 128),
+                                      Integer.getInteger(MAX_CONNECTIONS_PROPERTY, 64),
+                                      Long.getLong(TIMEOUT_MILLIS_PROPERTY, 10000L));
+        String self = System.getProperty(SELF_PROPERTY);
+        String peers = System.getProperty(PEERS_PROPERTY);
+        if ((self != null) && (peers != null)) {
+            cluster.setNodes(self, Arrays.asList(peers.split(",")));
+        }
+        LOGGER.info("fromSystemProperties: {}", cluster);
+        return cluster;
+    }
+
+    private static Mode parseMode(String mode) {
+        try {
+            return Mode.valueOf(mode.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException(MODE_PROPERTY + ": must be proxy or redirect: " + mode);
+        }
+    }
+
+    /**
+     * Makes this node one of a cluster: self, as the peers reach it, and the peers (which may include self).
+     *
+     * @throws IllegalArgumentException if a node is not an http or https URL with a host
+     */
+    synchronized void setNodes(String self, Collection<String> peers) {
+        String normalizedSelf = normalize(self);
+        Set<String> nodes = new TreeSet<>();
+        nodes.add(normalizedSelf);
+        for (String peer : peers) {
+            if (!peer.trim().isEmpty()) {
+                nodes.add(normalize(peer));
+            }
+        }
+        if (nodes.size() > 1) {
+            startClient();
+        }
+        this.self = normalizedSelf;
+        this.ring = new HashRing(nodes, virtualNodes);
+        LOGGER.info("setNodes: self={} {}", normalizedSelf, ring);
+    }
+
+    /**
+     * Returns scheme://host:port of a node's URL, which may have a path (it is ignored) or no port.
+     */
+    static String normalize(String node) {
+        try {
+            URI uri = new URI(node.trim());
+            String scheme = (uri.getScheme() == null) ? null : uri.getScheme().toLowerCase(Locale.ROOT);
+            if ((uri.getHost() == null) || !("http".equals(scheme) || "https".equals(scheme))) {
+                throw new IllegalArgumentException("not an http or https URL: " + node);
+            }
+            int port = (uri.getPort() >= 0) ? uri.getPort() : "https".equals(scheme) ? 443 : 80;
+            return scheme + "://" + uri.getHost().toLowerCase(Locale.ROOT) + ':' + port;
+        } catch (URISyntaxException ex) {
+            throw new IllegalArgumentException("not a URL: " + node);
+        }
+    }
+
+    private void startClient() {
+        if (client != null) {
+            return;
+        }
+        QueuedThreadPool threads = new QueuedThreadPool(Math.max(8, Runtime.getRuntime().availableProcessors() * 2));
+        threads.setName("cluster-client");
+        threads.setDaemon(true);
+        HttpClient httpClient = new HttpClient();
+        httpClient.setExecutor(threads);
+        httpClient.setMaxConnectionsPerDestination(maxConnectionsPerPeer);
+        httpClient.setIdleTimeout(IDLE_CONNECTION_MILLIS);
+        httpClient.setConnectTimeout(timeoutMillis);
+        httpClient.setFollowRedirects(false);
+        try {
+            httpClient.start();
+        } catch (Exception ex) {
+            throw new IllegalStateException("cannot start the cluster's HTTP client", ex);
+        }
+        httpClient.getContentDecoderFactories().clear();   // (set up by start()) pass compressed responses on as they are
+        client = httpClient;
+    }
+
+    boolean isEnabled() {
+        return ring != null;
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Returns this node, as scheme://host:port, or null if not in a cluster.
+     */
+    String getSelf() {
+        return self;
+    }
+
+    /**
+     * Returns the nodes of the cluster, including this one; none if not in a cluster.
+     */
+    List<String> getNodes() {
+        HashRing ring = this.ring;
+        return (ring == null) ? Collections.emptyList() : ring.nodes();
+    }
+
+    /**
+     * Returns the node a disk is placed on; this one if not in a cluster.
+     */
+    String getOwner(String diskName) {
+        HashRing ring = this.ring;
+        return (ring == null) ? self : ring.owner(diskName);
+    }
+
+    /**
+     * Returns true if a disk is placed on this node (as every disk is, if not in a cluster).
+     */
+    boolean isPlacedHere(String diskName) {
+        HashRing ring = this.ring;
+        return (ring == null) || ring.owner(diskName).equals(self);
+    }
+
+    /**
+     * Returns the peer a request for a disk that is not registered here should be sent to,
+     * or null if it should be answered here: if not in a cluster, the disk is placed here, or the
+     * request was forwarded here by a peer.
+     */
+    String getPeerFor(String diskName, HttpServletRequest request) {
+        HashRing ring = this.ring;
+        if ((ring == null) || (request.getHeader(FORWARDED_HEADER) != null)) {
+            return null;
+        }
+        String owner = ring.owner(diskName);
+        return owner.equals(self) ? null : owner;
+    }
+
+    /**
+     * Sends a request without a body on to a peer. See forward(String, HttpServletRequest, byte[]).
+     */
+    Response forward(String peer, HttpServletRequest request) {
+        return forward(peer, request, null);
+    }
+
+    /**
+     * Sends a request on to a peer: forwards it and streams back the peer's response, or redirects the client
+     * to the peer, as the mode says. The request URI (path and query) is the same on the peer.
+     * A redirect is a 307, so the client sends the same method and body to the peer.
+     *
+     * @param body the body of the request, as read here (Jersey has already read it from the request), or null
+     * @return the response; a 502 (Bad Gateway) if the peer could not be reached or did not respond in time
+     */
+    Response forward(String peer, HttpServletRequest request, byte[] body) {
+        if (mode == Mode.REDIRECT) {
+            return redirect(peer, request);
+        }
+        String target = targetOf(peer, request);
+        PeerStats stats = getPeerStats(peer);
+        stats.forwarded.increment();
+        Request forwarded = client.newRequest(target)
+                .method(request.getMethod())
+                .idleTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        forwarded.getHeaders().remove(HttpHeader.USER_AGENT);   // the client's own User-Agent is sent on
+        for (Enumeration<String> names = request.getHeaderNames(); names.hasMoreElements(); ) {
+            String name = names.nextElement();
+            if (HOP_BY_HOP_HEADERS.contains(name.toLowerCase(Locale.ROOT)) || "content-length".equalsIgnoreCase(name)) {
+                continue;   // the length is that of the body sent, if any
+            }
+            for (Enumeration<String> values = request.getHeaders(name); values.hasMoreElements(); ) {
+                forwarded.header(name, values.nextElement());
+            }
+        }
+        forwarded.header(FORWARDED_HEADER, self);
+        forwarded.header("X-Forwarded-For", request.getRemoteAddr());
+        if (body != null) {
+            forwarded.content(new BytesContentProvider(body));   // the Content-Type is sent on as it came
+        }
+        InputStreamResponseListener listener = new InputStreamResponseListener();
+        forwarded.send(listener);
+        org.eclipse.jetty.client.api.Response peerResponse;
+        try {
+            peerResponse = listener.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException ex) {
+            forwarded.abort(ex);
+            return peerUnavailable(peer, stats, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            forwarded.abort(ex);
+            return peerUnavailable(peer, stats, ex);
+        }
+
+        Response.ResponseBuilder builder = Response.status(peerResponse.getStatus(), peerResponse.getReason());
+        for (HttpField field : peerResponse.getHeaders()) {
+            if (!HOP_BY_HOP_HEADERS.contains(field.getName().toLowerCase(Locale.ROOT))) {
+                builder.header(field.getName(), field.getValue());
+            }
+        }
+        InputStream in = listener.getInputStream();
+        if ((peerResponse.getStatus() == 304) || (peerResponse.getStatus() == 204)) {
+            close(in);
+            return builder.build();
+        }
+        StreamingOutput entity = out -> {
+            try (InputStream input = in) {   // closing it early aborts the peer's response
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                int count;
+                while ((count = input.read(buffer)) >= 0) {
+                    out.write(buffer, 0, count);
+                }
+            } catch (IOException ex) {
+                stats.failures.increment();
+                throw ex;
+            }
+        };
+        return builder.entity(entity).build();
+    }
+
+    /**
+     * Redirects the client to the same URL on a peer, whatever the mode. A 307 keeps the method and the body,
+     * so a POST (such as newDisk) is repeated on the peer by a client that follows it.
+     */
+    Response redirect(String peer, HttpServletRequest request) {
+        getPeerStats(peer).redirected.increment();
+        return Response.temporaryRedirect(URI.create(targetOf(peer, request)))
+                .header("Access-Control-Allow-Origin", "*")
+                .build();
+    }
+
+    private static String targetOf(String peer, HttpServletRequest request) {
+        return peer + request.getRequestURI()
+               + ((request.getQueryString() == null) ? "" : '?' + request.getQueryString());
+    }
+
+    private Response peerUnavailable(String peer, PeerStats stats, Exception ex) {
+        stats.failures.increment();
+        Throwable cause = (ex instanceof ExecutionException) && (ex.getCause() != null) ? ex.getCause() : ex;
+        LOGGER.warn("forward: {}: {}", peer, cause.toString());
+        String message = "Peer unavailable: " + peer + ": " + cause.getClass().getSimpleName();
+        return Response.status(Response.Status.BAD_GATEWAY.getStatusCode(), message)
+                .header("Access-Control-Allow-Origin", "*")
+                .build();
+    }
+
+    private static void close(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException ex) {
+            // nothing more to read anyway
+        }
+    }
+
+    /**
+     * The disks of one node, or why they could not be listed.
+     */
+    static class NodeDisks {
+        final String node;
+        final List<String> disks;   // null if they could not be listed
+        final String error;         // null if they could
+
+        NodeDisks(String node, List<String> disks, String error) {
+            this.node = node;
+            this.disks = disks;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Returns the disks of each node: those of this one as given, and those of each peer as listed by a GET of
+     * diskListPath (the path of the diskList operation) with local=true. The peers are asked in parallel.
+     */
+    List<NodeDisks> getDiskLists(String diskListPath, Collection<String> localDiskNames) {
+        List<CompletableFuture<NodeDisks>> futures = new ArrayList<>();
+        for (String node : getNodes()) {
+            if (node.equals(self)) {
+                List<String> names = new ArrayList<>(new TreeSet<>(localDiskNames));
+                futures.add(CompletableFuture.completedFuture(new NodeDisks(node, names, null)));
+            } else {
+                futures.add(fetchDiskList(node, diskListPath));
+            }
+        }
+        List<NodeDisks> diskLists = new ArrayList<>(futures.size());
+        for (CompletableFuture<NodeDisks> future : futures) {
+            diskLists.add(future.join());
+        }
+        return diskLists;
+    }
+
+    private CompletableFuture<NodeDisks> fetchDiskList(String peer, String diskListPath) {
+        CompletableFuture<NodeDisks> future = new CompletableFuture<>();
+        client.newRequest(peer + diskListPath + "?local=true")
+                .header(FORWARDED_HEADER, self)
+                .timeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .send(new BufferingResponseListener(MAX_DISK_LIST_BYTES) {
+                    @Override
+                    public void onComplete(Result result) {
+                        future.complete(toNodeDisks(peer, result, getContentAsString(StandardCharsets.UTF_8)));
+                    }
+                });
+        return future;
+    }
+
+    private NodeDisks toNodeDisks(String peer, Result result, String content) {
+        String error;
+        if (result.isFailed()) {
+            error = result.getFailure().toString();
+        } else if (result.getResponse().getStatus() != 200) {
+            error = "HTTP " + result.getResponse().getStatus() + ' ' + result.getResponse().getReason();
+        } else {
+            try {
+                List<String> names = new ArrayList<>();
+                for (JsonNode name : objectMapper.readTree(content).path("disks")) {
+                    names.add(name.asText());
+                }
+                return new NodeDisks(peer, names, null);
+            } catch (IOException ex) {
+                error = "unreadable disk list: " + ex.getMessage();
+            }
+        }
+        getPeerStats(peer).diskListFailures.increment();
+        LOGGER.warn("getDiskLists: {}: {}", peer, error);
+        return new NodeDisks(peer, null, error);
+    }
+
+    /**
+     * Returns what has been sent to a peer.
+     */
+    PeerStats getPeerStats(String peer) {
+        return peerStats.computeIfAbsent(peer, p -> new PeerStats());
+    }
+
+    @Override
+    public String toString() {
+        return "Cluster[self=" + self + " nodes=" + getNodes() + " mode=" + mode + " virtualNodes=" + virtualNodes
+               + " maxConnectionsPerPeer=" + maxConnectionsPerPeer + " timeoutMillis=" + timeoutMillis + "]";
+    }
+}
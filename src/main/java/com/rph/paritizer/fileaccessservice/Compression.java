@@ -0,0 +1,823 @@
+package com.rph.paritizer.fileaccessservice;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import com.rph.paritizer.fileaccessservice.exceptions.NotFileException;
+import com.rph.paritizer.fileaccessservice.exceptions.NotReadableException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Content-Encoding negotiation, and the compressed forms of responses.
+ *
+ * Listings (and other generated responses) are compressed as they are written (see CompressionInterceptor),
+ * with gzip or zstd, whichever the client prefers. Files of a compressible media type (text, XML, HTML,
+ * JSON) are sent compressed from a variant made once, ahead of time:
+ *   - a precompressed sidecar next to the file on the disk (name.br, name.zst or name.gz), at least as new
+ *     as the file, as made by brotli, zstd or gzip; brotli is only ever sent this way;
+ *   - otherwise, a gzip or zstd variant in the variant directory, made in the background the first time the
+ *     file is asked for in that encoding (until it is ready, the file is sent as it is). A variant's name
+ *     includes the file's entity tag, so a changed file is never sent in an old variant; the old variant
+ *     is deleted when the new one is made.
+ * The variant directory is private to the service's user (see PrivateDirectory), and is kept to
+ * maxVariantDirBytes by deleting the oldest variants; one that is being sent is deleted only once it has
+ * been sent. Variants left by an earlier run are picked up again when the service restarts.
+ * Media types that are already compressed (JPEG, PNG and the like) are never compressed again, nor are files
+ * smaller than minBytes; and a file that turns out to shrink by less than a tenth is recorded as not worth
+ * compressing (with an empty variant), and sent as it is from then on. Range requests always get the file
+ * as it is.
+ *
+ * For each encoding, and each source (stream, variant or sidecar), the responses sent, the bytes before
+ * and after compression, and the CPU time spent compressing are counted, and reported by Metrics.
+ *
+ * zstd needs the native library of zstd-jni; if it cannot be loaded, zstd is not offered.
+ *
+ * Configured with system properties:
+ *     fileaccessservice.compression.enabled           (default true)
+ *     fileaccessservice.compression.minBytes          (default 1024)
+ *     fileaccessservice.compression.maxVariantBytes   (default 67108864; larger files are sent as they are)
+ *     fileaccessservice.compression.variantDir        (default fileaccessservice-variants in java.io.tmpdir)
+ *     fileaccessservice.compression.maxVariantDirBytes (default 1073741824)
+ */
+class Compression {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Compression.class);
+
+    static final String ENABLED_PROPERTY = "fileaccessservice.compression.enabled";
+    static final String MIN_BYTES_PROPERTY = "fileaccessservice.compression.minBytes";
+    static final String MAX_VARIANT_BYTES_PROPERTY = "fileaccessservice.compression.maxVariantBytes";
+    static final String VARIANT_DIRECTORY_PROPERTY = "fileaccessservice.compression.variantDir";
+    static final String MAX_VARIANT_DIRECTORY_BYTES_PROPERTY = "fileaccessservice.compression.maxVariantDirBytes";
+
+    /**
+     * Request property holding the Encoding in which CompressionInterceptor is to compress the entity.
+     */
+    static final String STREAM_ENCODING_PROPERTY = Compression.class.getName() + ".streamEncoding";
+
+    private static final double MIN_SAVING = 0.10;       // a variant must be at least this much smaller
+    private static final int MAX_PENDING_VARIANTS = 1000;
+    private static final int MAX_KNOWN_VARIANTS = 100000;
+
+    private static final boolean ZSTD_AVAILABLE = loadZstd();
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * The encodings, in the order the service prefers them when the client likes them equally.
+     */
+    enum Encoding {
+        BROTLI("br", ".br"),
+        ZSTD("zstd", ".zst"),
+        GZIP("gzip", ".gz");
+
+        final String token;    // the Content-Encoding value
+        final String suffix;   // of sidecar and variant files
+
+        Encoding(String token, String suffix) {
+            this.token = token;
+            this.suffix = suffix;
+        }
+
+        /**
+         * Returns true if the service itself can compress in this encoding.
+         */
+        boolean canCompress() {
+            return (this == GZIP) || ((this == ZSTD) && ZSTD_AVAILABLE);
+        }
+
+        /**
+         * Returns a stream that compresses what is written to it into out. Closing it closes out.
+         *
+         * @param thorough true for a variant, which is made once and sent many times, so is worth
+         *                 compressing harder; false for a response compressed as it is written
+         */
+        OutputStream compressor(OutputStream out, boolean thorough) throws IOException {
+            switch (this) {
+                case GZIP:
+                    return new LevelGZIPOutputStream(out, thorough ? 9 : 6);
+                case ZSTD:
+                    return new ZstdOutputStream(out, thorough ? 15 : 3);
+                default:
+                    throw new UnsupportedOperationException("cannot compress with " + token);
+            }
+        }
+    }
+
+    /**
+     * Where compressed content comes from.
+     */
+    enum Source {
+        STREAM, VARIANT, SIDECAR;
+
+        final String label = name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * A compressed form of a file, ready to be sent.
+     */
+    static class Variant {
+        final Encoding encoding;
+        final Source source;
+        final FileMetadataCache.Entry file;   // the compressed content, with the original's media type
+        final String entityTag;               // the original's, qualified by the encoding
+
+        Variant(Encoding encoding, Source source, FileMetadataCache.Entry file, String entityTag) {
+            this.encoding = encoding;
+            this.source = source;
+            this.file = file;
+            this.entityTag = entityTag;
+        }
+    }
+
+    /**
+     * Counts for one encoding from one source.
+     */
+    static class Stats {
+        final Encoding encoding;
+        final Source source;
+        private final LongAdder responses = new LongAdder();
+        private final LongAdder inputBytes = new LongAdder();
+        private final LongAdder outputBytes = new LongAdder();
+        private final LongAdder cpuNanos = new LongAdder();
+
+        Stats(Encoding encoding, Source source) {
+            this.encoding = encoding;
+            this.source = source;
+        }
+
+        void recordResponse(long input, long output) {
+            responses.increment();
+            inputBytes.add(input);
+            outputBytes.add(output);
+        }
+
+        void recordCpu(long nanos) {
+            cpuNanos.add(nanos);
+        }
+
+        long getResponses() {
+            return responses.sum();
+        }
+
+        long getInputBytes() {
+            return inputBytes.sum();
+        }
+
+        long getOutputBytes() {
+            return outputBytes.sum();
+        }
+
+        long getCpuNanos() {
+            return cpuNanos.sum();
+        }
+    }
+
+    private final boolean enabled;
+    private final long minBytes;
+    private final long maxVariantBytes;
+    private final long maxVariantDirectoryBytes;
+    private final Path variantDirectory;   // null if it could not be created
+    private final Map<Encoding, Map<Source, Stats>> stats = new EnumMap<>(Encoding.class);
+    private final Map<Encoding, LongAdder> variantsMade = new EnumMap<>(Encoding.class);
+    private final Map<Encoding, LongAdder> variantsNotWorthIt = new EnumMap<>(Encoding.class);
+
+    private final Map<Path, FileMetadataCache.Entry> knownVariants = new ConcurrentHashMap<>();
+    private final Set<Path> pendingVariants = ConcurrentHashMap.newKeySet();
+    private final ExecutorService variantMaker;
+
+    private final LinkedHashMap<Path, Long> variantSizes = new LinkedHashMap<>();   // oldest first; guarded by this
+    private long variantDirectoryBytes;   // guarded by this
+    private final Map<Path, Integer> pinned = new HashMap<>();   // variants being sent; guarded by this
+    private final Set<Path> deleteWhenUnpinned = new HashSet<>();   // guarded by this
+    private final LongAdder variantsEvicted = new LongAdder();
+
+    Compression(boolean enabled, long minBytes, long maxVariantBytes, File variantDirectory, long maxVariantDirectoryBytes) {
+        this.enabled = enabled;
+        this.minBytes = minBytes;
+        this.maxVariantBytes = maxVariantBytes;
+        this.maxVariantDirectoryBytes = maxVariantDirectoryBytes;
+        this.variantDirectory = createVariantDirectory(variantDirectory);
+        for (Encoding encoding : Encoding.values()) {
+            Map<Source, Stats> sources = new EnumMap<>(Source.class);
+            for (Source source : Source.values()) {
+                sources.put(source, new Stats(encoding, source));
+            }
+            stats.put(encoding, sources);
+            variantsMade.put(encoding, new LongAdder());
+            variantsNotWorthIt.put(encoding, new LongAdder());
+        }
+        this.variantMaker = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                                                   new LinkedBlockingQueue<>(MAX_PENDING_VARIANTS), runnable -> {
+            Thread thread = new Thread(runnable, "variant-maker");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        loadVariants();
+    }
+
+    /**
+     * Returns a Compression configured from the system properties listed above.
+     */
+    static Compression fromSystemProperties() {
+        String variantDirectory = System.getProperty(VARIANT_DIRECTORY_PROPERTY,
+                                                     new File(System.getProperty("java.io.tmpdir"),
+                                                              "fileaccessservice-variants").getPath());
+        Compression compression = new Compression(Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "true")),
+                                                  Long.getLong(MIN_BYTES_PROPERTY, 1024L),
+                                                  Long.getLong(MAX_VARIANT_BYTES_PROPERTY, 64L * 1024 * 1024),
+                                                  new File(variantDirectory),
+                                                  Long.getLong(MAX_VARIANT_DIRECTORY_BYTES_PROPERTY, 1024L * 1024 * 1024));
+        LOGGER.info("fromSystemProperties: {}", compression);
+        return compression;
+    }
+
+    private static Path createVariantDirectory(File directory) {
+        try {
+            return PrivateDirectory.create(directory);
+        } catch (IOException ex) {
+            LOGGER.warn("createVariantDirectory: {}; files will only be sent compressed from sidecars", ex.toString());
+            return null;
+        }
+    }
+
+    private static boolean loadZstd() {
+        try {
+            com.github.luben.zstd.util.Native.load();
+            return true;
+        } catch (LinkageError ex) {   // no zstd-jni, or no native library for this platform
+            LOGGER.info("loadZstd: zstd is not available: {}", ex.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if content of the given media type is worth compressing.
+     */
+    static boolean isCompressible(String mediaType) {
+        String type = mediaType.toLowerCase(Locale.ROOT);
+        int parameters = type.indexOf(';');
+        if (parameters >= 0) {
+            type = type.substring(0, parameters).trim();
+        }
+        return type.startsWith("text/")
+               || type.equals("application/json") || type.endsWith("+json")
+               || type.equals("application/xml") || type.endsWith("+xml")
+               || type.equals("application/javascript");
+    }
+
+    /**
+     * Returns the encodings an Accept-Encoding header allows, most preferred first (by quality value,
+     * and then in the service's order). Encodings the client does not name are allowed only by "*".
+     * No header, or an empty one, allows none.
+     */
+    static List<Encoding> acceptable(String acceptEncoding) {
+        List<Encoding> encodings = new ArrayList<>(3);
+        if ((acceptEncoding == null) || acceptEncoding.trim().isEmpty()) {
+            return encodings;
+        }
+        Map<Encoding, Double> qualities = new EnumMap<>(Encoding.class);
+        double anyQuality = 0;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parts = element.split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2).trim());
+                    } catch (NumberFormatException ex) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (coding.equals("*")) {
+                anyQuality = quality;
+            } else if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                qualities.put(Encoding.GZIP, quality);
+            } else if (coding.equals("br")) {
+                qualities.put(Encoding.BROTLI, quality);
+            } else if (coding.equals("zstd")) {
+                qualities.put(Encoding.ZSTD, quality);
+            }
+        }
+        double otherQuality = anyQuality;
+        for (Encoding encoding : Encoding.values()) {
+            if (qualities.getOrDefault(encoding, otherQuality) > 0) {
+                encodings.add(encoding);
+            }
+        }
+        encodings.sort(Comparator.comparingDouble(encoding -> -qualities.getOrDefault(encoding, otherQuality)));
+        return encodings;   // the sort is stable, so ties stay in the service's order
+    }
+
+    /**
+     * Returns the encoding in which to compress a generated response, or null to send it as it is.
+     */
+    Encoding negotiateStream(String acceptEncoding) {
+        if (!enabled) {
+            return null;
+        }
+        for (Encoding encoding : acceptable(acceptEncoding)) {
+            if (encoding.canCompress()) {
+                return encoding;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the compressed form in which to send a whole file, or null to send it as it is.
+     * If the client would take a variant that has not been made yet, it is made in the background.
+     * The caller must release() the result once it has been sent, so that it is not deleted before.
+     *
+     * @param disk the file's disk
+     * @param relativePath the file's path on the disk
+     * @param file the file's metadata
+     * @param acceptEncoding the request's Accept-Encoding header
+     */
+    Variant select(Disk disk, String relativePath, FileMetadataCache.Entry file, String acceptEncoding)
+            throws IOException {
+        if (!enabled || (file.size < minBytes) || !isCompressible(file.mediaType)) {
+            return null;
+        }
+        boolean scheduled = false;
+        for (Encoding encoding : acceptable(acceptEncoding)) {
+            Variant variant = sidecar(disk, relativePath, file, encoding);
+            if (variant == null) {
+                if (!encoding.canCompress() || (variantDirectory == null) || (file.size > maxVariantBytes)) {
+                    continue;
+                }
+                Path variantPath = variantPath(file, encoding);
+                FileMetadataCache.Entry made = knownVariants.get(variantPath);
+                if ((made == null) && !pendingVariants.contains(variantPath)) {
+                    made = lookUpVariant(variantPath, file);
+                    if ((made == null) && !scheduled) {
+                        scheduleVariant(file, encoding, variantPath);
+                        scheduled = true;   // the most preferred one only; the others may be asked for later
+                    }
+                }
+                if ((made == null) || (made.size == 0)) {   // not made yet, or not worth it
+                    continue;
+                }
+                if (!pin(variantPath)) {
+                    continue;   // deleted meanwhile; made again when next asked for
+                }
+                variant = new Variant(encoding, Source.VARIANT, made, file.entityTag + '-' + encoding.token);
+            }
+            return variant;
+        }
+        return null;
+    }
+
+    /**
+     * Releases a variant returned by select(): it may be deleted from now on.
+     */
+    void release(Variant variant) {
+        if (variant.source == Source.VARIANT) {
+            unpin(Paths.get(variant.file.filePath));
+        }
+    }
+
+    /**
+     * Counts a variant as sent in place of a file of the given size.
+     */
+    void recordSent(Variant variant, long fileSize) {
+        stats(variant.encoding, variant.source).recordResponse(fileSize, variant.file.size);
+    }
+
+    /**
+     * Returns the precompressed sidecar of a file in the given encoding, or null if there is none
+     * (or it is older than the file). The disk's index is consulted first, so looking for sidecars
+     * that are not there costs no system calls.
+     */
+    private static Variant sidecar(Disk disk, String relativePath, FileMetadataCache.Entry file, Encoding encoding)
+            throws IOException {
+        String sidecarPath = relativePath + encoding.suffix;
+        if (disk.index.getFileInfo(sidecarPath) == null) {
+            return null;
+        }
+        FileMetadataCache.Entry sidecar;
+        try {
+            sidecar = FileAccessor.getFileMetadata(disk, sidecarPath);
+        } catch (FileNotFoundException | NotFileException | NotReadableException ex) {
+            return null;
+        }
+        if (sidecar.lastModified < file.lastModified) {
+            return null;   // stale
+        }
+        FileMetadataCache.Entry content = new FileMetadataCache.Entry(sidecar.filePath, sidecar.size, sidecar.lastModified,
+                                                                      sidecar.entityTag, true, file.mediaType,
+                                                                      sidecar.loadedAt);
+        return new Variant(encoding, Source.SIDECAR, content, file.entityTag + '-' + sidecar.entityTag);
+    }
+
+    /**
+     * Returns the path of a file's variant in an encoding: a digest of the file's path, its entity tag,
+     * and the encoding's suffix.
+     */
+    private Path variantPath(FileMetadataCache.Entry file, Encoding encoding) {
+        return variantDirectory.resolve(pathDigest(file.filePath) + '.' + file.entityTag + encoding.suffix);
+    }
+
+    private FileMetadataCache.Entry lookUpVariant(Path variantPath, FileMetadataCache.Entry file) throws IOException {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(variantPath, BasicFileAttributes.class);
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+        return rememberVariant(variantPath, attrs, file);
+    }
+
+    private FileMetadataCache.Entry rememberVariant(Path variantPath, BasicFileAttributes attrs, FileMetadataCache.Entry file) {
+        FileMetadataCache.Entry made = new FileMetadataCache.Entry(variantPath.toString(), attrs.size(),
+                                                                   attrs.lastModifiedTime().toMillis(),
+                                                                   FileAccessor.entityTag(attrs), true, file.mediaType,
+                                                                   System.currentTimeMillis());
+        if (knownVariants.size() >= MAX_KNOWN_VARIANTS) {
+            knownVariants.clear();   // they are looked up again as needed
+        }
+        knownVariants.put(variantPath, made);
+        return made;
+    }
+
+    private void scheduleVariant(FileMetadataCache.Entry file, Encoding encoding, Path variantPath) {
+        if (!pendingVariants.add(variantPath)) {
+            return;
+        }
+        try {
+            variantMaker.execute(() -> {
+                try {
+                    makeVariant(file, encoding, variantPath);
+                } catch (IOException | RuntimeException ex) {
+                    LOGGER.warn("makeVariant: {}: {}", file.filePath, ex.toString());
+                } finally {
+                    pendingVariants.remove(variantPath);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            pendingVariants.remove(variantPath);   // too many pending; asked for again later
+        }
+    }
+
+    /**
+     * Compresses a file into its variant: into a temporary file first, which is then renamed, so a variant
+     * is never seen half made. If the file changed meanwhile, the result is thrown away. A result that is not
+     * at least MIN_SAVING smaller than the file is replaced by an empty variant, meaning "send it as it is".
+     */
+    private void makeVariant(FileMetadataCache.Entry file, Encoding encoding, Path variantPath) throws IOException {
+        String name = variantPath.getFileName().toString();
+        Path tmpPath = Files.createTempFile(variantDirectory, name, ".tmp");
+        try {
+            long cpuStart = cpuTime();
+            try (InputStream in = Files.newInputStream(Paths.get(file.filePath));
+                 OutputStream out = encoding.compressor(Files.newOutputStream(tmpPath), true)) {
+                byte[] buffer = new byte[FileSender.BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, n);
+                }
+            }
+            stats(encoding, Source.VARIANT).recordCpu(cpuTime() - cpuStart);
+            BasicFileAttributes now = Files.readAttributes(Paths.get(file.filePath), BasicFileAttributes.class);
+            if (!FileAccessor.entityTag(now).equals(file.entityTag)) {
+                LOGGER.info("makeVariant: {} changed while being compressed", file.filePath);
+                return;
+            }
+            long compressedSize = Files.size(tmpPath);
+            if (compressedSize > file.size * (1 - MIN_SAVING)) {
+                Files.write(tmpPath, new byte[0]);
+                variantsNotWorthIt.get(encoding).increment();
+                LOGGER.info("makeVariant: {} is not worth compressing with {} ({} -> {} bytes)",
+                            file.filePath, encoding.token, file.size, compressedSize);
+            } else {
+                variantsMade.get(encoding).increment();
+                LOGGER.info("makeVariant: {} compressed with {} ({} -> {} bytes)",
+                            file.filePath, encoding.token, file.size, compressedSize);
+            }
+            Files.move(tmpPath, variantPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            BasicFileAttributes attrs = Files.readAttributes(variantPath, BasicFileAttributes.class);
+            rememberVariant(variantPath, attrs, file);
+            deleteOlderVariants(variantPath, encoding);
+            track(variantPath, attrs.size());
+        } finally {
+            Files.deleteIfExists(tmpPath);
+        }
+    }
+
+    /**
+     * Deletes the variants, in the same encoding, of earlier versions of the file whose variant was just made.
+     */
+    private void deleteOlderVariants(Path variantPath, Encoding encoding) throws IOException {
+        String name = variantPath.getFileName().toString();
+        String glob = name.substring(0, name.indexOf('.')) + ".*" + encoding.suffix;
+        try (DirectoryStream<Path> variants = Files.newDirectoryStream(variantDirectory, glob)) {
+            for (Path variant : variants) {
+                if (!variant.equals(variantPath) && forget(variant)) {
+                    Files.deleteIfExists(variant);
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts a variant just made against maxVariantDirBytes, and deletes the oldest variants while
+     * there are too many bytes of them (or too many of them).
+     */
+    private void track(Path variantPath, long size) {
+        List<Path> evicted = new ArrayList<>();
+        synchronized (this) {
+            Long old = variantSizes.put(variantPath, size);
+            variantDirectoryBytes += size - ((old == null) ? 0 : old);
+            while (((variantDirectoryBytes > maxVariantDirectoryBytes) || (variantSizes.size() > MAX_KNOWN_VARIANTS))
+                   && (variantSizes.size() > 1)) {
+                Path oldest = variantSizes.keySet().iterator().next();
+                if (forget(oldest)) {
+                    evicted.add(oldest);
+                }
+                variantsEvicted.increment();
+            }
+        }
+        for (Path path : evicted) {
+            delete(path);
+        }
+    }
+
+    /**
+     * Stops counting a variant, and returns true if it can be deleted now; if it is being sent,
+     * it is deleted by unpin() instead.
+     */
+    private synchronized boolean forget(Path variantPath) {
+        Long size = variantSizes.remove(variantPath);
+        if (size != null) {
+            variantDirectoryBytes -= size;
+        }
+        knownVariants.remove(variantPath);
+        if (pinned.containsKey(variantPath)) {
+            deleteWhenUnpinned.add(variantPath);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Keeps a variant from being deleted until unpin() is called, and returns true; or returns false
+     * if the variant has been deleted (or is about to be).
+     */
+    private synchronized boolean pin(Path variantPath) {
+        if (!variantSizes.containsKey(variantPath)) {
+            return false;
+        }
+        pinned.merge(variantPath, 1, Integer::sum);
+        return true;
+    }
+
+    private void unpin(Path variantPath) {
+        synchronized (this) {
+            Integer count = pinned.get(variantPath);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                pinned.put(variantPath, count - 1);
+                return;
+            }
+            pinned.remove(variantPath);
+            if (!deleteWhenUnpinned.remove(variantPath)) {
+                return;
+            }
+        }
+        delete(variantPath);
+    }
+
+    private static void delete(Path variantPath) {
+        try {
+            Files.deleteIfExists(variantPath);
+        } catch (IOException ex) {
+            LOGGER.warn("delete: cannot delete {}: {}", variantPath, ex.toString());
+        }
+    }
+
+    /**
+     * Picks up the variants left in the variant directory by an earlier run, oldest first, so the newest
+     * are kept if there are too many; and deletes any temporary files left half made.
+     */
+    private void loadVariants() {
+        if (variantDirectory == null) {
+            return;
+        }
+        Map<Path, BasicFileAttributes> attributes = new HashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(variantDirectory)) {
+            for (Path path : files) {
+                if (path.getFileName().toString().endsWith(".tmp")) {
+                    Files.deleteIfExists(path);
+                    continue;
+                }
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                if (attrs.isRegularFile()) {
+                    attributes.put(path, attrs);
+                }
+            }
+        } catch (IOException ex) {
+            LOGGER.warn("loadVariants: {}", ex.toString());
+        }
+        List<Path> paths = new ArrayList<>(attributes.keySet());
+        paths.sort(Comparator.comparing(path -> attributes.get(path).lastModifiedTime()));
+        for (Path path : paths) {
+            track(path, attributes.get(path).size());
+        }
+        LOGGER.info("loadVariants: {} variants, {} bytes", paths.size(), getVariantDirectoryBytes());
+    }
+
+    /**
+     * Returns a short, fixed-length name for a file's path: the first 16 bytes of its SHA-256, in hex.
+     */
+    static String pathDigest(String filePath) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(filePath.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(32);
+            for (int i = 0; i < 16; i++) {
+                hex.append(Character.forDigit((digest[i] >> 4) & 0xF, 16)).append(Character.forDigit(digest[i] & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {   // every JVM has SHA-256
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Returns the CPU time of the current thread, in nanoseconds, or 0 if the JVM cannot measure it.
+     */
+    static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    Stats stats(Encoding encoding, Source source) {
+        return stats.get(encoding).get(source);
+    }
+
+    long getVariantsMade(Encoding encoding) {
+        return variantsMade.get(encoding).sum();
+    }
+
+    long getVariantsNotWorthIt(Encoding encoding) {
+        return variantsNotWorthIt.get(encoding).sum();
+    }
+
+    long getVariantsEvicted() {
+        return variantsEvicted.sum();
+    }
+
+    synchronized long getVariantDirectoryBytes() {
+        return variantDirectoryBytes;
+    }
+
+    /**
+     * Returns a stream that compresses what is written to it into out, counting the bytes before and after,
+     * and the CPU time spent compressing, in the STREAM statistics of the encoding. Closing it finishes the
+     * compressed content, but does not close out.
+     */
+    OutputStream compressingStream(Encoding encoding, OutputStream out) throws IOException {
+        return new CompressingOutputStream(stats(encoding, Source.STREAM), out);
+    }
+
+    @Override
+    public String toString() {
+        return "Compression[enabled=" + enabled + " minBytes=" + minBytes + " maxVariantBytes=" + maxVariantBytes
+               + " variantDirectory=" + variantDirectory + " maxVariantDirBytes=" + maxVariantDirectoryBytes
+               + " zstd=" + ZSTD_AVAILABLE + "]";
+    }
+
+    /**
+     * See compressingStream(). The CPU time of each write is measured, so writing in chunks of some kilobytes
+     * (as Jersey's writers do) keeps the cost of measuring small.
+     */
+    private static class CompressingOutputStream extends FilterOutputStream {
+
+        private final Stats stats;
+        private final CountingOutputStream compressed;
+        private long input;
+        private long cpuNanos;
+        private boolean closed;
+
+        CompressingOutputStream(Stats stats, OutputStream out) throws IOException {
+            this(stats, new CountingOutputStream(out));
+        }
+
+        private CompressingOutputStream(Stats stats, CountingOutputStream compressed) throws IOException {
+            super(stats.encoding.compressor(compressed, false));
+            this.stats = stats;
+            this.compressed = compressed;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = cpuTime();
+            out.write(b, off, len);
+            cpuNanos += cpuTime() - start;
+            input += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            long start = cpuTime();
+            out.close();   // finishes the compressed content; compressed does not pass the close on
+            cpuNanos += cpuTime() - start;
+            stats.recordResponse(input, compressed.count);
+            stats.recordCpu(cpuNanos);
+        }
+    }
+
+    /**
+     * Counts the bytes written to it, and flushes rather than closes the stream it wraps.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+
+    /**
+     * A GZIPOutputStream with a choice of compression level.
+     */
+    private static class LevelGZIPOutputStream extends GZIPOutputStream {
+
+        LevelGZIPOutputStream(OutputStream out, int level) throws IOException {
+            super(out, FileSender.BUFFER_SIZE / 8);
+            def.setLevel(level);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.rph.paritizer.fileaccessservice;
+
+import javax.annotation.Priority;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * Compresses the entity of a response as it is written, in the Compression.Encoding that the resource
+ * method put in the Compression.STREAM_ENCODING_PROPERTY request property (having also set the
+ * Content-Encoding header). The compressed length is not known in advance, so any Content-Length is removed.
+ */
+@Provider
+@Priority(Integer.MAX_VALUE - 2)   // just inside MetricsInterceptor, so that it counts the compressed bytes
+public class CompressionInterceptor implements WriterInterceptor {
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+        Object encoding = context.getProperty(Compression.STREAM_ENCODING_PROPERTY);
+        if (!(encoding instanceof Compression.Encoding)) {
+            context.proceed();
+            return;
+        }
+        context.getHeaders().remove("Content-Length");
+        OutputStream out = FileAccessor.getCompression().compressingStream((Compression.Encoding) encoding,
+                                                                          context.getOutputStream());
+        context.setOutputStream(out);
+        try {
+            context.proceed();
+        } finally {
+            out.close();   // finishes the compressed content, leaving Jersey's stream open
+        }
+    }
+}
@@ -0,0 +1,682 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * An index of the files on the disks by the SHA-256 hash of their content, so that files with the same content
+ * (the same photo imported into several trees, or onto several disks) can be found, and so that they can share
+ * one entry in the content cache (see sharedHash()).
+ *
+ * Files are hashed in the background, on a ForkJoinPool of a few threads, each file read from start to end in
+ * large chunks. Hashing is throttled so that it does not get in the way of serving files: it reads no more than
+ * maxBytesPerSecond in all, and holds off (for up to a second at a time) while the disk being hashed has file
+ * reads in flight. A disk is hashed when it is added, and afterwards whenever its index reports a change (checked
+ * every rescanSeconds); only files that are new, or whose size or modification time has changed, are hashed again.
+ *
+ * The hashes of each disk are kept in a file in the hash directory, so that after a restart only files that have
+ * changed meanwhile are hashed. It is saved at the end of each scan, and once a minute during a long one. The
+ * directory must be private to the service's user (see PrivateDirectory), since the hashes in it decide which
+ * files share a cache entry; if it is not, hashes are not kept.
+ *
+ * Configured with system properties:
+ *     fileaccessservice.dedup.threads              (default 1; 0 disables hashing)
+ *     fileaccessservice.dedup.dir                  (default fileaccessservice-hashes in java.io.tmpdir)
+ *     fileaccessservice.dedup.maxBytesPerSecond    (default 33554432; 0 for no limit)
+ *     fileaccessservice.dedup.readBytes            (default 1048576)
+ *     fileaccessservice.dedup.rescanSeconds        (default 30)
+ */
+class ContentHashIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ContentHashIndex.class);
+
+    static final String THREADS_PROPERTY = "fileaccessservice.dedup.threads";
+    static final String DIRECTORY_PROPERTY = "fileaccessservice.dedup.dir";
+    static final String MAX_BYTES_PER_SECOND_PROPERTY = "fileaccessservice.dedup.maxBytesPerSecond";
+    static final String READ_BYTES_PROPERTY = "fileaccessservice.dedup.readBytes";
+    static final String RESCAN_SECONDS_PROPERTY = "fileaccessservice.dedup.rescanSeconds";
+
+    private static final int HASHES_MAGIC = 0x46414848;   // "FAHH"
+    private static final int HASHES_VERSION = 1;
+    private static final String ALGORITHM = "SHA-256";
+    private static final int HASH_BYTES = 32;
+    private static final long SAVE_INTERVAL_MILLIS = 60000;
+    private static final long BUSY_WAIT_MILLIS = 50;
+    private static final long MAX_BUSY_WAIT_MILLIS = 1000;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * The SHA-256 hash of a file's content.
+     */
+    static final class Hash {
+        private final byte[] bytes;
+        private String hex;   // computed when first needed
+
+        Hash(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * Returns the key under which content with this hash is cached.
+         */
+        String cacheKey() {
+            return "sha256:" + toString();
+        }
+
+        /**
+         * Returns true if the given content (from its position to its limit) has this hash.
+         */
+        boolean matches(ByteBuffer content) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance(ALGORITHM);
+                digest.update(content);
+                return MessageDigest.isEqual(bytes, digest.digest());
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return (other instanceof Hash) && Arrays.equals(bytes, ((Hash) other).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+        }
+
+        @Override
+        public String toString() {
+            if (hex == null) {
+                char[] chars = new char[bytes.length * 2];
+                for (int i = 0; i < bytes.length; i++) {
+                    chars[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+                    chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xF];
+                }
+                hex = new String(chars);
+            }
+            return hex;
+        }
+    }
+
+    /**
+     * The hash of one file, and the file's size and modification time when it was hashed.
+     */
+    static final class Record {
+        final String diskName;
+        final String relativePath;
+        final String filePath;
+        final long size;
+        final long lastModified;
+        final Hash hash;
+
+        Record(String diskName, String relativePath, String filePath, long size, long lastModified, Hash hash) {
+            this.diskName = diskName;
+            this.relativePath = relativePath;
+            this.filePath = filePath;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * The hashes of one disk's files.
+     */
+    private static class DiskHashes {
+        final String diskName;
+        final File topFile;
+        final DiskIndex index;
+        final File file;   // where the hashes are kept; null if they are not
+        final Map<String, Record> records = new ConcurrentHashMap<>();
+        final AtomicBoolean changed = new AtomicBoolean(true);   // since the last scan
+        final AtomicBoolean scanning = new AtomicBoolean(false);
+        final AtomicBoolean dirty = new AtomicBoolean(false);    // since the hashes were saved
+        final AtomicLong pending = new AtomicLong(0);            // files still to be hashed by the current scan
+        volatile long lastSaved = System.currentTimeMillis();
+        volatile boolean removed;
+
+        DiskHashes(String diskName, File topFile, DiskIndex index, File file) {
+            this.diskName = diskName;
+            this.topFile = topFile;
+            this.index = index;
+            this.file = file;
+        }
+    }
+
+    private final int threads;
+    private final File directory;   // null if it could not be created
+    private final long maxBytesPerSecond;
+    private final int readBytes;
+    private final int rescanSeconds;
+    private final ForkJoinPool pool;   // null if hashing is disabled
+
+    private final Map<String, DiskHashes> disks = new ConcurrentHashMap<>();
+    private final Map<String, Record> byFilePath = new ConcurrentHashMap<>();
+    private final Map<Hash, Set<Record>> byHash = new ConcurrentHashMap<>();
+    private final ThreadLocal<ByteBuffer> buffers;
+
+    private final Object throttleLock = new Object();
+    private long throttleNanos;   // when the bytes read so far are paid for; guarded by throttleLock
+
+    private final LongAdder filesHashed = new LongAdder();
+    private final LongAdder bytesHashed = new LongAdder();
+    private final LongAdder hashNanos = new LongAdder();
+    private final LongAdder throttledNanos = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    ContentHashIndex(int threads, File directory, long maxBytesPerSecond, int readBytes, int rescanSeconds) {
+        this.threads = threads;
+        this.directory = (threads > 0) ? createDirectory(directory) : null;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.readBytes = readBytes;
+        this.rescanSeconds = rescanSeconds;
+        this.buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(readBytes));
+        if (threads <= 0) {
+            this.pool = null;
+            return;
+        }
+        AtomicInteger threadCount = new AtomicInteger(0);
+        this.pool = new ForkJoinPool(threads, forkJoinPool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("content-hasher-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }, null, true);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "content-hash-rescanner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::rescanChangedDisks, rescanSeconds, rescanSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns a ContentHashIndex configured from the system properties listed above.
+     */
+    static ContentHashIndex fromSystemProperties() {
+        String directory = System.getProperty(DIRECTORY_PROPERTY,
+                                              new File(System.getProperty("java.io.tmpdir"),
+                                                       "fileaccessservice-hashes").getPath());
+        ContentHashIndex index = new ContentHashIndex(Integer.getInteger(THREADS_PROPERTY, 1),
+                                                      new File(directory),
+                                                      Long.getLong(MAX_BYTES_PER_SECOND_PROPERTY, 32L * 1024 * 1024),
+                                                      Math.max(4096, Integer.getInteger(READ_BYTES_PROPERTY, 1024 * 1024)),
+                                                      Math.max(1, Integer.getInteger(RESCAN_SECONDS_PROPERTY, 30)));
+        LOGGER.info("fromSystemProperties: {}", index);
+        return index;
+    }
+
+    private static File createDirectory(File directory) {
+        try {
+            return PrivateDirectory.create(directory).toFile();
+        } catch (IOException ex) {
+            LOGGER.warn("createDirectory: {}; hashes will not be kept across restarts", ex.toString());
+            return null;
+        }
+    }
+
+    boolean isEnabled() {
+        return pool != null;
+    }
+
+    /**
+     * Starts hashing a disk's files (in the background), replacing the hashes of any disk of the same name.
+     */
+    void diskAdded(String diskName, File topFile, DiskIndex index) {
+        if (!isEnabled()) {
+            return;
+        }
+        diskRemoved(diskName);
+        File file = (directory == null) ? null : new File(directory, hashesFileName(diskName));
+        DiskHashes disk = new DiskHashes(diskName, topFile, index, file);
+        disks.put(diskName, disk);
+        index.addChangeListener((relativePath, isDirectory) -> disk.changed.set(true));
+        pool.execute(() -> {
+            load(disk);
+            scan(disk);
+        });
+    }
+
+    /**
+     * Forgets a disk's hashes (but keeps them in the hash directory, for when it is added again).
+     */
+    synchronized void diskRemoved(String diskName) {
+        DiskHashes disk = disks.remove(diskName);
+        if (disk == null) {
+            return;
+        }
+        disk.removed = true;
+        for (Record record : disk.records.values()) {
+            byFilePath.remove(record.filePath, record);
+            unlinkHash(record);
+        }
+    }
+
+    /**
+     * Returns the hash under which to cache the content of a file, if the file has been hashed as it is now and
+     * other files have the same content, so that they all share one cache entry; otherwise null (it is cached
+     * under its path).
+     */
+    Hash sharedHash(String filePath, long size, long lastModified) {
+        Record record = byFilePath.get(filePath);
+        if ((record == null) || (record.size != size) || (record.lastModified != lastModified)) {
+            return null;
+        }
+        Set<Record> copies = byHash.get(record.hash);
+        return ((copies == null) || (copies.size() < 2)) ? null : record.hash;
+    }
+
+    private void rescanChangedDisks() {
+        for (DiskHashes disk : disks.values()) {
+            if (disk.changed.get() && !disk.scanning.get()) {
+                pool.execute(() -> scan(disk));
+            }
+        }
+    }
+
+    /**
+     * Brings a disk's hashes up to date with its index: forgets files that have gone, and hashes files that are new
+     * or have changed.
+     */
+    private void scan(DiskHashes disk) {
+        if (disk.removed || !disk.scanning.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            disk.changed.set(false);
+            for (Record record : disk.records.values()) {
+                DiskIndex.FileInfo info = disk.index.getFileInfo(record.relativePath);
+                if (info == null) {
+                    remove(disk, record);
+                }
+            }
+            List<String> toHash = new ArrayList<>();
+            for (String relativePath : disk.index.relativePaths()) {
+                DiskIndex.FileInfo info = disk.index.getFileInfo(relativePath);
+                Record record = disk.records.get(relativePath);
+                if ((info != null) && ((record == null) || (record.size != info.size)
+                                       || (record.lastModified != info.lastModified))) {
+                    toHash.add(relativePath);
+                }
+            }
+            if (!toHash.isEmpty()) {
+                LOGGER.info("scan: {}: hashing {} files", disk.diskName, toHash.size());
+                disk.pending.set(toHash.size());
+                new HashTask(disk, toHash, 0, toHash.size()).invoke();
+            }
+            save(disk);
+        } catch (RuntimeException ex) {
+            LOGGER.warn("scan: {}: {}", disk.diskName, ex.toString());
+        } finally {
+            disk.pending.set(0);
+            disk.scanning.set(false);
+        }
+    }
+
+    /**
+     * Hashes paths[from, to) by splitting them in half until there is one left, which it hashes.
+     */
+    private class HashTask extends RecursiveAction {
+        private final DiskHashes disk;
+        private final List<String> paths;
+        private final int from;
+        private final int to;
+
+        HashTask(DiskHashes disk, List<String> paths, int from, int to) {
+            this.disk = disk;
+            this.paths = paths;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new HashTask(disk, paths, from, middle), new HashTask(disk, paths, middle, to));
+            } else if (to > from) {
+                hash(disk, paths.get(from));
+                disk.pending.decrementAndGet();
+                if (System.currentTimeMillis() - disk.lastSaved > SAVE_INTERVAL_MILLIS) {
+                    save(disk);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hashes one file, and records its hash, unless the file changes while it is being hashed.
+     */
+    private void hash(DiskHashes disk, String relativePath) {
+        if (disk.removed) {
+            return;
+        }
+        File file = new File(disk.topFile, relativePath);
+        try {
+            BasicFileAttributes before = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            if (!before.isRegularFile()) {
+                return;
+            }
+            long start = System.nanoTime();
+            MessageDigest digest = MessageDigest.getInstance(ALGORITHM);
+            ByteBuffer buffer = buffers.get();
+            long position = 0;
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                while (true) {
+                    throttle(disk.diskName, buffer.capacity());
+                    buffer.clear();
+                    int n = channel.read(buffer, position);
+                    if (n < 0) {
+                        break;
+                    }
+                    position += n;
+                    buffer.flip();
+                    digest.update(buffer);
+                }
+            }
+            BasicFileAttributes after = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            if ((position != before.size()) || (after.size() != before.size())
+                    || !after.lastModifiedTime().equals(before.lastModifiedTime())) {
+                return;   // changed while being hashed; the index will report it, and it will be hashed again
+            }
+            put(disk, new Record(disk.diskName, relativePath, file.toString(), before.size(),
+                                 before.lastModifiedTime().toMillis(), new Hash(digest.digest())));
+            filesHashed.increment();
+            bytesHashed.add(position);
+            hashNanos.add(System.nanoTime() - start);
+        } catch (NoSuchFileException ex) {
+            // deleted since the scan started
+        } catch (IOException ex) {
+            failures.increment();
+            LOGGER.info("hash: {}: {}", file, ex.toString());
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits, if need be, before reading the given number of bytes: while the disk has reads in flight (for up to
+     * a second), and then for as long as keeps the rate of reading within maxBytesPerSecond.
+     */
+    private void throttle(String diskName, int bytes) throws InterruptedException {
+        long start = System.nanoTime();
+        AdmissionController admission = FileAccessorRESTService.getAdmissionController();
+        for (long waited = 0; (admission.getInFlight(diskName) > 0) && (waited < MAX_BUSY_WAIT_MILLIS); waited += BUSY_WAIT_MILLIS) {
+            Thread.sleep(BUSY_WAIT_MILLIS);
+        }
+        if (maxBytesPerSecond > 0) {
+            long sleepNanos;
+            synchronized (throttleLock) {
+                long now = System.nanoTime();
+                long cost = bytes * 1000000000L / maxBytesPerSecond;
+                throttleNanos = Math.max(throttleNanos, now) + cost;
+                sleepNanos = throttleNanos - cost - now;
+            }
+            if (sleepNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            }
+        }
+        throttledNanos.add(System.nanoTime() - start);
+    }
+
+    private synchronized void put(DiskHashes disk, Record record) {
+        if (disk.removed) {
+            return;
+        }
+        Record previous = disk.records.put(record.relativePath, record);
+        if (previous != null) {
+            unlinkHash(previous);
+        }
+        byFilePath.put(record.filePath, record);
+        byHash.computeIfAbsent(record.hash, hash -> ConcurrentHashMap.newKeySet()).add(record);
+        disk.dirty.set(true);
+    }
+
+    private synchronized void remove(DiskHashes disk, Record record) {
+        if (disk.records.remove(record.relativePath, record)) {
+            byFilePath.remove(record.filePath, record);
+            unlinkHash(record);
+            disk.dirty.set(true);
+        }
+    }
+
+    private void unlinkHash(Record record) {
+        Set<Record> copies = byHash.get(record.hash);
+        if (copies != null) {
+            copies.remove(record);
+            if (copies.isEmpty()) {
+                byHash.remove(record.hash, copies);
+            }
+        }
+    }
+
+    private static String hashesFileName(String diskName) {
+        StringBuilder buf = new StringBuilder();
+        for (char c : diskName.toCharArray()) {
+            buf.append(Character.isLetterOrDigit(c) || (c == '-') || (c == '_') ? c : '_');
+        }
+        buf.append('-').append(Integer.toHexString(diskName.hashCode())).append(".hashes");
+        return buf.toString();
+    }
+
+    /**
+     * Hashes file (gzipped): magic, version, top directory, then the records (relative path, size, mtime,
+     * the 32 bytes of the hash), preceded by a count.
+     */
+    private void save(DiskHashes disk) {
+        if (disk.file == null) {
+            return;
+        }
+        synchronized (disk) {
+            if (disk.removed || !disk.dirty.compareAndSet(true, false)) {
+                return;
+            }
+            disk.lastSaved = System.currentTimeMillis();
+            List<Record> records = new ArrayList<>(disk.records.values());
+            File tmpFile = new File(disk.file.getPath() + ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new GZIPOutputStream(new FileOutputStream(tmpFile))))) {
+                    out.writeInt(HASHES_MAGIC);
+                    out.writeInt(HASHES_VERSION);
+                    out.writeUTF(disk.topFile.toString());
+                    out.writeInt(records.size());
+                    for (Record record : records) {
+                        out.writeUTF(record.relativePath);
+                        out.writeLong(record.size);
+                        out.writeLong(record.lastModified);
+                        out.write(record.hash.bytes);
+                    }
+                }
+                Files.move(tmpFile.toPath(), disk.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex) {
+                LOGGER.warn("save: {}: {}", disk.file, ex.toString());
+                disk.dirty.set(true);
+            }
+        }
+    }
+
+    private void load(DiskHashes disk) {
+        if ((disk.file == null) || !disk.file.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(disk.file))))) {
+            if ((in.readInt() != HASHES_MAGIC) || (in.readInt() != HASHES_VERSION)
+                    || !in.readUTF().equals(disk.topFile.toString())) {
+                LOGGER.info("load: {} is for another disk or version; hashing afresh", disk.file);
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String relativePath = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                byte[] bytes = new byte[HASH_BYTES];
+                in.readFully(bytes);
+                put(disk, new Record(disk.diskName, relativePath, new File(disk.topFile, relativePath).toString(),
+                                     size, lastModified, new Hash(bytes)));
+            }
+            disk.dirty.set(false);
+            LOGGER.info("load: {}: {} hashes", disk.diskName, count);
+        } catch (IOException ex) {
+            LOGGER.warn("load: {}: {}; hashing afresh", disk.file, ex.toString());
+        }
+    }
+
+    /**
+     * Returns the duplicates of the files of a disk, as JSON: the hashing progress of the disk, and each set of
+     * files (on any disk) that have the same content as a file of this disk, largest first.
+     *
+     * @param limit the most sets of duplicates to list
+     */
+    String getDuplicates(String diskName, int limit) {
+        DiskHashes disk = disks.get(diskName);
+        List<Set<Record>> groups = new ArrayList<>();
+        long duplicateFiles = 0;
+        long redundantBytes = 0;
+        if (disk != null) {
+            Set<Hash> seen = new HashSet<>();
+            for (Record record : disk.records.values()) {
+                Set<Record> copies = byHash.get(record.hash);
+                if ((copies != null) && (copies.size() > 1)) {
+                    duplicateFiles++;
+                    if (seen.add(record.hash)) {
+                        groups.add(copies);
+                        redundantBytes += record.size * (copies.size() - 1);
+                    }
+                }
+            }
+        }
+        List<List<Record>> sorted = new ArrayList<>();
+        for (Set<Record> copies : groups) {
+            List<Record> records = new ArrayList<>(copies);
+            if (records.size() > 1) {
+                records.sort(Comparator.comparing((Record record) -> record.diskName)
+                                       .thenComparing(record -> record.relativePath));
+                sorted.add(records);
+            }
+        }
+        sorted.sort(Comparator.comparingLong((List<Record> records) -> records.get(0).size).reversed()
+                              .thenComparing(records -> records.get(0).hash.toString()));
+
+        StringBuilder buf = new StringBuilder();
+        buf.append("{ \"disk\" : ").append(Json.quote(diskName)).append(",\n");
+        buf.append("  \"files\" : ").append((disk == null) ? 0 : disk.index.size()).append(",\n");
+        buf.append("  \"hashed\" : ").append((disk == null) ? 0 : disk.records.size()).append(",\n");
+        buf.append("  \"pending\" : ").append((disk == null) ? 0 : disk.pending.get()).append(",\n");
+        buf.append("  \"scanning\" : ").append((disk != null) && disk.scanning.get()).append(",\n");
+        buf.append("  \"duplicateFiles\" : ").append(duplicateFiles).append(",\n");
+        buf.append("  \"duplicateSets\" : ").append(sorted.size()).append(",\n");
+        buf.append("  \"redundantBytes\" : ").append(redundantBytes).append(",\n");
+        buf.append("  \"duplicates\" : [");
+        String separator = "\n";
+        for (List<Record> records : sorted.subList(0, Math.min(limit, sorted.size()))) {
+            buf.append(separator).append("    { \"sha256\" : \"").append(records.get(0).hash).append("\", ");
+            buf.append("\"size\" : ").append(records.get(0).size).append(", \"files\" : [");
+            for (int i = 0; i < records.size(); i++) {
+                buf.append((i == 0) ? " { \"disk\" : " : ", { \"disk\" : ");
+                Json.appendQuoted(buf, records.get(i).diskName).append(", \"path\" : ");
+                Json.appendQuoted(buf, records.get(i).relativePath).append(" }");
+            }
+            buf.append(" ] }");
+            separator = ",\n";
+        }
+        buf.append("\n  ]\n}\n");
+        return buf.toString();
+    }
+
+    /**
+     * Returns the number of files hashed (on all disks).
+     */
+    int size() {
+        return byFilePath.size();
+    }
+
+    /**
+     * Returns the number of different contents among the files hashed.
+     */
+    int getDistinctHashes() {
+        return byHash.size();
+    }
+
+    long getPending() {
+        long pending = 0;
+        for (DiskHashes disk : disks.values()) {
+            pending += disk.pending.get();
+        }
+        return pending;
+    }
+
+    long getFilesHashed() {
+        return filesHashed.sum();
+    }
+
+    long getBytesHashed() {
+        return bytesHashed.sum();
+    }
+
+    double getHashSeconds() {
+        return hashNanos.sum() / 1e9;
+    }
+
+    double getThrottledSeconds() {
+        return throttledNanos.sum() / 1e9;
+    }
+
+    long getFailures() {
+        return failures.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ContentHashIndex[threads=" + threads + " directory=" + directory + " maxBytesPerSecond=" + maxBytesPerSecond
+               + " readBytes=" + readBytes + " rescanSeconds=" + rescanSeconds + "]";
+    }
+}
@@ -0,0 +1,70 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.glassfish.jersey.message.internal.CommittingOutputStream;
+
+import javax.annotation.Priority;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * Commits the status and headers of a response whose entity is a FileSender.DirectOutput,
+ * so that the entity can write straight to the servlet output stream (see FileSender.directOutput()).
+ * If another interceptor has already wrapped Jersey's stream (to compress it, say), nothing is done,
+ * and the entity writes to the stream it is given.
+ *
+ * Once the headers are committed, Jersey's stream is replaced by one that ignores flush(). The entity
+ * does not write to it, and flushing the servlet output stream while FileSender.AsyncSend is still
+ * sending content to it (as Jersey does when the entity returns) would interleave an empty write with it.
+ *
+ * With -Dfileaccessservice.directOutput=false nothing is committed, so file content is copied through
+ * Jersey's stream with a pooled buffer (see FileSender.copy()), as in other servlet containers; this is for
+ * measuring the two paths against each other in one build.
+ */
+@Provider
+@Priority(Integer.MAX_VALUE)   // innermost, so that it sees Jersey's own stream
+public class DirectOutputInterceptor implements WriterInterceptor {
+
+    static final String ENABLED_PROPERTY = "fileaccessservice.directOutput";
+
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "true"));
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+        OutputStream out = context.getOutputStream();
+        if (ENABLED && (context.getEntity() instanceof FileSender.DirectOutput) && (out instanceof CommittingOutputStream)) {
+            CommittingOutputStream committingOut = (CommittingOutputStream) out;
+            committingOut.enableBuffering(0);   // so that committing does not announce an empty entity
+            committingOut.commit();             // sets status and headers on the servlet response
+            context.setProperty(FileSender.DIRECT_OUTPUT_PROPERTY, Boolean.TRUE);
+            context.setOutputStream(new UnflushedOutputStream(out));
+        }
+        context.proceed();
+    }
+
+    private static class UnflushedOutputStream extends FilterOutputStream {
+
+        UnflushedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            // see above
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();   // FilterOutputStream.close() would flush first
+        }
+    }
+}
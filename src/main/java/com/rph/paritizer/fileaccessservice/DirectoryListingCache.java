@@ -0,0 +1,274 @@
+package com.rph.paritizer.fileaccessservice;
+
+import com.rph.paritizer.fileaccessservice.exceptions.NotDirectoryException;
+import com.rph.paritizer.fileaccessservice.exceptions.NotReadableException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * A bounded LRU cache of the immediate children of directories, keyed by (disk name, relative directory),
+ * for listing one directory at a time. A miss reads the one directory with a DirectoryStream, and the attributes
+ * of each entry with one readAttributes() call; nothing below it is read.
+ *
+ * Listings are invalidated when a disk's index reports a change to one of their children (and, for a change
+ * to a directory, to anything below it), and expire after a time-to-live in case a change is missed.
+ * A listing read while an invalidation happened is not cached, so a stale listing never outlives the change.
+ *
+ * Configured with system properties:
+ *     fileaccessservice.directoryCache.maxEntries   (default 1000; 0 disables the cache)
+ *     fileaccessservice.directoryCache.ttlMillis    (default 60000)
+ */
+class DirectoryListingCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryListingCache.class);
+
+    static final String MAX_ENTRIES_PROPERTY = "fileaccessservice.directoryCache.maxEntries";
+    static final String TTL_MILLIS_PROPERTY = "fileaccessservice.directoryCache.ttlMillis";
+
+    private static final String IGNORED_FILE_NAME = ".DS_Store";   // as DiskIndex ignores it
+
+    /**
+     * A file or subdirectory of a listed directory.
+     */
+    static class Child {
+        final String name;
+        final boolean directory;
+        final long size;            // 0 for a directory
+        final long lastModified;
+
+        Child(String name, boolean directory, long size, long lastModified) {
+            this.name = name;
+            this.directory = directory;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * The children of one directory, subdirectories first, each group sorted by name, as of loadedAt.
+     */
+    static class Listing {
+        final String relativeDirectory;   // "" for the top directory
+        final List<Child> children;
+        final String entityTag;           // opaque value, without the quotes
+        final long loadedAt;
+
+        Listing(String relativeDirectory, List<Child> children, String entityTag, long loadedAt) {
+            this.relativeDirectory = relativeDirectory;
+            this.children = children;
+            this.entityTag = entityTag;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final Map<String, Listing> listings;
+
+    private final long epoch = ThreadLocalRandom.current().nextLong();   // distinguishes these tags from earlier ones
+    private final AtomicLong loads = new AtomicLong(0);
+    private final AtomicLong invalidationCount = new AtomicLong(0);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    DirectoryListingCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.listings = new LinkedHashMap<String, Listing>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Listing> eldest) {
+                if (size() > DirectoryListingCache.this.maxEntries) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns a cache configured from the system properties listed above.
+     */
+    static DirectoryListingCache fromSystemProperties() {
+        DirectoryListingCache cache = new DirectoryListingCache(Integer.getInteger(MAX_ENTRIES_PROPERTY, 1000),
+                                                                Long.getLong(TTL_MILLIS_PROPERTY, 60000L));
+        LOGGER.info("fromSystemProperties: {}", cache);
+        return cache;
+    }
+
+    boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * Returns the listing of a directory of a disk, reading the directory if it is not cached.
+     *
+     * @param disk the disk
+     * @param relativeDirectory the directory, relative to the top of the disk ("" for the top)
+     * @throws FileNotFoundException if there is no such directory
+     * @throws NotDirectoryException if it is not a directory
+     * @throws NotReadableException if it cannot be read
+     */
+    Listing get(Disk disk, String relativeDirectory)
+            throws FileNotFoundException, NotDirectoryException, NotReadableException, IOException {
+        String key = key(disk.name, relativeDirectory);
+        if (isEnabled()) {
+            Listing listing;
+            synchronized (listings) {
+                listing = listings.get(key);
+                if ((listing != null) && (System.currentTimeMillis() - listing.loadedAt >= ttlMillis)) {
+                    listings.remove(key);
+                    listing = null;
+                }
+            }
+            if (listing != null) {
+                hits.increment();
+                return listing;
+            }
+            misses.increment();
+        }
+        long invalidationsBefore = invalidationCount.get();
+        Listing listing = load(disk, relativeDirectory);
+        if (isEnabled()) {
+            synchronized (listings) {
+                if (invalidationCount.get() == invalidationsBefore) {
+                    listings.put(key, listing);
+                }
+            }
+        }
+        return listing;
+    }
+
+    private Listing load(Disk disk, String relativeDirectory)
+            throws FileNotFoundException, NotDirectoryException, NotReadableException, IOException {
+        Path directory = relativeDirectory.isEmpty() ? disk.topPath : new File(disk.topFile, relativeDirectory).toPath();
+        List<Child> children = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path entry : stream) {
+                String name = entry.getFileName().toString();
+                if (IGNORED_FILE_NAME.equals(name)) {
+                    continue;
+                }
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attrs.isSymbolicLink()) {   // listed if it leads to a regular file, as DiskIndex does
+                        attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+                        if (!attrs.isRegularFile()) {
+                            continue;
+                        }
+                    }
+                } catch (IOException ex) {
+                    continue;   // deleted meanwhile, or a dangling link
+                }
+                if (attrs.isDirectory()) {
+                    children.add(new Child(name, true, 0, attrs.lastModifiedTime().toMillis()));
+                } else if (attrs.isRegularFile()) {
+                    children.add(new Child(name, false, attrs.size(), attrs.lastModifiedTime().toMillis()));
+                }
+            }
+        } catch (NoSuchFileException ex) {
+            throw new FileNotFoundException(directory.toString());
+        } catch (java.nio.file.NotDirectoryException ex) {
+            throw new NotDirectoryException(directory.toString());
+        } catch (AccessDeniedException ex) {
+            throw new NotReadableException(directory.toString());
+        }
+        children.sort(Comparator.comparing((Child child) -> !child.directory).thenComparing(child -> child.name));
+        return new Listing(relativeDirectory, Collections.unmodifiableList(children),
+                           Long.toHexString(epoch) + '.' + Long.toHexString(loads.incrementAndGet()),
+                           System.currentTimeMillis());
+    }
+
+    /**
+     * Removes the listings a change to a disk may have made stale: that of the parent of relativePath, and
+     * (if directory is true) those of relativePath and everything below it. A null relativePath removes
+     * every listing of the disk.
+     */
+    void invalidate(String diskName, String relativePath, boolean directory) {
+        invalidationCount.incrementAndGet();
+        if (!isEnabled()) {
+            return;
+        }
+        String parent = (relativePath == null) ? null : relativePath.substring(0, Math.max(0, relativePath.lastIndexOf('/')));
+        String parentKey = (parent == null) ? null : key(diskName, parent);
+        String subtreeKey = (relativePath == null) ? key(diskName, "")
+                            : directory ? key(diskName, relativePath) : null;
+        synchronized (listings) {
+            Iterator<String> keys = listings.keySet().iterator();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (key.equals(parentKey) || ((subtreeKey != null) && isInSubtree(key, subtreeKey))) {
+                    keys.remove();
+                    invalidations.increment();
+                }
+            }
+        }
+    }
+
+    private static boolean isInSubtree(String key, String subtreeKey) {
+        if (!key.startsWith(subtreeKey)) {
+            return false;
+        }
+        return (key.length() == subtreeKey.length()) || (subtreeKey.charAt(subtreeKey.length() - 1) == '\u0000')
+               || (key.charAt(subtreeKey.length()) == '/');
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    int size() {
+        synchronized (listings) {
+            return listings.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DirectoryListingCache[maxEntries=" + maxEntries + " ttlMillis=" + ttlMillis + " size=" + size()
+               + " hits=" + getHits() + " misses=" + getMisses() + " evictions=" + getEvictions()
+               + " invalidations=" + getInvalidations() + "]";
+    }
+
+    private static String key(String diskName, String relativeDirectory) {
+        return diskName + '\u0000' + relativeDirectory;   // NUL cannot occur in a disk name or a path
+    }
+}
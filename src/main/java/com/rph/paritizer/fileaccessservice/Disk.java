@@ -0,0 +1,141 @@
+package com.rph.paritizer.fileaccessservice;
+
+import com.rph.paritizer.fileaccessservice.exceptions.NotDirectoryException;
+import com.rph.paritizer.fileaccessservice.exceptions.NotReadableException;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * An immutable description of a registered disk: its name, its top directory (as given, and as a Path),
+ * its index, and the state of its top directory when last checked. Request threads read descriptors from
+ * the DiskRegistry without locking and without stat-ing the top directory; when the state of the top
+ * directory changes, the descriptor is replaced by one with the new state (see withRootState()).
+ *
+ * The statistics are shared by every descriptor of the same registration.
+ */
+class Disk {
+
+    /**
+     * The state of a disk's top directory.
+     */
+    enum RootState { AVAILABLE, MISSING, NOT_DIRECTORY, NOT_READABLE }
+
+    /**
+     * Counts of what has been served from a disk.
+     */
+    static class Stats {
+        private final LongAdder reads = new LongAdder();
+        private final LongAdder bytesRead = new LongAdder();
+        private final LongAdder readErrors = new LongAdder();
+
+        void recordRead(long bytes) {
+            reads.increment();
+            bytesRead.add(bytes);
+        }
+
+        void recordReadError() {
+            readErrors.increment();
+        }
+
+        long getReads() {
+            return reads.sum();
+        }
+
+        long getBytesRead() {
+            return bytesRead.sum();
+        }
+
+        long getReadErrors() {
+            return readErrors.sum();
+        }
+
+        @Override
+        public String toString() {
+            return "reads=" + getReads() + " bytesRead=" + getBytesRead() + " readErrors=" + getReadErrors();
+        }
+    }
+
+    final String name;
+    final String top;
+    final File topFile;
+    final Path topPath;
+    final DiskIndex index;
+    final RootState rootState;
+    final long validatedAt;
+    final Stats stats;
+
+    private Disk(String name, String top, DiskIndex index, RootState rootState, Stats stats) {
+        this.name = name;
+        this.top = top;
+        this.topFile = new File(top);
+        this.topPath = topFile.toPath();
+        this.index = index;
+        this.rootState = rootState;
+        this.validatedAt = System.currentTimeMillis();
+        this.stats = stats;
+    }
+
+    /**
+     * Returns the descriptor of a newly registered disk, whose top directory has just been found usable.
+     */
+    static Disk available(String name, String top, DiskIndex index) {
+        return new Disk(name, top, index, RootState.AVAILABLE, new Stats());
+    }
+
+    /**
+     * Returns a descriptor that differs from this one only in the state of the top directory.
+     */
+    Disk withRootState(RootState state) {
+        return new Disk(name, top, index, state, stats);
+    }
+
+    /**
+     * Stats a top directory, and returns its state.
+     */
+    static RootState validate(File topFile) {
+        if (!topFile.exists()) {
+            return RootState.MISSING;
+        }
+        if (!topFile.isDirectory()) {
+            return RootState.NOT_DIRECTORY;
+        }
+        if (!topFile.canRead()) {
+            return RootState.NOT_READABLE;
+        }
+        return RootState.AVAILABLE;
+    }
+
+    /**
+     * Throws the exception corresponding to the recorded state of the top directory, if it is not available.
+     * Nothing is stat-ed.
+     */
+    void checkRoot() throws FileNotFoundException, NotDirectoryException, NotReadableException {
+        checkRoot(rootState, top);
+    }
+
+    /**
+     * Throws the exception corresponding to the given state of a top directory, if it is not available.
+     */
+    static void checkRoot(RootState rootState, String top)
+            throws FileNotFoundException, NotDirectoryException, NotReadableException {
+        switch (rootState) {
+            case MISSING:
+                throw new FileNotFoundException(top);
+            case NOT_DIRECTORY:
+                throw new NotDirectoryException(top);
+            case NOT_READABLE:
+                throw new NotReadableException(top);
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Disk[" + name + " top=" + top + " rootState=" + rootState + " files=" + index.size() + " " + stats + "]";
+    }
+}
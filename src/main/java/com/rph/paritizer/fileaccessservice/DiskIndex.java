@@ -0,0 +1,625 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * An in-memory index of the regular files on one disk, keyed by relative path ('/'-separated)
+ * and kept in sorted order.
+ *
+ * The index is built by walking the disk once, and is then kept current by a WatchService on every
+ * directory of the disk, serviced by a daemon thread. If a snapshot directory is configured, the index is
+ * also saved there (when it changes, at most once per SNAPSHOT_INTERVAL_SECONDS, and when closed).
+ * At startup a snapshot is reused: only the directories are walked, and only those whose modification
+ * time differs from the one recorded in the snapshot are re-read. A file rewritten in place while the
+ * service was down does not change its directory's time, so the sizes and times of the other files from the
+ * snapshot are not trusted: each is stat-ed again the first time it is looked up (see getFileInfo()).
+ *
+ * Each index has a version (see getVersion()) that changes whenever the index does, so that a listing
+ * can be given an entity tag without generating it.
+ */
+class DiskIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DiskIndex.class);
+
+    private static final int SNAPSHOT_MAGIC = 0x46415349;   // "FASI"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final long SNAPSHOT_INTERVAL_SECONDS = 60;
+
+    private static final String IGNORED_FILE_NAME = ".DS_Store";
+
+    private static final long SEARCH_INDEX_MIN_AGE_MILLIS = 1000;
+
+    /**
+     * Size and modification time of an indexed file, and its relative path %-encoded for URLs
+     * (the same String as the path, if it needs no encoding; see UrlEncoder).
+     */
+    static class FileInfo {
+        final long size;
+        final long lastModified;
+        final String encodedPath;   // null if not known
+        final boolean verified;     // false if size and lastModified were read from a snapshot, not the disk
+
+        FileInfo(long size, long lastModified) {
+            this(size, lastModified, null);
+        }
+
+        FileInfo(long size, long lastModified, String encodedPath) {
+            this(size, lastModified, encodedPath, true);
+        }
+
+        FileInfo(long size, long lastModified, String encodedPath, boolean verified) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.encodedPath = encodedPath;
+            this.verified = verified;
+        }
+    }
+
+    /**
+     * Notified (on the watch thread) when something on the disk changes.
+     */
+    interface ChangeListener {
+        /**
+         * @param relativePath the file or directory that changed, or null if anything on the disk may have changed
+         * @param directory true if relativePath is a directory, in which case anything below it may have changed
+         */
+        void changed(String relativePath, boolean directory);
+    }
+
+    private final String diskName;
+    private final Path top;
+    private final File snapshotFile;   // null if snapshots are disabled
+
+    // Changed only by the watch thread (and open()); a full rescan builds new maps and swaps them in,
+    // so that a listing in progress sees either the old files or the new ones, never a half-built map.
+    private volatile NavigableMap<String, FileInfo> files = new ConcurrentSkipListMap<>();
+    private volatile Map<String, Long> directories = new ConcurrentHashMap<>();   // relative path -> mtime
+    private final Map<WatchKey, String> watchKeys = new ConcurrentHashMap<>();
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    private WatchService watchService;
+    private Thread watchThread;
+    private volatile boolean dirty = false;
+    private final long epoch = ThreadLocalRandom.current().nextLong();   // distinguishes this index from earlier ones
+    private final AtomicLong generation = new AtomicLong(0);
+    private final Object searchIndexLock = new Object();
+    private volatile PathSearchIndex searchIndex;   // null until first searched
+    private volatile boolean allVerified = true;     // false while files loaded from a snapshot may be unchecked
+
+    private DiskIndex(String diskName, Path top, File snapshotDirectory) {
+        this.diskName = diskName;
+        this.top = top;
+        this.snapshotFile = (snapshotDirectory == null) ? null : new File(snapshotDirectory, snapshotName(diskName));
+    }
+
+    /**
+     * Builds the index for a disk, and starts watching it for changes.
+     *
+     * @param diskName the name of the disk
+     * @param top the top directory of the disk
+     * @param snapshotDirectory the directory holding index snapshots, or null if they are not kept
+     * @return the index
+     */
+    static DiskIndex open(String diskName, Path top, File snapshotDirectory) throws IOException {
+        DiskIndex index = new DiskIndex(diskName, top, snapshotDirectory);
+        index.watchService = top.getFileSystem().newWatchService();
+        long start = System.currentTimeMillis();
+        if (index.loadSnapshot()) {
+            index.refreshFromDirectories();
+        } else {
+            index.scan("");
+            index.dirty = true;
+        }
+        LOGGER.info("open: disk \"{}\" indexed {} files in {} directories in {} ms",
+                    diskName, index.files.size(), index.directories.size(), System.currentTimeMillis() - start);
+        index.saveSnapshotIfDirty();
+        index.watchThread = new Thread(index::watch, "DiskIndex-" + diskName);
+        index.watchThread.setDaemon(true);
+        index.watchThread.start();
+        return index;
+    }
+
+    /**
+     * Returns an index of the given files, without reading or watching the disk. Benchmarks use this
+     * to list synthetic trees far larger than they could reasonably create.
+     */
+    static DiskIndex of(String diskName, Path top, Map<String, FileInfo> files) {
+        DiskIndex index = new DiskIndex(diskName, top, null);
+        for (Map.Entry<String, FileInfo> entry : files.entrySet()) {
+            FileInfo info = entry.getValue();
+            index.files.put(entry.getKey(), new FileInfo(info.size, info.lastModified, UrlEncoder.encode(entry.getKey())));
+        }
+        return index;
+    }
+
+    /**
+     * Stops watching the disk, and saves a final snapshot.
+     */
+    void close() {
+        if (watchService == null) {
+            return;   // never watched; see of()
+        }
+        try {
+            watchService.close();   // the watch thread exits when it notices
+        } catch (IOException ex) {
+            LOGGER.warn("close: {}", ex.getMessage());
+        }
+        saveSnapshotIfDirty();
+    }
+
+    void addChangeListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    String getDiskName() {
+        return diskName;
+    }
+
+    Path getTop() {
+        return top;
+    }
+
+    int size() {
+        return files.size();
+    }
+
+    /**
+     * Returns the relative paths of all files on the disk, in sorted order.
+     * The result is a live view; iterating it is safe while the index changes.
+     */
+    Iterable<String> relativePaths() {
+        return files.keySet();
+    }
+
+    /**
+     * Returns the relative paths that sort after the given one (or all of them, if it is null), in sorted order.
+     * The result is a live view; iterating it is safe while the index changes.
+     */
+    Iterable<String> relativePathsAfter(String relativePath) {
+        return (relativePath == null) ? files.keySet() : files.tailMap(relativePath, false).keySet();
+    }
+
+    /**
+     * Returns the files that sort after the given relative path (or all of them, if it is null), in sorted order.
+     * The result is a live view; iterating it is safe while the index changes.
+     */
+    Iterable<Map.Entry<String, FileInfo>> filesAfter(String relativePath) {
+        return ((relativePath == null) ? files : files.tailMap(relativePath, false)).entrySet();
+    }
+
+    /**
+     * Returns a string that changes whenever the set of indexed files (or their sizes and times) may have changed.
+     * The generation is advanced after each change has been applied, so a listing generated after reading
+     * a version is never older than that version.
+     */
+    String getVersion() {
+        return Long.toHexString(epoch) + '.' + Long.toHexString(generation.get());
+    }
+
+    /**
+     * Returns the size and time of a file, or null if it is not indexed. A file whose size and time come
+     * from a snapshot is stat-ed first, and its entry corrected (or removed) if it changed while the service
+     * was down; listeners are told, as for a change seen by the watch service.
+     */
+    FileInfo getFileInfo(String relativePath) {
+        FileInfo info = files.get(relativePath);
+        return ((info == null) || info.verified) ? info : verify(relativePath, info);
+    }
+
+    private FileInfo verify(String relativePath, FileInfo recorded) {
+        NavigableMap<String, FileInfo> files = this.files;
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(resolve(relativePath), BasicFileAttributes.class);
+        } catch (IOException ex) {
+            attrs = null;   // gone; a delete event may not have been seen, as it happened while stopped
+        }
+        FileInfo current = null;
+        if ((attrs != null) && attrs.isRegularFile()) {
+            current = new FileInfo(attrs.size(), attrs.lastModifiedTime().toMillis(), recorded.encodedPath);
+            if ((current.size == recorded.size) && (current.lastModified == recorded.lastModified)) {
+                files.replace(relativePath, recorded, current);
+                return current;
+            }
+        }
+        boolean changed = (current == null) ? files.remove(relativePath, recorded)
+                                            : files.replace(relativePath, recorded, current);
+        if (changed) {
+            LOGGER.info("verify: disk \"{}\": {} changed while not watched", diskName, relativePath);
+            dirty = true;
+            generation.incrementAndGet();
+            fireChanged(relativePath, false);
+        }
+        return current;
+    }
+
+    /**
+     * Stats every file whose size and time come from a snapshot (see getFileInfo()), once.
+     */
+    private void verifyAll() {
+        if (allVerified) {
+            return;
+        }
+        for (Map.Entry<String, FileInfo> entry : files.entrySet()) {
+            if (!entry.getValue().verified) {
+                verify(entry.getKey(), entry.getValue());
+            }
+        }
+        allVerified = true;
+    }
+
+    /**
+     * Returns a search index of the disk (see PathSearchIndex). It is rebuilt when the index has changed since,
+     * but no more than once every SEARCH_INDEX_MIN_AGE_MILLIS, so that searching a disk that is being
+     * written to does not copy the whole index each time; in between, searches see the previous version.
+     */
+    PathSearchIndex getSearchIndex() {
+        PathSearchIndex current = searchIndex;
+        if ((current != null) && isUsable(current)) {
+            return current;
+        }
+        synchronized (searchIndexLock) {
+            current = searchIndex;
+            if ((current == null) || !isUsable(current)) {
+                verifyAll();   // searches filter by size and time
+                long start = System.currentTimeMillis();
+                String version = getVersion();   // before reading the files, so it is never newer than they are
+                current = PathSearchIndex.build(diskName, version, files.entrySet(), files.size());
+                searchIndex = current;
+                LOGGER.info("getSearchIndex: built {} in {} ms", current, System.currentTimeMillis() - start);
+            }
+            return current;
+        }
+    }
+
+    private boolean isUsable(PathSearchIndex index) {
+        return index.version.equals(getVersion())
+               || (System.currentTimeMillis() - index.builtAt < SEARCH_INDEX_MIN_AGE_MILLIS);
+    }
+
+    /**
+     * Walks the directory tree rooted at the given relative directory, adding its files to the index
+     * and registering its directories with the watch service.
+     */
+    private void scan(String relativeDirectory) throws IOException {
+        scan(relativeDirectory, files, directories);
+    }
+
+    /**
+     * Walks the directory tree as scan() does, adding to the given maps rather than the index's own.
+     */
+    private void scan(String relativeDirectory, NavigableMap<String, FileInfo> intoFiles,
+                      Map<String, Long> intoDirectories) throws IOException {
+        Path start = resolve(relativeDirectory);
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                String relativeDir = relativize(dir);
+                intoDirectories.put(relativeDir, attrs.lastModifiedTime().toMillis());
+                register(dir, relativeDir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                addFile(file, attrs, intoFiles);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                LOGGER.warn("scan: {}: {}", file, ex.toString());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Re-reads the entries (but not the subdirectories) of one directory, after its modification
+     * time was found to differ from the snapshot.
+     */
+    private void rescanEntries(Path dir, String relativeDir) throws IOException {
+        removeFiles(relativeDir, false);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path entry : stream) {
+                BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class,
+                                                                 LinkOption.NOFOLLOW_LINKS);
+                if (!attrs.isDirectory()) {
+                    addFile(entry, attrs);
+                }
+            }
+        }
+    }
+
+    /**
+     * Brings an index loaded from a snapshot up to date, by walking the directories only.
+     */
+    private void refreshFromDirectories() throws IOException {
+        Map<String, Long> recorded = new HashMap<>(directories);
+        directories.clear();
+        Files.walkFileTree(top, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                String relativeDir = relativize(dir);
+                long mtime = attrs.lastModifiedTime().toMillis();
+                Long recordedMtime = recorded.remove(relativeDir);
+                directories.put(relativeDir, mtime);
+                register(dir, relativeDir);
+                if ((recordedMtime == null) || (recordedMtime != mtime)) {
+                    rescanEntries(dir, relativeDir);
+                    dirty = true;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                return FileVisitResult.CONTINUE;   // files come from the snapshot, or from rescanEntries()
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                LOGGER.warn("refreshFromDirectories: {}: {}", file, ex.toString());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        for (String vanished : recorded.keySet()) {   // directories that no longer exist
+            removeFiles(vanished, false);
+            dirty = true;
+        }
+    }
+
+    private void addFile(Path file, BasicFileAttributes attrs) {
+        addFile(file, attrs, files);
+    }
+
+    private void addFile(Path file, BasicFileAttributes attrs, NavigableMap<String, FileInfo> intoFiles) {
+        if (IGNORED_FILE_NAME.equals(file.getFileName().toString())) {
+            return;
+        }
+        if (attrs.isSymbolicLink()) {   // indexed if it leads to a regular file
+            try {
+                attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (IOException ex) {
+                return;
+            }
+        }
+        if (attrs.isRegularFile()) {
+            String relativePath = relativize(file);
+            intoFiles.put(relativePath, new FileInfo(attrs.size(), attrs.lastModifiedTime().toMillis(),
+                                                     UrlEncoder.encode(relativePath)));
+        }
+    }
+
+    /**
+     * Removes the files directly in the given relative directory, or (if recursive) everything below it.
+     */
+    private void removeFiles(String relativeDir, boolean recursive) {
+        String prefix = relativeDir.isEmpty() ? "" : relativeDir + '/';
+        NavigableMap<String, FileInfo> below = files.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        below.keySet().removeIf(path -> recursive || (path.indexOf('/', prefix.length()) < 0));
+    }
+
+    private void register(Path dir, String relativeDir) throws IOException {
+        WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        watchKeys.put(key, relativeDir);
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.poll(SNAPSHOT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+                if (key == null) {
+                    saveSnapshotIfDirty();
+                    continue;
+                }
+                String relativeDir = watchKeys.get(key);
+                if (relativeDir != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        handleEvent(relativeDir, event);
+                    }
+                    generation.incrementAndGet();
+                }
+                if (!key.reset()) {
+                    watchKeys.remove(key);
+                    if ("".equals(relativeDir)) {
+                        LOGGER.warn("watch: top directory of disk \"{}\" is no longer accessible", diskName);
+                        fireChanged(null, true);
+                    }
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException ex) {
+            LOGGER.info("watch: stopped watching disk \"{}\"", diskName);
+        }
+    }
+
+    private void handleEvent(String relativeDir, WatchEvent<?> event) {
+        dirty = true;
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            LOGGER.warn("handleEvent: events lost on disk \"{}\", rescanning", diskName);
+            rescanAll();
+            fireChanged(null, true);
+            return;
+        }
+        Path name = (Path) event.context();
+        String relativePath = relativeDir.isEmpty() ? name.toString() : relativeDir + '/' + name;
+        Path path = resolve(relativePath);
+        try {
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                files.remove(relativePath);
+                boolean directory = (directories.remove(relativePath) != null);
+                if (directory) {
+                    removeFiles(relativePath, true);
+                    directories.keySet().removeIf(dir -> dir.startsWith(relativePath + '/'));
+                }
+                fireChanged(relativePath, directory);
+                return;
+            }
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            fireChanged(relativePath, attrs.isDirectory());
+            if (attrs.isDirectory()) {
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    scan(relativePath);   // it may already have content
+                } else {
+                    directories.put(relativePath, attrs.lastModifiedTime().toMillis());
+                }
+            } else {
+                addFile(path, attrs);
+            }
+        } catch (IOException ex) {
+            // most likely deleted again already; a delete event will follow
+            LOGGER.debug("handleEvent: {}: {}", path, ex.toString());
+            fireChanged(relativePath, false);
+        }
+    }
+
+    private void fireChanged(String relativePath, boolean directory) {
+        for (ChangeListener listener : listeners) {
+            listener.changed(relativePath, directory);
+        }
+    }
+
+    private void rescanAll() {
+        for (WatchKey key : watchKeys.keySet()) {
+            key.cancel();
+        }
+        watchKeys.clear();
+        NavigableMap<String, FileInfo> newFiles = new ConcurrentSkipListMap<>();
+        Map<String, Long> newDirectories = new ConcurrentHashMap<>();
+        try {
+            scan("", newFiles, newDirectories);
+        } catch (IOException ex) {
+            LOGGER.error("rescanAll: disk \"{}\": {}", diskName, ex.toString());
+        }
+        files = newFiles;   // readers still iterating the old map finish with it
+        directories = newDirectories;
+        allVerified = true;
+    }
+
+    private Path resolve(String relativePath) {
+        return relativePath.isEmpty() ? top : top.resolve(relativePath);
+    }
+
+    private String relativize(Path path) {
+        String relative = top.relativize(path).toString();
+        return (File.separatorChar == '/') ? relative : relative.replace(File.separatorChar, '/');
+    }
+
+    private static String snapshotName(String diskName) {
+        StringBuilder buf = new StringBuilder();
+        for (char c : diskName.toCharArray()) {
+            buf.append(Character.isLetterOrDigit(c) || (c == '-') || (c == '_') ? c : '_');
+        }
+        buf.append('-').append(Integer.toHexString(diskName.hashCode())).append(".index");
+        return buf.toString();
+    }
+
+    /**
+     * Snapshot layout (gzipped): magic, version, top directory, then the directories
+     * (relative path, mtime) and the files (relative path, size, mtime), each preceded by a count.
+     */
+    private synchronized void saveSnapshotIfDirty() {
+        if ((snapshotFile == null) || !dirty) {
+            return;
+        }
+        dirty = false;
+        File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(tmpFile))))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeUTF(top.toString());
+            Map<String, Long> dirs = new HashMap<>(directories);
+            out.writeInt(dirs.size());
+            for (Map.Entry<String, Long> entry : dirs.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            NavigableMap<String, FileInfo> snapshot = new ConcurrentSkipListMap<>(files);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, FileInfo> entry : snapshot.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().size);
+                out.writeLong(entry.getValue().lastModified);
+            }
+        } catch (IOException ex) {
+            LOGGER.warn("saveSnapshot: {}: {}", snapshotFile, ex.toString());
+            dirty = true;
+            return;
+        }
+        try {
+            Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            LOGGER.warn("saveSnapshot: {}: {}", snapshotFile, ex.toString());
+            dirty = true;
+        }
+    }
+
+    private boolean loadSnapshot() {
+        if ((snapshotFile == null) || !snapshotFile.isFile()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(snapshotFile))))) {
+            if ((in.readInt() != SNAPSHOT_MAGIC) || (in.readInt() != SNAPSHOT_VERSION)
+                    || !top.toString().equals(in.readUTF())) {
+                LOGGER.info("loadSnapshot: ignoring stale or foreign snapshot {}", snapshotFile);
+                return false;
+            }
+            int dirCount = in.readInt();
+            for (int i = 0; i < dirCount; i++) {
+                directories.put(in.readUTF(), in.readLong());
+            }
+            int fileCount = in.readInt();
+            for (int i = 0; i < fileCount; i++) {
+                String relativePath = in.readUTF();
+                files.put(relativePath, new FileInfo(in.readLong(), in.readLong(), UrlEncoder.encode(relativePath), false));
+            }
+            allVerified = false;
+            return true;
+        } catch (IOException ex) {
+            LOGGER.warn("loadSnapshot: {}: {}", snapshotFile, ex.toString());
+            files.clear();
+            directories.clear();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.rph.paritizer.fileaccessservice;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * The disks known to the service, by name. Lookups never lock; registering, replacing and removing
+ * a disk are each a single atomic operation on the map, so a request sees either the old descriptor
+ * or the new one, never a mixture.
+ */
+class DiskRegistry {
+
+    private final Map<String, Disk> disks = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the disk with the given name, or null if there is none.
+     */
+    Disk get(String diskName) {
+        return disks.get(diskName);
+    }
+
+    /**
+     * Registers a disk, replacing (and returning) any disk of the same name.
+     */
+    Disk register(Disk disk) {
+        return disks.put(disk.name, disk);
+    }
+
+    /**
+     * Replaces a disk's descriptor with another, but only if the current descriptor is the expected one.
+     *
+     * @return true if the descriptor was replaced
+     */
+    boolean replace(Disk expected, Disk replacement) {
+        return disks.replace(expected.name, expected, replacement);
+    }
+
+    /**
+     * Removes (and returns) the disk with the given name, or returns null if there is none.
+     */
+    Disk remove(String diskName) {
+        return disks.remove(diskName);
+    }
+
+    Set<String> names() {
+        return disks.keySet();
+    }
+
+    Collection<Disk> disks() {
+        return disks.values();
+    }
+}
@@ -13,11 +13,15 @@ import org.glassfish.jersey.servlet.ServletContainer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.eclipse.jetty.servlet.ServletContextHandler.NO_SESSIONS;
 
@@ -29,7 +33,7 @@ public class EmbeddedJerseyService {
     private static final String PATH_SPEC = "/api/*";
     private static final String REST_PACKAGE = "com.rph.paritizer.fileaccessservice";
 
-    private static int portNumber = 0;
+    private final ServerProfile profile = new ServerProfile();
 
     public static void main(String[] args) throws Exception {
         new EmbeddedJerseyService().runServer(args);
@@ -37,33 +41,10 @@ public class EmbeddedJerseyService {
 
     private void runServer(String[] args)
             throws URISyntaxException, MalformedURLException,
-            FileNotFoundException, NotDirectoryException, NotReadableException {
+            FileNotFoundException, NotDirectoryException, NotReadableException, IOException {
         processArgs(args);
-        org.eclipse.jetty.server.Server server = new Server(portNumber);
-        server.setStopAtShutdown(true);
-        server.setStopTimeout(50);
-        ServletContextHandler servletContextHandler = new ServletContextHandler(NO_SESSIONS);
-        servletContextHandler.setContextPath(CONTEXT_PATH);
-        HandlerList handlers = new HandlerList();
-        handlers.addHandler(servletContextHandler);
-        ServletHolder servletHolder = servletContextHandler.addServlet(ServletContainer.class, PATH_SPEC);
-        servletHolder.setInitOrder(0);
-        servletHolder.setInitParameter("jersey.config.server.provider.packages", REST_PACKAGE);
-
-        URL url = EmbeddedJerseyService.class.getResource("/webapp/index.html");
-        if (url == null) {
-            throw new FileNotFoundException("Unable to find required /webapp/index.html");
-        }
-        URI uri = url.toURI();
-        String uriString = uri.toString();
-        uriString = uriString.substring(0, uriString.lastIndexOf('/'));
-        URI baseUri = new URI(uriString);
-        servletContextHandler.setBaseResource(Resource.newResource(baseUri));
-        ServletHolder staticHolder = new ServletHolder("default", DefaultServlet.class);
-        servletContextHandler.addServlet(staticHolder, "/");
-        handlers.addHandler(new DefaultHandler());   // always last handler
-
-        server.setHandler(handlers);
+        org.eclipse.jetty.server.Server server = createServer();
+        Runtime.getRuntime().addShutdownHook(new Thread(FileAccessor::closeDiskIndexes));   // saves index snapshots
         try {
             server.start();
             LOGGER.info("File access service listening for requests at " + server.getURI());
@@ -102,15 +83,99 @@ public class EmbeddedJerseyService {
         }
     }
 
-    private void processArgs(String[] args) throws FileNotFoundException, NotDirectoryException, NotReadableException {
+    /**
+     * Starts the service in this JVM and returns without waiting for it to stop, for benchmarks
+     * and tools that drive the service in-process. The args are as for main(); with no --port,
+     * a free port is chosen. server.getURI() gives the base URI, such as http://127.0.0.1:37215/FileAccessService.
+     * The caller stops the server.
+     */
+    static Server startServer(String[] args) throws Exception {
+        EmbeddedJerseyService service = new EmbeddedJerseyService();
+        service.processArgs(args);
+        Server server = service.createServer();
+        try {
+            server.start();
+        } catch (Exception ex) {
+            server.destroy();
+            throw ex;
+        }
+        return server;
+    }
+
+    private Server createServer() throws URISyntaxException, MalformedURLException, FileNotFoundException {
+        LOGGER.info("createServer: {}", profile);
+        org.eclipse.jetty.server.Server server = profile.createServer();
+        server.setStopAtShutdown(true);
+        server.setStopTimeout(50);
+        ServletContextHandler servletContextHandler = new ServletContextHandler(NO_SESSIONS);
+        servletContextHandler.setContextPath(CONTEXT_PATH);
+        HandlerList handlers = new HandlerList();
+        handlers.addHandler(servletContextHandler);
+        ServletHolder servletHolder = servletContextHandler.addServlet(ServletContainer.class, PATH_SPEC);
+        servletHolder.setInitOrder(0);
+        servletHolder.setAsyncSupported(true);   // for FileSender.AsyncSend
+        servletHolder.setInitParameter("jersey.config.server.provider.packages", REST_PACKAGE);
+
+        URL url = EmbeddedJerseyService.class.getResource("/webapp/index.html");
+        if (url == null) {
+            throw new FileNotFoundException("Unable to find required /webapp/index.html");
+        }
+        URI uri = url.toURI();
+        String uriString = uri.toString();
+        uriString = uriString.substring(0, uriString.lastIndexOf('/'));
+        URI baseUri = new URI(uriString);
+        servletContextHandler.setBaseResource(Resource.newResource(baseUri));
+        ServletHolder staticHolder = new ServletHolder("default", DefaultServlet.class);
+        servletContextHandler.addServlet(staticHolder, "/");
+        handlers.addHandler(new DefaultHandler());   // always last handler
+
+        server.setHandler(handlers);
+        FileAccessorRESTService.getMetrics().setThreadPool(server.getThreadPool());
+        return server;
+    }
+
+    private void processArgs(String[] args)
+            throws FileNotFoundException, NotDirectoryException, NotReadableException, IOException {
+        processClusterArgs(args);   // first, so that disks are placed on the right nodes
         int n = 0;
         while (n < args.length) {
             String arg = args[n++];
+            if ("--self".equals(arg) || "--peers".equals(arg)) {
+                n++;
+                continue;
+            }
             if ("-p".equals(arg) || "--port".equals(arg)) {
                 if (n >= args.length) {
                     throw new IllegalArgumentException("missing port number");
                 }
-                EmbeddedJerseyService.setPortNumber(Integer.parseInt(args[n++]));
+                profile.set(ServerProfile.PORT, args[n++]);
+                continue;
+            }
+            if ("-c".equals(arg) || "--config".equals(arg)) {
+                if (n >= args.length) {
+                    throw new IllegalArgumentException("missing server configuration file");
+                }
+                profile.load(new File(args[n++]));
+                continue;
+            }
+            if (arg.startsWith("--") && profile.isSetting(arg.substring(2))) {
+                String name = arg.substring(2);
+                if (ServerProfile.isFlag(name)) {
+                    boolean hasValue = (n < args.length) && ("true".equals(args[n]) || "false".equals(args[n]));
+                    profile.set(name, hasValue ? args[n++] : "true");
+                } else {
+                    if (n >= args.length) {
+                        throw new IllegalArgumentException("missing value for " + arg);
+                    }
+                    profile.set(name, args[n++]);
+                }
+                continue;
+            }
+            if ("-i".equals(arg) || "--index-dir".equals(arg)) {
+                if (n >= args.length) {
+                    throw new IllegalArgumentException("missing index directory");
+                }
+                FileAccessor.setIndexSnapshotDirectory(new File(args[n++]));
                 continue;
             }
             if ("-d".equals(arg) || "--disk".equals(arg)) {
@@ -128,12 +193,57 @@ public class EmbeddedJerseyService {
                 if (topDirectory.startsWith("-")) {
                     throw new IllegalArgumentException(diskName + ": illegal top directory, or missing top directory");
                 }
+                Cluster cluster = FileAccessorRESTService.getCluster();
+                if (!cluster.isPlacedHere(diskName)) {
+                    LOGGER.info("processArgs: disk \"{}\" is placed on {}", diskName, cluster.getOwner(diskName));
+                    continue;
+                }
                 FileAccessor.addNewDisk(diskName, topDirectory);
+                continue;
+            }
+            if ("--parity-group".equals(arg)) {
+                if (n + 2 >= args.length) {
+                    throw new IllegalArgumentException("missing parity group parameters");
+                }
+                String groupName = args[n++];
+                File parityDirectory = new File(args[n++]);
+                List<String> diskNames = Arrays.asList(args[n++].split(","));
+                int parityCount = 1;
+                if ((n < args.length) && args[n].matches("[0-9]+")) {
+                    parityCount = Integer.parseInt(args[n++]);
+                }
+                FileAccessor.getParityEngine().addGroup(groupName, parityDirectory, diskNames, parityCount);
             }
         }
     }
 
-    private static void setPortNumber(int pn) {
-        portNumber = pn;
+    /**
+     * Makes this node one of a cluster (see Cluster), if --peers is given:
+     *     --self http://host:port --peers http://host1:port1,http://host2:port2,...
+     * --self is this node as the peers reach it; every node is given the same --peers (which may list
+     * the node itself), so that they all place each disk on the same node. Each node then adds only
+     * the disks (given with --disk) that are placed on it.
+     */
+    private void processClusterArgs(String[] args) {
+        String self = null;
+        String peers = null;
+        for (int n = 0; n < args.length; n++) {
+            if ("--self".equals(args[n]) || "--peers".equals(args[n])) {
+                if (n + 1 >= args.length) {
+                    throw new IllegalArgumentException("missing value for " + args[n]);
+                }
+                if ("--self".equals(args[n])) {
+                    self = args[++n];
+                } else {
+                    peers = args[++n];
+                }
+            }
+        }
+        if (peers != null) {
+            if (self == null) {
+                throw new IllegalArgumentException("--peers needs --self");
+            }
+            FileAccessorRESTService.getCluster().setNodes(self, Arrays.asList(peers.split(",")));
+        }
     }
 }
@@ -7,17 +7,32 @@ import com.rph.paritizer.fileaccessservice.exceptions.NotReadableException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
 import java.nio.file.Files;
-import java.nio.file.Path;
-import java.util.HashMap;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 
 class FileAccessor {
@@ -26,45 +41,208 @@ class FileAccessor {
 
     static final String DEFAULT_DISK_NAME = "DefaultDisk";   // current directory (System.getProperty("user.dir"))
 
-    private static Map<String, String> diskNameToTop = new HashMap<>();
+    static final String INDEX_DIRECTORY_PROPERTY = "fileaccessservice.indexDir";
+
+    private static final DiskRegistry diskRegistry = new DiskRegistry();
+
+    // disks being re-added by getDisk(), so that requests racing to re-add one wait for a single reindex
+    private static final Map<String, CompletableFuture<Disk>> readding = new ConcurrentHashMap<>();
+
+    private static File indexSnapshotDirectory = getDefaultIndexSnapshotDirectory();
+
+    private static final FileMetadataCache metadataCache = FileMetadataCache.fromSystemProperties();
+
+    private static final FileContentCache contentCache = FileContentCache.fromSystemProperties();
+
+    private static final DirectoryListingCache directoryCache = DirectoryListingCache.fromSystemProperties();
+
+    private static final int URL_LIST_BUFFER_SIZE = 16 * 1024;
+
+    private static final MappedFileCache mappedFileCache = MappedFileCache.fromSystemProperties();
+
+    private static final Compression compression = Compression.fromSystemProperties();
+
+    private static final ParityEngine parityEngine = ParityEngine.fromSystemProperties();
+
+    private static final ContentHashIndex contentHashIndex = ContentHashIndex.fromSystemProperties();
+
+    /**
+     * Sets the directory where disk index snapshots are kept, so that a restart need not rewalk every disk.
+     * Null (the default, unless the fileaccessservice.indexDir system property is set) disables snapshots.
+     * Affects only disks added afterwards.
+     */
+    static void setIndexSnapshotDirectory(File directory) throws FileNotFoundException, NotDirectoryException {
+        if (directory != null) {
+            if (!directory.exists()) {
+                throw new FileNotFoundException(directory.toString());
+            }
+            if (!directory.isDirectory()) {
+                throw new NotDirectoryException(directory.toString());
+            }
+        }
+        indexSnapshotDirectory = directory;
+    }
+
+    private static File getDefaultIndexSnapshotDirectory() {
+        String dir = System.getProperty(INDEX_DIRECTORY_PROPERTY);
+        return ((dir == null) || !new File(dir).isDirectory()) ? null : new File(dir);
+    }
 
     static void addNewDisk(String diskName, String top)
-            throws FileNotFoundException, NotDirectoryException, NotReadableException {
+            throws FileNotFoundException, NotDirectoryException, NotReadableException, IOException {
         File topFile = new File(top);
-        if (!topFile.exists()) {
-            throw new FileNotFoundException(topFile.toString());
+        Disk.checkRoot(Disk.validate(topFile), top);
+        DiskIndex index = DiskIndex.open(diskName, topFile.toPath(), indexSnapshotDirectory);
+        index.addChangeListener((relativePath, directory) -> {
+            metadataCache.invalidate(diskName, relativePath, directory);
+            directoryCache.invalidate(diskName, relativePath, directory);
+            contentCache.invalidate((relativePath == null) ? topFile.toString() : new File(topFile, relativePath).toString(),
+                                    directory);
+            if (relativePath == null) {
+                revalidate(diskName, index);
+            }
+        });
+        Disk previous = diskRegistry.register(Disk.available(diskName, top, index));
+        if (previous != null) {
+            previous.index.close();
+            LOGGER.info("addNewDisk: replaced {}", previous);
+        }
+        metadataCache.invalidate(diskName, null, true);
+        directoryCache.invalidate(diskName, null, true);
+        contentHashIndex.diskAdded(diskName, topFile, index);
+    }
+
+    /**
+     * Unregisters a disk, and stops watching it.
+     */
+    static void removeDisk(String diskName) throws IllegalArgumentException, DiskNotFoundException {
+        if ((diskName == null) || (diskName.length() == 0)) {
+            throw new IllegalArgumentException("empty disk name");
         }
-        if (!topFile.isDirectory()) {
-            throw new NotDirectoryException(topFile.toString());
+        Disk disk = diskRegistry.remove(diskName);
+        if (disk == null) {
+            throw new DiskNotFoundException("no such disk: " + diskName);
         }
-        if (!topFile.canRead()) {
-            throw new NotReadableException(topFile.toString());
+        disk.index.close();
+        metadataCache.invalidate(diskName, null, true);
+        directoryCache.invalidate(diskName, null, true);
+        contentCache.invalidate(disk.top, true);
+        contentHashIndex.diskRemoved(diskName);
+        FileAccessorRESTService.getAdmissionController().diskRemoved(diskName);
+        LOGGER.info("removeDisk: removed {}", disk);
+    }
+
+    /**
+     * Stops watching all disks for changes, saving their index snapshots.
+     */
+    static void closeDiskIndexes() {
+        for (Disk disk : diskRegistry.disks()) {
+            disk.index.close();
         }
-        diskNameToTop.put(diskName, top);
     }
 
-    private static String getDiskTopDirectory(String diskName)
-            throws DiskNotFoundException, FileNotFoundException, NotDirectoryException, NotReadableException {
-        String top = diskNameToTop.get(diskName);
-        if (top == null) {
+    /**
+     * Returns the descriptor of a disk, whose top directory was usable when last checked.
+     * The top directory is only stat-ed again if it was not usable then (in which case, if it has come back,
+     * the disk is re-added), so the usual cost is one lock-free map lookup. Requests that find the disk back
+     * at the same time share one re-add (see readd()), rather than each reindexing it.
+     */
+    static Disk getDisk(String diskName)
+            throws IllegalArgumentException, DiskNotFoundException, FileNotFoundException, NotDirectoryException,
+                   NotReadableException, IOException {
+        if ((diskName == null) || (diskName.length() == 0)) {
+            throw new IllegalArgumentException("empty disk name");
+        }
+        Disk disk = diskRegistry.get(diskName);
+        if (disk == null) {
             if (!DEFAULT_DISK_NAME.equals(diskName)) {
                 throw new DiskNotFoundException("no such disk: " + diskName);
             }
-            top = getDefaultDiskTop();
-            addNewDisk(diskName, top);
-            return top;
+            disk = addDefaultDisk();
         }
-        File topFile = new File(top);
-        if (!topFile.exists()) {
-            throw new FileNotFoundException(topFile.toString());
+        if (disk.rootState != Disk.RootState.AVAILABLE) {
+            if (Disk.validate(disk.topFile) == Disk.RootState.AVAILABLE) {
+                disk = readd(disk);
+            }
+            disk.checkRoot();
         }
-        if (!topFile.isDirectory()) {
-            throw new NotDirectoryException(topFile.toString());
+        return disk;
+    }
+
+    /**
+     * Re-adds a disk whose top directory has come back, and returns its new descriptor. Only the first
+     * request to get here does so; the others wait for it, and get the same descriptor (or exception).
+     */
+    private static Disk readd(Disk stale) throws IOException {
+        CompletableFuture<Disk> ours = new CompletableFuture<>();
+        CompletableFuture<Disk> theirs = readding.putIfAbsent(stale.name, ours);
+        if (theirs != null) {
+            try {
+                return theirs.join();
+            } catch (CompletionException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                throw ex;
+            }
         }
-        if (!topFile.canRead()) {
-            throw new NotReadableException(topFile.toString());
+        try {
+            Disk current = diskRegistry.get(stale.name);
+            if (current == null) {
+                throw new DiskNotFoundException("no such disk: " + stale.name);   // removed meanwhile
+            }
+            if (current == stale) {   // not already re-added (or replaced) by a request that just finished
+                LOGGER.info("getDisk: top directory of disk \"{}\" is back; re-adding it", stale.name);
+                addNewDisk(stale.name, stale.top);
+                current = diskRegistry.get(stale.name);
+            }
+            ours.complete(current);
+            return current;
+        } catch (IOException | RuntimeException ex) {
+            ours.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            readding.remove(stale.name, ours);
+        }
+    }
+
+    /**
+     * Returns the registered disks, without registering the default disk.
+     */
+    static Collection<Disk> getDisks() {
+        return diskRegistry.disks();
+    }
+
+    /**
+     * Returns true if a disk of the given name is registered.
+     */
+    static boolean isRegistered(String diskName) {
+        return diskRegistry.get(diskName) != null;
+    }
+
+    private static synchronized Disk addDefaultDisk()
+            throws FileNotFoundException, NotDirectoryException, NotReadableException, IOException {
+        Disk disk = diskRegistry.get(DEFAULT_DISK_NAME);
+        if (disk == null) {
+            addNewDisk(DEFAULT_DISK_NAME, getDefaultDiskTop());
+            disk = diskRegistry.get(DEFAULT_DISK_NAME);
+        }
+        return disk;
+    }
+
+    /**
+     * Re-checks a disk's top directory (on the index's watch thread, when anything on the disk may have changed),
+     * and records its new state in the registry.
+     */
+    private static void revalidate(String diskName, DiskIndex index) {
+        Disk disk = diskRegistry.get(diskName);
+        if ((disk == null) || (disk.index != index)) {
+            return;   // removed or replaced meanwhile
+        }
+        Disk.RootState state = Disk.validate(disk.topFile);
+        if ((state != disk.rootState) && diskRegistry.replace(disk, disk.withRootState(state))) {
+            LOGGER.warn("revalidate: top directory of disk \"{}\" is now {}", diskName, state);
         }
-        return top;
     }
 
     static String getDefaultDiskTop() throws FileNotFoundException {
@@ -99,10 +277,10 @@ class FileAccessor {
     static String getDiskList() {
         StringBuilder buf = new StringBuilder();
         buf.append("{ \"disks\": [\n");
-        for (String diskName : diskNameToTop.keySet()) {
-            buf.append("    \"");
-            buf.append(diskName);
-            buf.append("\",\n");
+        for (String diskName : diskRegistry.names()) {
+            buf.append("    ");
+            Json.appendQuoted(buf, diskName);
+            buf.append(",\n");
         }
 
         // delete trailing ','
@@ -118,96 +296,500 @@ class FileAccessor {
         return buf.toString();
     }
 
+    /**
+     * Returns the names of the registered disks, without registering the default disk.
+     */
+    static Collection<String> getDiskNames() {
+        return diskRegistry.names();
+    }
+
+    /**
+     * Returns the disks of the nodes of a cluster (see Cluster.getDiskLists()) as JSON: all of them, sorted,
+     * and then those of each node, or why they could not be listed.
+     */
+    static String getJsonClusterDiskList(List<Cluster.NodeDisks> diskLists) {
+        Set<String> allDiskNames = new TreeSet<>();
+        for (Cluster.NodeDisks nodeDisks : diskLists) {
+            if (nodeDisks.disks != null) {
+                allDiskNames.addAll(nodeDisks.disks);
+            }
+        }
+        StringBuilder buf = new StringBuilder();
+        buf.append("{ \"disks\": [");
+        String separator = "\n    ";
+        for (String diskName : allDiskNames) {
+            Json.appendQuoted(buf.append(separator), diskName);
+            separator = ",\n    ";
+        }
+        buf.append("],\n  \"nodes\": [");
+        separator = "\n    ";
+        for (Cluster.NodeDisks nodeDisks : diskLists) {
+            Json.appendQuoted(buf.append(separator).append("{ \"node\": "), nodeDisks.node);
+            if (nodeDisks.disks == null) {
+                Json.appendQuoted(buf.append(", \"error\": "), nodeDisks.error);
+            } else {
+                buf.append(", \"disks\": [");
+                String diskSeparator = " ";
+                for (String diskName : nodeDisks.disks) {
+                    Json.appendQuoted(buf.append(diskSeparator), diskName);
+                    diskSeparator = ", ";
+                }
+                buf.append(" ]");
+            }
+            buf.append(" }");
+            separator = ",\n    ";
+        }
+        buf.append("]}\n");
+        return buf.toString();
+    }
+
     static String getJsonUrlList(String uri, String diskName)
             throws IllegalArgumentException, FileNotFoundException, NotDirectoryException, NotReadableException,
             IOException {
-        // uri: http://localhost:8090/FileAccessService/api/fileAccessor/fileList/Videos01
-        if ((diskName == null) || (diskName.length() == 0)) {
-            throw new IllegalArgumentException("empty disk name");
-        }
-        String top = getDiskTopDirectory(diskName);
-        File topFile = new File(top);
-        if (!topFile.exists()) {
-            throw new FileNotFoundException(topFile.toString());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeJsonUrlList(out, uri, getDiskIndex(diskName), null, Integer.MAX_VALUE);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the index of a disk, whose top directory was usable when last checked.
+     */
+    static DiskIndex getDiskIndex(String diskName)
+            throws IllegalArgumentException, FileNotFoundException, NotDirectoryException, NotReadableException,
+            IOException {
+        return getDisk(diskName).index;
+    }
+
+    /**
+     * Writes the JSON list of file URLs for a disk, one entry at a time, so that no more than one entry
+     * is held in memory. At most limit entries are written, starting after the file named by after.
+     * If entries remain, a "nextCursor" member is written; decodeCursor() turns it back into the after argument
+     * for the next page.
+     *
+     * The JSON is written as bytes, through one reusable buffer: the URI prefix is converted to bytes once,
+     * and each path is copied from the %-encoded form the index keeps (see DiskIndex.FileInfo), so that
+     * nothing is allocated per entry.
+     *
+     * @param out where the JSON goes
+     * @param uri the file URI prefix, such as http://localhost:8090/FileAccessService/api/fileAccessor/file/Videos01
+     * @param diskIndex the index of the disk
+     * @param after the relative path of the last file already listed, or null to start with the first file
+     * @param limit the maximum number of URLs to write
+     */
+    static void writeJsonUrlList(OutputStream out, String uri, DiskIndex diskIndex, String after, int limit)
+            throws IllegalArgumentException, IOException {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive: " + limit);
         }
-        if (!topFile.isDirectory()) {
-            throw new NotDirectoryException(topFile.toString());
+        Iterator<Map.Entry<String, DiskIndex.FileInfo>> files = diskIndex.filesAfter(after).iterator();
+        UrlEncoder.AsciiWriter writer = new UrlEncoder.AsciiWriter(out, URL_LIST_BUFFER_SIZE);
+        byte[] entryStart = ("    \"" + uri + '/').getBytes(StandardCharsets.UTF_8);
+        writer.write("{ \"disk\" : \"");
+        writer.write(diskIndex.getDiskName().getBytes(StandardCharsets.UTF_8));
+        writer.write("\",\n");
+        writer.write("  \"urls\" : [\n");
+        String relativePath = null;
+        int count = 0;
+        while ((count < limit) && files.hasNext()) {
+            Map.Entry<String, DiskIndex.FileInfo> file = files.next();
+            relativePath = file.getKey();
+            if (count++ > 0) {
+                writer.write(",\n");
+            }
+            writer.write(entryStart);
+            String encodedPath = file.getValue().encodedPath;
+            if (encodedPath != null) {
+                writer.write(encodedPath);
+            } else {
+                writer.writeEncoded(relativePath);
+            }
+            writer.write('"');
         }
-        if (!topFile.canRead()) {
-            throw new NotReadableException(topFile.toString());
+        writer.write("\n]");
+        if (files.hasNext()) {
+            writer.write(",\n  \"nextCursor\" : \"");
+            writer.write(encodeCursor(relativePath));
+            writer.write('"');
         }
-        Path topPath = topFile.toPath();
-        StringBuilder buf = new StringBuilder();
-        buf.append("{ \"disk\" : \"");
-        buf.append(diskName);
-        buf.append("\",\n");
-        buf.append("  \"urls\" : [\n");
-        Files.walk(topPath)
-                .filter(path -> (Files.isRegularFile(path) && !path.endsWith(".DS_Store")))
-                .forEach(path -> addFileUri(buf, uri, topPath.relativize(path)));
+        writer.write(" }\n");
+        writer.flush();
+    }
 
-        // delete trailing ','
-        int index = buf.length();
-        while ((index > 0) && Character.isWhitespace(buf.charAt(--index))) {
-            // do nothing
+    /**
+     * Writes the JSON listing of one directory: its subdirectories, with the URLs that list them, and its files,
+     * with the URLs that read them.
+     *
+     * @param writer where the JSON goes
+     * @param directoryUri the directory URI prefix, such as http://localhost:8090/FileAccessService/api/fileAccessor/dir/Videos01
+     * @param fileUri the file URI prefix, as for writeJsonUrlList()
+     * @param diskName the name of the disk
+     * @param listing the listing
+     */
+    static void writeJsonDirectoryListing(Writer writer, String directoryUri, String fileUri, String diskName,
+                                          DirectoryListingCache.Listing listing) throws IOException {
+        String directory = listing.relativeDirectory;
+        String prefix = directory.isEmpty() ? "" : directory + '/';
+        writer.write("{ \"disk\" : ");
+        writer.write(Json.quote(diskName));
+        writer.write(", \"path\" : ");
+        writer.write(Json.quote(directory));
+        writer.write(",\n");
+        writer.write("  \"directories\" : [");
+        String separator = "\n";
+        for (DirectoryListingCache.Child child : listing.children) {
+            if (child.directory) {
+                writer.write(separator);
+                writer.write("    { \"name\" : ");
+                writer.write(Json.quote(child.name));
+                writer.write(", \"url\" : \"");
+                writer.write(directoryUri);
+                writer.write('/');
+                writer.write(UrlEncoder.encode(prefix + child.name));
+                writer.write("\", \"lastModified\" : ");
+                writer.write(Long.toString(child.lastModified));
+                writer.write(" }");
+                separator = ",\n";
+            }
         }
-        if ((index > 0) && (buf.charAt(index) == ',')) {
-            buf.deleteCharAt(index);
+        writer.write("\n],\n");
+        writer.write("  \"files\" : [");
+        separator = "\n";
+        for (DirectoryListingCache.Child child : listing.children) {
+            if (!child.directory) {
+                writer.write(separator);
+                writer.write("    { \"name\" : ");
+                writer.write(Json.quote(child.name));
+                writer.write(", \"url\" : \"");
+                writer.write(fileUri);
+                writer.write('/');
+                writer.write(UrlEncoder.encode(prefix + child.name));
+                writer.write("\", \"size\" : ");
+                writer.write(Long.toString(child.size));
+                writer.write(", \"lastModified\" : ");
+                writer.write(Long.toString(child.lastModified));
+                writer.write(" }");
+                separator = ",\n";
+            }
         }
+        writer.write("\n] }\n");
+        writer.flush();
+    }
 
-        buf.append("] }\n");
-        return buf.toString();
+    /**
+     * Writes the JSON list of the files of a disk that match a search, as they are found. Paging works as
+     * it does for writeJsonUrlList(): if more files may match, a "nextCursor" member is written.
+     *
+     * @param writer where the JSON goes
+     * @param uri the file URI prefix, as for writeJsonUrlList()
+     * @param searchIndex the search index of the disk
+     * @param query what to search for
+     * @param after the relative path of the last file already listed, or null to start with the first match
+     * @param limit the maximum number of files to write
+     */
+    static void writeJsonSearchResults(Writer writer, String uri, PathSearchIndex searchIndex,
+                                       PathSearchIndex.Query query, String after, int limit)
+            throws IllegalArgumentException, IOException {
+        writer.write("{ \"disk\" : ");
+        writer.write(Json.quote(searchIndex.diskName));
+        writer.write(",\n");
+        writer.write("  \"files\" : [\n");
+        int[] count = new int[1];
+        String last = searchIndex.search(query, after, limit, (relativePath, size, lastModified) -> {
+            if (count[0]++ > 0) {
+                writer.write(",\n");
+            }
+            writer.write("    { \"path\" : ");
+            writer.write(Json.quote(relativePath));
+            writer.write(", \"url\" : \"");
+            writer.write(uri);
+            writer.write('/');
+            writer.write(UrlEncoder.encode(relativePath));
+            writer.write("\", \"size\" : ");
+            writer.write(Long.toString(size));
+            writer.write(", \"lastModified\" : ");
+            writer.write(Long.toString(lastModified));
+            writer.write(" }");
+        });
+        writer.write("\n]");
+        if (last != null) {
+            writer.write(",\n  \"nextCursor\" : \"");
+            writer.write(encodeCursor(last));
+            writer.write('"');
+        }
+        writer.write(" }\n");
+        writer.flush();
     }
 
-    private static void addFileUri(StringBuilder buf, String uri, Path path) {
-        buf.append("    \"");
-        buf.append(uri);
-        buf.append('/');
-        buf.append(FileAccessorRESTService.encode(path.toString()));
-        buf.append("\",\n");
+    /**
+     * A cursor is the relative path of the last file on a page, base64url encoded so clients treat it as opaque.
+     * Since the index is sorted, the next page starts right after it, even if files were added or removed meanwhile.
+     */
+    static String encodeCursor(String relativePath) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(relativePath.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String decodeCursor(String cursor) throws IllegalArgumentException {
+        if ((cursor == null) || cursor.isEmpty()) {
+            return null;
+        }
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("invalid cursor: " + cursor);
+        }
     }
 
     static String getFilePath(String diskName, String relativePath)
             throws IllegalArgumentException, DiskNotFoundException, FileNotFoundException, NotFileException,
                    NotReadableException, IOException {
-        if ((diskName == null) || (diskName.length() == 0)) {
-            throw new IllegalArgumentException("empty disk name");
-        }
+        return getFileMetadata(diskName, relativePath).filePath;
+    }
+
+    static FileMetadataCache.Entry getFileMetadata(String diskName, String relativePath)
+            throws IllegalArgumentException, DiskNotFoundException, FileNotFoundException, NotFileException,
+                   NotReadableException, IOException {
+        return getFileMetadata(getDisk(diskName), relativePath);
+    }
+
+    /**
+     * Returns what is needed to serve a file. If the file's metadata is cached, nothing is stat-ed;
+     * otherwise the file is stat-ed once (plus an access check).
+     *
+     * @throws IllegalArgumentException if the path is empty, or (with ".." components) leads out of the disk
+     */
+    static FileMetadataCache.Entry getFileMetadata(Disk disk, String relativePath)
+            throws IllegalArgumentException, FileNotFoundException, NotFileException, NotReadableException,
+                   IOException {
         if ((relativePath == null) || (relativePath.length() == 0)) {
             throw new IllegalArgumentException("empty relative path");
         }
-        String top = getDiskTopDirectory(diskName);
-        File file = new File(top, relativePath);
-        if (!file.exists()) {
-            throw new FileNotFoundException(file.toString());
+        FileMetadataCache.Entry entry = metadataCache.get(disk.name, relativePath);
+        if (entry == null) {
+            File file = new File(disk.topFile, relativePath);
+            // only paths inside the disk are cached, so a cached entry needs no check
+            if (!file.toPath().normalize().startsWith(disk.topFile.toPath().normalize())) {
+                throw new IllegalArgumentException("path is outside the disk: " + relativePath);
+            }
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            } catch (NoSuchFileException ex) {
+                throw new FileNotFoundException(file.toString());
+            } catch (AccessDeniedException ex) {
+                throw new NotReadableException(file.toString());
+            }
+            if (!attrs.isRegularFile()) {
+                throw new NotFileException(file.toString());
+            }
+            entry = new FileMetadataCache.Entry(file.toString(), attrs.size(), attrs.lastModifiedTime().toMillis(),
+                                                entityTag(attrs), Files.isReadable(file.toPath()),
+                                                FileAccessorRESTService.getMediaType(file.toString()),
+                                                System.currentTimeMillis());
+            metadataCache.put(disk.name, relativePath, entry);
+        }
+        if (!entry.readable) {
+            throw new NotReadableException(entry.filePath);
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the immediate children of a directory of a disk (see DirectoryListingCache).
+     *
+     * @param relativeDirectory the directory, relative to the top of the disk; null, "" or "/" for the top
+     * @throws IllegalArgumentException if the path has a "." or ".." component
+     */
+    static DirectoryListingCache.Listing getDirectoryListing(String diskName, String relativeDirectory)
+            throws IllegalArgumentException, DiskNotFoundException, FileNotFoundException, NotDirectoryException,
+                   NotReadableException, IOException {
+        Disk disk = getDisk(diskName);
+        String directory = (relativeDirectory == null) ? "" : relativeDirectory;
+        while (directory.endsWith("/")) {
+            directory = directory.substring(0, directory.length() - 1);
         }
-        if (!file.isFile()) {
-            throw new NotFileException(file.toString());
+        while (directory.startsWith("/")) {
+            directory = directory.substring(1);
         }
-        if (!file.canRead()) {
-            throw new NotReadableException(file.toString());
+        if (!directory.isEmpty()) {
+            for (String name : directory.split("/", -1)) {
+                if (name.isEmpty() || ".".equals(name) || "..".equals(name)) {
+                    throw new IllegalArgumentException("invalid directory: " + relativeDirectory);
+                }
+            }
         }
-        return file.toString();
+        return directoryCache.get(disk, directory);
+    }
+
+    static DirectoryListingCache getDirectoryCache() {
+        return directoryCache;
+    }
+
+    /**
+     * Returns a strong entity tag for a file, derived from its file key (device and inode, where the
+     * file system has them), size and modification time, so that no content needs to be read.
+     * A file rewritten in place gets a new modification time; a file replaced by another gets a new inode.
+     */
+    static String entityTag(BasicFileAttributes attrs) {
+        Object fileKey = attrs.fileKey();
+        long modified = attrs.lastModifiedTime().to(TimeUnit.MICROSECONDS);
+        return ((fileKey == null) ? "0" : Integer.toHexString(fileKey.hashCode()))
+               + '-' + Long.toHexString(attrs.size()) + '-' + Long.toHexString(modified);
+    }
+
+    static FileMetadataCache getMetadataCache() {
+        return metadataCache;
     }
 
     static long copyFileToOutputStream(String file, OutputStream out) throws IOException {
-        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            return FileSender.send(channel, out);
+        }
+    }
+
+    /**
+     * Copies a file to out: from the content cache if the file is small enough to be cached there,
+     * from a shared memory mapping if it is large enough to be mapped, and otherwise from a FileChannel.
+     */
+    static long copyFileToOutputStream(FileMetadataCache.Entry file, OutputStream out) throws IOException {
+        return copyFileRangeToOutputStream(file, new ByteRange(0, file.size - 1), out);
+    }
+
+    /**
+     * Copies one range of a file to out, in the same way as copyFileToOutputStream().
+     */
+    static long copyFileRangeToOutputStream(FileMetadataCache.Entry file, ByteRange range, OutputStream out)
+            throws IOException {
+        FileContentCache.Entry content = acquireContent(file);
+        if (content != null) {
+            try {
+                ByteBuffer slice = content.content();
+                slice.position((int) range.first);
+                slice.limit((int) range.last + 1);
+                return FileSender.send(slice, out);
+            } finally {
+                content.release();
+            }
+        }
+        MappedFileCache.Mapping mapping = mappedFileCache.acquire(file.filePath, file.size, file.lastModified);
+        if (mapping != null) {
+            try {
+                return FileSender.send(mapping.slice(range.first, range.length()), out);
+            } finally {
+                mapping.release();
+            }
+        }
+        try (FileChannel channel = openChannel(file)) {
+            return FileSender.send(channel, range.first, range.length(), out);
+        }
+    }
+
+    /**
+     * Starts sending one range of a file without blocking, from the same places as copyFileToOutputStream().
+     * Returns at once; if the file cannot be opened, the send is aborted.
+     */
+    static void sendFileRange(FileMetadataCache.Entry file, ByteRange range, FileSender.AsyncSend send) {
+        try {
+            FileContentCache.Entry content = acquireContent(file);
+            if (content != null) {
+                ByteBuffer slice = content.content();
+                slice.position((int) range.first);
+                slice.limit((int) range.last + 1);
+                send.send(slice, content::release);
+                return;
+            }
+            MappedFileCache.Mapping mapping = mappedFileCache.acquire(file.filePath, file.size, file.lastModified);
+            if (mapping != null) {
+                send.send(mapping.slice(range.first, range.length()), mapping::release);
+                return;
+            }
+            FileChannel channel = openChannel(file);
+            send.send(channel, range.first, range.length());
+        } catch (IOException | RuntimeException ex) {
+            send.abort(ex);
+        }
+    }
+
+    /**
+     * Returns the cached content of a file, loading it on a miss, or null if it is not cacheable (see
+     * FileContentCache.acquire()). Files with the same content share one entry. The caller must release() the result.
+     */
+    static FileContentCache.Entry acquireContent(FileMetadataCache.Entry file) throws IOException {
+        if (!contentCache.isCacheable(file.size)) {
+            return null;
+        }
+        ContentHashIndex.Hash hash = contentHashIndex.sharedHash(file.filePath, file.size, file.lastModified);
+        if (hash == null) {
+            return contentCache.acquire(file.filePath, file.size, file.lastModified);
+        }
+        return contentCache.acquire(hash.cacheKey(), file.filePath, file.size, file.lastModified, hash::matches);
+    }
+
+    static FileContentCache getContentCache() {
+        return contentCache;
+    }
+
+    static MappedFileCache getMappedFileCache() {
+        return mappedFileCache;
+    }
+
+    static Compression getCompression() {
+        return compression;
+    }
+
+    static ParityEngine getParityEngine() {
+        return parityEngine;
+    }
+
+    static ContentHashIndex getContentHashIndex() {
+        return contentHashIndex;
+    }
+
+    static long copyFileRangeToOutputStream(String file, ByteRange range, OutputStream out) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            return FileSender.send(channel, range.first, range.length(), out);
+        }
+    }
+
+    /**
+     * Opens a file to send it, checking that it is still the size its metadata says, since the response's
+     * Content-Length (and ranges) were worked out from the metadata, which may have been cached
+     * before the file changed. If it is not, the metadata is dropped, so that the next request stats
+     * the file again, and an IOException aborts this response rather than sending the wrong length.
+     */
+    static FileChannel openChannel(FileMetadataCache.Entry file) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(file.filePath), StandardOpenOption.READ);
+        long size = channel.size();
+        if (size != file.size) {
+            channel.close();
+            metadataCache.invalidateFile(file.filePath);
+            throw new IOException(file.filePath + ": size changed from " + file.size + " to " + size);
+        }
+        return channel;
+    }
+
+    /**
+     * Writes a multipart/byteranges body containing the given ranges of the file.
+     */
+    static long copyFileRangesToOutputStream(FileMetadataCache.Entry file, List<ByteRange> ranges, String contentType,
+                                             String boundary, OutputStream out) throws IOException {
+        try (FileChannel channel = openChannel(file)) {
+            long fileLength = file.size;
             long count = 0;
-            byte[] buffer = new byte[1024 * 1024];
-            while (true) {
-                int n = in.read(buffer);
-                if (n < 0) {
-                    return count;
-                }
-                count += n;
-                out.write(buffer, 0, n);
+            for (ByteRange range : ranges) {
+                byte[] header = ByteRange.partHeader(boundary, contentType, range, fileLength);
+                out.write(header);
+                count += header.length;
+                count += FileSender.copy(channel, range.first, range.length(), out);
             }
+            byte[] trailer = ByteRange.multipartTrailer(boundary);
+            out.write(trailer);
+            return count + trailer.length;
         }
     }
 
     static {
         try {
-            getDiskTopDirectory(DEFAULT_DISK_NAME);
+            getDisk(DEFAULT_DISK_NAME);
         } catch (Exception e) {
             // do nothing
         }
@@ -1,28 +1,54 @@
 package com.rph.paritizer.fileaccessservice;
 
 import com.rph.paritizer.fileaccessservice.exceptions.DiskNotFoundException;
+import com.rph.paritizer.fileaccessservice.exceptions.NotAdmittedException;
 import com.rph.paritizer.fileaccessservice.exceptions.NotDirectoryException;
 import com.rph.paritizer.fileaccessservice.exceptions.NotFileException;
+import com.rph.paritizer.fileaccessservice.exceptions.NotImageException;
 import com.rph.paritizer.fileaccessservice.exceptions.NotReadableException;
+import com.rph.paritizer.fileaccessservice.exceptions.ParityGroupNotFoundException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
+import java.io.BufferedWriter;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 
 @Path("fileAccessor")
@@ -30,13 +56,44 @@ public class FileAccessorRESTService {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(FileAccessorRESTService.class);
 
+    static final String CACHE_CONTROL_PROPERTY = "fileaccessservice.cacheControl";
+
+    /**
+     * The Cache-Control header sent with files. The default lets browsers and proxies keep a copy,
+     * but makes them revalidate it (cheaply, with If-None-Match) before each use.
+     */
+    private static final String FILE_CACHE_CONTROL = System.getProperty(CACHE_CONTROL_PROPERTY, "public, no-cache");
+    private static final String LIST_CACHE_CONTROL = "no-cache";
+
+    private static final int DEFAULT_DRAIN_MILLIS = 30000;        // see pause()
+    private static final int MAX_DRAIN_MILLIS = 10 * 60 * 1000;   // a draining pause holds a request thread
+    private static final int DEFAULT_PARITY_WAIT_MILLIS = 30000;        // see computeParity()
+    private static final int MAX_PARITY_WAIT_MILLIS = 10 * 60 * 1000;   // as does a POST of parity with wait
+
+    private static final int MAX_FILE_URI_PREFIXES = 64;
+    private static final Map<String, String> fileUriPrefixes = new ConcurrentHashMap<>();   // see getFileUriPrefix()
+
     @Context
     private UriInfo uriInfo;   // automagically set with each request
 
     @Context
     private HttpServletRequest request;
 
-    private static boolean paused = false;
+    @Context
+    private HttpServletResponse response;
+
+    @Context
+    private Request jaxrsRequest;   // for evaluating preconditions
+
+    private static final AdmissionController admission = AdmissionController.fromSystemProperties();
+
+    private static final Metrics metrics = new Metrics();
+
+    private static final BatchFetcher batchFetcher = BatchFetcher.fromSystemProperties();
+
+    private static final Thumbnails thumbnails = Thumbnails.fromSystemProperties();
+
+    private static final Cluster cluster = Cluster.fromSystemProperties();
 
     /**
      * A GET operation can be used to obtain a list of files.
@@ -47,12 +104,15 @@ public class FileAccessorRESTService {
      *     { "urls" : [ url1, url2 url3, ... ] }
      * Each URL in the list corresponds to a file that can be retrieved with a GET operation.
      *
+     * @param limit the maximum number of URLs to return (optional)
+     * @param cursor the nextCursor value from the previous page (optional)
+     *
      * @return the Response. And hopefully, a JSON string.
      */
     @GET
     @Path("fileList")
-    public Response getFileList() {
-        return getFileList(FileAccessor.DEFAULT_DISK_NAME);
+    public Response getFileList(@QueryParam("limit") String limit, @QueryParam("cursor") String cursor) {
+        return getFileList(FileAccessor.DEFAULT_DISK_NAME, limit, cursor);
     }
 
     /**
@@ -65,22 +125,56 @@ public class FileAccessorRESTService {
      * Returns JSON of the form:
      *     { "urls" : [ url1, url2 url3, ... ] }
      * Each URL in the list corresponds to a file on the disk that can be retrieved with a GET operation.
+     * The list is streamed as it is generated.
+     *
+     * Huge disks can be listed a page at a time by adding a limit query parameter, like this:
+     *     http://localhost:8080/FileAccessService/api/fileAccessor/fileList/NameOfDisk?limit=1000
+     * If more files remain, the JSON then has the form:
+     *     { "urls" : [ url1, url2 url3, ... ], "nextCursor" : "opaqueString" }
+     * and the next page is retrieved by passing the cursor back:
+     *     http://localhost:8080/FileAccessService/api/fileAccessor/fileList/NameOfDisk?limit=1000&cursor=opaqueString
+     *
+     * The response has an ETag derived from the version of the disk's index, so a client that sends
+     * it back in an If-None-Match header gets a 304 (Not Modified) until something on the disk changes.
      *
      * @param diskName the name of the disk
+     * @param limit the maximum number of URLs to return (optional)
+     * @param cursor the nextCursor value from the previous page (optional)
      *
      * @return the Response. And hopefully, a JSON string.
      */
     @GET
     @Path("fileList/{diskName}")
-    public Response getFileList(@PathParam("diskName") String diskName) {
+    public Response getFileList(@PathParam("diskName") String diskName,
+                                @QueryParam("limit") String limit, @QueryParam("cursor") String cursor) {
         LOGGER.info("getFileList: diskName=\"{}\" sender=\"{}\"", diskName, request.getRemoteAddr() + ':' + request.getRemotePort());
+        Response forwarded = forwardToOwner(diskName);
+        if (forwarded != null) {
+            return forwarded;
+        }
         try {
-            String uri = uriInfo.getRequestUri().toString();
-            LOGGER.info("getFileList: uri=\"{}\"", uri);
-            uri = convertDiskUriToFileUriPrefix(uri, diskName);
-            LOGGER.info("getFileList: now uri=\"{}\"", uri);
-            String json = FileAccessor.getJsonUrlList(uri, diskName);
-            return Response.ok(json, "application/json")
+            String fileUriPrefix = getFileUriPrefix(diskName);
+            LOGGER.info("getFileList: fileUriPrefix=\"{}\"", fileUriPrefix);
+            DiskIndex diskIndex = FileAccessor.getDiskIndex(diskName);   // may throw exception
+            int maxUrls = parseLimit(limit, Integer.MAX_VALUE, 1);
+            String after = FileAccessor.decodeCursor(cursor);
+            Compression.Encoding encoding = FileAccessor.getCompression().negotiateStream(request.getHeader("Accept-Encoding"));
+            EntityTag entityTag = new EntityTag(diskIndex.getVersion() + '.'
+                                                + Integer.toHexString(Objects.hash(fileUriPrefix, after, maxUrls))
+                                                + ((encoding == null) ? "" : '-' + encoding.token));
+            Response.ResponseBuilder notModified = jaxrsRequest.evaluatePreconditions(entityTag);
+            if (notModified != null) {
+                return notModified
+                        .tag(entityTag)
+                        .header("Vary", "Accept-Encoding")
+                        .header("Cache-Control", LIST_CACHE_CONTROL)
+                        .header("Access-Control-Allow-Origin", "*")
+                        .build();
+            }
+            StreamingOutput stream = out -> FileAccessor.writeJsonUrlList(out, fileUriPrefix, diskIndex, after, maxUrls);
+            return compressed(Response.ok(stream, "application/json"), encoding)
+                    .tag(entityTag)
+                    .header("Cache-Control", LIST_CACHE_CONTROL)
                     .header("Access-Control-Allow-Origin", "*")
                     .build();
         } catch (IllegalArgumentException ex) {
@@ -116,6 +210,208 @@ public class FileAccessorRESTService {
         }
     }
 
+    /**
+     * A GET operation searches the files of a disk, without walking the disk and without listing all of it:
+     *     http://localhost:8080/FileAccessService/api/fileAccessor/search/NameOfDisk?glob=**&#47;IMG_*.jpg&minSize=1000000
+     * The query parameters, all optional, are:
+     *     prefix          the start of the relative path, such as "Trip 012/"
+     *     glob            a glob the whole relative path must match; '*' and '?' do not match '/', "**" does,
+     *                     and "**&#47;" matches any number of directories, including none
+     *     ext             a comma-separated list of extensions, such as "jpg,jpeg", in any case
+     *     minSize         the smallest size, in bytes
+     *     maxSize         the largest size, in bytes
+     *     modifiedAfter   the earliest modification time, as an ISO-8601 instant (2019-08-01T00:00:00Z) or epoch millis
+     *     modifiedBefore  the time files must have been modified before, in the same forms
+     *     limit           the most files to return (default 1000)
+     *     cursor          the nextCursor value from the previous page
+     *
+     * Returns JSON of the form:
+     *     { "disk" : "NameOfDisk",
+     *       "files" : [ { "path" : "a/IMG_0001.jpg", "url" : url1, "size" : 5242880, "lastModified" : 1564617600000 },
+     *                   ... ],
+     *       "nextCursor" : "opaqueString" }
+     * in the order of fileList, with nextCursor present only if more files may match.
+     *
+     * Searches run against a compact copy of the disk's index (see PathSearchIndex), which is refreshed
+     * at most once a second while the disk changes. The response has an ETag derived from the version
+     * of that copy and the query, as fileList's has.
+     *
+     * @return the Response
+     */
+    @GET
+    @Path("search/{diskName}")
+    public Response search(@PathParam("diskName") String diskName,
+                           @QueryParam("prefix") String prefix, @QueryParam("glob") String glob,
+                           @QueryParam("ext") String extensions,
+                           @QueryParam("minSize") String minSize, @QueryParam("maxSize") String maxSize,
+                           @QueryParam("modifiedAfter") String modifiedAfter,
+                           @QueryParam("modifiedBefore") String modifiedBefore,
+                           @QueryParam("limit") String limit, @QueryParam("cursor") String cursor) {
+        LOGGER.info("search: diskName=\"{}\" prefix=\"{}\" glob=\"{}\" ext=\"{}\"", diskName, prefix, glob, extensions);
+        Response forwarded = forwardToOwner(diskName);
+        if (forwarded != null) {
+            return forwarded;
+        }
+        try {
+            DiskIndex diskIndex = FileAccessor.getDiskIndex(diskName);   // may throw exception
+            PathSearchIndex.Query query = PathSearchIndex.Query.parse(prefix, glob, extensions, minSize, maxSize,
+                                                                      modifiedAfter, modifiedBefore);
+            int maxFiles = parseLimit(limit, 1000, 1);
+            String after = FileAccessor.decodeCursor(cursor);
+            String fileUriPrefix = getFileUriPrefix(diskName);
+            PathSearchIndex searchIndex = diskIndex.getSearchIndex();
+            Compression.Encoding encoding = FileAccessor.getCompression().negotiateStream(request.getHeader("Accept-Encoding"));
+            EntityTag entityTag = new EntityTag(searchIndex.version + '.'
+                                                + Integer.toHexString(Objects.hash(fileUriPrefix, prefix, glob, extensions,
+                                                                                   minSize, maxSize, modifiedAfter,
+                                                                                   modifiedBefore, after, maxFiles))
+                                                + ((encoding == null) ? "" : '-' + encoding.token));
+            Response.ResponseBuilder notModified = jaxrsRequest.evaluatePreconditions(entityTag);
+            if (notModified != null) {
+                return notModified
+                        .tag(entityTag)
+                        .header("Vary", "Accept-Encoding")
+                        .header("Cache-Control", LIST_CACHE_CONTROL)
+                        .header("Access-Control-Allow-Origin", "*")
+                        .build();
+            }
+            StreamingOutput stream = out -> {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                FileAccessor.writeJsonSearchResults(writer, fileUriPrefix, searchIndex, query, after, maxFiles);
+            };
+            return compressed(Response.ok(stream, "application/json"), encoding)
+                    .tag(entityTag)
+                    .header("Cache-Control", LIST_CACHE_CONTROL)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (IllegalArgumentException ex) {
+            return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), ex.getMessage())
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (DiskNotFoundException ex) {
+            String message = "Disk not found: " + ex.getMessage();
+            return Response.status(Response.Status.NOT_FOUND.getStatusCode(), message)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (FileNotFoundException ex) {
+            String message = "Directory not found: " + ex.getMessage();
+            return Response.status(Response.Status.NOT_FOUND.getStatusCode(), message)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (NotDirectoryException ex) {
+            String message = "Not a directory: " + ex.getMessage();
+            return Response.status(Response.Status.NOT_ACCEPTABLE.getStatusCode(), message)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (NotReadableException ex) {
+            String message = "Read access denied: " + ex.getMessage();
+            return Response.status(Response.Status.FORBIDDEN.getStatusCode(), message)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (Exception ex) {
+            LOGGER.error("search: {}", ex.toString(), ex);
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), ex.getMessage())
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        }
+    }
+
+    /**
+     * A GET operation lists the top directory of a disk; see listDirectory() below.
+     */
+    @GET
+    @Path("dir/{diskName}")
+    public Response listTopDirectory(@PathParam("diskName") String diskName) {
+        return listDirectory(diskName, "");
+    }
+
+    /**
+     * A GET operation lists the immediate children of one directory of a disk, for browsing a disk a directory
+     * at a time rather than listing all of it:
+     *     http://localhost:8080/FileAccessService/api/fileAccessor/dir/NameOfDisk/directories/of/interest
+     *
+     * Returns JSON of the form:
+     *     { "disk" : "NameOfDisk", "path" : "directories/of/interest",
+     *       "directories" : [ { "name" : "sub", "url" : dirUrl1, "lastModified" : 1564617600000 }, ... ],
+     *       "files" : [ { "name" : "IMG_0001.jpg", "url" : fileUrl1, "size" : 5242880, "lastModified" : 1564617600000 },
+     *                   ... ] }
+     * Each directory URL lists that subdirectory; each file URL reads that file. Both lists are sorted by name.
+     *
+     * Listings are cached (see DirectoryListingCache) until something in the directory changes, and the response
+     * has an ETag that changes when the listing is read again, so a client that sends it back in an
+     * If-None-Match header gets a 304 (Not Modified) until then.
+     *
+     * @param diskName the name of the disk
+     * @param relativePath the path of the directory on the disk
+     *
+     * @return the Response
+     */
+    @GET
+    @Path("dir/{diskName}/{relativePath: .*}")
+    public Response listDirectory(@PathParam("diskName") String diskName, @PathParam("relativePath") String relativePath) {
+        LOGGER.info("listDirectory: diskName=\"{}\" relativePath=\"{}\"", diskName, relativePath);
+        Response forwarded = forwardToOwner(diskName);
+        if (forwarded != null) {
+            return forwarded;
+        }
+        try {
+            DirectoryListingCache.Listing listing = FileAccessor.getDirectoryListing(diskName, relativePath);   // may throw exception
+            String serviceUri = uriInfo.getBaseUriBuilder().path(FileAccessorRESTService.class).build().toString();
+            String directoryUri = serviceUri + "/dir/" + encode(diskName);
+            String fileUri = serviceUri + "/file/" + encode(diskName);
+            Compression.Encoding encoding = FileAccessor.getCompression().negotiateStream(request.getHeader("Accept-Encoding"));
+            EntityTag entityTag = new EntityTag(listing.entityTag + '.' + Integer.toHexString(serviceUri.hashCode())
+                                                + ((encoding == null) ? "" : '-' + encoding.token));
+            Response.ResponseBuilder notModified = jaxrsRequest.evaluatePreconditions(entityTag);
+            if (notModified != null) {
+                return notModified
+                        .tag(entityTag)
+                        .header("Vary", "Accept-Encoding")
+                        .header("Cache-Control", LIST_CACHE_CONTROL)
+                        .header("Access-Control-Allow-Origin", "*")
+                        .build();
+            }
+            StreamingOutput stream = out -> {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                FileAccessor.writeJsonDirectoryListing(writer, directoryUri, fileUri, diskName, listing);
+            };
+            return compressed(Response.ok(stream, "application/json"), encoding)
+                    .tag(entityTag)
+                    .header("Cache-Control", LIST_CACHE_CONTROL)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (IllegalArgumentException ex) {
+            return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), ex.getMessage())
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (DiskNotFoundException ex) {
+            String message = "Disk not found: " + ex.getMessage();
+            return Response.status(Response.Status.NOT_FOUND.getStatusCode(), message)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (FileNotFoundException ex) {
+            String message = "Directory not found: " + ex.getMessage();
+            return Response.status(Response.Status.NOT_FOUND.getStatusCode(), message)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (NotDirectoryException ex) {
+            String message = "Not a directory: " + ex.getMessage();
+            return Response.status(Response.Status.NOT_ACCEPTABLE.getStatusCode(), message)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (NotReadableException ex) {
+            String message = "Read access denied: " + ex.getMessage();
+            return Response.status(Response.Status.FORBIDDEN.getStatusCode(), message)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (Exception ex) {
+            LOGGER.error("listDirectory: {}", ex.toString(), ex);
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), ex.getMessage())
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        }
+    }
+
     /**
      * A GET operation can be used to obtain the bytes of a file, as a data stream.
      * The URL for the file should be of the following form:
@@ -128,6 +424,14 @@ public class FileAccessorRESTService {
      *
      * Returns the bytes of the specified file, as a data stream.
      *
+     * Responses carry ETag, Last-Modified and Cache-Control headers. A request whose If-None-Match
+     * (or, failing that, If-Modified-Since) header matches the current version of the file gets a 304
+     * (Not Modified) without the file being opened.
+     *
+     * If the disk is in a parity group and the file (or the whole disk) is missing, the file is rebuilt
+     * from the group's other disks and parity, if it can be (see ParityReconstruction), and sent with an
+     * X-Reconstructed-From-Parity header naming the group.
+     *
      * @param diskName the name of the disk
      * @param relativePath the path to the file on the disk
      *
@@ -137,23 +441,119 @@ public class FileAccessorRESTService {
     @Path("file/{diskName}/{relativePath: .*}")
     public Response readFile(@PathParam("diskName") String diskName, @PathParam("relativePath") String relativePath) {
         LOGGER.info("readFile: diskName=\"{}\" relativePath=\"{}\"", diskName, relativePath);
+        Response forwarded = forwardToOwner(diskName);
+        if (forwarded != null) {
+            return forwarded;
+        }
         try {
-            if (isPaused()) {
-                LOGGER.info("readFile: paused");
-                return Response.status(Response.Status.SERVICE_UNAVAILABLE.getStatusCode(), "paused")
+            AdmissionController.Permit permit = admission.acquire(diskName);   // may throw exception
+            request.setAttribute(AdmissionController.PERMIT_PROPERTY, permit);   // released when the response is done
+            Disk disk;
+            FileMetadataCache.Entry metadata;
+            try {
+                disk = FileAccessor.getDisk(diskName);   // may throw exception
+                metadata = FileAccessor.getFileMetadata(disk, relativePath);   // may throw exception
+            } catch (DiskNotFoundException | FileNotFoundException | NotDirectoryException ex) {
+                ParityReconstruction reconstruction = FileAccessor.getParityEngine().reconstruct(diskName, relativePath);
+                if (reconstruction == null) {
+                    throw ex;
+                }
+                return readReconstructedFile(reconstruction);
+            }
+            long length = metadata.size;
+            String mediaType = metadata.mediaType;
+            String vary = Compression.isCompressible(mediaType) ? "Accept-Encoding" : null;   // null: no Vary header
+            Compression.Variant variant = (request.getHeader("Range") == null)
+                    ? FileAccessor.getCompression().select(disk, relativePath, metadata, request.getHeader("Accept-Encoding"))
+                    : null;
+            if (variant != null) {
+                permit.whenReleased(() -> FileAccessor.getCompression().release(variant));   // once it has been sent
+            }
+            EntityTag entityTag = new EntityTag((variant == null) ? metadata.entityTag : variant.entityTag);
+            Date lastModified = new Date(metadata.lastModified);
+            Response.ResponseBuilder notModified = jaxrsRequest.evaluatePreconditions(lastModified, entityTag);
+            if (notModified != null) {
+                return notModified
+                        .tag(entityTag)
+                        .lastModified(lastModified)
+                        .header("Vary", vary)
+                        .header("Cache-Control", FILE_CACHE_CONTROL)
+                        .header("Access-Control-Allow-Origin", "*")
+                        .build();
+            }
+            if (variant != null) {
+                FileAccessor.getCompression().recordSent(variant, length);
+                FileSender.DirectOutput stream = fileRangeOutput(disk, variant.file, new ByteRange(0, variant.file.size - 1));
+                return Response.ok(stream, mediaType)
+                        .header("Content-Length", variant.file.size)
+                        .header("Content-Encoding", variant.encoding.token)
+                        .header("Accept-Ranges", "bytes")
+                        .tag(entityTag)
+                        .lastModified(lastModified)
+                        .header("Vary", vary)
+                        .header("Cache-Control", FILE_CACHE_CONTROL)
+                        .header("Access-Control-Allow-Origin", "*")
+                        .build();
+            }
+            List<ByteRange> ranges = getRequestedRanges(length, metadata);
+            if (ranges == null) {
+                FileSender.DirectOutput stream = fileRangeOutput(disk, metadata, new ByteRange(0, length - 1));
+                return Response.ok(stream, mediaType)
+                        .header("Content-Length", length)
+                        .header("Accept-Ranges", "bytes")
+                        .tag(entityTag)
+                        .lastModified(lastModified)
+                        .header("Vary", vary)
+                        .header("Cache-Control", FILE_CACHE_CONTROL)
+                        .header("Access-Control-Allow-Origin", "*")
+                        .build();
+            }
+            if (ranges.isEmpty()) {
+                return Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+                        .header("Content-Range", "bytes */" + length)
+                        .header("Accept-Ranges", "bytes")
                         .header("Access-Control-Allow-Origin", "*")
                         .build();
             }
-            String filePath = FileAccessor.getFilePath(diskName, relativePath);   // may throw exception
+            if (ranges.size() == 1) {
+                ByteRange range = ranges.get(0);
+                FileSender.DirectOutput stream = fileRangeOutput(disk, metadata, range);
+                return Response.status(Response.Status.PARTIAL_CONTENT)
+                        .entity(stream)
+                        .type(mediaType)
+                        .header("Content-Length", range.length())
+                        .header("Content-Range", range.contentRange(length))
+                        .header("Accept-Ranges", "bytes")
+                        .tag(entityTag)
+                        .lastModified(lastModified)
+                        .header("Cache-Control", FILE_CACHE_CONTROL)
+                        .header("Access-Control-Allow-Origin", "*")
+                        .build();
+            }
+            String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
             StreamingOutput stream = out -> {
                 try {
-                    FileAccessor.copyFileToOutputStream(filePath, out);
+                    disk.stats.recordRead(FileAccessor.copyFileRangesToOutputStream(metadata, ranges, mediaType, boundary, out));
                 } catch (Exception e) {
-                    e.printStackTrace();
+                    disk.stats.recordReadError();
+                    LOGGER.warn("readFile: {}: {}", metadata.filePath, e.toString());
                     throw e;
                 }
             };
-            return Response.ok(stream, getMediaType(filePath))
+            return Response.status(Response.Status.PARTIAL_CONTENT)
+                    .entity(stream)
+                    .type("multipart/byteranges; boundary=" + boundary)
+                    .header("Content-Length", ByteRange.multipartLength(boundary, mediaType, ranges, length))
+                    .header("Accept-Ranges", "bytes")
+                    .tag(entityTag)
+                    .lastModified(lastModified)
+                    .header("Cache-Control", FILE_CACHE_CONTROL)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (NotAdmittedException ex) {
+            LOGGER.info("readFile: not admitted: {}", ex.getMessage());
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE.getStatusCode(), ex.getMessage())
+                    .header("Retry-After", ex.getRetryAfterSeconds())
                     .header("Access-Control-Allow-Origin", "*")
                     .build();
         } catch (IllegalArgumentException ex) {
@@ -195,47 +595,184 @@ public class FileAccessorRESTService {
     }
 
     /**
-     * A POST operation can be used to create a new disk. The name of the disk is specified
-     * in the URL, while the associated directory is specified as a plain text payload. So, for example:
-     * curl -X POST -H "Content-Type: text/plain" --data "/Users/ron/Documents/Wedding Photos/JulianaWedding" \
-     *     http://localhost:8090/FileAccessService/api/fileAccessor/newDisk/NewDiskName
+     * Returns the response to readFile() for a file that is being rebuilt from parity: all of it, or a single range.
+     * (Several ranges are answered with the whole file.)
+     */
+    private Response readReconstructedFile(ParityReconstruction reconstruction) {
+        FileMetadataCache.Entry metadata = reconstruction.metadata;
+        long length = metadata.size;
+        EntityTag entityTag = new EntityTag(metadata.entityTag);
+        Date lastModified = new Date(metadata.lastModified);
+        Response.ResponseBuilder notModified = jaxrsRequest.evaluatePreconditions(lastModified, entityTag);
+        if (notModified != null) {
+            return notModified
+                    .tag(entityTag)
+                    .lastModified(lastModified)
+                    .header("Cache-Control", FILE_CACHE_CONTROL)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        }
+        List<ByteRange> ranges = getRequestedRanges(length, metadata);
+        if ((ranges != null) && ranges.isEmpty()) {
+            return Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+                    .header("Content-Range", "bytes */" + length)
+                    .header("Accept-Ranges", "bytes")
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        }
+        boolean partial = (ranges != null) && (ranges.size() == 1);
+        ByteRange range = partial ? ranges.get(0) : new ByteRange(0, length - 1);
+        StreamingOutput stream = out -> reconstruction.copyTo(range, out);
+        Response.ResponseBuilder builder = partial
+                ? Response.status(Response.Status.PARTIAL_CONTENT).entity(stream).type(metadata.mediaType)
+                          .header("Content-Range", range.contentRange(length))
+                : Response.ok(stream, metadata.mediaType);
+        return builder
+                .header("Content-Length", range.length())
+                .header("Accept-Ranges", "bytes")
+                .tag(entityTag)
+                .lastModified(lastModified)
+                .header("Cache-Control", FILE_CACHE_CONTROL)
+                .header("X-Reconstructed-From-Parity", reconstruction.group.name)
+                .header("Access-Control-Allow-Origin", "*")
+                .build();
+    }
+
+    /**
+     * Returns the entity that sends one range of a file (or all of it). Where it can, it sends the content
+     * without blocking (see FileSender.startAsync()), so the request thread is free as soon as the
+     * headers are written, however slowly the client reads; otherwise it copies the content to the
+     * response before returning.
+     */
+    private FileSender.DirectOutput fileRangeOutput(Disk disk, FileMetadataCache.Entry metadata, ByteRange range) {
+        return out -> {
+            FileSender.AsyncSend send = FileSender.startAsync(request, response);
+            if (send != null) {
+                send.whenDone(() -> {
+                    if (send.isFailed()) {
+                        disk.stats.recordReadError();
+                    } else {
+                        disk.stats.recordRead(range.length());
+                    }
+                });
+                FileAccessor.sendFileRange(metadata, range, send);
+                return;
+            }
+            try {
+                disk.stats.recordRead(FileAccessor.copyFileRangeToOutputStream(metadata, range,
+                                                                               FileSender.directOutput(out, request, response)));
+            } catch (Exception e) {
+                disk.stats.recordReadError();
+                LOGGER.warn("fileRangeOutput: {}: {}", metadata.filePath, e.toString());
+                throw e;
+            }
+        };
+    }
+
+    /**
+     * A GET operation can be used to obtain a reduced copy (thumbnail) of an image file.
+     * The URL is that of the file (see readFile), with thumb in place of file, plus the size to fit within:
+     *     http://localhost:8080/FileAccessService/api/fileAccessor/thumb/NameOfDisk/directories/filename.jpg?w=200&h=200
+     * Either w or h may be left out. The image keeps its proportions, and is never enlarged.
      *
-     * @param diskName the name of the virtual disk to be created
-     * @param top the top directory of this virtual disk.
+     * Returns the thumbnail, as a JPEG, or a PNG for PNG and GIF images (or as asked with format=jpeg
+     * or format=png). Thumbnails are made once and kept (see Thumbnails). Like files, they carry
+     * ETag, Last-Modified and Cache-Control headers, and a conditional request for an unchanged image
+     * gets a 304 (Not Modified) without the thumbnail being looked up.
+     *
+     * @param diskName the name of the disk
+     * @param relativePath the path to the image on the disk
+     * @param width the width to fit within (optional)
+     * @param height the height to fit within (optional)
+     * @param format jpeg or png (optional)
      *
      * @return the Response
      */
-    @POST
-    @Path("newDisk/{diskName}")
-    @Consumes(MediaType.TEXT_PLAIN)
-    public Response setDisk(@PathParam("diskName") String diskName, String top) {
-        LOGGER.info("newDisk: diskname=\"" + diskName + "\" top=\"" + top + "\"");
+    @GET
+    @Path("thumb/{diskName}/{relativePath: .*}")
+    public Response readThumbnail(@PathParam("diskName") String diskName, @PathParam("relativePath") String relativePath,
+                                  @QueryParam("w") String width, @QueryParam("h") String height,
+                                  @QueryParam("format") String format) {
+        LOGGER.info("readThumbnail: diskName=\"{}\" relativePath=\"{}\" w={} h={}", diskName, relativePath, width, height);
+        Response forwarded = forwardToOwner(diskName);
+        if (forwarded != null) {
+            return forwarded;
+        }
         try {
-            FileAccessor.addNewDisk(diskName, top);
-            return Response.ok()
+            int fitWidth = parseIntParameter("w", width, 0, 1, Integer.MAX_VALUE);   // 0: not given
+            int fitHeight = parseIntParameter("h", height, 0, 1, Integer.MAX_VALUE);
+            thumbnails.checkSize(fitWidth, fitHeight);
+            Thumbnails.Format requestedFormat = Thumbnails.Format.parse(format);
+            Disk disk = FileAccessor.getDisk(diskName);   // may throw exception
+            AdmissionController.Permit permit = admission.acquire(diskName);   // may throw exception
+            request.setAttribute(AdmissionController.PERMIT_PROPERTY, permit);   // released when the response is done
+            FileMetadataCache.Entry metadata = FileAccessor.getFileMetadata(disk, relativePath);   // may throw exception
+            Thumbnails.Format thumbnailFormat = (requestedFormat == null)
+                    ? Thumbnails.Format.forSource(metadata.mediaType) : requestedFormat;
+            EntityTag entityTag = new EntityTag(Thumbnails.entityTag(metadata, fitWidth, fitHeight, thumbnailFormat));
+            Date lastModified = new Date(metadata.lastModified);
+            Response.ResponseBuilder notModified = jaxrsRequest.evaluatePreconditions(lastModified, entityTag);
+            if (notModified != null) {
+                return notModified
+                        .tag(entityTag)
+                        .lastModified(lastModified)
+                        .header("Cache-Control", FILE_CACHE_CONTROL)
+                        .header("Access-Control-Allow-Origin", "*")
+                        .build();
+            }
+            FileMetadataCache.Entry thumbnail = thumbnails.get(metadata, fitWidth, fitHeight, thumbnailFormat);
+            permit.whenReleased(() -> thumbnails.unpin(thumbnail));   // kept until it has been sent
+            FileSender.DirectOutput stream = fileRangeOutput(disk, thumbnail, new ByteRange(0, thumbnail.size - 1));
+            return Response.ok(stream, thumbnail.mediaType)
+                    .header("Content-Length", thumbnail.size)
+                    .tag(entityTag)
+                    .lastModified(lastModified)
+                    .header("Cache-Control", FILE_CACHE_CONTROL)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (NotAdmittedException ex) {
+            LOGGER.info("readThumbnail: not admitted: {}", ex.getMessage());
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE.getStatusCode(), ex.getMessage())
+                    .header("Retry-After", ex.getRetryAfterSeconds())
                     .header("Access-Control-Allow-Origin", "*")
                     .build();
         } catch (IllegalArgumentException ex) {
             return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), ex.getMessage())
                     .header("Access-Control-Allow-Origin", "*")
                     .build();
+        } catch (DiskNotFoundException ex) {
+            String message = "Disk not found: " + ex.getMessage();
+            return Response.status(Response.Status.NOT_FOUND.getStatusCode(), message)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
         } catch (FileNotFoundException ex) {
-            String message = "Directory not found: " + ex.getMessage();
+            String message = "File not found: " + ex.getMessage();
             return Response.status(Response.Status.NOT_FOUND.getStatusCode(), message)
                     .header("Access-Control-Allow-Origin", "*")
                     .build();
-        } catch (NotDirectoryException ex) {
-            String message = "Not a directory: " + ex.getMessage();
+        } catch (NotFileException ex) {
+            String message = "Not a regular file: " + ex.getMessage();
             return Response.status(Response.Status.NOT_ACCEPTABLE.getStatusCode(), message)
                     .header("Access-Control-Allow-Origin", "*")
                     .build();
+        } catch (NotImageException ex) {
+            String message = "Not an image that can be read: " + ex.getMessage();
+            return Response.status(Response.Status.UNSUPPORTED_MEDIA_TYPE.getStatusCode(), message)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
         } catch (NotReadableException ex) {
             String message = "Read access denied: " + ex.getMessage();
             return Response.status(Response.Status.FORBIDDEN.getStatusCode(), message)
                     .header("Access-Control-Allow-Origin", "*")
                     .build();
+        } catch (IOException ex) {
+            String message = "I/O exception: " + ex.getMessage();
+            LOGGER.warn("readThumbnail: {}", message, ex);
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), message)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
         } catch (Exception ex) {
-            System.err.println(ex.getMessage());
+            LOGGER.error("readThumbnail: {}", ex.toString(), ex);
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), ex.getMessage())
                     .header("Access-Control-Allow-Origin", "*")
                     .build();
@@ -243,21 +780,104 @@ public class FileAccessorRESTService {
     }
 
     /**
-     * A GET operation can be used to obtain a list of disks on the this server.
-     * This list can be retrieved with a URL like this:
-     *     http://localhost:8080/FileAccessService/api/fileAccessor/diskList
+     * A POST operation can be used to read many files of a disk in one response. The files are listed
+     * in a plain text payload, one per line, each as the %-encoded relative path that follows the disk name
+     * in the file's URL (see fileList). For example:
+     * curl -X POST -H "Content-Type: text/plain" --data-binary @files.txt \
+     *     http://localhost:8090/FileAccessService/api/fileAccessor/batch/NameOfDisk?format=tar
+     *
+     * Returns the files, in the order listed, as a multipart/mixed body (the default), with one part per file
+     * whose Content-Location header holds its relative path; or, with format=tar, as a tar archive.
+     * Files that cannot be read are left out, and counted in the X-Batch-Skipped header.
+     *
+     * @param diskName the name of the disk
+     * @param format multipart or tar (optional)
+     * @param fileList the relative paths of the files, one per line
+     *
+     * @return the Response
+     */
+    @POST
+    @Path("batch/{diskName}")
+    @Consumes(MediaType.TEXT_PLAIN)
+    public Response fetchBatch(@PathParam("diskName") String diskName, @QueryParam("format") String format,
+                               String fileList) {
+        LOGGER.info("fetchBatch: diskName=\"{}\" format={}", diskName, format);
+        Response forwarded = forwardToOwner(diskName, fileList);
+        if (forwarded != null) {
+            return forwarded;
+        }
+        try {
+            return batchResponse(diskName, batchFetcher.parseFileList(fileList), format);
+        } catch (IllegalArgumentException ex) {
+            return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), ex.getMessage())
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        }
+    }
+
+    /**
+     * A GET operation can be used to read the files of a manifest saved with the manifest operation below,
+     * in the same way as the POST operation above:
+     *     http://localhost:8080/FileAccessService/api/fileAccessor/batch/NameOfDisk/manifestId?format=tar
+     * Manifests are kept in memory, and old ones are dropped, so a client that gets a 404 (Not Found)
+     * should save its manifest again.
+     *
+     * @param diskName the name of the disk
+     * @param manifestId the ID returned when the manifest was saved
+     * @param format multipart or tar (optional)
+     *
+     * @return the Response
+     */
+    @GET
+    @Path("batch/{diskName}/{manifestId}")
+    public Response fetchManifest(@PathParam("diskName") String diskName, @PathParam("manifestId") String manifestId,
+                                  @QueryParam("format") String format) {
+        LOGGER.info("fetchManifest: diskName=\"{}\" manifestId=\"{}\" format={}", diskName, manifestId, format);
+        Response forwarded = forwardToOwner(diskName);
+        if (forwarded != null) {
+            return forwarded;
+        }
+        BatchFetcher.Manifest manifest = batchFetcher.getManifest(diskName, manifestId);
+        if (manifest == null) {
+            String message = "Manifest not found: " + manifestId;
+            return Response.status(Response.Status.NOT_FOUND.getStatusCode(), message)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        }
+        return batchResponse(diskName, manifest.relativePaths, format);
+    }
+
+    /**
+     * A POST operation can be used to save a list of files of a disk as a manifest, which can then be
+     * read with a GET of the batch operation. The list is given as for the POST of the batch operation:
+     * curl -X POST -H "Content-Type: text/plain" --data-binary @files.txt \
+     *     http://localhost:8090/FileAccessService/api/fileAccessor/manifest/NameOfDisk
      *
      * Returns JSON of the form:
-     *     { "disks" : [ diskName1, diskName2 diskName3, ... ] }
+     *     { "manifest" : "manifestId", "files" : count, "url" : "http://.../batch/NameOfDisk/manifestId" }
+     * Saving the same list again returns the same ID.
+     *
+     * @param diskName the name of the disk
+     * @param fileList the relative paths of the files, one per line
      *
      * @return the Response. And hopefully, a JSON string.
      */
-    @GET
-    @Path("diskList")
-    public Response getDiskList() {
-        LOGGER.info("getDiskList()");
+    @POST
+    @Path("manifest/{diskName}")
+    @Consumes(MediaType.TEXT_PLAIN)
+    public Response saveManifest(@PathParam("diskName") String diskName, String fileList) {
+        LOGGER.info("saveManifest: diskName=\"{}\"", diskName);
+        Response forwarded = forwardToOwner(diskName, fileList);
+        if (forwarded != null) {
+            return forwarded;
+        }
         try {
-            String json = FileAccessor.getDiskList();
+            FileAccessor.getDisk(diskName);   // may throw exception
+            BatchFetcher.Manifest manifest = batchFetcher.saveManifest(diskName, batchFetcher.parseFileList(fileList));
+            String url = uriInfo.getBaseUriBuilder().path(FileAccessorRESTService.class).path("batch")
+                    .build().toString() + '/' + encode(diskName) + '/' + manifest.id;
+            String json = "{ \"manifest\" : \"" + manifest.id + "\", \"files\" : " + manifest.relativePaths.size()
+                          + ", \"url\" : \"" + url + "\" }\n";
             return Response.ok(json, "application/json")
                     .header("Access-Control-Allow-Origin", "*")
                     .build();
@@ -265,20 +885,485 @@ public class FileAccessorRESTService {
             return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), ex.getMessage())
                     .header("Access-Control-Allow-Origin", "*")
                     .build();
+        } catch (DiskNotFoundException ex) {
+            String message = "Disk not found: " + ex.getMessage();
+            return Response.status(Response.Status.NOT_FOUND.getStatusCode(), message)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
         } catch (Exception ex) {
-            System.err.println(ex.getMessage());
+            LOGGER.error("saveManifest: {}", ex.toString(), ex);
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), ex.getMessage())
                     .header("Access-Control-Allow-Origin", "*")
                     .build();
         }
     }
 
-    @GET
-    @Path("pause")
-    public Response pause() {
+    private Response batchResponse(String diskName, List<String> relativePaths, String formatName) {
+        try {
+            BatchFetcher.Format format = BatchFetcher.Format.parse(formatName);   // may throw exception
+            Disk disk = FileAccessor.getDisk(diskName);   // may throw exception
+            AdmissionController.Permit permit = admission.acquire(diskName);   // may throw exception
+            request.setAttribute(AdmissionController.PERMIT_PROPERTY, permit);   // released when the response is done
+            BatchFetcher.Batch batch = batchFetcher.prepare(disk, relativePaths);
+            String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+            StreamingOutput stream = out -> batch.write(format, boundary, out);
+            Response.ResponseBuilder builder = Response.ok(stream, format.contentType(boundary))
+                    .header("Content-Length", batch.length(format, boundary))
+                    .header("X-Batch-Files", batch.parts.size())
+                    .header("X-Batch-Skipped", batch.skipped)
+                    .header("Cache-Control", FILE_CACHE_CONTROL)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .header("Access-Control-Expose-Headers", "X-Batch-Files, X-Batch-Skipped");
+            if (format == BatchFetcher.Format.TAR) {
+                builder.header("Content-Disposition", "attachment; filename=\"" + diskName.replace('"', '_') + ".tar\"");
+            }
+            return builder.build();
+        } catch (NotAdmittedException ex) {
+            LOGGER.info("batchResponse: not admitted: {}", ex.getMessage());
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE.getStatusCode(), ex.getMessage())
+                    .header("Retry-After", ex.getRetryAfterSeconds())
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (IllegalArgumentException ex) {
+            return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), ex.getMessage())
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (DiskNotFoundException ex) {
+            String message = "Disk not found: " + ex.getMessage();
+            return Response.status(Response.Status.NOT_FOUND.getStatusCode(), message)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (FileNotFoundException ex) {
+            String message = "Directory not found: " + ex.getMessage();
+            return Response.status(Response.Status.NOT_FOUND.getStatusCode(), message)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (NotDirectoryException ex) {
+            String message = "Not a directory: " + ex.getMessage();
+            return Response.status(Response.Status.NOT_ACCEPTABLE.getStatusCode(), message)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (NotReadableException ex) {
+            String message = "Read access denied: " + ex.getMessage();
+            return Response.status(Response.Status.FORBIDDEN.getStatusCode(), message)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (IOException ex) {
+            String message = "I/O exception: " + ex.getMessage();
+            LOGGER.warn("batchResponse: {}", message, ex);
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), message)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (Exception ex) {
+            LOGGER.error("batchResponse: {}", ex.toString(), ex);
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), ex.getMessage())
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        }
+    }
+
+    /**
+     * A POST operation can be used to create a new disk. The name of the disk is specified
+     * in the URL, while the associated directory is specified as a plain text payload. So, for example:
+     * curl -X POST -H "Content-Type: text/plain" --data "/Users/ron/Documents/Wedding Photos/JulianaWedding" \
+     *     http://localhost:8090/FileAccessService/api/fileAccessor/newDisk/NewDiskName
+     *
+     * In a cluster (see Cluster), a disk placed on a peer is answered with a 307 (Temporary Redirect)
+     * to the peer, where the directory must be found (curl -L follows it, repeating the POST).
+     *
+     * @param diskName the name of the virtual disk to be created
+     * @param top the top directory of this virtual disk.
+     *
+     * @return the Response
+     */
+    @POST
+    @Path("newDisk/{diskName}")
+    @Consumes(MediaType.TEXT_PLAIN)
+    public Response setDisk(@PathParam("diskName") String diskName, String top) {
+        LOGGER.info("newDisk: diskname=\"" + diskName + "\" top=\"" + top + "\"");
+        String peer = cluster.getPeerFor(diskName, request);
+        if (peer != null) {
+            return cluster.redirect(peer, request);   // the disk is placed on a peer (see Cluster)
+        }
+        try {
+            FileAccessor.addNewDisk(diskName, top);
+            return Response.ok()
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (IllegalArgumentException ex) {
+            return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), ex.getMessage())
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (FileNotFoundException ex) {
+            String message = "Directory not found: " + ex.getMessage();
+            return Response.status(Response.Status.NOT_FOUND.getStatusCode(), message)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (NotDirectoryException ex) {
+            String message = "Not a directory: " + ex.getMessage();
+            return Response.status(Response.Status.NOT_ACCEPTABLE.getStatusCode(), message)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (NotReadableException ex) {
+            String message = "Read access denied: " + ex.getMessage();
+            return Response.status(Response.Status.FORBIDDEN.getStatusCode(), message)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (Exception ex) {
+            System.err.println(ex.getMessage());
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), ex.getMessage())
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        }
+    }
+
+    /**
+     * A POST operation can be used to remove a disk, so that its files can no longer be listed or read.
+     * Requests already being served are not affected. For example:
+     * curl -X POST http://localhost:8090/FileAccessService/api/fileAccessor/removeDisk/NameOfDisk
+     *
+     * @param diskName the name of the virtual disk to be removed
+     *
+     * @return the Response
+     */
+    @POST
+    @Path("removeDisk/{diskName}")
+    public Response removeDisk(@PathParam("diskName") String diskName) {
+        LOGGER.info("removeDisk: diskname=\"" + diskName + "\"");
+        try {
+            FileAccessor.removeDisk(diskName);
+            return Response.ok()
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (IllegalArgumentException ex) {
+            return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), ex.getMessage())
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (DiskNotFoundException ex) {
+            String message = "Disk not found: " + ex.getMessage();
+            return Response.status(Response.Status.NOT_FOUND.getStatusCode(), message)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (Exception ex) {
+            System.err.println(ex.getMessage());
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), ex.getMessage())
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        }
+    }
+
+    /**
+     * A GET operation returns the files of a disk that have the same content as other files, on this disk or
+     * any other, as found by hashing the files in the background (see ContentHashIndex):
+     *     http://localhost:8080/FileAccessService/api/fileAccessor/dupes/NameOfDisk?limit=100
+     *
+     * Returns JSON of the form:
+     *     { "disk" : "NameOfDisk", "files" : 1200, "hashed" : 1200, "pending" : 0, "scanning" : false,
+     *       "duplicateFiles" : 40, "duplicateSets" : 18, "redundantBytes" : 73400320,
+     *       "duplicates" : [ { "sha256" : "...", "size" : 5242880,
+     *                          "files" : [ { "disk" : "NameOfDisk", "path" : "a/IMG_0001.jpg" }, ... ] }, ... ] }
+     * where redundantBytes is what all but one copy of each set take up, and the sets are largest first.
+     *
+     * @param diskName the name of the disk
+     * @param limit the most sets of duplicates to list (optional; default 1000)
+     *
+     * @return the Response
+     */
+    @GET
+    @Path("dupes/{diskName}")
+    public Response getDuplicates(@PathParam("diskName") String diskName, @QueryParam("limit") String limit) {
+        LOGGER.info("getDuplicates: diskName=\"{}\"", diskName);
+        Response forwarded = forwardToOwner(diskName);
+        if (forwarded != null) {
+            return forwarded;
+        }
+        try {
+            FileAccessor.getDisk(diskName);   // may throw exception
+            int maxSets = parseLimit(limit, 1000, 0);
+            String json = FileAccessor.getContentHashIndex().getDuplicates(diskName, maxSets);
+            Compression.Encoding encoding = FileAccessor.getCompression().negotiateStream(request.getHeader("Accept-Encoding"));
+            return compressed(Response.ok(json, "application/json"), encoding)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (IllegalArgumentException ex) {
+            return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), ex.getMessage())
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (DiskNotFoundException ex) {
+            String message = "Disk not found: " + ex.getMessage();
+            return Response.status(Response.Status.NOT_FOUND.getStatusCode(), message)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (FileNotFoundException ex) {
+            String message = "Directory not found: " + ex.getMessage();
+            return Response.status(Response.Status.NOT_FOUND.getStatusCode(), message)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (Exception ex) {
+            LOGGER.error("getDuplicates: {}", ex.toString(), ex);
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), ex.getMessage())
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        }
+    }
+
+    /**
+     * A GET operation returns the parity groups, and the state of each, as a JSON array of the objects
+     * that parity/{groupName} returns:
+     *     http://localhost:8080/FileAccessService/api/fileAccessor/parityGroups
+     *
+     * @return the Response
+     */
+    @GET
+    @Path("parityGroups")
+    public Response getParityGroups() {
+        LOGGER.info("getParityGroups()");
+        return Response.ok(FileAccessor.getParityEngine().getGroupList(), "application/json")
+                .header("Access-Control-Allow-Origin", "*")
+                .build();
+    }
+
+    /**
+     * A GET operation returns a parity group's configuration and state, as JSON: its disks, number of
+     * parity files, block size, the number of files and stripes it covers and how many stripes have parity
+     * that is not up to date ("dirtyStripes"), the progress of the run in progress, if any, and what the
+     * last run did and how fast it read ("megabytesPerSecond"):
+     *     http://localhost:8080/FileAccessService/api/fileAccessor/parity/GroupName
+     *
+     * @param groupName the name of the parity group
+     *
+     * @return the Response
+     */
+    @GET
+    @Path("parity/{groupName}")
+    public Response getParityStatus(@PathParam("groupName") String groupName) {
+        LOGGER.info("getParityStatus: groupName=\"{}\"", groupName);
+        try {
+            Response forwarded = forwardParity(groupName);
+            if (forwarded != null) {
+                return forwarded;
+            }
+            ParityGroup group = FileAccessor.getParityEngine().getGroup(groupName);
+            return Response.ok(group.getStatus(), "application/json")
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (ParityGroupNotFoundException ex) {
+            return Response.status(Response.Status.NOT_FOUND.getStatusCode(), ex.getMessage())
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        }
+    }
+
+    /**
+     * A POST operation starts computing a parity group's parity: for the files that have been added or have
+     * changed since the last run, or with full=true for every file. Every disk of the group must be available.
+     * The response is 202 (Accepted) with the group's state, and a Location header with the URL to GET the
+     * state from later (see getParityStatus). With wait=true the response waits for the run to finish, for
+     * up to timeoutMillis (default 30 seconds, at most 10 minutes): it is then 200 with the group's state,
+     * or 500 if the run failed; a run still going after that gets the 202. 409 (Conflict) if a run is already
+     * in progress.
+     *     curl -X POST "http://localhost:8080/FileAccessService/api/fileAccessor/parity/GroupName?wait=true"
+     *
+     * @param groupName the name of the parity group
+     * @param full whether to recompute the parity of every file
+     * @param wait whether to wait for the run to finish
+     * @param timeoutMillis how long to wait for it (optional)
+     *
+     * @return the Response
+     */
+    @POST
+    @Path("parity/{groupName}")
+    public Response computeParity(@PathParam("groupName") String groupName,
+                                  @QueryParam("full") boolean full, @QueryParam("wait") boolean wait,
+                                  @QueryParam("timeoutMillis") String timeoutMillis) {
+        LOGGER.info("computeParity: groupName=\"{}\" full={} wait={}", groupName, full, wait);
+        try {
+            Response forwarded = forwardParity(groupName);
+            if (forwarded != null) {
+                return forwarded;
+            }
+            int waitMillis = parseIntParameter("timeoutMillis", timeoutMillis, DEFAULT_PARITY_WAIT_MILLIS, 0,
+                                               MAX_PARITY_WAIT_MILLIS);
+            ParityGroup group = FileAccessor.getParityEngine().getGroup(groupName);
+            URI statusUri = uriInfo.getRequestUriBuilder().replaceQuery(null).build();
+            CompletableFuture<ParityGroup.RunStats> run = group.start(full);
+            if (wait) {
+                try {
+                    run.get(waitMillis, TimeUnit.MILLISECONDS);
+                    return Response.ok(group.getStatus(), "application/json")
+                            .header("Access-Control-Allow-Origin", "*")
+                            .build();
+                } catch (TimeoutException ex) {
+                    // still running
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    Throwable cause = (ex.getCause() instanceof UncheckedIOException) ? ex.getCause().getCause() : ex.getCause();
+                    String message = "Parity run failed: " + cause;
+                    return Response.status(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), message)
+                            .header("Access-Control-Allow-Origin", "*")
+                            .build();
+                }
+            }
+            return Response.status(Response.Status.ACCEPTED.getStatusCode())
+                    .entity(group.getStatus())
+                    .type("application/json")
+                    .location(statusUri)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (IllegalArgumentException ex) {
+            return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), ex.getMessage())
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (ParityGroupNotFoundException ex) {
+            return Response.status(Response.Status.NOT_FOUND.getStatusCode(), ex.getMessage())
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (IllegalStateException ex) {
+            return Response.status(Response.Status.CONFLICT.getStatusCode(), ex.getMessage())
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        }
+    }
+
+    /**
+     * A GET operation can be used to obtain a list of disks on the this server.
+     * This list can be retrieved with a URL like this:
+     *     http://localhost:8080/FileAccessService/api/fileAccessor/diskList
+     *
+     * Returns JSON of the form:
+     *     { "disks" : [ diskName1, diskName2 diskName3, ... ] }
+     *
+     * In a cluster (see Cluster), the disks of every node are listed, the peers being asked in parallel,
+     * and the JSON also says which node has which disks, or why a node could not be asked:
+     *     { "disks" : [ diskName1, diskName2, diskName3, ... ],
+     *       "nodes" : [ { "node" : "http://10.0.0.1:8080", "disks" : [ diskName1, diskName3 ] },
+     *                   { "node" : "http://10.0.0.2:8080", "error" : "java.net.ConnectException: ..." }, ... ] }
+     * With local=true, only the disks of this node are listed, in the first form.
+     *
+     * @param local whether to list only the disks of this node (optional)
+     *
+     * @return the Response. And hopefully, a JSON string.
+     */
+    @GET
+    @Path("diskList")
+    public Response getDiskList(@QueryParam("local") boolean local) {
+        LOGGER.info("getDiskList()");
+        try {
+            String json = (local || !cluster.isEnabled())
+                    ? FileAccessor.getDiskList()
+                    : FileAccessor.getJsonClusterDiskList(cluster.getDiskLists(request.getRequestURI(),
+                                                                                FileAccessor.getDiskNames()));
+            return Response.ok(json, "application/json")
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (IllegalArgumentException ex) {
+            return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), ex.getMessage())
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        } catch (Exception ex) {
+            System.err.println(ex.getMessage());
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), ex.getMessage())
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        }
+    }
+
+    /**
+     * A GET operation describes the cluster this node is in (see Cluster), and where a disk is placed:
+     *     http://localhost:8080/FileAccessService/api/fileAccessor/cluster?disk=NameOfDisk
+     *
+     * Returns JSON of the form:
+     *     { "self" : "http://10.0.0.1:8080", "mode" : "proxy",
+     *       "nodes" : [ "http://10.0.0.1:8080", "http://10.0.0.2:8080", ... ],
+     *       "disk" : "NameOfDisk", "owner" : "http://10.0.0.2:8080", "registered" : false }
+     * with disk, owner and registered (whether the disk is registered on this node) only if a disk is given.
+     * Without a cluster, self is null and nodes is empty.
+     *
+     * @param diskName the name of a disk (optional)
+     *
+     * @return the Response
+     */
+    @GET
+    @Path("cluster")
+    public Response describeCluster(@QueryParam("disk") String diskName) {
+        LOGGER.info("describeCluster: diskName=\"{}\"", diskName);
+        StringBuilder buf = new StringBuilder();
+        buf.append("{ \"self\" : ").append((cluster.getSelf() == null) ? "null" : Json.quote(cluster.getSelf()));
+        buf.append(", \"mode\" : ").append(Json.quote(cluster.getMode().name().toLowerCase()));
+        buf.append(",\n  \"nodes\" : [");
+        String separator = " ";
+        for (String node : cluster.getNodes()) {
+            buf.append(separator).append(Json.quote(node));
+            separator = ", ";
+        }
+        buf.append(" ]");
+        if (diskName != null) {
+            String owner = cluster.getOwner(diskName);
+            buf.append(",\n  \"disk\" : ").append(Json.quote(diskName));
+            buf.append(", \"owner\" : ").append((owner == null) ? "null" : Json.quote(owner));
+            buf.append(", \"registered\" : ").append(FileAccessor.isRegistered(diskName));
+        }
+        buf.append(" }\n");
+        return Response.ok(buf.toString(), "application/json")
+                .header("Cache-Control", LIST_CACHE_CONTROL)
+                .header("Access-Control-Allow-Origin", "*")
+                .build();
+    }
+
+    /**
+     * A GET operation pauses file reading: until resumed, file requests get a 503 (Service Unavailable).
+     * Reads already in progress continue, unless drain=true is given, in which case the response is sent
+     * only once they have finished (or timeoutMillis has passed, default 30 seconds, at most 10 minutes):
+     *     http://localhost:8080/FileAccessService/api/fileAccessor/pause?drain=true&timeoutMillis=60000
+     *
+     * @param drain whether to wait for reads in progress to finish
+     * @param timeoutMillis how long to wait for them (optional)
+     *
+     * @return the Response; with drain, the number of reads that were still in progress, if any
+     */
+    @GET
+    @Path("pause")
+    public Response pause(@QueryParam("drain") boolean drain, @QueryParam("timeoutMillis") String timeoutMillis) {
         LOGGER.info("pause()");
-        setPaused(true);
-        return Response.status(Response.Status.OK.getStatusCode(), "pause")
+        return pause(null, drain, timeoutMillis);
+    }
+
+    /**
+     * A GET operation pauses reading the files of one disk. See pause() above.
+     *     http://localhost:8080/FileAccessService/api/fileAccessor/pause/NameOfDisk
+     *
+     * @param diskName the name of the disk
+     * @param drain whether to wait for reads in progress on the disk to finish
+     * @param timeoutMillis how long to wait for them (optional)
+     *
+     * @return the Response
+     */
+    @GET
+    @Path("pause/{diskName}")
+    public Response pause(@PathParam("diskName") String diskName,
+                          @QueryParam("drain") boolean drain, @QueryParam("timeoutMillis") String timeoutMillis) {
+        LOGGER.info("pause: diskName=\"{}\" drain={}", diskName, drain);
+        int drainMillis;
+        try {
+            drainMillis = parseIntParameter("timeoutMillis", timeoutMillis, DEFAULT_DRAIN_MILLIS, 0, MAX_DRAIN_MILLIS);
+        } catch (IllegalArgumentException ex) {
+            return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), ex.getMessage())
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
+        }
+        admission.pause(diskName);
+        String message = "pause";
+        if (drain) {
+            try {
+                int remaining = admission.awaitDrained(diskName, drainMillis);
+                message = (remaining == 0) ? "pause: drained" : "pause: " + remaining + " reads still in progress";
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                message = "pause: interrupted while draining";
+            }
+        }
+        return Response.status(Response.Status.OK.getStatusCode(), message)
                 .header("Access-Control-Allow-Origin", "*")
                 .build();
     }
@@ -287,50 +1372,176 @@ public class FileAccessorRESTService {
     @Path("resume")
     public Response resume() {
         LOGGER.info("resume()");
-        setPaused(false);
+        admission.resume(null);
+        return Response.status(Response.Status.OK.getStatusCode(), "resume")
+                .header("Access-Control-Allow-Origin", "*")
+                .build();
+    }
+
+    @GET
+    @Path("resume/{diskName}")
+    public Response resume(@PathParam("diskName") String diskName) {
+        LOGGER.info("resume: diskName=\"{}\"", diskName);
+        admission.resume(diskName);
         return Response.status(Response.Status.OK.getStatusCode(), "resume")
                 .header("Access-Control-Allow-Origin", "*")
                 .build();
     }
 
     /**
-     * Converts a disk URI of the form
-     *     http://localhost:8080/FileAccessService/api/fileAccessor/fileList/NameOfDisk?foo=bar
-     * into a file URI prefix of the form
-     *     http://localhost:8080/FileAccessService/api/fileAccessor/file/NameOfDisk
+     * A GET operation returns the service's metrics, in the Prometheus text format:
+     *     http://localhost:8080/FileAccessService/api/fileAccessor/metrics
+     * These are request counts, bytes written, error counts by status, requests in flight and
+     * latency histograms (time to first byte and total), per operation and per disk; the disks'
+     * own counters; cache hit ratios; admission counts; and how busy Jetty's thread pool is.
+     *
+     * @return the Response
      */
-    private static String convertDiskUriToFileUriPrefix(String uri, String diskName) {
-        // uri has not yet been decoded
-        // diskName has been decoded.
-        String originalUri = uri;
-        uri = stripTrailingQueryString(uri);
-        uri = uri.replaceAll("\\+", "%2B");   // because URLDecoder.decode converts '+' to ' '
+    @GET
+    @Path("metrics")
+    public Response getPrometheusMetrics() {
+        StreamingOutput stream = out ->
+                metrics.writePrometheus(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+        Compression.Encoding encoding = FileAccessor.getCompression().negotiateStream(request.getHeader("Accept-Encoding"));
+        return compressed(Response.ok(stream, "text/plain; version=0.0.4; charset=utf-8"), encoding)
+                .header("Cache-Control", "no-cache")
+                .header("Access-Control-Allow-Origin", "*")
+                .build();
+    }
+
+    /**
+     * Arranges for a generated response to be compressed in the given encoding as it is written
+     * (see CompressionInterceptor), unless the encoding is null.
+     */
+    private Response.ResponseBuilder compressed(Response.ResponseBuilder builder, Compression.Encoding encoding) {
+        if (encoding != null) {
+            request.setAttribute(Compression.STREAM_ENCODING_PROPERTY, encoding);
+            builder.header("Content-Encoding", encoding.token);
+        }
+        return builder.header("Vary", "Accept-Encoding");
+    }
+
+    /**
+     * Parses a limit query parameter. It is taken as a String rather than an Integer, since Jersey answers
+     * a value it cannot convert with a 404 (Not Found); this way the caller can answer with a 400.
+     *
+     * @param limit the parameter, or null if it was not given
+     * @param defaultLimit the limit if it was not given
+     * @param minimum the smallest limit allowed
+     * @throws IllegalArgumentException if the limit is not a number, or is less than minimum
+     */
+    private static int parseLimit(String limit, int defaultLimit, int minimum) {
+        return parseIntParameter("limit", limit, defaultLimit, minimum, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Parses an integer query parameter, taken as a String for the same reason as in parseLimit().
+     *
+     * @param name the name of the parameter, for the error message
+     * @param value the parameter, or null if it was not given
+     * @param defaultValue the value if it was not given
+     * @param minimum the smallest value allowed
+     * @param maximum the largest value allowed
+     * @throws IllegalArgumentException if the value is not a number, or is out of range
+     */
+    private static int parseIntParameter(String name, String value, int defaultValue, int minimum, int maximum) {
+        if (value == null) {
+            return defaultValue;
+        }
+        int result;
         try {
-            uri = URLDecoder.decode(uri, StandardCharsets.UTF_8.toString());   // converts "%2B" back to '+'
-        } catch (UnsupportedEncodingException ex) {   // this should never happen
-            ex.printStackTrace();
-            throw new RuntimeException(ex);
+            result = Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(name + " is not a number: " + value);
+        }
+        if (result < minimum) {
+            throw new IllegalArgumentException(name + " must be at least " + minimum + ": " + value);
+        }
+        if (result > maximum) {
+            throw new IllegalArgumentException(name + " must be at most " + maximum + ": " + value);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the response of the peer a disk is placed on, if this node is in a cluster and the disk is not
+     * registered here but placed on a peer (see Cluster); otherwise null, and the request is answered here.
+     */
+    private Response forwardToOwner(String diskName) {
+        String peer = ownerPeer(diskName);
+        return (peer == null) ? null : cluster.forward(peer, request);
+    }
+
+    /**
+     * As forwardToOwner(String), for a request whose body Jersey has already read; the body is sent on
+     * in the charset it came in.
+     */
+    private Response forwardToOwner(String diskName, String body) {
+        String peer = ownerPeer(diskName);
+        if (peer == null) {
+            return null;
+        }
+        String encoding = request.getCharacterEncoding();
+        Charset charset = (encoding == null) ? StandardCharsets.UTF_8 : Charset.forName(encoding);
+        return cluster.forward(peer, request, (body == null) ? new byte[0] : body.getBytes(charset));
+    }
+
+    private String ownerPeer(String diskName) {
+        if (!cluster.isEnabled() || FileAccessor.DEFAULT_DISK_NAME.equals(diskName) || FileAccessor.isRegistered(diskName)) {
+            return null;
+        }
+        return cluster.getPeerFor(diskName, request);
+    }
+
+    /**
+     * Returns a redirect to the peer a parity group's disks are placed on, if this node is in a cluster and
+     * they are placed on a peer, or a 409 (Conflict) if they are not all placed on one node, since parity can
+     * only be computed where all of a group's disks are; otherwise null, and the request is answered here.
+     * A POST of parity may wait for longer than a peer is given to respond to a forwarded request, so parity
+     * requests are always redirected, never forwarded.
+     */
+    private Response forwardParity(String groupName) throws ParityGroupNotFoundException {
+        if (!cluster.isEnabled()) {
+            return null;
         }
-        if (!uri.endsWith(diskName)) {
-            uri = uri + "/" + diskName;   // if no NameOfDisk was specified (DEFAULT_DISK_NAME)
+        ParityGroup group = FileAccessor.getParityEngine().getGroup(groupName);
+        Map<String, List<String>> disksByNode = new TreeMap<>();
+        for (String diskName : group.diskNames) {
+            disksByNode.computeIfAbsent(cluster.getOwner(diskName), node -> new ArrayList<>()).add(diskName);
         }
-        if (!uri.contains("/fileList/")) {
-            throw new IllegalArgumentException("missing \"fileList\" path component: " + originalUri);
+        if (disksByNode.size() > 1) {
+            String message = "The disks of parity group " + groupName + " are placed on more than one node "
+                             + disksByNode + "; in a cluster, all of a group's disks must be placed on one node";
+            return Response.status(Response.Status.CONFLICT.getStatusCode(), message)
+                    .header("Access-Control-Allow-Origin", "*")
+                    .build();
         }
-        uri = uri.replace("/fileList/", "/file/");
-        uri = uri.replace("/file/.*", "/file/" + encode(diskName));
-        return uri;
+        String peer = cluster.getPeerFor(group.diskNames.get(0), request);
+        return (peer == null) ? null : cluster.redirect(peer, request);
     }
 
-    private static String stripTrailingQueryString(String uri) {
-        int queryIndex = uri.indexOf('?');
-        if (queryIndex > 0) {
-            uri = uri.substring(0, queryIndex);
+    /**
+     * Returns the file URI prefix for a disk, of the form
+     *     http://localhost:8080/FileAccessService/api/fileAccessor/file/NameOfDisk
+     * for the base URI of the current request. Prefixes are remembered, so a listing request usually only
+     * looks one up.
+     */
+    private String getFileUriPrefix(String diskName) {
+        String baseUri = uriInfo.getBaseUri().toString();
+        String key = baseUri + '\u0000' + diskName;
+        String prefix = fileUriPrefixes.get(key);
+        if (prefix == null) {
+            prefix = uriInfo.getBaseUriBuilder().path(FileAccessorRESTService.class).path("file")
+                    .build().toString() + '/' + encode(diskName);
+            if (fileUriPrefixes.size() >= MAX_FILE_URI_PREFIXES) {
+                fileUriPrefixes.clear();   // every Host header a client sends makes another base URI
+            }
+            fileUriPrefixes.put(key, prefix);
         }
-        return uri;
+        return prefix;
     }
 
-    private static String getMediaType(String filePath) {
+    static String getMediaType(String filePath) {
         int index = filePath.lastIndexOf('.');
         if (index < 0) {
             return "*.*";
@@ -351,49 +1562,72 @@ public class FileAccessorRESTService {
         if (".xml".equals(suffix)) {
             return "text/xml";
         }
+        if (".json".equals(suffix)) {
+            return "application/json";
+        }
         return "*/*";
     }
 
-    private static synchronized boolean isPaused() {
-        return paused;
+    /**
+     * Returns the byte ranges requested by the Range header of the current request,
+     * or null if the whole file should be sent: there is no Range header, it is malformed,
+     * or an If-Range header names a version of the file other than the current one.
+     * An empty list means that none of the requested ranges can be satisfied.
+     */
+    private List<ByteRange> getRequestedRanges(long length, FileMetadataCache.Entry metadata) {
+        String rangeHeader = request.getHeader("Range");
+        if (rangeHeader == null) {
+            return null;
+        }
+        String ifRange = request.getHeader("If-Range");
+        if ((ifRange != null) && !isCurrentVersion(ifRange, metadata)) {
+            return null;
+        }
+        return ByteRange.parse(rangeHeader, length);
     }
 
-    private static synchronized void setPaused(boolean yup) {
-        paused = yup;
+    private static boolean isCurrentVersion(String ifRange, FileMetadataCache.Entry metadata) {
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("W/")) {
+            return false;   // If-Range requires a strong comparison
+        }
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals('"' + metadata.entityTag + '"');
+        }
+        try {
+            long date = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+            return date == metadata.lastModified / 1000;
+        } catch (DateTimeParseException ex) {
+            return false;
+        }
+    }
+
+    static Cluster getCluster() {
+        return cluster;
+    }
+
+    static AdmissionController getAdmissionController() {
+        return admission;
+    }
+
+    static Metrics getMetrics() {
+        return metrics;
+    }
+
+    static Thumbnails getThumbnails() {
+        return thumbnails;
     }
 
     /**
      * This does two levels of encoding. First, the characters are UTF-8 encoded, resulting in an array of bytes.
      * Then, each byte that corresponds to a printable ASCII non-special-punctuation character is simply
      * that character.  Finally, if a byte value (unsigned) corresponds to a special punctuation character,
-     * or is unprintable (127, or < 32), or is greater than 127, it is %NN encoded.
+     * or is unprintable (127, or < 32), or is greater than 127, it is %NN encoded. See UrlEncoder.
      *
      * @param s the string of characters
      * @return the UTF-8, %-encoded string
      */
     static String encode(String s) {
-        StringBuilder resultStr = new StringBuilder();
-        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {   // get UTF-8 encoded bytes
-            char c = (char) (b & 0xFF);
-            if (isUnsafe(c)) {
-                resultStr.append('%');
-                resultStr.append(toHex(c / 16));
-                resultStr.append(toHex(c % 16));
-            } else{
-                resultStr.append(c);
-            }
-        }
-        return resultStr.toString();
-    }
-
-    private static boolean isUnsafe(char ch) {
-        if ((ch < 32) || (ch >= 127)) {
-            return true;
-        }
-        return " +%$&,:;=?@<>#".indexOf(ch) >= 0;   // '/' must not be encoded
-    }
-
-    private static char toHex(int n) {
-        return (char) ((n < 10) ? '0' + n : 'A' + n - 10);
+        return UrlEncoder.encode(s);
     }
 }
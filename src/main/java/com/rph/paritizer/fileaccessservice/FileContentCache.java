@@ -0,0 +1,551 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+
+/**
+ * A cache of the contents of small, frequently read files, held in direct (off-heap) ByteBuffers so that
+ * a large cache adds nothing to garbage collection work, and so that a hit can be written to the response
+ * straight from the cached buffer.
+ *
+ * Capacity is measured in bytes. Entries are admitted and evicted with the W-TinyLFU policy: new entries
+ * go into a small LRU window (1% of the capacity); an entry pushed out of the window is admitted to the
+ * main area only if a frequency sketch says it is more popular than the entry it would displace. The main
+ * area is a segmented LRU: entries start on probation, and move to the protected segment (80% of the main
+ * area) when they are hit again.
+ *
+ * An entry is only used if the file's size and modification time still match; it is also invalidated
+ * when the disk's index reports a change. Entries are reference counted, and an evicted entry's buffer
+ * is freed as soon as the last request reading it is done.
+ *
+ * Concurrent misses on the same key are coalesced: one request reads the file, and the others wait for it
+ * and share its entry. Hits do not wait for the policy's lock; each is queued, and the queue is drained
+ * (in order, into the sketch and the LRU lists) by whichever request next holds the lock, so that the
+ * frequencies W-TinyLFU compares count every access even when the lock is contended.
+ *
+ * Files with the same content (see ContentHashIndex.sharedHash()) share one entry, cached under the hash
+ * of the content rather than a path, so a photo that is on several disks is cached once. Such an entry is used
+ * for any file with that hash (whose modification time may differ), and is not invalidated by file changes:
+ * a file that changes no longer has that hash, so it is no longer read from that entry. Since the file read to
+ * fill a shared entry may have changed since it was hashed, its content is checked against the hash before the
+ * entry is cached; if it does not match, nothing is cached, and the file is read from disk.
+ *
+ * Configured with system properties:
+ *     fileaccessservice.contentCache.maxBytes       (default 0, which disables the cache)
+ *     fileaccessservice.contentCache.maxFileBytes   (default 1048576; larger files are never cached)
+ * The cache is off-heap, so -XX:MaxDirectMemorySize may need to be raised to accommodate it.
+ */
+class FileContentCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileContentCache.class);
+
+    static final String MAX_BYTES_PROPERTY = "fileaccessservice.contentCache.maxBytes";
+    static final String MAX_FILE_BYTES_PROPERTY = "fileaccessservice.contentCache.maxFileBytes";
+
+    private static final double WINDOW_FRACTION = 0.01;
+    private static final double PROTECTED_FRACTION = 0.80;
+    private static final int MAX_PENDING_ACCESSES = 4096;   // beyond this, a hit waits for the lock to drain them
+
+    private enum Region { WINDOW, PROBATION, PROTECTED }
+
+    /**
+     * The cached content of one file. Callers of acquire() must call release() when done with it.
+     */
+    static class Entry {
+        final String key;        // the file's path, or for content shared by several files, its hash's cache key
+        final String filePath;   // the file the content was read from
+        final long size;
+        final long lastModified;
+        private final ByteBuffer buffer;
+        private final AtomicInteger refCount = new AtomicInteger(1);   // the cache's own reference
+
+        // policy state, guarded by the cache's lock
+        private Region region;
+        private Entry prev;
+        private Entry next;
+        private boolean removed;
+
+        private Entry(String key, String filePath, long size, long lastModified, ByteBuffer buffer) {
+            this.key = key;
+            this.filePath = filePath;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Returns a read-only view of the content, positioned at the start.
+         */
+        ByteBuffer content() {
+            return buffer.asReadOnlyBuffer();
+        }
+
+        private boolean retain() {
+            while (true) {
+                int count = refCount.get();
+                if (count == 0) {
+                    return false;   // already freed
+                }
+                if (refCount.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (refCount.decrementAndGet() == 0) {
+                BufferCleaner.free(buffer);
+            }
+        }
+    }
+
+    /**
+     * A doubly-linked list of entries in access order, eldest first.
+     */
+    private static class AccessOrderList {
+        private final Entry head = new Entry(null, null, 0, 0, null);   // sentinel
+        private long bytes;
+
+        AccessOrderList() {
+            head.prev = head;
+            head.next = head;
+        }
+
+        Entry first() {
+            return (head.next == head) ? null : head.next;
+        }
+
+        Entry after(Entry entry) {
+            return (entry.next == head) ? null : entry.next;
+        }
+
+        void addLast(Entry entry) {
+            entry.prev = head.prev;
+            entry.next = head;
+            head.prev.next = entry;
+            head.prev = entry;
+            bytes += entry.size;
+        }
+
+        void remove(Entry entry) {
+            entry.prev.next = entry.next;
+            entry.next.prev = entry.prev;
+            entry.prev = null;
+            entry.next = null;
+            bytes -= entry.size;
+        }
+
+        void moveToLast(Entry entry) {
+            remove(entry);
+            addLast(entry);
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxFileBytes;
+    private final long windowMaxBytes;
+    private final long protectedMaxBytes;
+    private final long mainMaxBytes;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Entry>> loading = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Queue<Entry> pendingAccesses = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingAccessCount = new AtomicInteger();
+    private final AccessOrderList window = new AccessOrderList();
+    private final AccessOrderList probation = new AccessOrderList();
+    private final AccessOrderList protectedList = new AccessOrderList();
+    private final FrequencySketch sketch;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder sharedHits = new LongAdder();
+    private final LongAdder unverified = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalescedMisses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    FileContentCache(long maxBytes, long maxFileBytes) {
+        this.maxBytes = maxBytes;
+        this.maxFileBytes = Math.min(maxFileBytes, maxBytes);
+        this.windowMaxBytes = Math.max(this.maxFileBytes, (long) (maxBytes * WINDOW_FRACTION));
+        this.mainMaxBytes = Math.max(0, maxBytes - windowMaxBytes);
+        this.protectedMaxBytes = (long) (mainMaxBytes * PROTECTED_FRACTION);
+        long expectedEntries = (maxFileBytes > 0) ? maxBytes / Math.max(1, maxFileBytes / 16) : 0;
+        this.sketch = new FrequencySketch((int) Math.min(1 << 24, Math.max(1024, expectedEntries)));
+    }
+
+    /**
+     * Returns a cache configured from the system properties listed above.
+     */
+    static FileContentCache fromSystemProperties() {
+        long maxBytes = Long.getLong(MAX_BYTES_PROPERTY, 0L);
+        long maxFileBytes = Long.getLong(MAX_FILE_BYTES_PROPERTY, 1024L * 1024);
+        FileContentCache cache = new FileContentCache(maxBytes, maxFileBytes);
+        if (cache.isEnabled()) {
+            LOGGER.info("fromSystemProperties: {}", cache);
+        }
+        return cache;
+    }
+
+    boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Returns true if a file of the given size is small enough to be cached.
+     */
+    boolean isCacheable(long size) {
+        return isEnabled() && (size <= maxFileBytes);
+    }
+
+    /**
+     * Returns the cached content of a file, loading it on a miss. The caller must release() the result.
+     * Returns null if the file is not cacheable, or cannot be loaded in full.
+     *
+     * @param filePath the file
+     * @param size the file's current size
+     * @param lastModified the file's current modification time
+     */
+    Entry acquire(String filePath, long size, long lastModified) throws IOException {
+        return acquire(filePath, filePath, size, lastModified, null);
+    }
+
+    /**
+     * Returns the cached content of a file, as acquire(filePath, size, lastModified), looking it up (and loading it)
+     * under the given key: the file's path, or the cache key of its content's hash. On a miss, content loaded for
+     * a shared key is cached only if verify accepts it (it is not cached, and null is returned, otherwise).
+     *
+     * @param verify checks the content read from the file, for a shared key; null for a path
+     */
+    Entry acquire(String key, String filePath, long size, long lastModified, Predicate<ByteBuffer> verify)
+            throws IOException {
+        if (!isCacheable(size)) {
+            return null;
+        }
+        boolean shared = !key.equals(filePath);
+        Entry entry = entries.get(key);
+        if ((entry != null) && ((entry.size != size) || (!shared && (entry.lastModified != lastModified)))) {
+            remove(entry);   // stale
+            entry = null;
+        }
+        if ((entry != null) && entry.retain()) {
+            hits.increment();
+            if (!entry.filePath.equals(filePath)) {
+                sharedHits.increment();
+            }
+            recordAccess(entry);
+            return entry;
+        }
+        misses.increment();
+        CompletableFuture<Entry> ours = new CompletableFuture<>();
+        CompletableFuture<Entry> theirs = loading.putIfAbsent(key, ours);
+        if (theirs != null) {
+            coalescedMisses.increment();
+            Entry loaded = await(theirs);
+            if ((loaded != null) && (loaded.size == size) && loaded.retain()) {
+                return loaded;
+            }
+            return (loaded == null) ? null : loadAndInsert(key, filePath, size, lastModified, verify);   // evicted already
+        }
+        try {
+            Entry loaded = loadAndInsert(key, filePath, size, lastModified, verify);
+            ours.complete(loaded);
+            return loaded;
+        } catch (IOException | RuntimeException ex) {
+            ours.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            loading.remove(key, ours);
+        }
+    }
+
+    private static Entry await(CompletableFuture<Entry> load) throws IOException {
+        try {
+            return load.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Reads a file and adds it to the cache. Returns it with a reference held for the caller,
+     * or null if the file cannot be loaded in full.
+     */
+    private Entry loadAndInsert(String key, String filePath, long size, long lastModified,
+                                Predicate<ByteBuffer> verify) throws IOException {
+        ByteBuffer buffer = load(filePath, size);
+        if (buffer == null) {
+            return null;
+        }
+        if ((verify != null) && !verify.test(buffer.duplicate())) {   // changed since it was hashed
+            unverified.increment();
+            LOGGER.info("loadAndInsert: {} no longer matches {}; not cached", filePath, key);
+            BufferCleaner.free(buffer);
+            return null;
+        }
+        Entry loaded = new Entry(key, filePath, size, lastModified, buffer);
+        loaded.retain();   // the caller's reference
+        lock.lock();
+        try {
+            drainAccesses();
+            Entry previous = entries.put(key, loaded);
+            if (previous != null) {   // raced with a request that loaded the same file without waiting
+                unlink(previous);
+            }
+            sketch.increment(hash(key));
+            loaded.region = Region.WINDOW;
+            window.addLast(loaded);
+            evict();
+        } finally {
+            lock.unlock();
+        }
+        return loaded;
+    }
+
+    /**
+     * Queues a hit for the policy, and applies the queue if the lock is free (or if the queue is full,
+     * waiting for the lock rather than losing the access).
+     */
+    private void recordAccess(Entry entry) {
+        pendingAccesses.add(entry);
+        if (pendingAccessCount.incrementAndGet() > MAX_PENDING_ACCESSES) {
+            lock.lock();
+        } else if (!lock.tryLock()) {
+            return;   // whoever holds the lock, or takes it next, applies it
+        }
+        try {
+            drainAccesses();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the entry for a file, or for every file whose path starts with prefix + '/' (if directory is true).
+     * Shared entries (cached under a hash) are left alone.
+     */
+    void invalidate(String path, boolean directory) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (!directory) {
+            Entry entry = entries.get(path);
+            if (entry != null) {
+                remove(entry);
+            }
+            return;
+        }
+        String prefix = path.endsWith("/") ? path : path + '/';
+        for (Entry entry : entries.values()) {
+            if (entry.key.startsWith(prefix)) {
+                remove(entry);
+            }
+        }
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of hits on entries read from another file with the same content.
+     */
+    long getSharedHits() {
+        return sharedHits.sum();
+    }
+
+    /**
+     * Returns the number of files read for a shared entry whose content did not match the hash, and was not cached.
+     */
+    long getUnverified() {
+        return unverified.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of misses that waited for another request's load of the same file, rather than reading it.
+     */
+    long getCoalescedMisses() {
+        return coalescedMisses.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    long getRejections() {
+        return rejections.sum();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long getBytes() {
+        lock.lock();
+        try {
+            drainAccesses();
+            return window.bytes + probation.bytes + protectedList.bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FileContentCache[maxBytes=" + maxBytes + " maxFileBytes=" + maxFileBytes + " entries=" + entries.size()
+               + " bytes=" + getBytes() + " hits=" + getHits() + " misses=" + getMisses()
+               + " evictions=" + getEvictions() + " rejections=" + getRejections() + "]";
+    }
+
+    private static ByteBuffer load(String filePath, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, buffer.position()) < 0) {
+                    break;
+                }
+            }
+        }
+        if (buffer.hasRemaining()) {   // the file shrank since it was stat-ed
+            BufferCleaner.free(buffer);
+            return null;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private void remove(Entry entry) {
+        lock.lock();
+        try {
+            drainAccesses();
+            if (!entry.removed) {
+                entries.remove(entry.key, entry);
+                unlink(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the methods below must be called with the lock held
+
+    private void drainAccesses() {
+        Entry entry;
+        while ((entry = pendingAccesses.poll()) != null) {
+            pendingAccessCount.decrementAndGet();
+            onAccess(entry);
+        }
+    }
+
+    private void onAccess(Entry entry) {
+        if (entry.removed) {
+            return;
+        }
+        sketch.increment(hash(entry.key));
+        switch (entry.region) {
+            case WINDOW:
+                window.moveToLast(entry);
+                break;
+            case PROBATION:
+                probation.remove(entry);
+                entry.region = Region.PROTECTED;
+                protectedList.addLast(entry);
+                while (protectedList.bytes > protectedMaxBytes) {   // demote the eldest protected entries
+                    Entry demoted = protectedList.first();
+                    protectedList.remove(demoted);
+                    demoted.region = Region.PROBATION;
+                    probation.addLast(demoted);
+                }
+                break;
+            case PROTECTED:
+                protectedList.moveToLast(entry);
+                break;
+        }
+    }
+
+    /**
+     * Moves entries from the window to probation until the window fits, and each time, while the main
+     * area is too full, evicts whichever is less popular: the newcomer or the eldest entry on probation.
+     */
+    private void evict() {
+        while (window.bytes > windowMaxBytes) {
+            Entry candidate = window.first();
+            window.remove(candidate);
+            candidate.region = Region.PROBATION;
+            probation.addLast(candidate);
+            while ((probation.bytes + protectedList.bytes > mainMaxBytes) && !candidate.removed) {
+                Entry victim = probation.first();
+                if (victim == candidate) {
+                    victim = probation.after(candidate);
+                }
+                if (victim == null) {
+                    victim = protectedList.first();
+                }
+                if ((victim == null) || (sketch.frequency(hash(candidate.key)) <= sketch.frequency(hash(victim.key)))) {
+                    rejections.increment();
+                    evictEntry(candidate);
+                } else {
+                    evictEntry(victim);
+                }
+            }
+            while (probation.bytes + protectedList.bytes > mainMaxBytes) {
+                evictEntry((probation.first() != null) ? probation.first() : protectedList.first());
+            }
+        }
+    }
+
+    private void evictEntry(Entry entry) {
+        evictions.increment();
+        entries.remove(entry.key, entry);
+        unlink(entry);
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.removed) {
+            return;
+        }
+        entry.removed = true;
+        switch (entry.region) {
+            case WINDOW:
+                window.remove(entry);
+                break;
+            case PROBATION:
+                probation.remove(entry);
+                break;
+            case PROTECTED:
+                protectedList.remove(entry);
+                break;
+        }
+        entry.release();   // the cache's reference; the buffer is freed once readers are done
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,270 @@
+package com.rph.paritizer.fileaccessservice;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * A bounded cache of the metadata needed to serve a file: the resolved path, size, modification time,
+ * entity tag, readability and media type, keyed by (disk name, relative path). A hit means a file can be served
+ * without stat-ing either the file or the disk's top directory.
+ *
+ * Entries expire after a time-to-live, and are invalidated early when a disk's index reports a change.
+ * The cache is split into segments, each a LinkedHashMap guarded by its own lock, so that concurrent
+ * requests rarely contend. Within a segment, the eldest entry is evicted when the segment is full;
+ * "eldest" means least recently used (LRU policy) or least recently loaded (FIFO policy).
+ *
+ * Every key is also kept in two sorted sets: by itself, and after its entry's resolved path. Since a key is
+ * the disk name followed by the relative path, the entries for a disk or for everything below a directory
+ * are a range of the first set, and the entries for a resolved path a range of the second; so an invalidation
+ * costs O(log n) plus the entries it removes, not a scan of the whole cache. A key is added to and removed
+ * from the sets only under the lock of its segment.
+ *
+ * Configured with system properties:
+ *     fileaccessservice.metadataCache.maxEntries   (default 10000; 0 disables the cache)
+ *     fileaccessservice.metadataCache.ttlMillis    (default 30000)
+ *     fileaccessservice.metadataCache.policy       (LRU or FIFO; default LRU)
+ */
+class FileMetadataCache {
+
+    static final String MAX_ENTRIES_PROPERTY = "fileaccessservice.metadataCache.maxEntries";
+    static final String TTL_MILLIS_PROPERTY = "fileaccessservice.metadataCache.ttlMillis";
+    static final String POLICY_PROPERTY = "fileaccessservice.metadataCache.policy";
+
+    private static final int SEGMENT_COUNT = 16;   // a power of two
+
+    enum Policy { LRU, FIFO }
+
+    /**
+     * What is known about a file, as of loadedAt.
+     */
+    static class Entry {
+        final String filePath;
+        final long size;
+        final long lastModified;
+        final String entityTag;   // opaque value, without the quotes
+        final boolean readable;
+        final String mediaType;
+        final long loadedAt;
+
+        Entry(String filePath, long size, long lastModified, String entityTag, boolean readable, String mediaType,
+              long loadedAt) {
+            this.filePath = filePath;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.entityTag = entityTag;
+            this.readable = readable;
+            this.mediaType = mediaType;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final Policy policy;
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+    private final ConcurrentSkipListSet<String> keys = new ConcurrentSkipListSet<>();
+    private final ConcurrentSkipListSet<String> keysByFilePath = new ConcurrentSkipListSet<>();   // filePath NUL key
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    FileMetadataCache(int maxEntries, long ttlMillis, Policy policy) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.policy = policy;
+        int segmentCapacity = Math.max(1, (maxEntries + SEGMENT_COUNT - 1) / SEGMENT_COUNT);
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(segmentCapacity, policy == Policy.LRU);
+        }
+    }
+
+    /**
+     * Returns a cache configured from the system properties listed above.
+     */
+    static FileMetadataCache fromSystemProperties() {
+        int maxEntries = Integer.getInteger(MAX_ENTRIES_PROPERTY, 10000);
+        long ttlMillis = Long.getLong(TTL_MILLIS_PROPERTY, 30000L);
+        Policy policy = Policy.valueOf(System.getProperty(POLICY_PROPERTY, Policy.LRU.name()).toUpperCase());
+        return new FileMetadataCache(maxEntries, ttlMillis, policy);
+    }
+
+    boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * Returns the cached entry for a file, or null if there is none or it has expired.
+     */
+    Entry get(String diskName, String relativePath) {
+        if (!isEnabled()) {
+            return null;
+        }
+        String key = key(diskName, relativePath);
+        Segment segment = segmentFor(key);
+        Entry entry;
+        synchronized (segment) {
+            entry = segment.get(key);
+            if ((entry != null) && (System.currentTimeMillis() - entry.loadedAt >= ttlMillis)) {
+                segment.delete(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return entry;
+    }
+
+    void put(String diskName, String relativePath, Entry entry) {
+        if (!isEnabled()) {
+            return;
+        }
+        String key = key(diskName, relativePath);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.add(key, entry);
+        }
+    }
+
+    /**
+     * Removes the entry for a file, or (if directory is true) the entries for everything below a directory.
+     * A null relativePath removes every entry for the disk.
+     */
+    void invalidate(String diskName, String relativePath, boolean directory) {
+        if (!isEnabled()) {
+            return;
+        }
+        if ((relativePath == null) || directory) {
+            String prefix = (relativePath == null) ? key(diskName, "") : key(diskName, relativePath + '/');
+            for (String key : keys.tailSet(prefix)) {
+                if (!key.startsWith(prefix)) {
+                    break;
+                }
+                remove(key);
+            }
+            return;
+        }
+        remove(key(diskName, relativePath));
+    }
+
+    /**
+     * Removes the entries for a file given by its resolved path, for when the file is found to have changed
+     * without the disk's index having said so.
+     */
+    void invalidateFile(String filePath) {
+        if (!isEnabled()) {
+            return;
+        }
+        String prefix = filePath + '\u0000';
+        for (String filePathKey : keysByFilePath.tailSet(prefix)) {
+            if (!filePathKey.startsWith(prefix)) {
+                break;
+            }
+            remove(filePathKey.substring(prefix.length()));
+        }
+    }
+
+    private void remove(String key) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            if (segment.delete(key)) {
+                invalidations.increment();
+            }
+        }
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "FileMetadataCache[policy=" + policy + " maxEntries=" + maxEntries + " ttlMillis=" + ttlMillis
+               + " size=" + size() + " hits=" + getHits() + " misses=" + getMisses()
+               + " evictions=" + getEvictions() + " invalidations=" + getInvalidations() + "]";
+    }
+
+    private static String key(String diskName, String relativePath) {
+        return diskName + '\u0000' + relativePath;   // NUL cannot occur in a disk name or a path
+    }
+
+    private Segment segmentFor(String key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENT_COUNT - 1)];
+    }
+
+    private class Segment extends LinkedHashMap<String, Entry> {
+
+        private final int capacity;
+
+        Segment(int capacity, boolean accessOrder) {
+            super(16, 0.75f, accessOrder);
+            this.capacity = capacity;
+        }
+
+        void add(String key, Entry entry) {
+            Entry replaced = put(key, entry);
+            if (replaced != null) {
+                keysByFilePath.remove(replaced.filePath + '\u0000' + key);
+            }
+            keys.add(key);
+            keysByFilePath.add(entry.filePath + '\u0000' + key);
+        }
+
+        /**
+         * Removes a key, and returns true if it was there.
+         */
+        boolean delete(String key) {
+            Entry removed = remove(key);
+            if (removed == null) {
+                return false;
+            }
+            unindex(key, removed);
+            return true;
+        }
+
+        private void unindex(String key, Entry entry) {
+            keys.remove(key);
+            keysByFilePath.remove(entry.filePath + '\u0000' + key);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FileMetadataCache.Entry> eldest) {
+            if (size() > capacity) {
+                unindex(eldest.getKey(), eldest.getValue());
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
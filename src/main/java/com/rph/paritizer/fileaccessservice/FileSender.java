@@ -0,0 +1,462 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.eclipse.jetty.server.HttpOutput;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.util.Callback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+
+/**
+ * Moves the bytes of a file to a response.
+ *
+ * When the output is Jetty's HttpOutput (the embedded server, or a WAR whose container exposes it),
+ * the FileChannel is handed to Jetty, which reads it into its own pooled direct buffers and writes
+ * those to the socket. No byte[] of ours is involved. Anywhere else the bytes are copied through
+ * a buffer borrowed from a small pool, so no buffer is allocated per request.
+ *
+ * On Jetty, content can also be sent without blocking (see startAsync()): the request thread hands the
+ * content to Jetty and returns to the pool, and Jetty writes it whenever the client is ready for more,
+ * so a slow client holds a connection and a buffer, but no thread.
+ */
+class FileSender {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileSender.class);
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_POOLED_BUFFERS = 32;
+
+    private static final BlockingQueue<byte[]> bufferPool = new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS);
+
+    /**
+     * Request property set by DirectOutputInterceptor once it has committed the response headers
+     * of a DirectOutput entity.
+     */
+    static final String DIRECT_OUTPUT_PROPERTY = FileSender.class.getName() + ".directOutput";
+
+    static final String ASYNC_SEND_ENABLED_PROPERTY = "fileaccessservice.asyncSend";
+
+    /**
+     * Whether startAsync() may send content without blocking. On by default.
+     */
+    private static final boolean ASYNC_SEND_ENABLED = Boolean.parseBoolean(System.getProperty(ASYNC_SEND_ENABLED_PROPERTY, "true"));
+
+    /**
+     * Request property holding the AsyncSend of a request whose content is being sent without blocking.
+     */
+    static final String ASYNC_SEND_PROPERTY = FileSender.class.getName() + ".asyncSend";
+
+    /**
+     * A StreamingOutput that would rather write to the servlet output stream than to the stream Jersey
+     * passes to it. Jersey buffers that stream and wraps it in a private class, so neither Jetty's
+     * HttpOutput nor sendContent() can be reached through it.
+     */
+    interface DirectOutput extends StreamingOutput {
+    }
+
+    /**
+     * Returns the stream that file content should be written to: the servlet output stream, if
+     * DirectOutputInterceptor has already committed the response headers, otherwise out.
+     * The servlet output stream is Jetty's HttpOutput when running in the embedded server.
+     *
+     * @param out the stream given to StreamingOutput.write()
+     * @param request the current servlet request
+     * @param response the current servlet response
+     * @return the stream to write the file content to
+     */
+    static OutputStream directOutput(OutputStream out, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        if ((request.getAttribute(DIRECT_OUTPUT_PROPERTY) == null) || "HEAD".equals(request.getMethod())) {
+            return out;
+        }
+        return response.getOutputStream();
+    }
+
+    /**
+     * Puts the current request into asynchronous mode, so that its content can be sent without blocking
+     * (see AsyncSend), and returns the AsyncSend to send it with. Returns null if that cannot be done:
+     * if it has been disabled, if the response headers have not been committed by DirectOutputInterceptor,
+     * for HEAD requests, or outside Jetty or a servlet with async support. The content must then be sent
+     * with send(), as usual.
+     *
+     * @param request the current servlet request
+     * @param response the current servlet response
+     * @return the AsyncSend, or null
+     */
+    static AsyncSend startAsync(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!ASYNC_SEND_ENABLED || (request.getAttribute(DIRECT_OUTPUT_PROPERTY) == null)
+            || "HEAD".equals(request.getMethod()) || !request.isAsyncSupported()) {
+            return null;
+        }
+        ServletOutputStream out = response.getOutputStream();
+        if (!(out instanceof HttpOutput)) {
+            return null;
+        }
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(0);   // a transfer may take as long as it takes; the idle timeout still applies
+        AsyncSend send = new AsyncSend(asyncContext, (HttpOutput) out);
+        request.setAttribute(ASYNC_SEND_PROPERTY, send);
+        return send;
+    }
+
+    /**
+     * Runs an action once the content of a request has been sent: straight away, unless the request has
+     * an AsyncSend still in progress, in which case the action runs when the AsyncSend is done.
+     *
+     * @param asyncSend the ASYNC_SEND_PROPERTY of the request (null if it has none)
+     * @param action the action
+     */
+    static void whenSent(Object asyncSend, Runnable action) {
+        if (asyncSend instanceof AsyncSend) {
+            ((AsyncSend) asyncSend).whenDone(action);
+        } else {
+            action.run();
+        }
+    }
+
+    /**
+     * Sends the remaining content of the channel (from its current position to the end) to out.
+     * The channel is left open for the caller to close.
+     *
+     * @param channel the open file channel
+     * @param out the destination
+     * @return the number of bytes sent
+     */
+    static long send(FileChannel channel, OutputStream out) throws IOException {
+        long position = channel.position();
+        return send(channel, position, channel.size() - position, out);
+    }
+
+    /**
+     * Sends length bytes of the channel, starting at position, to out, and completes the response.
+     * Only positional reads are used, so the cost is proportional to length, and the channel's
+     * own position is not disturbed. The channel is left open for the caller to close.
+     *
+     * @param channel the open file channel
+     * @param position the offset of the first byte to send
+     * @param length the number of bytes to send
+     * @param out the destination
+     * @return the number of bytes sent
+     */
+    static long send(FileChannel channel, long position, long length, OutputStream out) throws IOException {
+        long start = System.nanoTime();
+        if (out instanceof HttpOutput) {
+            ((HttpOutput) out).sendContent(new RangeChannel(channel, position, length));
+            LOGGER.debug("send: {} bytes via HttpOutput in {} us", length, (System.nanoTime() - start) / 1000);
+            return length;
+        }
+        long count = copy(channel, position, length, out);
+        LOGGER.debug("send: {} bytes via pooled buffer in {} us", count, (System.nanoTime() - start) / 1000);
+        return count;
+    }
+
+    /**
+     * Sends the remaining content of a buffer to out, and completes the response. A direct buffer handed
+     * to Jetty is written to the socket as it is, without being copied to the heap.
+     *
+     * @param content the content to send
+     * @param out the destination
+     * @return the number of bytes sent
+     */
+    static long send(ByteBuffer content, OutputStream out) throws IOException {
+        long start = System.nanoTime();
+        int count = content.remaining();
+        if (out instanceof HttpOutput) {
+            ((HttpOutput) out).sendContent(content);
+            LOGGER.debug("send: {} bytes from buffer via HttpOutput in {} us", count, (System.nanoTime() - start) / 1000);
+            return count;
+        }
+        copy(content, out);
+        LOGGER.debug("send: {} bytes from buffer via pooled buffer in {} us", count, (System.nanoTime() - start) / 1000);
+        return count;
+    }
+
+    /**
+     * Sends the remaining content of several buffers, in order, to out, and completes the response.
+     */
+    static long send(List<ByteBuffer> contents, OutputStream out) throws IOException {
+        long count = 0;
+        int last = contents.size() - 1;
+        for (int i = 0; i < last; i++) {
+            ByteBuffer content = contents.get(i);
+            count += content.remaining();
+            if (out instanceof HttpOutput) {
+                ((HttpOutput) out).write(content);   // does not complete the response
+            } else {
+                copy(content, out);
+            }
+        }
+        return (last < 0) ? count : count + send(contents.get(last), out);
+    }
+
+    /**
+     * Copies length bytes of the channel, starting at position, to out, using positional reads
+     * into a pooled buffer. Unlike send(), this never completes the response, so further content
+     * (such as the next part of a multipart body) may follow.
+     */
+    static long copy(FileChannel channel, long position, long length, OutputStream out) throws IOException {
+        byte[] buffer = borrowBuffer();
+        try {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+            long count = 0;
+            while (count < length) {
+                byteBuffer.clear();
+                byteBuffer.limit((int) Math.min(buffer.length, length - count));
+                int n = channel.read(byteBuffer, position + count);
+                if (n < 0) {
+                    break;   // the file shrank
+                }
+                count += n;
+                out.write(buffer, 0, n);
+            }
+            return count;
+        } finally {
+            returnBuffer(buffer);
+        }
+    }
+
+    private static void copy(ByteBuffer content, OutputStream out) throws IOException {
+        byte[] buffer = borrowBuffer();
+        try {
+            while (content.hasRemaining()) {
+                int n = Math.min(buffer.length, content.remaining());
+                content.get(buffer, 0, n);
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            returnBuffer(buffer);
+        }
+    }
+
+    private static byte[] borrowBuffer() {
+        byte[] buffer = bufferPool.poll();
+        return (buffer != null) ? buffer : new byte[BUFFER_SIZE];
+    }
+
+    private static void returnBuffer(byte[] buffer) {
+        bufferPool.offer(buffer);   // dropped if the pool is already full
+    }
+
+    /**
+     * The sending of the content of one response without blocking. Exactly one of the send() methods is
+     * called, which returns at once; Jetty then writes the content as the client takes it, and when it is
+     * done (or has failed), the content is released, the actions added with whenDone() are run, and the
+     * request is completed.
+     */
+    static class AsyncSend implements Callback {
+
+        private final AsyncContext asyncContext;
+        private final HttpOutput out;
+        private Runnable release;                                // releases the content, or null
+        private List<Runnable> whenDone = new ArrayList<>(4);   // null once done; guarded by this
+        private volatile boolean failed;
+
+        private AsyncSend(AsyncContext asyncContext, HttpOutput out) {
+            this.asyncContext = asyncContext;
+            this.out = out;
+        }
+
+        /**
+         * Sends the remaining content of a buffer, and then runs release.
+         */
+        void send(ByteBuffer content, Runnable release) {
+            this.release = release;
+            out.sendContent(content, this);
+        }
+
+        /**
+         * Sends the remaining content of several buffers, in order, and then runs release.
+         */
+        void send(List<ByteBuffer> contents, Runnable release) {
+            if (contents.size() == 1) {
+                send(contents.get(0), release);
+                return;
+            }
+            this.release = release;
+            out.sendContent(new BuffersChannel(contents), this);
+        }
+
+        /**
+         * Sends length bytes of the channel, starting at position, and then closes the channel.
+         */
+        void send(FileChannel channel, long position, long length) {
+            this.release = () -> {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    LOGGER.debug("send: close: {}", ex.toString());
+                }
+            };
+            out.sendContent(new RangeChannel(channel, position, length), this);
+        }
+
+        /**
+         * Gives up on a send that could not be started (because the file could not be opened, say),
+         * abandoning the connection, since the response headers have already gone.
+         */
+        void abort(Throwable failure) {
+            LOGGER.warn("abort: {}", failure.toString());
+            Request.getBaseRequest(asyncContext.getRequest()).getHttpChannel().abort(failure);
+            done(true);
+        }
+
+        /**
+         * Runs an action once the send is done: later, or now if it is already done.
+         */
+        void whenDone(Runnable action) {
+            synchronized (this) {
+                if (whenDone != null) {
+                    whenDone.add(action);
+                    return;
+                }
+            }
+            action.run();
+        }
+
+        /**
+         * Returns true if the content could not be sent completely. Only meaningful once done.
+         */
+        boolean isFailed() {
+            return failed;
+        }
+
+        @Override
+        public void succeeded() {
+            done(false);
+        }
+
+        @Override
+        public void failed(Throwable failure) {
+            LOGGER.debug("failed: {}", failure.toString());
+            done(true);
+        }
+
+        private void done(boolean failed) {
+            this.failed = failed;
+            if (release != null) {
+                release.run();
+            }
+            List<Runnable> actions;
+            synchronized (this) {
+                actions = whenDone;
+                whenDone = null;
+            }
+            if (actions != null) {
+                for (Runnable action : actions) {
+                    try {
+                        action.run();
+                    } catch (RuntimeException ex) {
+                        LOGGER.warn("done: {}", ex.toString());
+                    }
+                }
+            }
+            asyncContext.complete();
+        }
+    }
+
+    /**
+     * The remaining content of several buffers, in order, as a channel.
+     */
+    private static class BuffersChannel implements ReadableByteChannel {
+
+        private final List<ByteBuffer> buffers;
+        private int index;
+        private boolean open = true;
+
+        BuffersChannel(List<ByteBuffer> buffers) {
+            this.buffers = buffers;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            while ((index < buffers.size()) && !buffers.get(index).hasRemaining()) {
+                index++;
+            }
+            if (index == buffers.size()) {
+                return -1;
+            }
+            ByteBuffer src = buffers.get(index);
+            int n = Math.min(src.remaining(), dst.remaining());
+            ByteBuffer slice = src.duplicate();
+            slice.limit(slice.position() + n);
+            dst.put(slice);
+            src.position(src.position() + n);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
+    /**
+     * A read-only view of a slice of a FileChannel, read with positional reads.
+     * Closing it does not close the underlying channel.
+     */
+    private static class RangeChannel implements ReadableByteChannel {
+
+        private final FileChannel channel;
+        private long position;
+        private long remaining;
+        private boolean open = true;
+
+        RangeChannel(FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int limit = dst.limit();
+            if (dst.remaining() > remaining) {
+                dst.limit(dst.position() + (int) remaining);
+            }
+            try {
+                int n = channel.read(dst, position);
+                if (n > 0) {
+                    position += n;
+                    remaining -= n;
+                }
+                return n;
+            } finally {
+                dst.limit(limit);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+}
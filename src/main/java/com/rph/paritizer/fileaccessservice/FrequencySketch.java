@@ -0,0 +1,75 @@
+package com.rph.paritizer.fileaccessservice;
+
+
+/**
+ * A Count-Min sketch of how often keys have been seen recently, as used by TinyLFU admission.
+ * Each key maps to one 4-bit counter in each of four rows; its estimated frequency is the smallest
+ * of those counters. Once the number of increments reaches ten times the width of the sketch,
+ * every counter is halved, so that old popularity fades.
+ *
+ * Not thread-safe; callers synchronize.
+ */
+class FrequencySketch {
+
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;   // 16 counters of 4 bits per long
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param expectedKeys roughly how many distinct keys are of interest at once
+     */
+    FrequencySketch(int expectedKeys) {
+        int width = Integer.highestOneBit(Math.max(64, expectedKeys - 1) << 1);   // a power of two
+        table = new long[width / 16 * 4];   // four rows
+        mask = (table.length * 16 / 4) - 1;
+        sampleSize = 10 * width;
+    }
+
+    int frequency(int hash) {
+        int frequency = Integer.MAX_VALUE;
+        for (int row = 0; row < 4; row++) {
+            frequency = Math.min(frequency, counter(indexOf(hash, row)));
+        }
+        return frequency;
+    }
+
+    void increment(int hash) {
+        boolean added = false;
+        for (int row = 0; row < 4; row++) {
+            int index = indexOf(hash, row);
+            if (counter(index) < 15) {
+                table[index >>> 4] += 1L << ((index & 15) << 2);
+                added = true;
+            }
+        }
+        if (added && (++additions >= sampleSize)) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private int counter(int index) {
+        return (int) ((table[index >>> 4] >>> ((index & 15) << 2)) & 15);
+    }
+
+    /**
+     * Returns the index of the counter (across the whole table) for a hash in a row.
+     */
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return (row * (mask + 1)) + ((int) h & mask);
+    }
+}
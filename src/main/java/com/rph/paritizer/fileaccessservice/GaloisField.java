@@ -0,0 +1,164 @@
+package com.rph.paritizer.fileaccessservice;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Arithmetic in GF(2^8) (polynomial 0x11D, the one RAID-6 uses), and the bulk operations on buffers
+ * that parity is computed with: XOR, and "multiply by a constant and add".
+ *
+ * Buffers should be in native byte order; XOR works a long (8 bytes) at a time, four longs per
+ * iteration, which the JIT compiles to wide, independent loads and stores. Multiplication looks
+ * each byte up in a 256-byte row of the multiplication table, which stays in the L1 cache. Loading a long
+ * at a time and splitting it into bytes, or copying spans into byte arrays first, both measured slower
+ * than this on direct buffers (see GaloisFieldBenchmark), so the lookup is done byte by byte.
+ *
+ * The Reed-Solomon coefficients (see coefficient()) come from a Cauchy matrix whose columns are scaled so
+ * that the first row is all ones. Any square submatrix of a Cauchy matrix is invertible, and scaling
+ * columns does not change that, so with m parity rows any m missing disks can be rebuilt; and the first
+ * parity is plain XOR, which is by far the cheapest to compute and to rebuild one disk from.
+ */
+class GaloisField {
+
+    private static final int POLYNOMIAL = 0x11D;
+
+    private static final byte[] EXP = new byte[512];   // doubled, so EXP[log a + log b] needs no modulo
+    private static final int[] LOG = new int[256];
+    private static final byte[][] MULTIPLY = new byte[256][256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) {
+                x ^= POLYNOMIAL;
+            }
+        }
+        for (int i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+        for (int a = 0; a < 256; a++) {
+            for (int b = 0; b < 256; b++) {
+                MULTIPLY[a][b] = multiplySlowly(a, b);
+            }
+        }
+    }
+
+    private GaloisField() {
+    }
+
+    private static byte multiplySlowly(int a, int b) {
+        return ((a == 0) || (b == 0)) ? 0 : EXP[LOG[a] + LOG[b]];
+    }
+
+    static int multiply(int a, int b) {
+        return MULTIPLY[a][b] & 0xFF;
+    }
+
+    /**
+     * Returns the multiplicative inverse of a, which must not be 0.
+     */
+    static int inverse(int a) {
+        if (a == 0) {
+            throw new ArithmeticException("0 has no inverse");
+        }
+        return EXP[255 - LOG[a]] & 0xFF;
+    }
+
+    /**
+     * Returns the coefficient of data disk column in parity row, for a group of any number of data disks
+     * and up to 256 - dataDisks parity rows. Row 0 is all ones (XOR).
+     */
+    static int coefficient(int row, int column, int dataDisks) {
+        // Cauchy: 1 / (x_row + y_column), with x_row = row + dataDisks and y_column = column, all distinct;
+        // scaled by column so that row 0 is 1.
+        int cauchy = inverse((row + dataDisks) ^ column);
+        int firstRow = inverse(dataDisks ^ column);
+        return multiply(cauchy, inverse(firstRow));
+    }
+
+    /**
+     * Returns the inverse of a square matrix, by Gauss-Jordan elimination.
+     *
+     * @throws ArithmeticException if the matrix is singular
+     */
+    static int[][] invert(int[][] matrix) {
+        int n = matrix.length;
+        int[][] left = new int[n][];
+        int[][] right = new int[n][n];
+        for (int i = 0; i < n; i++) {
+            left[i] = matrix[i].clone();
+            right[i][i] = 1;
+        }
+        for (int column = 0; column < n; column++) {
+            int pivot = column;
+            while ((pivot < n) && (left[pivot][column] == 0)) {
+                pivot++;
+            }
+            if (pivot == n) {
+                throw new ArithmeticException("singular matrix");
+            }
+            swap(left, column, pivot);
+            swap(right, column, pivot);
+            int scale = inverse(left[column][column]);
+            for (int j = 0; j < n; j++) {
+                left[column][j] = multiply(left[column][j], scale);
+                right[column][j] = multiply(right[column][j], scale);
+            }
+            for (int i = 0; i < n; i++) {
+                int factor = left[i][column];
+                if ((i != column) && (factor != 0)) {
+                    for (int j = 0; j < n; j++) {
+                        left[i][j] ^= multiply(factor, left[column][j]);
+                        right[i][j] ^= multiply(factor, right[column][j]);
+                    }
+                }
+            }
+        }
+        return right;
+    }
+
+    private static void swap(int[][] rows, int i, int j) {
+        int[] row = rows[i];
+        rows[i] = rows[j];
+        rows[j] = row;
+    }
+
+    /**
+     * target[i] ^= source[i], for the first length bytes of each buffer (by absolute index).
+     */
+    static void xor(ByteBuffer target, ByteBuffer source, int length) {
+        int i = 0;
+        for (int end = length - 31; i < end; i += 32) {
+            target.putLong(i, target.getLong(i) ^ source.getLong(i));
+            target.putLong(i + 8, target.getLong(i + 8) ^ source.getLong(i + 8));
+            target.putLong(i + 16, target.getLong(i + 16) ^ source.getLong(i + 16));
+            target.putLong(i + 24, target.getLong(i + 24) ^ source.getLong(i + 24));
+        }
+        for (int end = length - 7; i < end; i += 8) {
+            target.putLong(i, target.getLong(i) ^ source.getLong(i));
+        }
+        for (; i < length; i++) {
+            target.put(i, (byte) (target.get(i) ^ source.get(i)));
+        }
+    }
+
+    /**
+     * target[i] ^= coefficient * source[i], for the first length bytes of each buffer (by absolute index).
+     */
+    static void multiplyAdd(ByteBuffer target, ByteBuffer source, int coefficient, int length) {
+        if (coefficient == 0) {
+            return;
+        }
+        if (coefficient == 1) {
+            xor(target, source, length);
+            return;
+        }
+        byte[] row = MULTIPLY[coefficient];
+        for (int i = 0; i < length; i++) {
+            target.put(i, (byte) (target.get(i) ^ row[source.get(i) & 0xFF]));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.rph.paritizer.fileaccessservice;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+
+/**
+ * A consistent-hash ring, for placing disks on the nodes of a cluster. Each node is put at many points
+ * (virtual nodes) on a ring of 64-bit hashes, and a key belongs to the node at the first point at or after
+ * the key's own hash. Adding or removing a node moves only the keys that belonged to it or now do (about
+ * 1/n of them), and the virtual nodes even out the share of each node.
+ *
+ * The hash is the first eight bytes of MD5, so every node (and every JVM) places a key on the same node.
+ * The ring is immutable; the points are kept in a sorted array, and a lookup is a binary search.
+ */
+class HashRing {
+
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);   // every JVM has MD5
+        }
+    });
+
+    private final List<String> nodes;
+    private final long[] points;     // sorted
+    private final String[] owners;   // owners[i] is the node at points[i]
+
+    /**
+     * Creates a ring of the given nodes (in any order, without duplicates), each at virtualNodes points.
+     */
+    HashRing(Collection<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty() || (virtualNodes <= 0)) {
+            throw new IllegalArgumentException("a ring needs nodes and virtual nodes: " + nodes + ", " + virtualNodes);
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(nodes)));
+        List<Point> all = new ArrayList<>(this.nodes.size() * virtualNodes);
+        for (String node : this.nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                all.add(new Point(hash(node + '#' + i), node));
+            }
+        }
+        all.sort((a, b) -> (a.hash != b.hash) ? Long.compare(a.hash, b.hash) : a.node.compareTo(b.node));
+        points = new long[all.size()];
+        owners = new String[all.size()];
+        for (int i = 0; i < all.size(); i++) {
+            points[i] = all.get(i).hash;
+            owners[i] = all.get(i).node;
+        }
+    }
+
+    private static class Point {
+        final long hash;
+        final String node;
+
+        Point(long hash, String node) {
+            this.hash = hash;
+            this.node = node;
+        }
+    }
+
+    /**
+     * Returns the node a key belongs to.
+     */
+    String owner(String key) {
+        int i = Arrays.binarySearch(points, hash(key));
+        if (i < 0) {
+            i = -i - 1;   // the first point after the hash
+        }
+        return owners[(i == points.length) ? 0 : i];
+    }
+
+    /**
+     * Returns the nodes, sorted.
+     */
+    List<String> nodes() {
+        return nodes;
+    }
+
+    static long hash(String s) {
+        byte[] digest = MD5.get().digest(s.getBytes(StandardCharsets.UTF_8));
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xFF);
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "HashRing[nodes=" + nodes + " points=" + points.length + "]";
+    }
+}
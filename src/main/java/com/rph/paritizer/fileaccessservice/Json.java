@@ -0,0 +1,38 @@
+package com.rph.paritizer.fileaccessservice;
+
+
+/**
+ * What the service needs to write JSON by hand: string literals.
+ */
+class Json {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private Json() {
+    }
+
+    /**
+     * Returns s as a JSON string literal, quoted and escaped.
+     */
+    static String quote(String s) {
+        return appendQuoted(new StringBuilder(s.length() + 2), s).toString();
+    }
+
+    /**
+     * Appends s to buf as a JSON string literal, quoted and escaped, and returns buf.
+     */
+    static StringBuilder appendQuoted(StringBuilder buf, String s) {
+        buf.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c == '"') || (c == '\\')) {
+                buf.append('\\').append(c);
+            } else if (c < 0x20) {
+                buf.append("\\u00").append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xF]);
+            } else {
+                buf.append(c);
+            }
+        }
+        return buf.append('"');
+    }
+}
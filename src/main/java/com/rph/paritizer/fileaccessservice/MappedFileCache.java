@@ -0,0 +1,266 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Memory mappings of large files, shared by all the requests reading the same file at the same time.
+ * A file is mapped (read-only) once, on first use; each request acquires the mapping, takes ByteBuffer
+ * views of the byte range it needs, and releases it. A mapping nobody has used for idleMillis is unmapped
+ * right away (see BufferCleaner), rather than whenever the garbage collector notices it. A mapping of
+ * a file whose size or modification time has changed is retired, and unmapped when its last user is done.
+ *
+ * Files longer than 2 GB are mapped as several regions, since a single MappedByteBuffer cannot be larger.
+ *
+ * Configured with system properties:
+ *     fileaccessservice.mmap.thresholdBytes   (default 0, which disables mapping; files at least this long are mapped)
+ *     fileaccessservice.mmap.idleMillis       (default 10000)
+ *
+ * Note that if a mapped file is truncated by another process, reading the lost pages fails with an InternalError.
+ */
+class MappedFileCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MappedFileCache.class);
+
+    static final String THRESHOLD_BYTES_PROPERTY = "fileaccessservice.mmap.thresholdBytes";
+    static final String IDLE_MILLIS_PROPERTY = "fileaccessservice.mmap.idleMillis";
+
+    private static final long REGION_SIZE = 1L << 30;
+
+    /**
+     * The mapping of one file. Callers of acquire() must call release() when done with it.
+     */
+    static class Mapping {
+        final String filePath;
+        final long size;
+        final long lastModified;
+        private final MappedByteBuffer[] regions;
+        private final AtomicInteger users = new AtomicInteger(0);   // -1 once unmapped
+        private volatile long idleSince = System.currentTimeMillis();
+        private volatile boolean retired = false;
+        private final MappedFileCache owner;
+
+        private Mapping(MappedFileCache owner, String filePath, long size, long lastModified, MappedByteBuffer[] regions) {
+            this.owner = owner;
+            this.filePath = filePath;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.regions = regions;
+        }
+
+        /**
+         * Returns read-only views of the given byte range of the file; more than one
+         * if the range spans regions.
+         */
+        List<ByteBuffer> slice(long position, long length) {
+            List<ByteBuffer> slices = new ArrayList<>(1);
+            while (length > 0) {
+                int region = (int) (position / REGION_SIZE);
+                int offset = (int) (position % REGION_SIZE);
+                ByteBuffer view = regions[region].asReadOnlyBuffer();
+                int n = (int) Math.min(length, view.capacity() - offset);
+                view.position(offset);
+                view.limit(offset + n);
+                slices.add(view);
+                position += n;
+                length -= n;
+            }
+            return slices;
+        }
+
+        private boolean retain() {
+            while (true) {
+                int count = users.get();
+                if (count < 0) {
+                    return false;
+                }
+                if (users.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (users.decrementAndGet() == 0) {
+                idleSince = System.currentTimeMillis();
+                if (retired) {
+                    owner.unmap(this);
+                }
+            }
+        }
+    }
+
+    private final long thresholdBytes;
+    private final long idleMillis;
+    private final Map<String, Mapping> mappings = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService reaper;
+
+    private final LongAdder maps = new LongAdder();
+    private final LongAdder unmaps = new LongAdder();
+    private final LongAdder shares = new LongAdder();
+
+    MappedFileCache(long thresholdBytes, long idleMillis) {
+        this.thresholdBytes = thresholdBytes;
+        this.idleMillis = idleMillis;
+        if (isEnabled()) {
+            reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "MappedFileCache-reaper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = Math.max(100, idleMillis / 2);
+            reaper.scheduleWithFixedDelay(this::unmapIdle, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            reaper = null;
+        }
+    }
+
+    /**
+     * Returns a cache configured from the system properties listed above.
+     */
+    static MappedFileCache fromSystemProperties() {
+        long thresholdBytes = Long.getLong(THRESHOLD_BYTES_PROPERTY, 0L);
+        long idleMillis = Long.getLong(IDLE_MILLIS_PROPERTY, 10000L);
+        MappedFileCache cache = new MappedFileCache(thresholdBytes, idleMillis);
+        if (cache.isEnabled()) {
+            LOGGER.info("fromSystemProperties: {}", cache);
+        }
+        return cache;
+    }
+
+    boolean isEnabled() {
+        return thresholdBytes > 0;
+    }
+
+    /**
+     * Returns true if a file of the given size should be served from a mapping.
+     */
+    boolean isMappable(long size) {
+        return isEnabled() && (size >= thresholdBytes);
+    }
+
+    /**
+     * Returns the shared mapping of a file, mapping it if necessary. The caller must release() the result.
+     * Returns null if the file should not be mapped.
+     *
+     * @param filePath the file
+     * @param size the file's current size
+     * @param lastModified the file's current modification time
+     */
+    Mapping acquire(String filePath, long size, long lastModified) throws IOException {
+        if (!isMappable(size)) {
+            return null;
+        }
+        while (true) {
+            Mapping mapping = mappings.get(filePath);
+            if ((mapping != null) && ((mapping.size != size) || (mapping.lastModified != lastModified))) {
+                retire(mapping);
+                mapping = null;
+            }
+            if (mapping == null) {
+                Mapping created = map(filePath, size, lastModified);
+                created.retain();
+                Mapping existing = mappings.putIfAbsent(filePath, created);
+                if (existing == null) {
+                    return created;
+                }
+                created.retired = true;   // another request mapped it first
+                created.release();
+                mapping = existing;
+            }
+            if (mapping.retain()) {
+                shares.increment();
+                return mapping;
+            }
+            mappings.remove(filePath, mapping);   // unmapped just now; try again
+        }
+    }
+
+    long getMaps() {
+        return maps.sum();
+    }
+
+    long getShares() {
+        return shares.sum();
+    }
+
+    long getUnmaps() {
+        return unmaps.sum();
+    }
+
+    int size() {
+        return mappings.size();
+    }
+
+    @Override
+    public String toString() {
+        return "MappedFileCache[thresholdBytes=" + thresholdBytes + " idleMillis=" + idleMillis
+               + " mappings=" + mappings.size() + " maps=" + maps.sum() + " shares=" + shares.sum()
+               + " unmaps=" + unmaps.sum() + "]";
+    }
+
+    private Mapping map(String filePath, long size, long lastModified) throws IOException {
+        int regionCount = (int) ((size + REGION_SIZE - 1) / REGION_SIZE);
+        MappedByteBuffer[] regions = new MappedByteBuffer[regionCount];
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            for (int i = 0; i < regionCount; i++) {
+                long position = i * REGION_SIZE;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(REGION_SIZE, size - position));
+            }
+        } catch (IOException ex) {
+            for (MappedByteBuffer region : regions) {
+                BufferCleaner.free(region);
+            }
+            throw ex;
+        }
+        maps.increment();
+        LOGGER.debug("map: {} ({} bytes)", filePath, size);
+        return new Mapping(this, filePath, size, lastModified, regions);
+    }
+
+    private void retire(Mapping mapping) {
+        mapping.retired = true;
+        mappings.remove(mapping.filePath, mapping);
+        unmap(mapping);
+    }
+
+    /**
+     * Unmaps a mapping if nobody is using it.
+     */
+    private void unmap(Mapping mapping) {
+        if (mapping.users.compareAndSet(0, -1)) {
+            mappings.remove(mapping.filePath, mapping);
+            for (MappedByteBuffer region : mapping.regions) {
+                BufferCleaner.free(region);
+            }
+            unmaps.increment();
+            LOGGER.debug("unmap: {}", mapping.filePath);
+        }
+    }
+
+    private void unmapIdle() {
+        long now = System.currentTimeMillis();
+        for (Mapping mapping : mappings.values()) {
+            if ((mapping.users.get() == 0) && (now - mapping.idleSince >= idleMillis)) {
+                unmap(mapping);
+            }
+        }
+    }
+}
@@ -0,0 +1,603 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Counters and latency histograms for the REST operations, per operation and per disk, and a writer
+ * for those (and for the disks, caches, admission controller and Jetty thread pool) in the Prometheus
+ * text exposition format.
+ *
+ * Recording is meant to stay on in production: every counter is a LongAdder, so request threads
+ * do not contend with each other, and once an operation has been seen on a disk, recording it
+ * again allocates nothing.
+ */
+class Metrics {
+
+    /**
+     * Request property holding the RequestTimer of a request (see MetricsEventListener).
+     */
+    static final String TIMER_PROPERTY = Metrics.class.getName() + ".timer";
+
+    /**
+     * The disk label of operations that are not about a disk.
+     */
+    static final String NO_DISK = "";
+
+    /**
+     * The disk label of operations naming a disk that is not registered, so that
+     * requests for made-up disk names cannot create any number of time series.
+     */
+    static final String UNKNOWN_DISK = "unknown";
+
+    private static final String PREFIX = "fileaccessservice_";
+
+    /**
+     * The upper bounds of the latency histogram buckets, in nanoseconds (100 us to 60 s).
+     */
+    private static final long[] BUCKET_BOUNDS = {
+            100_000L, 250_000L, 500_000L,
+            1_000_000L, 2_500_000L, 5_000_000L,
+            10_000_000L, 25_000_000L, 50_000_000L,
+            100_000_000L, 250_000_000L, 500_000_000L,
+            1_000_000_000L, 2_500_000_000L, 5_000_000_000L,
+            10_000_000_000L, 30_000_000_000L, 60_000_000_000L
+    };
+
+    private static final String[] BUCKET_LABELS = new String[BUCKET_BOUNDS.length + 1];
+
+    static {
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            BUCKET_LABELS[i] = BigDecimal.valueOf(BUCKET_BOUNDS[i], 9).stripTrailingZeros().toPlainString();
+        }
+        BUCKET_LABELS[BUCKET_BOUNDS.length] = "+Inf";
+    }
+
+    /**
+     * A latency histogram with fixed buckets.
+     */
+    static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            int index = Arrays.binarySearch(BUCKET_BOUNDS, nanos);
+            buckets[(index >= 0) ? index : -index - 1].increment();
+            sumNanos.add(nanos);
+        }
+
+        /**
+         * Returns the count of each bucket, cumulatively (as Prometheus wants them); the last is the total count.
+         */
+        long[] cumulativeCounts() {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                total += buckets[i].sum();
+                counts[i] = total;
+            }
+            return counts;
+        }
+
+        double sumSeconds() {
+            return sumNanos.sum() / 1e9;
+        }
+    }
+
+    /**
+     * What has been recorded for one operation on one disk.
+     */
+    static class OperationMetrics {
+        final String operation;
+        final String diskName;
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder inFlight = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder writeFailures = new LongAdder();
+        private final ConcurrentMap<Integer, LongAdder> responses = new ConcurrentHashMap<>();
+        private final Histogram firstByte = new Histogram();
+        private final Histogram total = new Histogram();
+
+        OperationMetrics(String operation, String diskName) {
+            this.operation = operation;
+            this.diskName = diskName;
+        }
+
+        void started() {
+            inFlight.increment();
+        }
+
+        void ended() {
+            inFlight.decrement();
+        }
+
+        /**
+         * Records a finished request.
+         *
+         * @param status the status of the response
+         * @param byteCount the number of bytes of entity written
+         * @param firstByteNanos the time until the response started to be written
+         * @param totalNanos the time until the response had been written
+         * @param failed whether writing the response failed after its status had been sent
+         */
+        void record(int status, long byteCount, long firstByteNanos, long totalNanos, boolean failed) {
+            requests.increment();
+            bytes.add(byteCount);
+            LongAdder count = responses.get(status);
+            if (count == null) {
+                count = responses.computeIfAbsent(status, s -> new LongAdder());
+            }
+            count.increment();
+            if (failed) {
+                writeFailures.increment();
+            }
+            firstByte.record(firstByteNanos);
+            total.record(totalNanos);
+        }
+
+        long getRequests() {
+            return requests.sum();
+        }
+
+        long getInFlight() {
+            return inFlight.sum();
+        }
+
+        long getBytes() {
+            return bytes.sum();
+        }
+    }
+
+    private final ConcurrentMap<String, ConcurrentMap<String, OperationMetrics>> operations = new ConcurrentHashMap<>();
+
+    private volatile ThreadPool threadPool;
+
+    /**
+     * Returns the metrics of an operation on a disk, creating them the first time.
+     *
+     * @param operation the name of the operation (the resource method)
+     * @param diskName the disk label: a disk name, NO_DISK or UNKNOWN_DISK
+     */
+    OperationMetrics forOperation(String operation, String diskName) {
+        ConcurrentMap<String, OperationMetrics> disks = operations.get(operation);
+        if (disks == null) {
+            disks = operations.computeIfAbsent(operation, o -> new ConcurrentHashMap<>());
+        }
+        OperationMetrics metrics = disks.get(diskName);
+        if (metrics == null) {
+            metrics = disks.computeIfAbsent(diskName, d -> new OperationMetrics(operation, d));
+        }
+        return metrics;
+    }
+
+    /**
+     * Sets the server's thread pool, whose saturation is then reported too.
+     */
+    void setThreadPool(ThreadPool threadPool) {
+        this.threadPool = threadPool;
+    }
+
+    /**
+     * Writes all the metrics in the Prometheus text format (version 0.0.4).
+     */
+    void writePrometheus(Writer writer) throws IOException {
+        Map<String, OperationMetrics> sorted = new TreeMap<>();
+        for (ConcurrentMap<String, OperationMetrics> disks : operations.values()) {
+            for (OperationMetrics metrics : disks.values()) {
+                sorted.put(metrics.operation + '\u0000' + metrics.diskName, metrics);
+            }
+        }
+
+        header(writer, "requests_total", "counter", "Requests finished, by operation and disk.");
+        for (OperationMetrics metrics : sorted.values()) {
+            sample(writer, "requests_total", labels(metrics), metrics.getRequests());
+        }
+        header(writer, "requests_in_flight", "gauge", "Requests being handled, by operation and disk.");
+        for (OperationMetrics metrics : sorted.values()) {
+            sample(writer, "requests_in_flight", labels(metrics), metrics.getInFlight());
+        }
+        header(writer, "response_bytes_total", "counter", "Bytes of response entity written, by operation and disk.");
+        for (OperationMetrics metrics : sorted.values()) {
+            sample(writer, "response_bytes_total", labels(metrics), metrics.getBytes());
+        }
+        header(writer, "responses_total", "counter", "Responses, by operation, disk and status.");
+        for (OperationMetrics metrics : sorted.values()) {
+            for (Map.Entry<Integer, LongAdder> count : new TreeMap<>(metrics.responses).entrySet()) {
+                sample(writer, "responses_total", labels(metrics) + ",status=\"" + count.getKey() + '"',
+                       count.getValue().sum());
+            }
+        }
+        header(writer, "response_write_failures_total", "counter",
+               "Responses that failed after their status was sent, by operation and disk.");
+        for (OperationMetrics metrics : sorted.values()) {
+            sample(writer, "response_write_failures_total", labels(metrics), metrics.writeFailures.sum());
+        }
+        header(writer, "time_to_first_byte_seconds", "histogram",
+               "Time from the start of a request until its response started to be written.");
+        for (OperationMetrics metrics : sorted.values()) {
+            histogram(writer, "time_to_first_byte_seconds", labels(metrics), metrics.firstByte);
+        }
+        header(writer, "request_duration_seconds", "histogram",
+               "Time from the start of a request until its response had been written.");
+        for (OperationMetrics metrics : sorted.values()) {
+            histogram(writer, "request_duration_seconds", labels(metrics), metrics.total);
+        }
+
+        writeDisks(writer);
+        writeCaches(writer);
+        writeCompression(writer, FileAccessor.getCompression());
+        writeThumbnails(writer, FileAccessorRESTService.getThumbnails());
+        writeParity(writer, FileAccessor.getParityEngine());
+        writeContentHashes(writer, FileAccessor.getContentHashIndex());
+        writeAdmission(writer, FileAccessorRESTService.getAdmissionController());
+        writeCluster(writer, FileAccessorRESTService.getCluster());
+        writeThreadPool(writer, threadPool);
+        writer.flush();
+    }
+
+    private static void writeDisks(Writer writer) throws IOException {
+        Map<String, Disk> disks = new TreeMap<>();
+        for (Disk disk : FileAccessor.getDisks()) {
+            disks.put(disk.name, disk);
+        }
+        header(writer, "disk_available", "gauge", "1 if the top directory of the disk was usable when last checked.");
+        for (Disk disk : disks.values()) {
+            sample(writer, "disk_available", diskLabel(disk.name), (disk.rootState == Disk.RootState.AVAILABLE) ? 1 : 0);
+        }
+        header(writer, "disk_files", "gauge", "Files in the index of the disk.");
+        for (Disk disk : disks.values()) {
+            sample(writer, "disk_files", diskLabel(disk.name), disk.index.size());
+        }
+        header(writer, "disk_file_reads_total", "counter", "File contents (or ranges) sent completely.");
+        for (Disk disk : disks.values()) {
+            sample(writer, "disk_file_reads_total", diskLabel(disk.name), disk.stats.getReads());
+        }
+        header(writer, "disk_file_read_bytes_total", "counter", "Bytes of file content sent.");
+        for (Disk disk : disks.values()) {
+            sample(writer, "disk_file_read_bytes_total", diskLabel(disk.name), disk.stats.getBytesRead());
+        }
+        header(writer, "disk_file_read_errors_total", "counter", "File contents that could not be sent completely.");
+        for (Disk disk : disks.values()) {
+            sample(writer, "disk_file_read_errors_total", diskLabel(disk.name), disk.stats.getReadErrors());
+        }
+    }
+
+    private static void writeCaches(Writer writer) throws IOException {
+        FileMetadataCache metadataCache = FileAccessor.getMetadataCache();
+        FileContentCache contentCache = FileAccessor.getContentCache();
+        MappedFileCache mappedFileCache = FileAccessor.getMappedFileCache();
+        DirectoryListingCache directoryCache = FileAccessor.getDirectoryCache();
+
+        header(writer, "cache_hits_total", "counter", "Lookups answered from a cache.");
+        sample(writer, "cache_hits_total", "cache=\"metadata\"", metadataCache.getHits());
+        sample(writer, "cache_hits_total", "cache=\"content\"", contentCache.getHits());
+        sample(writer, "cache_hits_total", "cache=\"mapped\"", mappedFileCache.getShares());
+        sample(writer, "cache_hits_total", "cache=\"directory\"", directoryCache.getHits());
+        header(writer, "cache_misses_total", "counter", "Lookups a cache could not answer.");
+        sample(writer, "cache_misses_total", "cache=\"metadata\"", metadataCache.getMisses());
+        sample(writer, "cache_misses_total", "cache=\"content\"", contentCache.getMisses());
+        sample(writer, "cache_misses_total", "cache=\"mapped\"", mappedFileCache.getMaps());
+        sample(writer, "cache_misses_total", "cache=\"directory\"", directoryCache.getMisses());
+        header(writer, "cache_coalesced_misses_total", "counter", "Misses that waited for another request to load the same file.");
+        sample(writer, "cache_coalesced_misses_total", "cache=\"content\"", contentCache.getCoalescedMisses());
+        header(writer, "cache_hit_ratio", "gauge", "Hits as a fraction of lookups, since the service started.");
+        sample(writer, "cache_hit_ratio", "cache=\"metadata\"", ratio(metadataCache.getHits(), metadataCache.getMisses()));
+        sample(writer, "cache_hit_ratio", "cache=\"content\"", ratio(contentCache.getHits(), contentCache.getMisses()));
+        sample(writer, "cache_hit_ratio", "cache=\"mapped\"", ratio(mappedFileCache.getShares(), mappedFileCache.getMaps()));
+        sample(writer, "cache_hit_ratio", "cache=\"directory\"", ratio(directoryCache.getHits(), directoryCache.getMisses()));
+        header(writer, "cache_evictions_total", "counter", "Entries dropped to make room.");
+        sample(writer, "cache_evictions_total", "cache=\"metadata\"", metadataCache.getEvictions());
+        sample(writer, "cache_evictions_total", "cache=\"content\"", contentCache.getEvictions());
+        sample(writer, "cache_evictions_total", "cache=\"mapped\"", mappedFileCache.getUnmaps());
+        sample(writer, "cache_evictions_total", "cache=\"directory\"", directoryCache.getEvictions());
+        header(writer, "cache_entries", "gauge", "Entries in a cache.");
+        sample(writer, "cache_entries", "cache=\"metadata\"", metadataCache.size());
+        sample(writer, "cache_entries", "cache=\"content\"", contentCache.size());
+        sample(writer, "cache_entries", "cache=\"mapped\"", mappedFileCache.size());
+        sample(writer, "cache_entries", "cache=\"directory\"", directoryCache.size());
+        header(writer, "content_cache_bytes", "gauge", "Bytes of file content held by the content cache.");
+        sample(writer, "content_cache_bytes", "", contentCache.getBytes());
+        header(writer, "content_cache_shared_hits_total", "counter",
+               "Content cache hits on content read from another file with the same content.");
+        sample(writer, "content_cache_shared_hits_total", "", contentCache.getSharedHits());
+        header(writer, "content_cache_unverified_total", "counter",
+               "Files read for a shared content cache entry that no longer matched their hash, and were not cached.");
+        sample(writer, "content_cache_unverified_total", "", contentCache.getUnverified());
+    }
+
+    private static void writeCompression(Writer writer, Compression compression) throws IOException {
+        List<Compression.Stats> allStats = new ArrayList<>();
+        for (Compression.Encoding encoding : Compression.Encoding.values()) {
+            for (Compression.Source source : Compression.Source.values()) {
+                Compression.Stats stats = compression.stats(encoding, source);
+                if (stats.getResponses() > 0) {
+                    allStats.add(stats);
+                }
+            }
+        }
+        header(writer, "compressed_responses_total", "counter", "Responses sent compressed, by encoding and source.");
+        for (Compression.Stats stats : allStats) {
+            sample(writer, "compressed_responses_total", labels(stats), stats.getResponses());
+        }
+        header(writer, "compression_input_bytes_total", "counter", "Bytes of content before compression.");
+        for (Compression.Stats stats : allStats) {
+            sample(writer, "compression_input_bytes_total", labels(stats), stats.getInputBytes());
+        }
+        header(writer, "compression_output_bytes_total", "counter", "Bytes of content after compression.");
+        for (Compression.Stats stats : allStats) {
+            sample(writer, "compression_output_bytes_total", labels(stats), stats.getOutputBytes());
+        }
+        header(writer, "compression_saved_bytes_total", "counter", "Bytes not sent thanks to compression.");
+        for (Compression.Stats stats : allStats) {
+            sample(writer, "compression_saved_bytes_total", labels(stats), stats.getInputBytes() - stats.getOutputBytes());
+        }
+        header(writer, "compression_cpu_seconds_total", "counter",
+               "CPU time spent compressing: responses as they were written, and variants as they were made.");
+        for (Compression.Encoding encoding : Compression.Encoding.values()) {
+            for (Compression.Source source : Compression.Source.values()) {
+                Compression.Stats stats = compression.stats(encoding, source);
+                if (stats.getCpuNanos() > 0) {
+                    sample(writer, "compression_cpu_seconds_total", labels(stats), stats.getCpuNanos() / 1e9);
+                }
+            }
+        }
+        header(writer, "compression_variants_made_total", "counter", "Compressed variants of files made, by encoding.");
+        for (Compression.Encoding encoding : Compression.Encoding.values()) {
+            if (encoding.canCompress()) {
+                sample(writer, "compression_variants_made_total", "encoding=\"" + encoding.token + '"',
+                       compression.getVariantsMade(encoding));
+            }
+        }
+        header(writer, "compression_variants_not_worth_it_total", "counter",
+               "Files found not to shrink enough to be worth sending compressed, by encoding.");
+        for (Compression.Encoding encoding : Compression.Encoding.values()) {
+            if (encoding.canCompress()) {
+                sample(writer, "compression_variants_not_worth_it_total", "encoding=\"" + encoding.token + '"',
+                       compression.getVariantsNotWorthIt(encoding));
+            }
+        }
+        header(writer, "compression_variant_dir_bytes", "gauge", "Bytes of compressed variants kept in the variant directory.");
+        sample(writer, "compression_variant_dir_bytes", "", compression.getVariantDirectoryBytes());
+        header(writer, "compression_variants_evicted_total", "counter",
+               "Compressed variants deleted to keep the variant directory to its size.");
+        sample(writer, "compression_variants_evicted_total", "", compression.getVariantsEvicted());
+    }
+
+    private static void writeThumbnails(Writer writer, Thumbnails thumbnails) throws IOException {
+        header(writer, "thumbnail_requests_total", "counter",
+               "Thumbnail requests, by result: hit (already made), made, coalesced (waited for another request's), "
+               + "rejected (too many waiting) or failed.");
+        sample(writer, "thumbnail_requests_total", "result=\"hit\"", thumbnails.getHits());
+        sample(writer, "thumbnail_requests_total", "result=\"made\"", thumbnails.getMade());
+        sample(writer, "thumbnail_requests_total", "result=\"coalesced\"", thumbnails.getCoalesced());
+        sample(writer, "thumbnail_requests_total", "result=\"rejected\"", thumbnails.getRejected());
+        sample(writer, "thumbnail_requests_total", "result=\"failed\"", thumbnails.getFailed());
+        header(writer, "thumbnail_make_seconds_total", "counter", "Time spent making thumbnails.");
+        sample(writer, "thumbnail_make_seconds_total", "", thumbnails.getMakeSeconds());
+        header(writer, "thumbnails_queued", "gauge", "Thumbnails waiting for a worker thread.");
+        sample(writer, "thumbnails_queued", "", thumbnails.getQueued());
+        header(writer, "thumbnail_cache_entries", "gauge", "Thumbnails kept in the thumbnail cache directory.");
+        sample(writer, "thumbnail_cache_entries", "", thumbnails.size());
+        header(writer, "thumbnail_cache_bytes", "gauge", "Bytes of thumbnails kept in the thumbnail cache directory.");
+        sample(writer, "thumbnail_cache_bytes", "", thumbnails.getCacheBytes());
+        header(writer, "thumbnail_cache_evictions_total", "counter", "Thumbnails deleted to make room.");
+        sample(writer, "thumbnail_cache_evictions_total", "", thumbnails.getEvictions());
+    }
+
+    private static void writeContentHashes(Writer writer, ContentHashIndex index) throws IOException {
+        header(writer, "content_hashed_files", "gauge", "Files whose content hash is known.");
+        sample(writer, "content_hashed_files", "", index.size());
+        header(writer, "content_distinct_hashes", "gauge",
+               "Different contents among the hashed files; the rest are duplicates.");
+        sample(writer, "content_distinct_hashes", "", index.getDistinctHashes());
+        header(writer, "content_hash_pending_files", "gauge", "Files waiting to be hashed.");
+        sample(writer, "content_hash_pending_files", "", index.getPending());
+        header(writer, "content_hashes_total", "counter", "Files hashed.");
+        sample(writer, "content_hashes_total", "", index.getFilesHashed());
+        header(writer, "content_hash_bytes_total", "counter", "Bytes of files hashed.");
+        sample(writer, "content_hash_bytes_total", "", index.getBytesHashed());
+        header(writer, "content_hash_seconds_total", "counter", "Time spent hashing files, including being throttled.");
+        sample(writer, "content_hash_seconds_total", "", index.getHashSeconds());
+        header(writer, "content_hash_throttled_seconds_total", "counter",
+               "Time hashing held off, for file reads in flight or to keep within its rate.");
+        sample(writer, "content_hash_throttled_seconds_total", "", index.getThrottledSeconds());
+        header(writer, "content_hash_errors_total", "counter", "Files that could not be hashed.");
+        sample(writer, "content_hash_errors_total", "", index.getFailures());
+    }
+
+    private static void writeParity(Writer writer, ParityEngine engine) throws IOException {
+        header(writer, "parity_stripes", "gauge", "Stripes covered by the parity of the group.");
+        for (ParityGroup group : engine.getGroups()) {
+            sample(writer, "parity_stripes", groupLabel(group.name), group.getLayout().stripes);
+        }
+        header(writer, "parity_dirty_stripes", "gauge", "Stripes of the group whose parity is not up to date.");
+        for (ParityGroup group : engine.getGroups()) {
+            sample(writer, "parity_dirty_stripes", groupLabel(group.name), group.getLayout().dirty.cardinality());
+        }
+        header(writer, "parity_running", "gauge", "1 if the parity of the group is being computed.");
+        for (ParityGroup group : engine.getGroups()) {
+            sample(writer, "parity_running", groupLabel(group.name), group.isRunning() ? 1 : 0);
+        }
+        header(writer, "parity_runs_total", "counter", "Parity runs of the group, by result.");
+        for (ParityGroup group : engine.getGroups()) {
+            long failed = group.getFailedRuns();
+            sample(writer, "parity_runs_total", groupLabel(group.name) + ",result=\"ok\"", group.getRuns() - failed);
+            sample(writer, "parity_runs_total", groupLabel(group.name) + ",result=\"failed\"", failed);
+        }
+        header(writer, "parity_read_bytes_total", "counter", "Bytes of the group's files read to compute parity.");
+        for (ParityGroup group : engine.getGroups()) {
+            sample(writer, "parity_read_bytes_total", groupLabel(group.name), group.getBytesRead());
+        }
+        header(writer, "parity_written_bytes_total", "counter", "Bytes of parity written.");
+        for (ParityGroup group : engine.getGroups()) {
+            sample(writer, "parity_written_bytes_total", groupLabel(group.name), group.getBytesWritten());
+        }
+        header(writer, "parity_reconstructions_total", "counter",
+               "Files (or ranges) of the group's disks rebuilt from parity, by result.");
+        for (ParityGroup group : engine.getGroups()) {
+            sample(writer, "parity_reconstructions_total", groupLabel(group.name) + ",result=\"ok\"",
+                   group.getReconstructions());
+            sample(writer, "parity_reconstructions_total", groupLabel(group.name) + ",result=\"failed\"",
+                   group.getFailedReconstructions());
+        }
+        header(writer, "parity_reconstructed_bytes_total", "counter", "Bytes of files rebuilt from parity.");
+        for (ParityGroup group : engine.getGroups()) {
+            sample(writer, "parity_reconstructed_bytes_total", groupLabel(group.name), group.getReconstructedBytes());
+        }
+        header(writer, "parity_last_run_seconds", "gauge", "How long the group's last parity run took.");
+        for (ParityGroup group : engine.getGroups()) {
+            ParityGroup.RunStats lastRun = group.getLastRun();
+            if (lastRun != null) {
+                sample(writer, "parity_last_run_seconds", groupLabel(group.name), lastRun.nanos / 1e9);
+            }
+        }
+        header(writer, "parity_last_run_megabytes_per_second", "gauge",
+               "Megabytes of files read per second by the group's last parity run.");
+        for (ParityGroup group : engine.getGroups()) {
+            ParityGroup.RunStats lastRun = group.getLastRun();
+            if (lastRun != null) {
+                sample(writer, "parity_last_run_megabytes_per_second", groupLabel(group.name),
+                       lastRun.getMegabytesPerSecond());
+            }
+        }
+    }
+
+    private static void writeAdmission(Writer writer, AdmissionController admission) throws IOException {
+        header(writer, "reads_in_flight", "gauge", "File reads admitted and not yet finished.");
+        sample(writer, "reads_in_flight", "", admission.getInFlight(null));
+        header(writer, "reads_admitted_total", "counter", "File reads admitted.");
+        sample(writer, "reads_admitted_total", "", admission.getAdmitted());
+        header(writer, "reads_rejected_total", "counter", "File reads turned away with a 503, by reason.");
+        sample(writer, "reads_rejected_total", "reason=\"paused\"", admission.getRejectedPaused());
+        sample(writer, "reads_rejected_total", "reason=\"overloaded\"", admission.getRejectedOverloaded());
+    }
+
+    private static void writeCluster(Writer writer, Cluster cluster) throws IOException {
+        if (!cluster.isEnabled()) {
+            return;
+        }
+        List<String> peers = new ArrayList<>(cluster.getNodes());
+        peers.remove(cluster.getSelf());
+        header(writer, "cluster_nodes", "gauge", "Nodes in the cluster, including this one.");
+        sample(writer, "cluster_nodes", "", cluster.getNodes().size());
+        header(writer, "cluster_forwarded_requests_total", "counter", "Requests forwarded to the peer a disk is placed on.");
+        for (String peer : peers) {
+            sample(writer, "cluster_forwarded_requests_total", peerLabel(peer), cluster.getPeerStats(peer).forwarded.sum());
+        }
+        header(writer, "cluster_redirected_requests_total", "counter", "Requests redirected to the peer a disk is placed on.");
+        for (String peer : peers) {
+            sample(writer, "cluster_redirected_requests_total", peerLabel(peer), cluster.getPeerStats(peer).redirected.sum());
+        }
+        header(writer, "cluster_forward_failures_total", "counter",
+               "Forwarded requests the peer did not respond to in time, or whose response could not be passed on.");
+        for (String peer : peers) {
+            sample(writer, "cluster_forward_failures_total", peerLabel(peer), cluster.getPeerStats(peer).failures.sum());
+        }
+        header(writer, "cluster_disk_list_failures_total", "counter", "Times the peer's disks could not be listed.");
+        for (String peer : peers) {
+            sample(writer, "cluster_disk_list_failures_total", peerLabel(peer),
+                   cluster.getPeerStats(peer).diskListFailures.sum());
+        }
+    }
+
+    private static void writeThreadPool(Writer writer, ThreadPool threadPool) throws IOException {
+        if (threadPool == null) {
+            return;   // not running in the embedded server
+        }
+        if (threadPool.getThreads() >= 0) {   // not known for virtual threads
+            header(writer, "threadpool_threads", "gauge", "Threads in the server's thread pool.");
+            sample(writer, "threadpool_threads", "", threadPool.getThreads());
+            header(writer, "threadpool_idle_threads", "gauge", "Idle threads in the server's thread pool.");
+            sample(writer, "threadpool_idle_threads", "", threadPool.getIdleThreads());
+        }
+        header(writer, "threadpool_low_on_threads", "gauge", "1 if the server's thread pool is low on threads.");
+        sample(writer, "threadpool_low_on_threads", "", threadPool.isLowOnThreads() ? 1 : 0);
+        if (threadPool instanceof QueuedThreadPool) {
+            QueuedThreadPool queuedThreadPool = (QueuedThreadPool) threadPool;
+            header(writer, "threadpool_max_threads", "gauge", "The most threads the server's thread pool may have.");
+            sample(writer, "threadpool_max_threads", "", queuedThreadPool.getMaxThreads());
+            header(writer, "threadpool_busy_threads", "gauge", "Busy threads in the server's thread pool.");
+            sample(writer, "threadpool_busy_threads", "", queuedThreadPool.getBusyThreads());
+            header(writer, "threadpool_utilization", "gauge", "Busy threads as a fraction of the maximum.");
+            sample(writer, "threadpool_utilization", "",
+                   (double) queuedThreadPool.getBusyThreads() / queuedThreadPool.getMaxThreads());
+            header(writer, "threadpool_queued_jobs", "gauge", "Jobs waiting for a thread.");
+            sample(writer, "threadpool_queued_jobs", "", queuedThreadPool.getQueueSize());
+        }
+    }
+
+    private static void header(Writer writer, String name, String type, String help) throws IOException {
+        writer.write("# HELP " + PREFIX + name + ' ' + help + '\n');
+        writer.write("# TYPE " + PREFIX + name + ' ' + type + '\n');
+    }
+
+    private static void sample(Writer writer, String name, String labels, double value) throws IOException {
+        writer.write(PREFIX);
+        writer.write(name);
+        if (!labels.isEmpty()) {
+            writer.write('{');
+            writer.write(labels);
+            writer.write('}');
+        }
+        writer.write(' ');
+        writer.write((value == (long) value) ? Long.toString((long) value) : Double.toString(value));
+        writer.write('\n');
+    }
+
+    private static void histogram(Writer writer, String name, String labels, Histogram histogram) throws IOException {
+        long[] counts = histogram.cumulativeCounts();
+        for (int i = 0; i < counts.length; i++) {
+            sample(writer, name + "_bucket", labels + ",le=\"" + BUCKET_LABELS[i] + '"', counts[i]);
+        }
+        sample(writer, name + "_sum", labels, histogram.sumSeconds());
+        sample(writer, name + "_count", labels, counts[counts.length - 1]);
+    }
+
+    private static String labels(Compression.Stats stats) {
+        return "encoding=\"" + stats.encoding.token + "\",source=\"" + stats.source.label + '"';
+    }
+
+    private static String labels(OperationMetrics metrics) {
+        return "operation=\"" + metrics.operation + "\"," + diskLabel(metrics.diskName);
+    }
+
+    private static String diskLabel(String diskName) {
+        return "disk=\"" + escape(diskName) + '"';
+    }
+
+    private static String peerLabel(String peer) {
+        return "peer=\"" + escape(peer) + '"';
+    }
+
+    private static String groupLabel(String groupName) {
+        return "group=\"" + escape(groupName) + '"';
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static double ratio(long hits, long misses) {
+        long lookups = hits + misses;
+        return (lookups == 0) ? 0 : (double) hits / lookups;
+    }
+}
@@ -0,0 +1,110 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.glassfish.jersey.server.ContainerResponse;
+import org.glassfish.jersey.server.ExtendedUriInfo;
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+
+import javax.ws.rs.ext.Provider;
+
+
+/**
+ * Times each request that is matched to a resource method, and records it in the Metrics of
+ * FileAccessorRESTService once Jersey has finished with it (after the response has been written).
+ * The time to first byte and the byte count come from MetricsInterceptor. A response whose content
+ * is sent by a FileSender.AsyncSend is recorded once the content has been sent.
+ */
+@Provider
+public class MetricsEventListener implements ApplicationEventListener {
+
+    @Override
+    public void onEvent(ApplicationEvent event) {
+        // nothing to do
+    }
+
+    @Override
+    public RequestEventListener onRequest(RequestEvent requestEvent) {
+        return new RequestTimer(FileAccessorRESTService.getMetrics());
+    }
+
+    /**
+     * The timings of one request.
+     */
+    static class RequestTimer implements RequestEventListener {
+
+        private final Metrics metrics;
+        private final long start = System.nanoTime();
+        private Metrics.OperationMetrics started;   // null until a resource method is matched
+        private volatile long firstByte;            // the nanoTime when the entity started to be written, or 0
+        private volatile long bytes;
+
+        RequestTimer(Metrics metrics) {
+            this.metrics = metrics;
+        }
+
+        /**
+         * Notes that the response is about to be written.
+         */
+        void writing() {
+            if (firstByte == 0) {
+                firstByte = System.nanoTime();
+            }
+        }
+
+        /**
+         * Notes that byteCount bytes of entity have been written.
+         */
+        void written(long byteCount) {
+            bytes += byteCount;   // only the writing thread updates it
+        }
+
+        @Override
+        public void onEvent(RequestEvent event) {
+            switch (event.getType()) {
+                case RESOURCE_METHOD_START:
+                    started = metrics.forOperation(operation(event.getUriInfo()), diskLabel(event.getUriInfo()));
+                    started.started();
+                    event.getContainerRequest().setProperty(Metrics.TIMER_PROPERTY, this);
+                    break;
+                case FINISHED:
+                    if (started != null) {
+                        finished(event);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void finished(RequestEvent event) {
+            ContainerResponse response = event.getContainerResponse();
+            int status = (response == null) ? 500 : response.getStatus();
+            boolean success = event.isSuccess();
+            // the disk label is looked up again, since setDisk has registered its disk by now
+            Metrics.OperationMetrics finished = metrics.forOperation(started.operation, diskLabel(event.getUriInfo()));
+            Object asyncSend = event.getContainerRequest().getProperty(FileSender.ASYNC_SEND_PROPERTY);
+            FileSender.whenSent(asyncSend, () -> {
+                long end = System.nanoTime();
+                started.ended();
+                long firstByteNanos = ((firstByte == 0) ? end : firstByte) - start;
+                boolean failed = (!success || ((asyncSend != null) && ((FileSender.AsyncSend) asyncSend).isFailed()))
+                                 && (firstByte != 0);
+                finished.record(status, bytes, firstByteNanos, end - start, failed);
+            });
+        }
+
+        private static String operation(ExtendedUriInfo uriInfo) {
+            return uriInfo.getMatchedResourceMethod().getInvocable().getHandlingMethod().getName();
+        }
+
+        private static String diskLabel(ExtendedUriInfo uriInfo) {
+            String diskName = uriInfo.getPathParameters().getFirst("diskName");
+            if (diskName == null) {
+                return Metrics.NO_DISK;
+            }
+            return FileAccessor.isRegistered(diskName) ? diskName : Metrics.UNKNOWN_DISK;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.rph.paritizer.fileaccessservice;
+
+import javax.annotation.Priority;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * Tells the RequestTimer of a request (see MetricsEventListener) when its entity starts to be written,
+ * and how many bytes were written. Entities that go to the stream Jersey gives them are counted as they
+ * are written; a FileSender.DirectOutput bypasses that stream, so its Content-Length is counted once
+ * it has been sent (which, for a FileSender.AsyncSend, is after this returns).
+ */
+@Provider
+@Priority(Integer.MAX_VALUE - 1)   // just outside DirectOutputInterceptor
+public class MetricsInterceptor implements WriterInterceptor {
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+        Object timer = context.getProperty(Metrics.TIMER_PROPERTY);
+        if (!(timer instanceof MetricsEventListener.RequestTimer)) {
+            context.proceed();
+            return;
+        }
+        MetricsEventListener.RequestTimer requestTimer = (MetricsEventListener.RequestTimer) timer;
+        requestTimer.writing();
+        if (context.getEntity() instanceof FileSender.DirectOutput) {
+            context.proceed();
+            Object contentLength = context.getHeaders().getFirst("Content-Length");
+            if (contentLength != null) {
+                Object asyncSend = context.getProperty(FileSender.ASYNC_SEND_PROPERTY);
+                FileSender.whenSent(asyncSend, () -> {
+                    if ((asyncSend == null) || !((FileSender.AsyncSend) asyncSend).isFailed()) {
+                        requestTimer.written(Long.parseLong(contentLength.toString()));
+                    }
+                });
+            }
+            return;
+        }
+        CountingOutputStream out = new CountingOutputStream(context.getOutputStream());
+        context.setOutputStream(out);
+        try {
+            context.proceed();
+        } finally {
+            requestTimer.written(out.count);
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.rph.paritizer.fileaccessservice;
+
+import com.rph.paritizer.fileaccessservice.exceptions.ParityGroupNotFoundException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * The parity groups (see ParityGroup), and the ForkJoinPool that computes their parity.
+ *
+ * A disk can be in at most one group. The pool is shared by all groups, so computing the parity of
+ * several groups at once uses no more threads than computing one.
+ *
+ * Configured with system properties:
+ *     fileaccessservice.parity.threads      (default the number of processors)
+ *     fileaccessservice.parity.blockSize    (default 262144; a multiple of 8)
+ *     fileaccessservice.parity.readBytes    (default 4194304; how much of each disk a task reads at a time)
+ *     fileaccessservice.parity.maxBufferBytes   (default 268435456; the most buffer memory one group's run uses,
+ *                                               which may make tasks read less than readBytes)
+ */
+class ParityEngine {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParityEngine.class);
+
+    static final String THREADS_PROPERTY = "fileaccessservice.parity.threads";
+    static final String BLOCK_SIZE_PROPERTY = "fileaccessservice.parity.blockSize";
+    static final String READ_BYTES_PROPERTY = "fileaccessservice.parity.readBytes";
+    static final String MAX_BUFFER_BYTES_PROPERTY = "fileaccessservice.parity.maxBufferBytes";
+
+    private final int threads;
+    private final int blockSize;
+    private final int readBytes;
+    private final long maxBufferBytes;
+    private final ForkJoinPool pool;
+    private final Map<String, ParityGroup> groups = new ConcurrentSkipListMap<>();
+
+    ParityEngine(int threads, int blockSize, int readBytes, long maxBufferBytes) {
+        this.threads = threads;
+        this.blockSize = blockSize;
+        this.readBytes = readBytes;
+        this.maxBufferBytes = maxBufferBytes;
+        AtomicInteger threadCount = new AtomicInteger(0);
+        this.pool = new ForkJoinPool(threads, forkJoinPool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("parity-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+    }
+
+    /**
+     * Returns a ParityEngine configured from the system properties listed above.
+     */
+    static ParityEngine fromSystemProperties() {
+        ParityEngine engine = new ParityEngine(
+                Math.max(1, Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors())),
+                Integer.getInteger(BLOCK_SIZE_PROPERTY, 256 * 1024),
+                Integer.getInteger(READ_BYTES_PROPERTY, 4 * 1024 * 1024),
+                Long.getLong(MAX_BUFFER_BYTES_PROPERTY, 256L * 1024 * 1024));
+        LOGGER.info("fromSystemProperties: {}", engine);
+        return engine;
+    }
+
+    /**
+     * Adds a parity group, keeping its parity files (and layout) in parityDirectory.
+     *
+     * @throws IllegalArgumentException if there is already a group of that name, a disk is already in a group
+     *                                  or is named twice, or the number of parity files is out of range
+     */
+    synchronized ParityGroup addGroup(String groupName, File parityDirectory, List<String> diskNames, int parityCount)
+            throws IOException {
+        if (groups.containsKey(groupName)) {
+            throw new IllegalArgumentException("there is already a parity group named " + groupName);
+        }
+        for (int j = 0; j < diskNames.size(); j++) {
+            String diskName = diskNames.get(j);
+            if (diskNames.indexOf(diskName) != j) {
+                throw new IllegalArgumentException(groupName + ": disk " + diskName + " is named twice");
+            }
+            ParityGroup other = groupOf(diskName);
+            if (other != null) {
+                throw new IllegalArgumentException(groupName + ": disk " + diskName + " is already in parity group "
+                                                   + other.name);
+            }
+        }
+        ParityGroup group = new ParityGroup(groupName, parityDirectory, diskNames, parityCount, blockSize, readBytes,
+                                            maxBufferBytes, pool);
+        groups.put(groupName, group);
+        LOGGER.info("addGroup: {}", group);
+        return group;
+    }
+
+    ParityGroup getGroup(String groupName) throws ParityGroupNotFoundException {
+        ParityGroup group = groups.get(groupName);
+        if (group == null) {
+            throw new ParityGroupNotFoundException("no parity group named " + groupName);
+        }
+        return group;
+    }
+
+    /**
+     * Returns the group the disk is in, or null if it is in none.
+     */
+    ParityGroup groupOf(String diskName) {
+        for (ParityGroup group : groups.values()) {
+            if (group.diskNames.contains(diskName)) {
+                return group;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns how to rebuild a file of a disk from its parity group, or null if the disk is in no group or
+     * the file cannot be rebuilt (see ParityReconstruction.open()).
+     */
+    ParityReconstruction reconstruct(String diskName, String relativePath) {
+        ParityGroup group = groupOf(diskName);
+        return (group == null) ? null : ParityReconstruction.open(group, diskName, relativePath);
+    }
+
+    Collection<ParityGroup> getGroups() {
+        return groups.values();
+    }
+
+    /**
+     * Returns the status of every group, as a JSON array.
+     */
+    String getGroupList() {
+        StringBuilder buf = new StringBuilder("[");
+        String separator = "\n";
+        for (ParityGroup group : groups.values()) {
+            buf.append(separator).append(group.getStatus().trim());
+            separator = ",\n";
+        }
+        buf.append("\n]\n");
+        return buf.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "ParityEngine[threads=" + threads + " blockSize=" + blockSize + " readBytes=" + readBytes
+               + " maxBufferBytes=" + maxBufferBytes + "]";
+    }
+}
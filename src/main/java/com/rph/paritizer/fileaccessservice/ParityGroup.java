@@ -0,0 +1,897 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Parity across a group of disks, so that the files of a missing disk can be rebuilt from the others.
+ *
+ * Each member disk's files are laid out, one after another, in a space of blocks of blockSize bytes
+ * (the last block of each file padded with zeros). Block i of every member makes up stripe i, and block i
+ * of parity file k holds parity row k of that stripe: row 0 is the XOR of the blocks, and any further rows
+ * are Reed-Solomon rows (see GaloisField.coefficient()), so with m parity files any m members can be lost.
+ * The layout (which blocks each file occupies, and the size and modification time of the version of the
+ * file that parity covers) is saved next to the parity files, so it is known even when a disk is not.
+ *
+ * Parity is computed by run(). The first run lays out every file and computes every stripe; later runs
+ * compare the layout with the members' indexes, give blocks to files that are new or have changed
+ * (reusing the blocks of files that are gone, where they fit), and recompute only the stripes those
+ * blocks are in. Stripes whose parity is not current are recorded as dirty in the saved layout before
+ * any parity is written, and cleared only once it has been written and forced to disk, so a run that
+ * fails or is interrupted leaves an accurate record of which stripes cannot be trusted.
+ *
+ * Stripes are computed in tasks of readBytes / blockSize stripes each, on a ForkJoinPool: each task reads
+ * its span of every member with large positional reads (whole extents of files at a time) into direct
+ * buffers, and combines them a long at a time. A task needs a buffer per member and per parity file, and
+ * a run keeps the sets of buffers it has made for its later tasks; so that this stays within maxBufferBytes
+ * however many members and threads there are, tasks are made smaller if need be, and a run makes no more
+ * sets than the budget holds (tasks wait for a set when it has). A run's progress, and the throughput
+ * (megabytes of member data read per second) of the last run, are reported by status.
+ *
+ * Files that cannot be read from their own disk are rebuilt from the others by ParityReconstruction.
+ */
+class ParityGroup {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParityGroup.class);
+
+    private static final int LAYOUT_MAGIC = 0x46415350;   // "FASP"
+    private static final int LAYOUT_VERSION = 1;
+
+    /**
+     * Where one file lies in its member's block space, and the version of the file that parity covers.
+     */
+    static class Extent {
+        final String relativePath;
+        final long size;
+        final long lastModified;
+        final long firstBlock;   // -1 for an empty file, which has no blocks
+
+        Extent(String relativePath, long size, long lastModified, long firstBlock) {
+            this.relativePath = relativePath;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.firstBlock = firstBlock;
+        }
+
+        long endBlock(int blockSize) {
+            return firstBlock + blocks(size, blockSize);
+        }
+    }
+
+    /**
+     * The layout of one member disk. Not modified once it is part of a published Layout.
+     */
+    static class Member {
+        final String diskName;
+        final String top;
+        final NavigableMap<String, Extent> byPath = new TreeMap<>();
+        final NavigableMap<Long, Extent> byBlock = new TreeMap<>();
+
+        Member(String diskName, String top) {
+            this.diskName = diskName;
+            this.top = top;
+        }
+
+        Member copy(String newTop) {
+            Member copy = new Member(diskName, newTop);
+            copy.byPath.putAll(byPath);
+            copy.byBlock.putAll(byBlock);
+            return copy;
+        }
+
+        void add(Extent extent) {
+            byPath.put(extent.relativePath, extent);
+            if (extent.firstBlock >= 0) {
+                byBlock.put(extent.firstBlock, extent);
+            }
+        }
+
+        void remove(Extent extent) {
+            byPath.remove(extent.relativePath);
+            if (extent.firstBlock >= 0) {
+                byBlock.remove(extent.firstBlock);
+            }
+        }
+
+        long endBlock(int blockSize) {
+            return byBlock.isEmpty() ? 0 : byBlock.lastEntry().getValue().endBlock(blockSize);
+        }
+
+        /**
+         * Returns the runs of unused blocks before the last extent, as {first block, length} pairs.
+         */
+        List<long[]> gaps(int blockSize) {
+            List<long[]> gaps = new ArrayList<>();
+            long next = 0;
+            for (Extent extent : byBlock.values()) {
+                if (extent.firstBlock > next) {
+                    gaps.add(new long[] { next, extent.firstBlock - next });
+                }
+                next = extent.endBlock(blockSize);
+            }
+            return gaps;
+        }
+    }
+
+    /**
+     * The layout of every member, the number of stripes, and the stripes whose parity is not current.
+     * Immutable once published.
+     */
+    static class Layout {
+        final List<Member> members;
+        final long stripes;
+        final BitSet dirty;
+
+        Layout(List<Member> members, long stripes, BitSet dirty) {
+            this.members = Collections.unmodifiableList(members);
+            this.stripes = stripes;
+            this.dirty = dirty;
+        }
+    }
+
+    /**
+     * What a run did.
+     */
+    static class RunStats {
+        final boolean full;
+        final long startedAt;
+        final long nanos;
+        final int filesLaidOut;
+        final int filesRemoved;
+        final long stripes;
+        final long bytesRead;
+        final long bytesWritten;
+        final String error;   // null if the run succeeded
+
+        RunStats(boolean full, long startedAt, long nanos, int filesLaidOut, int filesRemoved,
+                 long stripes, long bytesRead, long bytesWritten, String error) {
+            this.full = full;
+            this.startedAt = startedAt;
+            this.nanos = nanos;
+            this.filesLaidOut = filesLaidOut;
+            this.filesRemoved = filesRemoved;
+            this.stripes = stripes;
+            this.bytesRead = bytesRead;
+            this.bytesWritten = bytesWritten;
+            this.error = error;
+        }
+
+        /**
+         * Returns the megabytes (10^6 bytes) of member data read per second.
+         */
+        double getMegabytesPerSecond() {
+            return (nanos == 0) ? 0 : (bytesRead / 1e6) / (nanos / 1e9);
+        }
+    }
+
+    /**
+     * The progress of the run in progress.
+     */
+    private static class Progress {
+        final long startedAt = System.currentTimeMillis();
+        final long startNanos = System.nanoTime();
+        volatile long stripesToDo;
+        final LongAdder stripesDone = new LongAdder();
+        final LongAdder bytesRead = new LongAdder();
+        final LongAdder bytesWritten = new LongAdder();
+        final BitSet incomplete = new BitSet();   // stripes with files that could not be read in full; guarded by itself
+    }
+
+    final String name;
+    final File parityDirectory;
+    final List<String> diskNames;
+    final int parityCount;
+    final int blockSize;
+
+    private final int stripesPerTask;
+    private final int maxBufferSets;
+    private final int[][] coefficients;   // [parity row][member]
+    private final ForkJoinPool pool;
+    private final File layoutFile;
+    private final File[] parityFiles;
+
+    private volatile Layout layout;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private volatile Progress progress;   // null when not running
+    private volatile RunStats lastRun;
+
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder failedRuns = new LongAdder();
+    private final LongAdder totalBytesRead = new LongAdder();
+    private final LongAdder totalBytesWritten = new LongAdder();
+    private final LongAdder reconstructions = new LongAdder();
+    private final LongAdder reconstructedBytes = new LongAdder();
+    private final LongAdder failedReconstructions = new LongAdder();
+
+    /**
+     * Creates a group, picking up the layout saved by an earlier run if there is one (and it is for the
+     * same members, block size and number of parity files; otherwise every stripe is dirty until the
+     * next run).
+     *
+     * @param readBytes how much of each member a task reads (rounded down to whole blocks)
+     * @param maxBufferBytes the most buffer memory a run uses (see above)
+     */
+    ParityGroup(String name, File parityDirectory, List<String> diskNames, int parityCount, int blockSize,
+                int readBytes, long maxBufferBytes, ForkJoinPool pool) throws IOException {
+        if (diskNames.isEmpty()) {
+            throw new IllegalArgumentException(name + ": a parity group needs at least one disk");
+        }
+        if ((parityCount < 1) || (parityCount > 255 - diskNames.size())) {
+            throw new IllegalArgumentException(name + ": cannot have " + parityCount + " parity files for "
+                                               + diskNames.size() + " disks");
+        }
+        if ((blockSize <= 0) || (blockSize % 8 != 0)) {
+            throw new IllegalArgumentException(name + ": block size must be a positive multiple of 8: " + blockSize);
+        }
+        this.name = name;
+        this.parityDirectory = parityDirectory;
+        this.diskNames = Collections.unmodifiableList(new ArrayList<>(diskNames));
+        this.parityCount = parityCount;
+        this.blockSize = blockSize;
+        long stripeBytes = (long) (diskNames.size() + parityCount) * blockSize;   // one stripe's buffers
+        int sets = pool.getParallelism() + 1;   // one per thread, and one to spare
+        long budgetStripes = maxBufferBytes / (sets * stripeBytes);
+        this.stripesPerTask = (int) Math.max(1, Math.min(readBytes / blockSize, budgetStripes));
+        this.maxBufferSets = (int) Math.max(1, Math.min(sets, maxBufferBytes / (stripesPerTask * stripeBytes)));
+        this.coefficients = new int[parityCount][diskNames.size()];
+        for (int k = 0; k < parityCount; k++) {
+            for (int j = 0; j < diskNames.size(); j++) {
+                coefficients[k][j] = GaloisField.coefficient(k, j, diskNames.size());
+            }
+        }
+        this.pool = pool;
+        Files.createDirectories(parityDirectory.toPath());
+        String fileName = fileName(name);
+        this.layoutFile = new File(parityDirectory, fileName + ".layout");
+        this.parityFiles = new File[parityCount];
+        for (int k = 0; k < parityCount; k++) {
+            parityFiles[k] = new File(parityDirectory, fileName + ".parity" + k);
+        }
+        this.layout = loadLayout();
+    }
+
+    private static String fileName(String groupName) {
+        StringBuilder buf = new StringBuilder();
+        for (char c : groupName.toCharArray()) {
+            buf.append(Character.isLetterOrDigit(c) || (c == '-') || (c == '_') ? c : '_');
+        }
+        return buf.toString();
+    }
+
+    static long blocks(long size, int blockSize) {
+        return (size + blockSize - 1) / blockSize;
+    }
+
+    Layout getLayout() {
+        return layout;
+    }
+
+    int getStripesPerTask() {
+        return stripesPerTask;
+    }
+
+    /**
+     * Returns the coefficient of member j in parity row k.
+     */
+    int coefficient(int k, int j) {
+        return coefficients[k][j];
+    }
+
+    File getParityFile(int k) {
+        return parityFiles[k];
+    }
+
+    void recordReconstruction(long bytes) {
+        reconstructions.increment();
+        reconstructedBytes.add(bytes);
+    }
+
+    void recordFailedReconstruction() {
+        failedReconstructions.increment();
+    }
+
+    long getReconstructions() {
+        return reconstructions.sum();
+    }
+
+    long getReconstructedBytes() {
+        return reconstructedBytes.sum();
+    }
+
+    long getFailedReconstructions() {
+        return failedReconstructions.sum();
+    }
+
+    boolean isRunning() {
+        return running.get();
+    }
+
+    RunStats getLastRun() {
+        return lastRun;
+    }
+
+    long getRuns() {
+        return runs.sum();
+    }
+
+    long getFailedRuns() {
+        return failedRuns.sum();
+    }
+
+    long getBytesRead() {
+        return totalBytesRead.sum();
+    }
+
+    long getBytesWritten() {
+        return totalBytesWritten.sum();
+    }
+
+    /**
+     * Starts a run on the pool, unless one is already in progress.
+     *
+     * @param full true to recompute every stripe, false for only those that may have changed
+     * @return the run's outcome; it completes exceptionally if the run fails
+     * @throws IllegalStateException if a run is already in progress
+     */
+    CompletableFuture<RunStats> start(boolean full) {
+        if (!running.compareAndSet(false, true)) {
+            throw new IllegalStateException("parity of group " + name + " is already being computed");
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return run(full);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            } finally {
+                running.set(false);
+            }
+        }, pool);
+    }
+
+    /**
+     * Brings the parity up to date with the members' files. Every member must be available.
+     */
+    private RunStats run(boolean full) throws IOException {
+        Progress run = new Progress();
+        progress = run;
+        int[] fileCounts = new int[2];   // laid out, removed
+        try {
+            Layout old = layout;
+            if (!full && !parityFilesComplete(old.stripes)) {
+                LOGGER.info("run: {}: parity files are missing or short; computing all of it", name);
+                full = true;
+            }
+            Layout planned = plan(old, full, fileCounts);
+            saveLayout(planned);
+            layout = planned;   // from here on, the stripes to be computed are known to be dirty
+            BitSet toDo = (BitSet) planned.dirty.clone();
+            run.stripesToDo = toDo.cardinality();
+            LOGGER.info("run: {}: {} files laid out, {} removed; computing {} of {} stripes",
+                        name, fileCounts[0], fileCounts[1], run.stripesToDo, planned.stripes);
+            compute(planned, toDo, run);
+            Layout done = new Layout(planned.members, planned.stripes, run.incomplete);
+            if (!run.incomplete.isEmpty()) {
+                LOGGER.warn("run: {}: files changed while being read; {} stripes left dirty", name,
+                            run.incomplete.cardinality());
+            }
+            saveLayout(done);
+            layout = done;
+            RunStats stats = stats(full, run, fileCounts, null);
+            LOGGER.info("run: {}: {} stripes, {} bytes read in {} ms ({} MB/s)", name, run.stripesDone.sum(),
+                        stats.bytesRead, stats.nanos / 1000000, String.format("%.1f", stats.getMegabytesPerSecond()));
+            return stats;
+        } catch (IOException | RuntimeException ex) {
+            failedRuns.increment();
+            stats(full, run, fileCounts, ex.toString());
+            LOGGER.warn("run: {}: {}", name, ex.toString());
+            throw ex;
+        } finally {
+            runs.increment();
+            progress = null;
+        }
+    }
+
+    private RunStats stats(boolean full, Progress run, int[] fileCounts, String error) {
+        RunStats stats = new RunStats(full, run.startedAt, System.nanoTime() - run.startNanos, fileCounts[0], fileCounts[1],
+                                      run.stripesDone.sum(), run.bytesRead.sum(), run.bytesWritten.sum(), error);
+        totalBytesRead.add(stats.bytesRead);
+        totalBytesWritten.add(stats.bytesWritten);
+        lastRun = stats;
+        return stats;
+    }
+
+    /**
+     * Returns the layout that matches the members' indexes now, with the stripes that need computing
+     * (those already dirty, and those of every file laid out or removed) marked dirty.
+     */
+    private Layout plan(Layout old, boolean full, int[] fileCounts) throws IOException {
+        BitSet dirty = (BitSet) old.dirty.clone();
+        List<Member> members = new ArrayList<>(diskNames.size());
+        for (int j = 0; j < diskNames.size(); j++) {
+            Disk disk = FileAccessor.getDisk(diskNames.get(j));   // may throw exception; parity needs every member
+            if (Disk.validate(disk.topFile) != Disk.RootState.AVAILABLE) {
+                throw new IOException(name + ": top directory of disk " + disk.name + " is not available");
+            }
+            Member member = old.members.get(j).copy(disk.top);
+            for (Extent extent : new ArrayList<>(member.byPath.values())) {
+                DiskIndex.FileInfo info = disk.index.getFileInfo(extent.relativePath);
+                if ((info == null) || (info.size != extent.size) || (info.lastModified != extent.lastModified)) {
+                    member.remove(extent);
+                    markDirty(dirty, extent);
+                    fileCounts[1]++;
+                }
+            }
+            List<long[]> gaps = member.gaps(blockSize);
+            long endBlock = member.endBlock(blockSize);
+            for (String relativePath : disk.index.relativePaths()) {
+                DiskIndex.FileInfo info = disk.index.getFileInfo(relativePath);
+                if ((info == null) || member.byPath.containsKey(relativePath)) {
+                    continue;
+                }
+                long blocks = blocks(info.size, blockSize);
+                long firstBlock = -1;
+                if (blocks > 0) {
+                    firstBlock = allocate(gaps, blocks);
+                    if (firstBlock < 0) {
+                        firstBlock = endBlock;
+                        endBlock += blocks;
+                    }
+                }
+                Extent extent = new Extent(relativePath, info.size, info.lastModified, firstBlock);
+                member.add(extent);
+                markDirty(dirty, extent);
+                fileCounts[0]++;
+            }
+            members.add(member);
+        }
+        long stripes = 0;
+        for (Member member : members) {
+            stripes = Math.max(stripes, member.endBlock(blockSize));
+        }
+        if (stripes > Integer.MAX_VALUE) {
+            throw new IOException(name + ": too many stripes (" + stripes + "); use a larger block size");
+        }
+        if (full) {
+            dirty.set(0, (int) stripes);
+        }
+        dirty.clear((int) stripes, Math.max((int) stripes, dirty.length()));
+        return new Layout(members, stripes, dirty);
+    }
+
+    /**
+     * Takes the given number of blocks from the first gap big enough, or returns -1 if there is none.
+     */
+    private static long allocate(List<long[]> gaps, long blocks) {
+        for (long[] gap : gaps) {
+            if (gap[1] >= blocks) {
+                long firstBlock = gap[0];
+                gap[0] += blocks;
+                gap[1] -= blocks;
+                return firstBlock;
+            }
+        }
+        return -1;
+    }
+
+    private void markDirty(BitSet dirty, Extent extent) {
+        if (extent.firstBlock >= 0) {
+            dirty.set((int) extent.firstBlock, (int) extent.endBlock(blockSize));
+        }
+    }
+
+    private boolean parityFilesComplete(long stripes) {
+        for (File parityFile : parityFiles) {
+            if (parityFile.length() < stripes * blockSize) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Computes the given stripes, in runs of up to stripesPerTask contiguous stripes, on the pool.
+     */
+    private void compute(Layout planned, BitSet stripes, Progress run) throws IOException {
+        List<long[]> tasks = new ArrayList<>();
+        for (int from = stripes.nextSetBit(0); from >= 0; from = stripes.nextSetBit(from)) {
+            int to = stripes.nextClearBit(from);
+            for (long first = from; first < to; first += stripesPerTask) {
+                tasks.add(new long[] { first, Math.min(to, first + stripesPerTask) });
+            }
+            from = to;
+        }
+        FileChannel[] channels = new FileChannel[parityCount];
+        BlockingQueue<ByteBuffer[]> buffers = new ArrayBlockingQueue<>(maxBufferSets);
+        AtomicInteger buffersMade = new AtomicInteger(0);
+        try {
+            for (int k = 0; k < parityCount; k++) {
+                channels[k] = FileChannel.open(parityFiles[k].toPath(), StandardOpenOption.CREATE,
+                                               StandardOpenOption.READ, StandardOpenOption.WRITE);
+                if (channels[k].size() > planned.stripes * blockSize) {
+                    channels[k].truncate(planned.stripes * blockSize);
+                }
+            }
+            new StripeTask(planned, tasks, 0, tasks.size(), channels, buffers, buffersMade, run).invoke();
+            for (FileChannel channel : channels) {
+                channel.force(false);
+            }
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        } finally {
+            for (FileChannel channel : channels) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+            for (ByteBuffer[] set : buffers) {
+                for (ByteBuffer buffer : set) {
+                    BufferCleaner.free(buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes tasks[from, to): by splitting them in half until there is one left, which it computes.
+     */
+    private class StripeTask extends RecursiveAction {
+        private final Layout planned;
+        private final List<long[]> tasks;
+        private final int from;
+        private final int to;
+        private final FileChannel[] channels;
+        private final BlockingQueue<ByteBuffer[]> buffers;
+        private final AtomicInteger buffersMade;
+        private final Progress run;
+
+        StripeTask(Layout planned, List<long[]> tasks, int from, int to, FileChannel[] channels,
+                   BlockingQueue<ByteBuffer[]> buffers, AtomicInteger buffersMade, Progress run) {
+            this.planned = planned;
+            this.tasks = tasks;
+            this.from = from;
+            this.to = to;
+            this.channels = channels;
+            this.buffers = buffers;
+            this.buffersMade = buffersMade;
+            this.run = run;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new StripeTask(planned, tasks, from, middle, channels, buffers, buffersMade, run),
+                          new StripeTask(planned, tasks, middle, to, channels, buffers, buffersMade, run));
+                return;
+            }
+            if (to == from) {
+                return;
+            }
+            ByteBuffer[] set = takeBuffers();
+            try {
+                long[] task = tasks.get(from);
+                computeStripes(planned, task[0], task[1], channels, set, run);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            } finally {
+                buffers.add(set);   // there is always room: no more sets are made than it holds
+            }
+        }
+
+        /**
+         * Returns a set of buffers: one left by an earlier task, or a new one if the run has made fewer
+         * than maxBufferSets, or else the next one another task is done with.
+         */
+        private ByteBuffer[] takeBuffers() {
+            ByteBuffer[] set = buffers.poll();
+            if (set != null) {
+                return set;
+            }
+            if (buffersMade.incrementAndGet() <= maxBufferSets) {
+                set = new ByteBuffer[planned.members.size() + parityCount];
+                for (int i = 0; i < set.length; i++) {
+                    set[i] = ByteBuffer.allocateDirect(stripesPerTask * blockSize).order(ByteOrder.nativeOrder());
+                }
+                return set;
+            }
+            buffersMade.decrementAndGet();
+            try {
+                return buffers.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new InterruptedIOException("interrupted while waiting for buffers"));
+            }
+        }
+    }
+
+    /**
+     * Computes the parity of stripes [from, to), and writes it.
+     *
+     * @param buffers one for each member, then one for each parity row
+     */
+    private void computeStripes(Layout planned, long from, long to, FileChannel[] channels, ByteBuffer[] buffers,
+                                Progress run) throws IOException {
+        int length = (int) ((to - from) * blockSize);
+        int members = planned.members.size();
+        for (int j = 0; j < members; j++) {
+            run.bytesRead.add(readStripes(planned.members.get(j), from, to, buffers[j], run.incomplete));
+        }
+        for (int k = 0; k < parityCount; k++) {
+            ByteBuffer parity = buffers[members + k];
+            int j = 0;
+            if (k == 0) {
+                ByteBuffer first = buffers[0].duplicate();
+                first.position(0).limit(length);
+                parity.clear();
+                parity.put(first);   // row 0 is all ones: start from the first member, and XOR in the rest
+                j = 1;
+            } else {
+                zero(parity, 0, length);
+            }
+            for (; j < members; j++) {
+                GaloisField.multiplyAdd(parity, buffers[j], coefficients[k][j], length);
+            }
+            ByteBuffer out = parity.duplicate();
+            out.position(0).limit(length);
+            long position = from * blockSize;
+            while (out.hasRemaining()) {
+                position += channels[k].write(out, position);
+            }
+            run.bytesWritten.add(length);
+        }
+        run.stripesDone.add(to - from);
+    }
+
+    /**
+     * Reads a member's blocks of stripes [from, to) into the start of buffer: the content of the files there,
+     * and zeros for the padding at the end of each file and for unused blocks.
+     *
+     * @param incomplete if not null, where to record the stripes of files that were shorter than in the layout,
+     *                   or gone (synchronized on)
+     * @return the number of bytes read from files
+     */
+    long readStripes(Member member, long from, long to, ByteBuffer buffer, BitSet incomplete) throws IOException {
+        int length = (int) ((to - from) * blockSize);
+        Map.Entry<Long, Extent> floor = member.byBlock.floorEntry(from);
+        long firstKey = (floor == null) ? from : floor.getKey();
+        int filled = 0;
+        long bytesRead = 0;
+        for (Extent extent : member.byBlock.subMap(firstKey, true, to, false).values()) {
+            long endBlock = extent.endBlock(blockSize);
+            if (endBlock <= from) {
+                continue;
+            }
+            long firstBlock = Math.max(from, extent.firstBlock);
+            int offset = (int) ((firstBlock - from) * blockSize);
+            long filePosition = (firstBlock - extent.firstBlock) * blockSize;
+            int fileBytes = (int) Math.min(extent.size - filePosition, (Math.min(to, endBlock) - firstBlock) * blockSize);
+            zero(buffer, filled, offset);
+            int n = readFully(new File(member.top, extent.relativePath), filePosition, buffer, offset, fileBytes);
+            bytesRead += n;
+            filled = offset + n;
+            if ((n < fileBytes) && (incomplete != null)) {
+                synchronized (incomplete) {
+                    incomplete.set((int) firstBlock, (int) Math.min(to, endBlock));
+                }
+            }
+        }
+        zero(buffer, filled, length);
+        return bytesRead;
+    }
+
+    /**
+     * Reads up to length bytes of a file, from position, into buffer at offset. A file that has gone, or
+     * become shorter, gives fewer bytes.
+     */
+    private static int readFully(File file, long position, ByteBuffer buffer, int offset, int length) throws IOException {
+        ByteBuffer target = buffer.duplicate();
+        target.position(offset).limit(offset + length);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (target.hasRemaining()) {
+                int n = channel.read(target, position + target.position() - offset);
+                if (n < 0) {
+                    break;
+                }
+            }
+        } catch (NoSuchFileException ex) {
+            LOGGER.info("readFully: {} has gone", file);
+        }
+        return target.position() - offset;
+    }
+
+    /**
+     * Sets bytes [from, to) of buffer (by absolute index) to 0.
+     */
+    static void zero(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        for (; (i < to) && ((i & 7) != 0); i++) {
+            buffer.put(i, (byte) 0);
+        }
+        for (int end = to - 7; i < end; i += 8) {
+            buffer.putLong(i, 0L);
+        }
+        for (; i < to; i++) {
+            buffer.put(i, (byte) 0);
+        }
+    }
+
+    /**
+     * Layout file (gzipped): magic, version, block size, parity count, stripes, the dirty stripes
+     * (as a count of longs, then the longs), then for each member its disk name, top directory and
+     * extents (relative path, size, mtime, first block), preceded by a count.
+     */
+    private void saveLayout(Layout layout) throws IOException {
+        File tmpFile = new File(layoutFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(tmpFile))))) {
+            out.writeInt(LAYOUT_MAGIC);
+            out.writeInt(LAYOUT_VERSION);
+            out.writeInt(blockSize);
+            out.writeInt(parityCount);
+            out.writeLong(layout.stripes);
+            long[] dirty = layout.dirty.toLongArray();
+            out.writeInt(dirty.length);
+            for (long word : dirty) {
+                out.writeLong(word);
+            }
+            out.writeInt(layout.members.size());
+            for (Member member : layout.members) {
+                out.writeUTF(member.diskName);
+                out.writeUTF(member.top);
+                out.writeInt(member.byPath.size());
+                for (Extent extent : member.byPath.values()) {
+                    out.writeUTF(extent.relativePath);
+                    out.writeLong(extent.size);
+                    out.writeLong(extent.lastModified);
+                    out.writeLong(extent.firstBlock);
+                }
+            }
+        }
+        Files.move(tmpFile.toPath(), layoutFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Layout loadLayout() {
+        List<Member> empty = new ArrayList<>();
+        for (String diskName : diskNames) {
+            empty.add(new Member(diskName, ""));
+        }
+        if (!layoutFile.isFile()) {
+            return new Layout(empty, 0, new BitSet());
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(layoutFile))))) {
+            if ((in.readInt() != LAYOUT_MAGIC) || (in.readInt() != LAYOUT_VERSION)
+                    || (in.readInt() != blockSize) || (in.readInt() != parityCount)) {
+                LOGGER.info("loadLayout: {} is for another configuration; parity will be computed afresh", layoutFile);
+                return new Layout(empty, 0, new BitSet());
+            }
+            long stripes = in.readLong();
+            long[] dirty = new long[in.readInt()];
+            for (int i = 0; i < dirty.length; i++) {
+                dirty[i] = in.readLong();
+            }
+            int memberCount = in.readInt();
+            List<Member> members = new ArrayList<>(memberCount);
+            for (int j = 0; j < memberCount; j++) {
+                Member member = new Member(in.readUTF(), in.readUTF());
+                int extentCount = in.readInt();
+                for (int i = 0; i < extentCount; i++) {
+                    member.add(new Extent(in.readUTF(), in.readLong(), in.readLong(), in.readLong()));
+                }
+                members.add(member);
+            }
+            List<String> names = new ArrayList<>();
+            for (Member member : members) {
+                names.add(member.diskName);
+            }
+            if (!names.equals(diskNames)) {
+                LOGGER.info("loadLayout: {} is for disks {}; parity will be computed afresh", layoutFile, names);
+                return new Layout(empty, 0, new BitSet());
+            }
+            Layout layout = new Layout(members, stripes, BitSet.valueOf(dirty));
+            LOGGER.info("loadLayout: {}: {} stripes, {} dirty", name, stripes, layout.dirty.cardinality());
+            return layout;
+        } catch (IOException ex) {
+            LOGGER.warn("loadLayout: {}: {}; parity will be computed afresh", layoutFile, ex.toString());
+            return new Layout(empty, 0, new BitSet());
+        }
+    }
+
+    /**
+     * Returns the group's configuration and state as JSON.
+     */
+    String getStatus() {
+        Layout current = layout;
+        StringBuilder buf = new StringBuilder();
+        buf.append("{ \"group\" : ").append(jsonString(name)).append(",\n");
+        buf.append("  \"disks\" : [");
+        for (int j = 0; j < diskNames.size(); j++) {
+            buf.append((j == 0) ? " " : ", ").append(jsonString(diskNames.get(j)));
+        }
+        buf.append(" ],\n");
+        buf.append("  \"parityFiles\" : ").append(parityCount).append(",\n");
+        buf.append("  \"blockSize\" : ").append(blockSize).append(",\n");
+        long files = 0;
+        for (Member member : current.members) {
+            files += member.byPath.size();
+        }
+        buf.append("  \"files\" : ").append(files).append(",\n");
+        buf.append("  \"stripes\" : ").append(current.stripes).append(",\n");
+        buf.append("  \"dirtyStripes\" : ").append(current.dirty.cardinality()).append(",\n");
+        Progress run = progress;
+        buf.append("  \"running\" : ").append(run != null);
+        if (run != null) {
+            double seconds = (System.nanoTime() - run.startNanos) / 1e9;
+            buf.append(",\n  \"stripesToDo\" : ").append(run.stripesToDo);
+            buf.append(",\n  \"stripesDone\" : ").append(run.stripesDone.sum());
+            buf.append(",\n  \"megabytesPerSecond\" : ")
+               .append(String.format("%.1f", (seconds == 0) ? 0 : run.bytesRead.sum() / 1e6 / seconds));
+        }
+        RunStats last = lastRun;
+        if (last != null) {
+            buf.append(",\n  \"lastRun\" : { \"full\" : ").append(last.full);
+            buf.append(", \"startedAt\" : ").append(jsonString(Instant.ofEpochMilli(last.startedAt).toString()));
+            buf.append(", \"seconds\" : ").append(String.format("%.3f", last.nanos / 1e9));
+            buf.append(", \"filesLaidOut\" : ").append(last.filesLaidOut);
+            buf.append(", \"filesRemoved\" : ").append(last.filesRemoved);
+            buf.append(", \"stripes\" : ").append(last.stripes);
+            buf.append(", \"bytesRead\" : ").append(last.bytesRead);
+            buf.append(", \"bytesWritten\" : ").append(last.bytesWritten);
+            buf.append(", \"megabytesPerSecond\" : ").append(String.format("%.1f", last.getMegabytesPerSecond()));
+            if (last.error != null) {
+                buf.append(", \"error\" : ").append(jsonString(last.error));
+            }
+            buf.append(" }");
+        }
+        buf.append("\n}\n");
+        return buf.toString();
+    }
+
+    private static String jsonString(String s) {
+        return '"' + s.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+
+    @Override
+    public String toString() {
+        return "ParityGroup[" + name + " disks=" + diskNames + " parityFiles=" + parityCount + " blockSize=" + blockSize
+               + " parityDirectory=" + parityDirectory + "]";
+    }
+}
@@ -0,0 +1,248 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+
+/**
+ * Rebuilds a file of a parity group's member from the other members and the parity files (a degraded read),
+ * when the file cannot be read from its own disk.
+ *
+ * A file can be rebuilt if the group's layout has it, the parity of its stripes is up to date, and no more
+ * members than there are parity files are missing from those stripes: the file's own member, and any other
+ * member whose files there are gone or have changed since parity was computed. With one member missing,
+ * the file is the XOR of the first parity file and the other members; with more, the missing members'
+ * equations are solved with the inverse of their Reed-Solomon coefficients (see GaloisField.invert()).
+ *
+ * The file is streamed a span of stripes (readBytes / blockSize of them) at a time, so a request uses
+ * a few buffers of that size whatever the size of the file. The other members' files are checked again against
+ * the layout after each span is read, so if the parity is recomputed, or another member's file changes, while
+ * a file is being rebuilt, the response is cut short rather than sent wrong.
+ */
+class ParityReconstruction {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParityReconstruction.class);
+
+    final ParityGroup group;
+    final FileMetadataCache.Entry metadata;   // of the version of the file that parity covers
+
+    private final ParityGroup.Layout layout;
+    private final ParityGroup.Extent extent;
+    private final List<Integer> survivors;   // members read
+    private final int[] rows;                // parity rows used, one for each missing member
+    private final int[] weights;             // the file is the sum of weights[i] times the syndrome of rows[i]
+
+    private ParityReconstruction(ParityGroup group, ParityGroup.Layout layout, ParityGroup.Member member,
+                                 ParityGroup.Extent extent, List<Integer> survivors, int[] rows, int[] weights) {
+        this.group = group;
+        this.layout = layout;
+        this.extent = extent;
+        this.survivors = survivors;
+        this.rows = rows;
+        this.weights = weights;
+        String filePath = new File(member.top, extent.relativePath).toString();
+        this.metadata = new FileMetadataCache.Entry(filePath, extent.size, extent.lastModified,
+                                                    entityTag(extent), true,
+                                                    FileAccessorRESTService.getMediaType(filePath),
+                                                    System.currentTimeMillis());
+    }
+
+    /**
+     * Returns a strong entity tag for a rebuilt file. It differs from the tag of the file on its own disk
+     * (which depends on the file's inode), so caches do not mix the two.
+     */
+    private static String entityTag(ParityGroup.Extent extent) {
+        return "parity-" + Long.toHexString(extent.size) + '-' + Long.toHexString(extent.lastModified * 1000);
+    }
+
+    /**
+     * Returns how to rebuild a file of a member of the group, or null if it cannot be rebuilt (the reason is logged).
+     */
+    static ParityReconstruction open(ParityGroup group, String diskName, String relativePath) {
+        ParityGroup.Layout layout = group.getLayout();
+        int target = group.diskNames.indexOf(diskName);
+        ParityGroup.Member member = layout.members.get(target);
+        ParityGroup.Extent extent = member.byPath.get(relativePath);
+        if (extent == null) {
+            return null;   // not covered by parity; nothing to rebuild
+        }
+        String reason = null;
+        List<Integer> survivors = new ArrayList<>();
+        List<Integer> missing = new ArrayList<>();
+        missing.add(target);
+        if (extent.firstBlock >= 0) {
+            int first = (int) extent.firstBlock;
+            int end = (int) extent.endBlock(group.blockSize);
+            int dirty = layout.dirty.nextSetBit(first);
+            if ((dirty >= 0) && (dirty < end)) {
+                reason = "parity is not up to date";
+            }
+            for (int j = 0; j < layout.members.size(); j++) {
+                if (j == target) {
+                    continue;
+                }
+                if (isIntact(layout.members.get(j), first, end, group.blockSize)) {
+                    survivors.add(j);
+                } else {
+                    missing.add(j);
+                }
+            }
+            if (missing.size() > group.parityCount) {
+                reason = missing.size() + " disks are missing, and there are only " + group.parityCount + " parity files";
+            }
+            for (int k = 0; (reason == null) && (k < missing.size()); k++) {
+                if (group.getParityFile(k).length() < (long) end * group.blockSize) {
+                    reason = group.getParityFile(k) + " is short";
+                }
+            }
+        }
+        if (reason != null) {
+            LOGGER.info("open: {} of disk {} cannot be rebuilt from parity group {}: {}",
+                        relativePath, diskName, group.name, reason);
+            group.recordFailedReconstruction();
+            return null;
+        }
+        int erased = missing.size();
+        int[] rows = new int[erased];
+        int[][] coefficients = new int[erased][erased];
+        for (int i = 0; i < erased; i++) {
+            rows[i] = i;
+            for (int m = 0; m < erased; m++) {
+                coefficients[i][m] = group.coefficient(i, missing.get(m));
+            }
+        }
+        int[] weights = GaloisField.invert(coefficients)[0];   // missing.get(0) is the target
+        return new ParityReconstruction(group, layout, member, extent, survivors, rows, weights);
+    }
+
+    /**
+     * Returns true if the member's files in stripes [first, end) are all as the layout has them.
+     */
+    private static boolean isIntact(ParityGroup.Member member, long first, long end, int blockSize) {
+        Long firstKey = member.byBlock.floorKey(first);
+        for (ParityGroup.Extent extent : member.byBlock.subMap((firstKey == null) ? first : firstKey, true, end, false).values()) {
+            if (extent.endBlock(blockSize) <= first) {
+                continue;
+            }
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(new File(member.top, extent.relativePath).toPath(),
+                                                                 BasicFileAttributes.class);
+                if ((attrs.size() != extent.size) || (attrs.lastModifiedTime().toMillis() != extent.lastModified)) {
+                    return false;
+                }
+            } catch (IOException ex) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the survivors' files in stripes [from, to) are still as the layout has them. Checked after
+     * each span is read, since a file that changed while it was being read would make the span wrong.
+     */
+    private boolean survivorsIntact(long from, long to) {
+        for (int j : survivors) {
+            if (!isIntact(layout.members.get(j), from, to, group.blockSize)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the given range of the rebuilt file to out.
+     *
+     * @return the number of bytes written
+     */
+    long copyTo(ByteRange range, OutputStream out) throws IOException {
+        if (range.length() <= 0) {
+            return 0;
+        }
+        int blockSize = group.blockSize;
+        int spanStripes = group.getStripesPerTask();
+        ByteBuffer survivor = allocate(spanStripes * blockSize);
+        ByteBuffer[] syndromes = new ByteBuffer[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            syndromes[i] = allocate(spanStripes * blockSize);
+        }
+        boolean plainXor = (rows.length == 1) && (weights[0] == 1);
+        ByteBuffer data = plainXor ? syndromes[0] : allocate(spanStripes * blockSize);
+        FileChannel[] parity = new FileChannel[rows.length];
+        BitSet incomplete = new BitSet();
+        long count = 0;
+        try {
+            for (int i = 0; i < rows.length; i++) {
+                parity[i] = FileChannel.open(group.getParityFile(rows[i]).toPath(), StandardOpenOption.READ);
+            }
+            long first = extent.firstBlock + range.first / blockSize;
+            long last = extent.firstBlock + range.last / blockSize;
+            for (long from = first; from <= last; from += spanStripes) {
+                long to = Math.min(last + 1, from + spanStripes);
+                int length = (int) ((to - from) * blockSize);
+                for (int i = 0; i < rows.length; i++) {
+                    readParity(parity[i], from * blockSize, syndromes[i], length);
+                }
+                for (int j : survivors) {
+                    group.readStripes(layout.members.get(j), from, to, survivor, incomplete);
+                    for (int i = 0; i < rows.length; i++) {
+                        GaloisField.multiplyAdd(syndromes[i], survivor, group.coefficient(rows[i], j), length);
+                    }
+                }
+                if (!incomplete.isEmpty() || (group.getLayout() != layout) || !survivorsIntact(from, to)) {
+                    throw new IOException(extent.relativePath + ": parity or other disks changed while it was being rebuilt");
+                }
+                if (!plainXor) {
+                    ParityGroup.zero(data, 0, length);
+                    for (int i = 0; i < rows.length; i++) {
+                        GaloisField.multiplyAdd(data, syndromes[i], weights[i], length);
+                    }
+                }
+                long spanOffset = (from - extent.firstBlock) * blockSize;   // in the file
+                long start = Math.max(range.first, spanOffset);
+                long end = Math.min(range.last + 1, spanOffset + length);
+                out.write(data.array(), (int) (start - spanOffset), (int) (end - start));
+                count += end - start;
+            }
+        } catch (IOException | RuntimeException ex) {
+            group.recordFailedReconstruction();
+            LOGGER.warn("copyTo: {}: {}", extent.relativePath, ex.toString());
+            throw ex;
+        } finally {
+            for (FileChannel channel : parity) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+        }
+        group.recordReconstruction(count);
+        return count;
+    }
+
+    private static ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocate(capacity).order(ByteOrder.nativeOrder());
+    }
+
+    private static void readParity(FileChannel channel, long position, ByteBuffer buffer, int length) throws IOException {
+        ByteBuffer target = buffer.duplicate();
+        target.position(0).limit(length);
+        while (target.hasRemaining()) {
+            if (channel.read(target, position + target.position()) < 0) {
+                throw new IOException("parity file is short");
+            }
+        }
+    }
+}
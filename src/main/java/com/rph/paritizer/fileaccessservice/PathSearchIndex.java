@@ -0,0 +1,592 @@
+package com.rph.paritizer.fileaccessservice;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+
+/**
+ * An immutable, compact copy of a DiskIndex that files are searched in (see DiskIndex.getSearchIndex()).
+ *
+ * Files are kept in sorted order in parallel arrays: the index of the file's directory, where its name starts
+ * in one shared char array, its size and its modification time. Each directory's path (with a trailing '/')
+ * is held once, however many files it has, so a file costs its name plus 24 bytes, rather than a String
+ * of its whole path and the map entries around it.
+ *
+ * A search starts at the first file with the query's prefix (found by binary search), tests the cheapest
+ * conditions first (size and time, then extension, then the glob's literal ending, then the glob itself),
+ * and stops at the end of the prefix or after limit matches. A glob is split at its last '/' where it can be,
+ * so that the directory part is matched once per directory, and only the name part once per file.
+ * Nothing is allocated per file tested, only per file matched.
+ */
+class PathSearchIndex {
+
+    /**
+     * What to search for. Any condition that is not given matches every file.
+     */
+    static class Query {
+        final String prefix;            // of the relative path; never null
+        final String start;             // what every match starts with: the prefix, or the glob's literal start
+        final Pattern glob;             // matched against the whole relative path, or null if split or not given
+        final Pattern directoryGlob;    // a glob split at its last '/': matched against the directory (with its '/')
+        final Pattern nameGlob;         // and against the file name; or both null
+        final char[] suffix;            // what the relative path must end with for the glob to match, or null
+        final char[][] extensions;      // lower case, each with its '.', or null
+        final long minSize;
+        final long maxSize;
+        final long modifiedAfter;       // millis, inclusive
+        final long modifiedBefore;      // millis, exclusive
+
+        private Query(String prefix, String glob, char[][] extensions,
+                      long minSize, long maxSize, long modifiedAfter, long modifiedBefore) {
+            this.prefix = prefix;
+            this.start = start(prefix, glob);
+            Pattern[] parts = (glob == null) ? null : split(glob);
+            this.glob = ((glob == null) || (parts != null)) ? null : compileGlob(glob);
+            this.directoryGlob = (parts == null) ? null : parts[0];
+            this.nameGlob = (parts == null) ? null : parts[1];
+            this.suffix = (glob == null) ? null : literalSuffix(glob);
+            this.extensions = extensions;
+            this.minSize = minSize;
+            this.maxSize = maxSize;
+            this.modifiedAfter = modifiedAfter;
+            this.modifiedBefore = modifiedBefore;
+        }
+
+        /**
+         * Returns a query from the parameters of a search request, any of which may be null.
+         *
+         * @param prefix the start of the relative paths to return
+         * @param glob a glob the whole relative path must match: '*' and '?' match within a path component,
+         *             "**" matches across components, "[...]" and "{a,b}" as usual
+         * @param extensions a comma-separated list of file name extensions, such as "jpg,jpeg", in any case
+         * @param minSize the smallest size to return, in bytes
+         * @param maxSize the largest size to return, in bytes
+         * @param modifiedAfter the earliest modification time to return, as an ISO-8601 instant or epoch millis
+         * @param modifiedBefore the time files must have been modified before, in the same forms
+         * @throws IllegalArgumentException if a parameter is malformed
+         */
+        static Query parse(String prefix, String glob, String extensions, String minSize, String maxSize,
+                           String modifiedAfter, String modifiedBefore) throws IllegalArgumentException {
+            if (prefix == null) {
+                prefix = "";
+            }
+            if ((glob != null) && glob.isEmpty()) {
+                glob = null;
+            }
+            return new Query(prefix, glob, parseExtensions(extensions),
+                             parseSize(minSize, 0),
+                             parseSize(maxSize, Long.MAX_VALUE),
+                             parseTime(modifiedAfter, Long.MIN_VALUE),
+                             parseTime(modifiedBefore, Long.MAX_VALUE));
+        }
+
+        /**
+         * Returns the part of the relative path every match starts with: the prefix, or the glob's literal
+         * start if that is longer.
+         */
+        private static String start(String prefix, String glob) {
+            if (glob == null) {
+                return prefix;
+            }
+            int end = 0;
+            while ((end < glob.length()) && ("*?[{\\".indexOf(glob.charAt(end)) < 0)) {
+                end++;
+            }
+            String literal = glob.substring(0, end);
+            return literal.startsWith(prefix) ? literal : prefix;   // if neither starts with the other, nothing matches
+        }
+
+        /**
+         * Splits a glob at its last '/' (or before its start, if it has none) into a glob for the directory
+         * and one for the file name, so that the directory's is matched once per directory rather than once
+         * per file. Returns null if the name part could match across directories, and so cannot be split off.
+         */
+        private static Pattern[] split(String glob) {
+            int last = -1;
+            int depth = 0;
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (c == '\\') {
+                    i++;
+                } else if ((c == '[') || (c == '{')) {
+                    depth++;
+                } else if (((c == ']') || (c == '}')) && (depth > 0)) {
+                    depth--;
+                } else if ((c == '/') && (depth == 0)) {
+                    last = i;
+                }
+            }
+            String name = glob.substring(last + 1);
+            if ((name.indexOf('/') >= 0) || name.contains("**")) {
+                return null;
+            }
+            try {
+                return new Pattern[] { compileGlob(glob.substring(0, last + 1)), compileGlob(name) };
+            } catch (IllegalArgumentException ex) {
+                return null;   // split inside a group after all; the whole glob says what is wrong with it
+            }
+        }
+
+        /**
+         * Returns the literal characters a glob ends with (if it ends with any), which a path must end with
+         * to match: a cheap test to make before the regular expression.
+         */
+        private static char[] literalSuffix(String glob) {
+            int start = glob.length();
+            while ((start > 0) && ("*?]}/\\".indexOf(glob.charAt(start - 1)) < 0)) {
+                start--;
+            }
+            return (start >= glob.length()) ? null : glob.substring(start).toCharArray();
+        }
+
+        @Override
+        public String toString() {
+            return "prefix=\"" + prefix + "\" glob=" + ((glob != null) ? glob : directoryGlob + " " + nameGlob)
+                   + " extensions="
+                   + ((extensions == null) ? null : extensions.length) + " size=[" + minSize + ", " + maxSize
+                   + "] modified=[" + modifiedAfter + ", " + modifiedBefore + ")";
+        }
+    }
+
+    /**
+     * Receives the files a search finds, in sorted order.
+     */
+    interface MatchHandler {
+        void found(String relativePath, long size, long lastModified) throws IOException;
+    }
+
+    final String diskName;
+    final String version;   // of the DiskIndex it was built from
+    final long builtAt;
+
+    private final String[] directories;   // relative, with a trailing '/'; "" for the top directory
+    private final int[] directoryOf;
+    private final int[] nameStart;        // nameStart[count] is the end of the last name
+    private final char[] names;
+    private final long[] sizes;
+    private final long[] lastModified;
+    private final int count;
+
+    private PathSearchIndex(String diskName, String version, String[] directories, int[] directoryOf,
+                            int[] nameStart, char[] names, long[] sizes, long[] lastModified, int count) {
+        this.diskName = diskName;
+        this.version = version;
+        this.builtAt = System.currentTimeMillis();
+        this.directories = directories;
+        this.directoryOf = directoryOf;
+        this.nameStart = nameStart;
+        this.names = names;
+        this.sizes = sizes;
+        this.lastModified = lastModified;
+        this.count = count;
+    }
+
+    /**
+     * Builds a search index of the given files, which must be in sorted order.
+     *
+     * @param diskName the name of the disk
+     * @param version the version of the DiskIndex the files come from
+     * @param files the files, keyed by relative path
+     * @param expectedCount about how many files there are
+     */
+    static PathSearchIndex build(String diskName, String version, Iterable<Map.Entry<String, DiskIndex.FileInfo>> files,
+                                 int expectedCount) {
+        int capacity = Math.max(16, expectedCount);
+        int[] directoryOf = new int[capacity];
+        int[] nameStart = new int[capacity + 1];
+        char[] names = new char[capacity * 16];
+        long[] sizes = new long[capacity];
+        long[] lastModified = new long[capacity];
+        Map<String, Integer> directoryIndex = new HashMap<>();
+        String[] directories = new String[16];
+        int directoryCount = 0;
+        String directory = null;
+        int directoryNumber = -1;
+        int count = 0;
+        int nameEnd = 0;
+        for (Map.Entry<String, DiskIndex.FileInfo> entry : files) {
+            String relativePath = entry.getKey();
+            int slash = relativePath.lastIndexOf('/') + 1;
+            if ((directory == null) || (directory.length() != slash) || !relativePath.startsWith(directory)) {
+                directory = relativePath.substring(0, slash);
+                Integer number = directoryIndex.get(directory);
+                if (number == null) {
+                    number = directoryCount++;
+                    directoryIndex.put(directory, number);
+                    if (number == directories.length) {
+                        directories = Arrays.copyOf(directories, 2 * number);
+                    }
+                    directories[number] = directory;
+                }
+                directoryNumber = number;
+                directory = directories[number];
+            }
+            if (count == sizes.length) {
+                int newCapacity = 2 * count;
+                directoryOf = Arrays.copyOf(directoryOf, newCapacity);
+                nameStart = Arrays.copyOf(nameStart, newCapacity + 1);
+                sizes = Arrays.copyOf(sizes, newCapacity);
+                lastModified = Arrays.copyOf(lastModified, newCapacity);
+            }
+            int nameLength = relativePath.length() - slash;
+            if (nameEnd + nameLength > names.length) {
+                names = Arrays.copyOf(names, Math.max(2 * names.length, nameEnd + nameLength));
+            }
+            relativePath.getChars(slash, relativePath.length(), names, nameEnd);
+            DiskIndex.FileInfo info = entry.getValue();
+            directoryOf[count] = directoryNumber;
+            nameStart[count] = nameEnd;
+            sizes[count] = info.size;
+            lastModified[count] = info.lastModified;
+            nameEnd += nameLength;
+            count++;
+        }
+        nameStart[count] = nameEnd;
+        return new PathSearchIndex(diskName, version, Arrays.copyOf(directories, directoryCount),
+                                   Arrays.copyOf(directoryOf, count), Arrays.copyOf(nameStart, count + 1),
+                                   Arrays.copyOf(names, nameEnd), Arrays.copyOf(sizes, count),
+                                   Arrays.copyOf(lastModified, count), count);
+    }
+
+    int size() {
+        return count;
+    }
+
+    int directoryCount() {
+        return directories.length;
+    }
+
+    /**
+     * Passes the files that match the query to handler, in sorted order, starting after the file named by after.
+     *
+     * @param query what to search for
+     * @param after the relative path of the last file already returned, or null to start with the first file
+     * @param limit the most files to pass to handler
+     * @param handler receives the files found
+     * @return the relative path of the last file passed to handler if the search stopped because of the limit,
+     *         and files remain that could match; otherwise null
+     */
+    String search(Query query, String after, int limit, MatchHandler handler) throws IOException {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive: " + limit);
+        }
+        String prefix = query.start;
+        int i = lowerBound(prefix);
+        if ((after != null) && (after.compareTo(prefix) >= 0)) {
+            i = lowerBound(after);
+            if ((i < count) && (compareTo(i, after) == 0)) {
+                i++;
+            }
+        }
+        PathView path = new PathView();
+        Matcher matcher = (query.glob == null) ? null : query.glob.matcher(path);
+        Matcher nameMatcher = (query.nameGlob == null) ? null : query.nameGlob.matcher(path);
+        Matcher directoryMatcher = (query.directoryGlob == null) ? null : query.directoryGlob.matcher("");
+        byte[] directoryMatches = (directoryMatcher == null) ? null : new byte[directories.length];   // 0 = not yet known
+        int found = 0;
+        String last = null;
+        for (; (i < count) && startsWith(i, prefix); i++) {
+            if ((sizes[i] < query.minSize) || (sizes[i] > query.maxSize)
+                || (lastModified[i] < query.modifiedAfter) || (lastModified[i] >= query.modifiedBefore)) {
+                continue;
+            }
+            if ((query.extensions != null) && !hasExtension(i, query.extensions)) {
+                continue;
+            }
+            if ((query.suffix != null) && !endsWith(i, query.suffix)) {
+                continue;
+            }
+            if (directoryMatcher != null) {
+                int directory = directoryOf[i];
+                if (directoryMatches[directory] == 0) {
+                    directoryMatches[directory] = directoryMatcher.reset(directories[directory]).matches() ? (byte) 1 : -1;
+                }
+                if (directoryMatches[directory] < 0) {
+                    continue;
+                }
+                path.set(i, false);
+                if (!nameMatcher.reset(path).matches()) {
+                    continue;
+                }
+            } else if (matcher != null) {
+                path.set(i, true);
+                if (!matcher.reset(path).matches()) {
+                    continue;
+                }
+            }
+            if (found == limit) {
+                return last;
+            }
+            last = relativePath(i);
+            handler.found(last, sizes[i], lastModified[i]);
+            found++;
+        }
+        return null;
+    }
+
+    String relativePath(int i) {
+        String directory = directories[directoryOf[i]];
+        int start = nameStart[i];
+        return new StringBuilder(directory.length() + nameStart[i + 1] - start)
+                .append(directory).append(names, start, nameStart[i + 1] - start).toString();
+    }
+
+    /**
+     * Returns the index of the first file whose relative path is not less than key.
+     */
+    private int lowerBound(String key) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareTo(middle, key) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Compares the relative path of file i with key, as String.compareTo() would, without building the path.
+     */
+    private int compareTo(int i, String key) {
+        String directory = directories[directoryOf[i]];
+        int length = directory.length() + nameStart[i + 1] - nameStart[i];
+        int n = Math.min(length, key.length());
+        for (int k = 0; k < n; k++) {
+            int difference = charAt(i, directory, k) - key.charAt(k);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return length - key.length();
+    }
+
+    private boolean startsWith(int i, String prefix) {
+        String directory = directories[directoryOf[i]];
+        if (directory.length() + nameStart[i + 1] - nameStart[i] < prefix.length()) {
+            return false;
+        }
+        for (int k = 0; k < prefix.length(); k++) {
+            if (charAt(i, directory, k) != prefix.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean endsWith(int i, char[] suffix) {
+        String directory = directories[directoryOf[i]];
+        int length = directory.length() + nameStart[i + 1] - nameStart[i];
+        if (length < suffix.length) {
+            return false;
+        }
+        for (int k = 0; k < suffix.length; k++) {
+            if (charAt(i, directory, length - suffix.length + k) != suffix[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private char charAt(int i, String directory, int k) {
+        return (k < directory.length()) ? directory.charAt(k) : names[nameStart[i] + k - directory.length()];
+    }
+
+    private boolean hasExtension(int i, char[][] extensions) {
+        int end = nameStart[i + 1];
+        int nameLength = end - nameStart[i];
+        for (char[] extension : extensions) {
+            if (extension.length < nameLength) {
+                int start = end - extension.length;
+                boolean matches = true;
+                for (int k = 0; matches && (k < extension.length); k++) {
+                    matches = Character.toLowerCase(names[start + k]) == extension[k];
+                }
+                if (matches) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The relative path (or just the name) of one file, as a CharSequence, so that a glob can be matched
+     * without building it.
+     */
+    private class PathView implements CharSequence {
+        private String directory = "";
+        private int nameStart;
+        private int length;
+
+        void set(int i, boolean withDirectory) {
+            directory = withDirectory ? directories[directoryOf[i]] : "";
+            nameStart = PathSearchIndex.this.nameStart[i];
+            length = directory.length() + PathSearchIndex.this.nameStart[i + 1] - nameStart;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int k) {
+            return (k < directory.length()) ? directory.charAt(k) : names[nameStart + k - directory.length()];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return new StringBuilder(length).append(directory)
+                    .append(names, nameStart, length - directory.length()).toString();
+        }
+    }
+
+    /**
+     * Translates a glob into a regular expression. "**&#47;" matches any number of directories, including none,
+     * so "**&#47;*.jpg" finds files at the top of the disk too.
+     */
+    static Pattern compileGlob(String glob) throws IllegalArgumentException {
+        StringBuilder regex = new StringBuilder();
+        int braces = 0;
+        boolean inClass = false;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (inClass) {
+                if (c == ']') {
+                    inClass = false;
+                    regex.append("]]");
+                } else if ((c == '\\') || (c == '[') || (c == '&')) {
+                    regex.append('\\').append(c);
+                } else if ((c == '!') && (regex.charAt(regex.length() - 1) == '[')) {
+                    regex.append('^');
+                } else {
+                    regex.append(c);
+                }
+                continue;
+            }
+            switch (c) {
+                case '*':
+                    if ((i + 1 < glob.length()) && (glob.charAt(i + 1) == '*')) {
+                        i++;
+                        if ((i + 1 < glob.length()) && (glob.charAt(i + 1) == '/')) {
+                            i++;
+                            regex.append("(?:.*/)?");
+                        } else {
+                            regex.append(".*");
+                        }
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                case '[':
+                    inClass = true;
+                    regex.append("[[^/]&&[");
+                    break;
+                case '{':
+                    braces++;
+                    regex.append("(?:");
+                    break;
+                case '}':
+                    if (braces == 0) {
+                        throw new IllegalArgumentException("unmatched '}' in glob: " + glob);
+                    }
+                    braces--;
+                    regex.append(')');
+                    break;
+                case ',':
+                    regex.append((braces > 0) ? "|" : ",");
+                    break;
+                case '\\':
+                    if (++i == glob.length()) {
+                        throw new IllegalArgumentException("glob ends with '\\': " + glob);
+                    }
+                    regex.append(Pattern.quote(String.valueOf(glob.charAt(i))));
+                    break;
+                default:
+                    if ("().+^$|".indexOf(c) >= 0) {
+                        regex.append('\\');
+                    }
+                    regex.append(c);
+            }
+        }
+        if (inClass || (braces > 0)) {
+            throw new IllegalArgumentException("unterminated " + (inClass ? "'['" : "'{'") + " in glob: " + glob);
+        }
+        try {
+            return Pattern.compile(regex.toString());
+        } catch (PatternSyntaxException ex) {
+            throw new IllegalArgumentException("invalid glob: " + glob);
+        }
+    }
+
+    private static char[][] parseExtensions(String extensions) {
+        if ((extensions == null) || extensions.isEmpty()) {
+            return null;
+        }
+        String[] parts = extensions.split(",");
+        char[][] result = new char[parts.length][];
+        for (int i = 0; i < parts.length; i++) {
+            String extension = parts[i].trim().toLowerCase(Locale.ROOT);
+            if (extension.startsWith(".")) {
+                extension = extension.substring(1);
+            }
+            if (extension.isEmpty() || (extension.indexOf('/') >= 0)) {
+                throw new IllegalArgumentException("invalid extension: \"" + parts[i] + '"');
+            }
+            result[i] = ('.' + extension).toCharArray();
+        }
+        return result;
+    }
+
+    private static long parseSize(String size, long defaultValue) {
+        if ((size == null) || size.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(size);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("not a size in bytes: " + size);
+        }
+    }
+
+    private static long parseTime(String time, long defaultValue) {
+        if ((time == null) || time.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(time);
+        } catch (NumberFormatException ex) {
+            try {
+                return Instant.parse(time).toEpochMilli();
+            } catch (DateTimeParseException ex2) {
+                throw new IllegalArgumentException("not an ISO-8601 instant or epoch milliseconds: " + time);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PathSearchIndex[disk=" + diskName + " version=" + version + " files=" + count
+               + " directories=" + directories.length + " nameChars=" + names.length + "]";
+    }
+}
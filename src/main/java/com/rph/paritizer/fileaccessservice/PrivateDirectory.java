@@ -0,0 +1,74 @@
+package com.rph.paritizer.fileaccessservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Set;
+
+
+/**
+ * Makes the directories in which the service keeps files of its own (compressed variants, thumbnails,
+ * content hashes), which by default are in the shared temporary directory, under names anyone can guess.
+ *
+ * A directory is made readable and writable by the service's user only (rwx------). One that is already
+ * there is taken only if it is a directory (not a link to one) that belongs to the service's user and
+ * that no one else can get into: it was then made by this service, on an earlier run. Otherwise it is
+ * refused, since whoever made it could read, replace or fill up what the service keeps there. On file
+ * systems without POSIX permissions, only the owner is checked.
+ */
+class PrivateDirectory {
+
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rwx------");
+
+    private PrivateDirectory() {
+    }
+
+    /**
+     * Returns the given directory, made if need be.
+     *
+     * @throws IOException if it cannot be made, or it is already there but not private to this user
+     */
+    static Path create(File directory) throws IOException {
+        Path path = directory.toPath().toAbsolutePath();
+        boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+        Path parent = path.getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        try {
+            if (posix) {
+                Files.createDirectory(path, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+            } else {
+                Files.createDirectory(path);
+            }
+            return path;
+        } catch (FileAlreadyExistsException ex) {
+            // made before: checked below
+        }
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (!attrs.isDirectory()) {
+            throw new IOException(path + " is not a directory");
+        }
+        UserPrincipal owner = Files.getOwner(path, LinkOption.NOFOLLOW_LINKS);
+        UserPrincipal user = path.getFileSystem().getUserPrincipalLookupService()
+                .lookupPrincipalByName(System.getProperty("user.name"));
+        if (!owner.equals(user)) {
+            throw new IOException(path + " belongs to " + owner.getName() + ", not " + user.getName());
+        }
+        if (posix) {
+            Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS);
+            if (!OWNER_ONLY.containsAll(permissions)) {
+                throw new IOException(path + " is open to others (" + PosixFilePermissions.toString(permissions) + ")");
+            }
+        }
+        return path;
+    }
+}
@@ -0,0 +1,295 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.ConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/**
+ * How the embedded Jetty server is set up: its port and protocols, acceptor and selector counts,
+ * thread pool, timeouts, buffer sizes and TCP options. Every setting has a default (Jetty's own,
+ * mostly), and can be changed in a properties file given with --config, or on the command line
+ * as --name value (or just --name, for a setting that is turned on). For example:
+ *     --config server.properties --http2c --max-threads 400
+ * Later settings override earlier ones.
+ */
+class ServerProfile {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ServerProfile.class);
+
+    static final String PORT = "port";
+    static final String HTTP2C = "http2c";
+    static final String HTTP2_MAX_CONCURRENT_STREAMS = "http2-max-concurrent-streams";
+    static final String ACCEPTORS = "acceptors";
+    static final String SELECTORS = "selectors";
+    static final String MIN_THREADS = "min-threads";
+    static final String MAX_THREADS = "max-threads";
+    static final String THREAD_IDLE_TIMEOUT_MILLIS = "thread-idle-timeout-millis";
+    static final String VIRTUAL_THREADS = "virtual-threads";
+    static final String IDLE_TIMEOUT_MILLIS = "idle-timeout-millis";
+    static final String OUTPUT_BUFFER_SIZE = "output-buffer-size";
+    static final String OUTPUT_AGGREGATION_SIZE = "output-aggregation-size";
+    static final String REQUEST_HEADER_SIZE = "request-header-size";
+    static final String RESPONSE_HEADER_SIZE = "response-header-size";
+    static final String ACCEPT_QUEUE_SIZE = "accept-queue-size";
+    static final String REUSE_ADDRESS = "reuse-address";
+    static final String TCP_NO_DELAY = "tcp-no-delay";
+    static final String RECEIVE_BUFFER_SIZE = "receive-buffer-size";
+    static final String SEND_BUFFER_SIZE = "send-buffer-size";
+
+    private static final List<String> FLAGS = Arrays.asList(HTTP2C, VIRTUAL_THREADS, REUSE_ADDRESS, TCP_NO_DELAY);
+
+    /**
+     * The smallest and largest value of each numeric setting. All are ints, except the connector's idle timeout.
+     */
+    private static final Map<String, long[]> RANGES = new HashMap<>();
+
+    static {
+        RANGES.put(PORT, new long[] { 0, 65535 });
+        RANGES.put(HTTP2_MAX_CONCURRENT_STREAMS, new long[] { 1, Integer.MAX_VALUE });
+        RANGES.put(ACCEPTORS, new long[] { -1, Integer.MAX_VALUE });
+        RANGES.put(SELECTORS, new long[] { -1, Integer.MAX_VALUE });
+        RANGES.put(MIN_THREADS, new long[] { 1, Integer.MAX_VALUE });
+        RANGES.put(MAX_THREADS, new long[] { 1, Integer.MAX_VALUE });
+        RANGES.put(THREAD_IDLE_TIMEOUT_MILLIS, new long[] { 0, Integer.MAX_VALUE });
+        RANGES.put(IDLE_TIMEOUT_MILLIS, new long[] { 0, Long.MAX_VALUE });
+        RANGES.put(OUTPUT_BUFFER_SIZE, new long[] { 1, Integer.MAX_VALUE });
+        RANGES.put(OUTPUT_AGGREGATION_SIZE, new long[] { 0, Integer.MAX_VALUE });
+        RANGES.put(REQUEST_HEADER_SIZE, new long[] { 1, Integer.MAX_VALUE });
+        RANGES.put(RESPONSE_HEADER_SIZE, new long[] { 1, Integer.MAX_VALUE });
+        RANGES.put(ACCEPT_QUEUE_SIZE, new long[] { 0, Integer.MAX_VALUE });
+        RANGES.put(RECEIVE_BUFFER_SIZE, new long[] { 0, Integer.MAX_VALUE });
+        RANGES.put(SEND_BUFFER_SIZE, new long[] { 0, Integer.MAX_VALUE });
+    }
+
+    /**
+     * The settings, by name, with their defaults. -1 leaves the choice to Jetty; a buffer size of 0,
+     * to the operating system.
+     */
+    private final Map<String, String> settings = new TreeMap<>();
+
+    ServerProfile() {
+        settings.put(PORT, "0");                              // 0 picks a free port
+        settings.put(HTTP2C, "false");                        // HTTP/2 over cleartext, beside HTTP/1.1
+        settings.put(HTTP2_MAX_CONCURRENT_STREAMS, "128");
+        settings.put(ACCEPTORS, "-1");
+        settings.put(SELECTORS, "-1");
+        settings.put(MIN_THREADS, "8");
+        settings.put(MAX_THREADS, "200");
+        settings.put(THREAD_IDLE_TIMEOUT_MILLIS, "60000");
+        settings.put(VIRTUAL_THREADS, "false");
+        settings.put(IDLE_TIMEOUT_MILLIS, "30000");
+        settings.put(OUTPUT_BUFFER_SIZE, "32768");
+        settings.put(OUTPUT_AGGREGATION_SIZE, "8192");
+        settings.put(REQUEST_HEADER_SIZE, "8192");
+        settings.put(RESPONSE_HEADER_SIZE, "8192");
+        settings.put(ACCEPT_QUEUE_SIZE, "0");
+        settings.put(REUSE_ADDRESS, "true");
+        settings.put(TCP_NO_DELAY, "true");
+        settings.put(RECEIVE_BUFFER_SIZE, "0");
+        settings.put(SEND_BUFFER_SIZE, "0");
+    }
+
+    /**
+     * Returns true if name is the name of a setting.
+     */
+    boolean isSetting(String name) {
+        return settings.containsKey(name);
+    }
+
+    /**
+     * Returns true if name is the name of an on/off setting, which can be given without a value.
+     */
+    static boolean isFlag(String name) {
+        return FLAGS.contains(name);
+    }
+
+    /**
+     * Changes a setting.
+     *
+     * @throws IllegalArgumentException if there is no such setting, or the value is not valid for it
+     */
+    void set(String name, String value) throws IllegalArgumentException {
+        if (!isSetting(name)) {
+            throw new IllegalArgumentException(name + ": unknown server setting");
+        }
+        value = value.trim();
+        if (isFlag(name)) {
+            if (!"true".equalsIgnoreCase(value) && !"false".equalsIgnoreCase(value)) {
+                throw new IllegalArgumentException(name + ": must be true or false: " + value);
+            }
+            value = value.toLowerCase();
+        } else {
+            long number;
+            try {
+                number = Long.parseLong(value);
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException(name + ": must be a number: " + value);
+            }
+            long[] range = RANGES.get(name);
+            if ((number < range[0]) || (number > range[1])) {
+                throw new IllegalArgumentException(name + ": must be from " + range[0] + " to " + range[1] + ": " + value);
+            }
+        }
+        settings.put(name, value);
+    }
+
+    /**
+     * Applies the settings in a properties file.
+     */
+    void load(File file) throws IOException, IllegalArgumentException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            properties.load(in);
+        }
+        for (String name : properties.stringPropertyNames()) {
+            set(name, properties.getProperty(name));
+        }
+        LOGGER.info("load: {}", file);
+    }
+
+    int getInt(String name) {
+        return Integer.parseInt(settings.get(name));
+    }
+
+    long getLong(String name) {
+        return Long.parseLong(settings.get(name));
+    }
+
+    boolean getBoolean(String name) {
+        return Boolean.parseBoolean(settings.get(name));
+    }
+
+    /**
+     * Returns a new server, with a thread pool and a connector as set up here.
+     */
+    Server createServer() {
+        if (getInt(MIN_THREADS) > getInt(MAX_THREADS)) {
+            throw new IllegalArgumentException(MIN_THREADS + " (" + getInt(MIN_THREADS) + ") is more than "
+                                               + MAX_THREADS + " (" + getInt(MAX_THREADS) + ")");
+        }
+        Server server = new Server(createThreadPool());
+        server.addConnector(createConnector(server));
+        return server;
+    }
+
+    /**
+     * Returns the server's thread pool: a QueuedThreadPool, or an executor that runs each task on
+     * a new virtual thread, so that requests blocked on the disk or on a slow client hold no platform
+     * thread. Virtual threads need Java 21 or later, and are looked up by reflection so that the service
+     * still builds and runs on Java 8; without them, a QueuedThreadPool is used.
+     */
+    private ThreadPool createThreadPool() {
+        if (getBoolean(VIRTUAL_THREADS)) {
+            try {
+                ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                LOGGER.info("createThreadPool: requests run on virtual threads");
+                return new ExecutorThreadPool(executor);
+            } catch (ReflectiveOperationException ex) {
+                LOGGER.warn("createThreadPool: virtual threads need Java 21 or later; using a thread pool");
+            }
+        }
+        QueuedThreadPool threadPool = new QueuedThreadPool(getInt(MAX_THREADS), getInt(MIN_THREADS),
+                                                           getInt(THREAD_IDLE_TIMEOUT_MILLIS));
+        threadPool.setName("qtp");
+        return threadPool;
+    }
+
+    private ServerConnector createConnector(Server server) {
+        HttpConfiguration httpConfiguration = new HttpConfiguration();
+        httpConfiguration.setOutputBufferSize(getInt(OUTPUT_BUFFER_SIZE));
+        httpConfiguration.setOutputAggregationSize(getInt(OUTPUT_AGGREGATION_SIZE));
+        httpConfiguration.setRequestHeaderSize(getInt(REQUEST_HEADER_SIZE));
+        httpConfiguration.setResponseHeaderSize(getInt(RESPONSE_HEADER_SIZE));
+
+        List<ConnectionFactory> connectionFactories = new ArrayList<>(2);
+        connectionFactories.add(new HttpConnectionFactory(httpConfiguration));
+        if (getBoolean(HTTP2C)) {
+            // clients may start with HTTP/2 (prior knowledge), or upgrade an HTTP/1.1 connection to it
+            HTTP2CServerConnectionFactory http2c = new HTTP2CServerConnectionFactory(httpConfiguration);
+            http2c.setMaxConcurrentStreams(getInt(HTTP2_MAX_CONCURRENT_STREAMS));
+            connectionFactories.add(http2c);
+        }
+
+        ServerConnector connector = new TunedServerConnector(server, getInt(ACCEPTORS), getInt(SELECTORS),
+                                                             connectionFactories.toArray(new ConnectionFactory[0]));
+        connector.setPort(getInt(PORT));
+        connector.setIdleTimeout(getLong(IDLE_TIMEOUT_MILLIS));
+        connector.setAcceptQueueSize(getInt(ACCEPT_QUEUE_SIZE));
+        connector.setReuseAddress(getBoolean(REUSE_ADDRESS));
+        return connector;
+    }
+
+    @Override
+    public String toString() {
+        return "ServerProfile" + settings;
+    }
+
+    /**
+     * A ServerConnector that applies the TCP options of the profile to each accepted socket. The receive
+     * buffer size is set on the listening socket instead, as soon as it is open and before the server
+     * accepts anything: accepted sockets inherit it, and the TCP window scale, which is agreed during the
+     * handshake, only allows for a buffer over 64 KB if the listening socket already had it. (Jetty 9.4.6
+     * binds the socket as it opens it, so this is just after the bind; Linux sizes the window from the
+     * listening socket's buffer when each connection's SYN arrives, so this is early enough there.)
+     */
+    private class TunedServerConnector extends ServerConnector {
+
+        private final boolean tcpNoDelay = getBoolean(TCP_NO_DELAY);
+        private final int receiveBufferSize = getInt(RECEIVE_BUFFER_SIZE);
+        private final int sendBufferSize = getInt(SEND_BUFFER_SIZE);
+
+        TunedServerConnector(Server server, int acceptors, int selectors, ConnectionFactory... factories) {
+            super(server, acceptors, selectors, factories);
+        }
+
+        @Override
+        public void open() throws IOException {
+            boolean opening = !isOpen();
+            super.open();   // Jetty 9.4.6 opens and binds the listening socket here, with no hook before bind
+            if (opening && (receiveBufferSize > 0)) {
+                ServerSocketChannel channel = (ServerSocketChannel) getTransport();
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+            }
+        }
+
+        @Override
+        protected void configure(Socket socket) {
+            super.configure(socket);
+            try {
+                socket.setTcpNoDelay(tcpNoDelay);
+                if (sendBufferSize > 0) {
+                    socket.setSendBufferSize(sendBufferSize);
+                }
+            } catch (SocketException ex) {
+                LOGGER.debug("configure: {}", ex.toString());
+            }
+        }
+    }
+}
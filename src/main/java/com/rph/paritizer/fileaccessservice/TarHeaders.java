@@ -0,0 +1,121 @@
+package com.rph.paritizer.fileaccessservice;
+
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * Builds the headers of a tar archive of regular files, in the POSIX ustar format.
+ *
+ * A path of up to 100 bytes fits in the name field; a longer one is split at a '/' between the prefix
+ * (up to 155 bytes) and name fields. A path that cannot be split that way is given in a GNU long name
+ * entry ("././@LongLink", type 'L') just before the file's own header. Sizes of 8 GiB or more, which
+ * do not fit in 11 octal digits, are written in the GNU base-256 form.
+ */
+class TarHeaders {
+
+    static final int BLOCK_SIZE = 512;
+
+    private static final int NAME_LENGTH = 100;
+    private static final int PREFIX_LENGTH = 155;
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+
+    private TarHeaders() {
+    }
+
+    /**
+     * Returns the header block(s) of a regular file entry.
+     *
+     * @param path the file's path within the archive
+     * @param size the file's size
+     * @param lastModified the file's modification time, in milliseconds
+     */
+    static byte[] header(String path, long size, long lastModified) {
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        if (pathBytes.length <= NAME_LENGTH) {
+            return block(pathBytes, new byte[0], size, lastModified, '0');
+        }
+        int split = splitPoint(pathBytes);
+        if (split > 0) {
+            byte[] prefix = new byte[split];
+            System.arraycopy(pathBytes, 0, prefix, 0, split);
+            byte[] name = new byte[pathBytes.length - split - 1];
+            System.arraycopy(pathBytes, split + 1, name, 0, name.length);
+            return block(name, prefix, size, lastModified, '0');
+        }
+        byte[] longName = new byte[pathBytes.length + 1];   // NUL terminated
+        System.arraycopy(pathBytes, 0, longName, 0, pathBytes.length);
+        byte[] truncatedName = new byte[NAME_LENGTH];
+        System.arraycopy(pathBytes, 0, truncatedName, 0, NAME_LENGTH);
+        byte[] longLinkHeader = block("././@LongLink".getBytes(StandardCharsets.US_ASCII), new byte[0],
+                                      longName.length, 0, 'L');
+        byte[] fileHeader = block(truncatedName, new byte[0], size, lastModified, '0');
+        byte[] header = new byte[longLinkHeader.length + longName.length + padding(longName.length) + fileHeader.length];
+        System.arraycopy(longLinkHeader, 0, header, 0, longLinkHeader.length);
+        System.arraycopy(longName, 0, header, longLinkHeader.length, longName.length);
+        System.arraycopy(fileHeader, 0, header, header.length - fileHeader.length, fileHeader.length);
+        return header;
+    }
+
+    /**
+     * Returns the number of zero bytes that follow content of the given size, to fill its last block.
+     */
+    static int padding(long size) {
+        int remainder = (int) (size % BLOCK_SIZE);
+        return (remainder == 0) ? 0 : BLOCK_SIZE - remainder;
+    }
+
+    /**
+     * Returns the index of the '/' at which a path can be split into a prefix and a name that both fit,
+     * or -1 if there is none.
+     */
+    private static int splitPoint(byte[] path) {
+        for (int i = Math.max(0, path.length - NAME_LENGTH - 1); i < Math.min(path.length, PREFIX_LENGTH + 1); i++) {
+            if ((path[i] == '/') && (i > 0) && (i < path.length - 1)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] block(byte[] name, byte[] prefix, long size, long lastModified, char type) {
+        byte[] block = new byte[BLOCK_SIZE];
+        System.arraycopy(name, 0, block, 0, name.length);
+        octal(block, 100, 8, 0644);                    // mode
+        octal(block, 108, 8, 0);                       // uid
+        octal(block, 116, 8, 0);                       // gid
+        if (size <= MAX_OCTAL_SIZE) {
+            octal(block, 124, 12, size);
+        } else {
+            block[124] = (byte) 0x80;                  // base-256
+            for (int i = 0; i < 8; i++) {
+                block[135 - i] = (byte) (size >>> (8 * i));
+            }
+        }
+        octal(block, 136, 12, lastModified / 1000);    // mtime
+        block[156] = (byte) type;
+        System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, block, 257, 6);
+        block[263] = '0';                              // version
+        block[264] = '0';
+        System.arraycopy(prefix, 0, block, 345, prefix.length);
+
+        long checksum = 8 * ' ';                       // the checksum field counts as spaces
+        for (byte b : block) {
+            checksum += b & 0xFF;
+        }
+        octal(block, 148, 7, checksum);
+        block[155] = ' ';
+        return block;
+    }
+
+    /**
+     * Writes value as zero-padded octal digits followed by a NUL, filling length bytes at offset.
+     */
+    private static void octal(byte[] block, int offset, int length, long value) {
+        int end = offset + length - 1;
+        block[end] = 0;
+        for (int i = end - 1; i >= offset; i--) {
+            block[i] = (byte) ('0' + (value & 7));
+            value >>>= 3;
+        }
+    }
+}
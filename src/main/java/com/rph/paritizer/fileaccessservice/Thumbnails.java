@@ -0,0 +1,611 @@
+package com.rph.paritizer.fileaccessservice;
+
+import com.rph.paritizer.fileaccessservice.exceptions.NotAdmittedException;
+import com.rph.paritizer.fileaccessservice.exceptions.NotImageException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.IIOException;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Makes and keeps reduced copies (thumbnails) of the images on the disks.
+ *
+ * A thumbnail is made to fit within a requested width and/or height, keeping the image's proportions
+ * (images are never enlarged), as a JPEG or PNG file. Thumbnails are made on a small pool of worker threads
+ * with a bounded queue; when the queue is full, the request is turned away (NotAdmittedException) rather
+ * than left to wait. Requests for a thumbnail that is already being made wait for that one instead of
+ * making it again. Large JPEGs are decoded with subsampling, at no less than twice the thumbnail's size,
+ * and then scaled down in halving steps, so making a thumbnail from a photo is cheap and still smooth.
+ *
+ * Thumbnails are kept in the cache directory, named by a digest of the image's path, its entity tag, the
+ * requested size and the format, so a changed image never gets an old thumbnail. The directory is private
+ * to the service's user (see PrivateDirectory). It is kept to cacheMaxBytes by deleting the least recently
+ * used thumbnails; one that is being sent is deleted only once it has been sent. Its contents are picked up
+ * again when the service restarts (oldest first).
+ *
+ * Configured with system properties:
+ *     fileaccessservice.thumbnails.threads           (default half the processors, at least 1)
+ *     fileaccessservice.thumbnails.maxQueued         (default 100)
+ *     fileaccessservice.thumbnails.cacheDir          (default fileaccessservice-thumbnails in java.io.tmpdir)
+ *     fileaccessservice.thumbnails.cacheMaxBytes     (default 268435456)
+ *     fileaccessservice.thumbnails.maxDimension      (default 2048; the largest width or height that can be asked for)
+ *     fileaccessservice.thumbnails.maxSourcePixels   (default 100000000; larger images are refused)
+ *     fileaccessservice.thumbnails.jpegQuality       (default 0.85)
+ */
+class Thumbnails {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Thumbnails.class);
+
+    static final String THREADS_PROPERTY = "fileaccessservice.thumbnails.threads";
+    static final String MAX_QUEUED_PROPERTY = "fileaccessservice.thumbnails.maxQueued";
+    static final String CACHE_DIRECTORY_PROPERTY = "fileaccessservice.thumbnails.cacheDir";
+    static final String CACHE_MAX_BYTES_PROPERTY = "fileaccessservice.thumbnails.cacheMaxBytes";
+    static final String MAX_DIMENSION_PROPERTY = "fileaccessservice.thumbnails.maxDimension";
+    static final String MAX_SOURCE_PIXELS_PROPERTY = "fileaccessservice.thumbnails.maxSourcePixels";
+    static final String JPEG_QUALITY_PROPERTY = "fileaccessservice.thumbnails.jpegQuality";
+
+    private static final long MAX_WAIT_SECONDS = 30;
+    private static final int RETRY_AFTER_SECONDS = 1;
+
+    /**
+     * The formats thumbnails are made in.
+     */
+    enum Format {
+        JPEG("jpeg", "image/jpeg", ".jpg"),
+        PNG("png", "image/png", ".png");
+
+        final String formatName;   // as in the format query parameter, and to ImageIO
+        final String mediaType;
+        final String suffix;
+
+        Format(String formatName, String mediaType, String suffix) {
+            this.formatName = formatName;
+            this.mediaType = mediaType;
+            this.suffix = suffix;
+        }
+
+        /**
+         * Returns the format with the given name, or null if name is null.
+         *
+         * @throws IllegalArgumentException if there is no such format
+         */
+        static Format parse(String name) {
+            if (name == null) {
+                return null;
+            }
+            String lowerName = name.toLowerCase(Locale.ROOT);
+            for (Format format : values()) {
+                if (format.formatName.equals(lowerName) || format.suffix.equals('.' + lowerName)) {
+                    return format;
+                }
+            }
+            throw new IllegalArgumentException("unknown thumbnail format: " + name);
+        }
+
+        /**
+         * Returns the format in which to make a thumbnail of an image of the given media type
+         * when none is asked for: PNG for PNG and GIF images (which may be transparent), otherwise JPEG.
+         */
+        static Format forSource(String mediaType) {
+            return (mediaType.equals("image/png") || mediaType.equals("image/gif")) ? PNG : JPEG;
+        }
+
+        static Format forFileName(String fileName) {
+            return fileName.endsWith(PNG.suffix) ? PNG : JPEG;
+        }
+    }
+
+    private final int maxDimension;
+    private final long maxSourcePixels;
+    private final float jpegQuality;
+    private final long cacheMaxBytes;
+    private final Path cacheDirectory;   // null if it could not be created
+    private final ThreadPoolExecutor workers;
+
+    private final Map<Path, CompletableFuture<FileMetadataCache.Entry>> inProgress = new ConcurrentHashMap<>();
+    private final LinkedHashMap<Path, FileMetadataCache.Entry> cache = new LinkedHashMap<>(16, 0.75f, true);   // guarded by this
+    private long cacheBytes;   // guarded by this
+    private final Map<Path, Integer> pinned = new HashMap<>();   // thumbnails being sent; guarded by this
+    private final Set<Path> deleteWhenUnpinned = new HashSet<>();   // guarded by this
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder made = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder makeNanos = new LongAdder();
+
+    Thumbnails(int threads, int maxQueued, File cacheDirectory, long cacheMaxBytes,
+               int maxDimension, long maxSourcePixels, float jpegQuality) {
+        this.maxDimension = maxDimension;
+        this.maxSourcePixels = maxSourcePixels;
+        this.jpegQuality = jpegQuality;
+        this.cacheMaxBytes = cacheMaxBytes;
+        this.cacheDirectory = createCacheDirectory(cacheDirectory);
+        AtomicInteger threadCount = new AtomicInteger(0);
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                                              new ArrayBlockingQueue<>(Math.max(1, maxQueued)), runnable -> {
+            Thread thread = new Thread(runnable, "thumbnail-maker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        ImageIO.setUseCache(false);   // decode and encode in memory, not through temporary files
+        loadCache();
+    }
+
+    /**
+     * Returns a Thumbnails configured from the system properties listed above.
+     */
+    static Thumbnails fromSystemProperties() {
+        String cacheDirectory = System.getProperty(CACHE_DIRECTORY_PROPERTY,
+                                                   new File(System.getProperty("java.io.tmpdir"),
+                                                            "fileaccessservice-thumbnails").getPath());
+        int defaultThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        Thumbnails thumbnails = new Thumbnails(Math.max(1, Integer.getInteger(THREADS_PROPERTY, defaultThreads)),
+                                               Integer.getInteger(MAX_QUEUED_PROPERTY, 100),
+                                               new File(cacheDirectory),
+                                               Long.getLong(CACHE_MAX_BYTES_PROPERTY, 256L * 1024 * 1024),
+                                               Integer.getInteger(MAX_DIMENSION_PROPERTY, 2048),
+                                               Long.getLong(MAX_SOURCE_PIXELS_PROPERTY, 100_000_000L),
+                                               Float.parseFloat(System.getProperty(JPEG_QUALITY_PROPERTY, "0.85")));
+        LOGGER.info("fromSystemProperties: {}", thumbnails);
+        return thumbnails;
+    }
+
+    private static Path createCacheDirectory(File directory) {
+        try {
+            return PrivateDirectory.create(directory);
+        } catch (IOException ex) {
+            LOGGER.warn("createCacheDirectory: {}; thumbnails cannot be made", ex.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Checks the requested size of a thumbnail: a width, a height, or both, each from 1 to maxDimension.
+     * A missing one is given as 0.
+     *
+     * @throws IllegalArgumentException if the size cannot be asked for
+     */
+    void checkSize(int width, int height) {
+        if ((width == 0) && (height == 0)) {
+            throw new IllegalArgumentException("a thumbnail needs a width (w) or a height (h)");
+        }
+        for (int dimension : new int[] { width, height }) {
+            if ((dimension < 0) || (dimension > maxDimension)) {
+                throw new IllegalArgumentException("thumbnail width and height must be from 1 to " + maxDimension
+                                                   + ": " + dimension);
+            }
+        }
+    }
+
+    /**
+     * Returns the entity tag of the thumbnail of an image; it is known before the thumbnail is made.
+     *
+     * @param width the width to fit within, or 0 for any
+     * @param height the height to fit within, or 0 for any
+     */
+    static String entityTag(FileMetadataCache.Entry image, int width, int height, Format format) {
+        return image.entityTag + '-' + width + 'x' + height + '.' + format.formatName;
+    }
+
+    /**
+     * Returns the thumbnail of an image, making it first if need be. The thumbnail is not deleted until
+     * the caller calls unpin() with it, once it has been sent.
+     *
+     * @param image the image's metadata
+     * @param width the width to fit within, or 0 for any
+     * @param height the height to fit within, or 0 for any
+     * @param format the thumbnail's format
+     *
+     * @return the thumbnail file's metadata (with the format's media type)
+     * @throws NotImageException if the file is not an image that can be read, or is too large
+     * @throws NotAdmittedException if too many thumbnails are already waiting to be made
+     */
+    FileMetadataCache.Entry get(FileMetadataCache.Entry image, int width, int height, Format format)
+            throws IOException, NotAdmittedException {
+        if (cacheDirectory == null) {
+            throw new IOException("no thumbnail cache directory");
+        }
+        Path path = cacheDirectory.resolve(Compression.pathDigest(image.filePath) + '.' + image.entityTag + '.'
+                                           + width + 'x' + height + format.suffix);
+        FileMetadataCache.Entry thumbnail = pin(path);
+        if (thumbnail != null) {
+            hits.increment();
+            return thumbnail;
+        }
+        CompletableFuture<FileMetadataCache.Entry> future = new CompletableFuture<>();
+        CompletableFuture<FileMetadataCache.Entry> running = inProgress.putIfAbsent(path, future);
+        if (running != null) {
+            coalesced.increment();
+            await(running);
+            return pinMade(path);
+        }
+        try {
+            workers.execute(() -> {
+                try {
+                    future.complete(make(image, width, height, format, path));
+                } catch (Throwable ex) {
+                    future.completeExceptionally(ex);
+                } finally {
+                    inProgress.remove(path, future);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            rejected.increment();
+            NotAdmittedException notAdmitted = new NotAdmittedException("too many thumbnails waiting to be made",
+                                                                        RETRY_AFTER_SECONDS);
+            inProgress.remove(path, future);
+            future.completeExceptionally(notAdmitted);   // for any request that joined it meanwhile
+            throw notAdmitted;
+        }
+        await(future);
+        return pinMade(path);
+    }
+
+    /**
+     * Pins a thumbnail that has just been made, which is evicted again this soon only if the cache
+     * is too small for the thumbnails being made at once.
+     */
+    private FileMetadataCache.Entry pinMade(Path path) throws IOException {
+        FileMetadataCache.Entry thumbnail = pin(path);
+        if (thumbnail == null) {
+            throw new IOException(path.getFileName() + " was evicted as soon as it was made; cacheMaxBytes is too small");
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Returns a cached thumbnail, which is kept from being deleted until unpin() is called, or null if
+     * it is not in the cache.
+     */
+    private synchronized FileMetadataCache.Entry pin(Path path) {
+        FileMetadataCache.Entry thumbnail = cache.get(path);   // which makes it the most recently used
+        if (thumbnail != null) {
+            pinned.merge(path, 1, Integer::sum);
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Releases a thumbnail returned by get(), once it has been sent; if it was evicted meanwhile,
+     * it is deleted now.
+     */
+    void unpin(FileMetadataCache.Entry thumbnail) {
+        Path path = Paths.get(thumbnail.filePath);
+        synchronized (this) {
+            Integer count = pinned.get(path);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                pinned.put(path, count - 1);
+                return;
+            }
+            pinned.remove(path);
+            if (!deleteWhenUnpinned.remove(path)) {
+                return;
+            }
+        }
+        delete(path);
+    }
+
+    private static FileMetadataCache.Entry await(CompletableFuture<FileMetadataCache.Entry> future)
+            throws IOException, NotAdmittedException {
+        try {
+            return future.get(MAX_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a thumbnail");
+        } catch (TimeoutException ex) {
+            throw new NotAdmittedException("thumbnail not made in time", RETRY_AFTER_SECONDS);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof NotAdmittedException) {
+                throw (NotAdmittedException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Makes a thumbnail: into a temporary file first, which is then renamed, so a thumbnail is never seen
+     * half made.
+     */
+    private FileMetadataCache.Entry make(FileMetadataCache.Entry image, int width, int height, Format format, Path path)
+            throws IOException {
+        FileMetadataCache.Entry thumbnail = lookUp(path);   // made while this request was queued
+        if (thumbnail != null) {
+            return thumbnail;
+        }
+        long start = System.nanoTime();
+        Path tmpPath = Files.createTempFile(cacheDirectory, path.getFileName().toString(), ".tmp");
+        try {
+            write(read(image, width, height, format), format, tmpPath);
+            BasicFileAttributes now = Files.readAttributes(Paths.get(image.filePath), BasicFileAttributes.class);
+            if (!FileAccessor.entityTag(now).equals(image.entityTag)) {
+                throw new IOException(image.filePath + " changed while its thumbnail was being made");
+            }
+            Files.move(tmpPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            thumbnail = remember(path, Files.readAttributes(path, BasicFileAttributes.class), format);
+            made.increment();
+            makeNanos.add(System.nanoTime() - start);
+            LOGGER.info("make: {} -> {} ({} bytes, {} ms)", image.filePath, path.getFileName(), thumbnail.size,
+                        (System.nanoTime() - start) / 1000000);
+            return thumbnail;
+        } catch (IOException | RuntimeException ex) {
+            failed.increment();
+            throw ex;
+        } finally {
+            Files.deleteIfExists(tmpPath);
+        }
+    }
+
+    /**
+     * Reads an image, scaled to fit within width and height.
+     */
+    private BufferedImage read(FileMetadataCache.Entry image, int width, int height, Format format) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new File(image.filePath))) {
+            if (in == null) {
+                throw new IOException("cannot read " + image.filePath);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new NotImageException(image.filePath);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int imageWidth = reader.getWidth(0);
+                int imageHeight = reader.getHeight(0);
+                if ((long) imageWidth * imageHeight > maxSourcePixels) {
+                    throw new NotImageException(image.filePath + " is too large (" + imageWidth + 'x' + imageHeight + ")");
+                }
+                Dimension size = fit(imageWidth, imageHeight, width, height);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = Math.min(imageWidth / size.width, imageHeight / size.height) / 2;
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+                return scale(reader.read(0, param), size.width, size.height, format);
+            } catch (IIOException ex) {
+                throw new NotImageException(image.filePath + ": " + ex.getMessage(), ex);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Returns the size of an image scaled down (never up) to fit within width and height, either of
+     * which may be 0 for "any".
+     */
+    static Dimension fit(int imageWidth, int imageHeight, int width, int height) {
+        double scale = 1;
+        if (width > 0) {
+            scale = Math.min(scale, (double) width / imageWidth);
+        }
+        if (height > 0) {
+            scale = Math.min(scale, (double) height / imageHeight);
+        }
+        return new Dimension(Math.max(1, (int) Math.round(imageWidth * scale)),
+                             Math.max(1, (int) Math.round(imageHeight * scale)));
+    }
+
+    /**
+     * Scales an image to the given size, halving it at most at each step (bilinear interpolation is smooth
+     * only down to half size), into an image of a type the format can hold.
+     */
+    private static BufferedImage scale(BufferedImage image, int width, int height, Format format) {
+        int type = (format == Format.PNG) ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage current = image;
+        int currentWidth = image.getWidth();
+        int currentHeight = image.getHeight();
+        do {
+            currentWidth = Math.max(width, currentWidth / 2);
+            currentHeight = Math.max(height, currentHeight / 2);
+            BufferedImage next = new BufferedImage(currentWidth, currentHeight, type);
+            Graphics2D graphics = next.createGraphics();
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                if (type == BufferedImage.TYPE_INT_RGB) {
+                    graphics.setColor(Color.WHITE);   // under any transparent parts
+                    graphics.fillRect(0, 0, currentWidth, currentHeight);
+                }
+                graphics.drawImage(current, 0, 0, currentWidth, currentHeight, null);
+            } finally {
+                graphics.dispose();
+            }
+            current = next;
+        } while ((currentWidth > width) || (currentHeight > height));
+        return current;
+    }
+
+    private void write(BufferedImage thumbnail, Format format, Path path) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(format.formatName).next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(path.toFile())) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (format == Format.JPEG) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(jpegQuality);
+            }
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(thumbnail, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private synchronized FileMetadataCache.Entry lookUp(Path path) {
+        return cache.get(path);   // which makes it the most recently used
+    }
+
+    /**
+     * Adds a thumbnail to the cache, and deletes the least recently used ones while the cache is too large.
+     */
+    private FileMetadataCache.Entry remember(Path path, BasicFileAttributes attrs, Format format) {
+        FileMetadataCache.Entry thumbnail = new FileMetadataCache.Entry(path.toString(), attrs.size(),
+                                                                        attrs.lastModifiedTime().toMillis(),
+                                                                        FileAccessor.entityTag(attrs), true,
+                                                                        format.mediaType, System.currentTimeMillis());
+        List<Path> evicted = new ArrayList<>();
+        synchronized (this) {
+            FileMetadataCache.Entry old = cache.put(path, thumbnail);
+            cacheBytes += thumbnail.size - ((old == null) ? 0 : old.size);
+            Iterator<Map.Entry<Path, FileMetadataCache.Entry>> eldest = cache.entrySet().iterator();
+            while ((cacheBytes > cacheMaxBytes) && (cache.size() > 1)) {
+                Map.Entry<Path, FileMetadataCache.Entry> entry = eldest.next();
+                cacheBytes -= entry.getValue().size;
+                eldest.remove();
+                evictions.increment();
+                if (pinned.containsKey(entry.getKey())) {
+                    deleteWhenUnpinned.add(entry.getKey());   // deleted by unpin()
+                } else {
+                    evicted.add(entry.getKey());
+                }
+            }
+        }
+        for (Path evictedPath : evicted) {
+            delete(evictedPath);
+        }
+        return thumbnail;
+    }
+
+    private static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ex) {
+            LOGGER.warn("delete: cannot delete {}: {}", path, ex.toString());
+        }
+    }
+
+    /**
+     * Picks up the thumbnails left in the cache directory by an earlier run, oldest first, so the newest
+     * are kept if there are too many; and deletes any temporary files left half made.
+     */
+    private void loadCache() {
+        if (cacheDirectory == null) {
+            return;
+        }
+        List<Path> paths = new ArrayList<>();
+        Map<Path, BasicFileAttributes> attributes = new LinkedHashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(cacheDirectory)) {
+            for (Path path : files) {
+                if (path.getFileName().toString().endsWith(".tmp")) {
+                    Files.deleteIfExists(path);
+                    continue;
+                }
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                if (attrs.isRegularFile()) {
+                    paths.add(path);
+                    attributes.put(path, attrs);
+                }
+            }
+        } catch (IOException ex) {
+            LOGGER.warn("loadCache: {}", ex.toString());
+        }
+        paths.sort(Comparator.comparing(path -> attributes.get(path).lastModifiedTime()));
+        for (Path path : paths) {
+            remember(path, attributes.get(path), Format.forFileName(path.getFileName().toString()));
+        }
+        LOGGER.info("loadCache: {} thumbnails, {} bytes", size(), getCacheBytes());
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMade() {
+        return made.sum();
+    }
+
+    long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    long getRejected() {
+        return rejected.sum();
+    }
+
+    long getFailed() {
+        return failed.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    double getMakeSeconds() {
+        return makeNanos.sum() / 1e9;
+    }
+
+    int getQueued() {
+        return workers.getQueue().size();
+    }
+
+    synchronized int size() {
+        return cache.size();
+    }
+
+    synchronized long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "Thumbnails[threads=" + workers.getMaximumPoolSize() + " maxQueued=" + workers.getQueue().remainingCapacity()
+               + " cacheDirectory=" + cacheDirectory + " cacheMaxBytes=" + cacheMaxBytes
+               + " maxDimension=" + maxDimension + " jpegQuality=" + jpegQuality + "]";
+    }
+}
@@ -0,0 +1,186 @@
+package com.rph.paritizer.fileaccessservice;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * %-encodes relative paths for URLs: each character is UTF-8 encoded, and each byte that is not a printable,
+ * safe ASCII character is written as %NN. '/' is not encoded. Characters that would need escaping in a JSON
+ * string ('"' and '\') are encoded too, so an encoded path can be written into JSON as it is.
+ *
+ * The characters are UTF-8 encoded as they are %-encoded (rather than with getBytes()), and whether an ASCII
+ * character is safe is looked up in a table, so encoding allocates nothing but its result; and a path with
+ * nothing to encode (the usual case) is returned as it is. An AsciiWriter encodes straight into its buffer.
+ */
+class UrlEncoder {
+
+    private static final boolean[] UNSAFE = new boolean[128];
+    private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    static final int MAX_BYTES_PER_CHAR = 9;   // three UTF-8 bytes, each %NN; a surrogate pair needs 12 for 2
+
+    static {
+        for (int c = 0; c < 32; c++) {
+            UNSAFE[c] = true;
+        }
+        UNSAFE[127] = true;
+        for (char c : " +%$&,:;=?@<>#\"\\".toCharArray()) {
+            UNSAFE[c] = true;
+        }
+    }
+
+    private UrlEncoder() {
+    }
+
+    /**
+     * Returns true if the character must be encoded.
+     */
+    static boolean isUnsafe(char c) {
+        return (c >= 128) || UNSAFE[c];
+    }
+
+    /**
+     * Returns s, UTF-8 and %-encoded; s itself if nothing in it needs encoding.
+     */
+    @SuppressWarnings("deprecation")
+    static String encode(String s) {
+        int i = 0;
+        while ((i < s.length()) && !isUnsafe(s.charAt(i))) {
+            i++;
+        }
+        if (i == s.length()) {
+            return s;
+        }
+        byte[] bytes = new byte[i + (s.length() - i) * MAX_BYTES_PER_CHAR];
+        s.getBytes(0, i, bytes, 0);   // deprecated, but exactly right for chars known to be ASCII
+        int end = encode(s, i, s.length(), bytes, i);
+        return new String(bytes, 0, end, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Encodes chars [from, to) of s into out, starting at position, which must leave room for
+     * MAX_BYTES_PER_CHAR bytes per char.
+     *
+     * @return the position after the last byte written
+     */
+    static int encode(String s, int from, int to, byte[] out, int position) {
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (UNSAFE[c]) {
+                    position = escape(c, out, position);
+                } else {
+                    out[position++] = (byte) c;
+                }
+            } else if (c < 0x800) {
+                position = escape(0xC0 | (c >> 6), out, position);
+                position = escape(0x80 | (c & 0x3F), out, position);
+            } else if (Character.isHighSurrogate(c) && (i + 1 < to) && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                position = escape(0xF0 | (codePoint >> 18), out, position);
+                position = escape(0x80 | ((codePoint >> 12) & 0x3F), out, position);
+                position = escape(0x80 | ((codePoint >> 6) & 0x3F), out, position);
+                position = escape(0x80 | (codePoint & 0x3F), out, position);
+            } else if (Character.isSurrogate(c)) {
+                position = escape('?', out, position);   // as getBytes() replaces an unpaired surrogate
+            } else {
+                position = escape(0xE0 | (c >> 12), out, position);
+                position = escape(0x80 | ((c >> 6) & 0x3F), out, position);
+                position = escape(0x80 | (c & 0x3F), out, position);
+            }
+        }
+        return position;
+    }
+
+    private static int escape(int b, byte[] out, int position) {
+        out[position] = '%';
+        out[position + 1] = HEX_DIGITS[b >> 4];
+        out[position + 2] = HEX_DIGITS[b & 0xF];
+        return position + 3;
+    }
+
+    /**
+     * Writes ASCII text (and encoded paths) to an OutputStream through a reusable buffer, one byte per char,
+     * so that a long listing is written without a Writer's char-to-byte encoding or any allocation per entry.
+     */
+    static class AsciiWriter {
+        private final OutputStream out;
+        private final byte[] buffer;
+        private int position = 0;
+
+        AsciiWriter(OutputStream out, int bufferSize) {
+            this.out = out;
+            this.buffer = new byte[Math.max(bufferSize, 4 * MAX_BYTES_PER_CHAR)];
+        }
+
+        /**
+         * Writes a string of ASCII characters (any other character is written as its low eight bits).
+         */
+        @SuppressWarnings("deprecation")
+        void write(String s) throws IOException {
+            int from = 0;
+            while (from < s.length()) {
+                if (position == buffer.length) {
+                    flushBuffer();
+                }
+                int count = Math.min(s.length() - from, buffer.length - position);
+                s.getBytes(from, from + count, buffer, position);
+                position += count;
+                from += count;
+            }
+        }
+
+        void write(char c) throws IOException {
+            if (position == buffer.length) {
+                flushBuffer();
+            }
+            buffer[position++] = (byte) c;
+        }
+
+        void write(byte[] bytes) throws IOException {
+            if (bytes.length > buffer.length - position) {
+                flushBuffer();
+                if (bytes.length > buffer.length) {
+                    out.write(bytes);
+                    return;
+                }
+            }
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        /**
+         * Writes s, UTF-8 and %-encoded.
+         */
+        void writeEncoded(String s) throws IOException {
+            int from = 0;
+            while (from < s.length()) {
+                int room = (buffer.length - position) / MAX_BYTES_PER_CHAR;
+                if (room < 2) {
+                    flushBuffer();
+                    continue;
+                }
+                int to = Math.min(s.length(), from + room);
+                if ((to < s.length()) && Character.isHighSurrogate(s.charAt(to - 1))) {
+                    to--;   // keep the pair together
+                }
+                position = encode(s, from, to, buffer, position);
+                from = to;
+            }
+        }
+
+        void flush() throws IOException {
+            flushBuffer();
+            out.flush();
+        }
+
+        private void flushBuffer() throws IOException {
+            if (position > 0) {
+                out.write(buffer, 0, position);
+                position = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.rph.paritizer.fileaccessservice.exceptions;
+
+/**
+ * Thrown when a request is turned away because the service (or a disk) is paused, or is already
+ * serving as many requests as it is allowed to. The client may retry after retryAfterSeconds.
+ */
+public class NotAdmittedException extends Exception {
+
+    private final int retryAfterSeconds;
+
+    public NotAdmittedException(String message, int retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,21 @@
+package com.rph.paritizer.fileaccessservice.exceptions;
+
+import java.io.IOException;
+
+public class NotImageException extends IOException {
+
+    public NotImageException() {
+    }
+
+    public NotImageException(String message) {
+        super(message);
+    }
+
+    public NotImageException(Throwable cause) {
+        super(cause);
+    }
+
+    public NotImageException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,21 @@
+package com.rph.paritizer.fileaccessservice.exceptions;
+
+import java.io.IOException;
+
+public class ParityGroupNotFoundException extends IOException {
+
+    public ParityGroupNotFoundException() {
+    }
+
+    public ParityGroupNotFoundException(String message) {
+        super(message);
+    }
+
+    public ParityGroupNotFoundException(Throwable cause) {
+        super(cause);
+    }
+
+    public ParityGroupNotFoundException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,117 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+public class ByteRangeTest {
+
+    private static final long LENGTH = 1000;
+
+    /**
+     * Each row is a Range header, and the ranges parse() returns for a file of LENGTH bytes: "" for none
+     * (416 Range Not Satisfiable), or null when the header is to be ignored and the whole file sent.
+     */
+    private static final String[][] CASES = {
+            // single ranges
+            { "bytes=0-499", "0-499" },
+            { "bytes=500-999", "500-999" },
+            { "bytes=0-0", "0-0" },
+            { "bytes=999-999", "999-999" },
+            { "BYTES=0-9", "0-9" },                           // the unit is case-insensitive
+            { "bytes= 10 - 19 ", "10-19" },
+            // open-ended and suffix ranges
+            { "bytes=900-", "900-999" },
+            { "bytes=0-", "0-999" },
+            { "bytes=-100", "900-999" },
+            { "bytes=-1", "999-999" },
+            { "bytes=-5000", "0-999" },                       // a suffix longer than the file is the whole file
+            // over-long ranges are cut at the end of the file
+            { "bytes=900-5000", "900-999" },
+            { "bytes=0-9223372036854775807", "0-999" },
+            // several ranges, sorted and coalesced when they overlap or touch
+            { "bytes=0-9,20-29", "0-9,20-29" },
+            { "bytes=20-29,0-9", "0-9,20-29" },
+            { "bytes=0-9,5-14", "0-14" },
+            { "bytes=0-9,10-19", "0-19" },
+            { "bytes=0-99,10-19", "0-99" },
+            { "bytes=-100,0-9,950-", "0-9,900-999" },
+            { "bytes=0-9,,20-29", "0-9,20-29" },              // empty list elements are allowed
+            // unsatisfiable: 416
+            { "bytes=1000-", "" },
+            { "bytes=1000-1999", "" },
+            { "bytes=-0", "" },
+            { "bytes=1000-,2000-", "" },
+            { "bytes=1000-,0-9", "0-9" },                     // an unsatisfiable range among satisfiable ones is dropped
+            // malformed or unusable: ignored, and the whole file sent
+            { null, null },
+            { "", null },
+            { "bytes=", null },
+            { "bytes=,", null },
+            { "bytes= , ,", null },
+            { "items=0-9", null },
+            { "bytes 0-9", null },
+            { "bytes=0", null },
+            { "bytes=a-9", null },
+            { "bytes=0-b", null },
+            { "bytes=9-0", null },
+            { "bytes=--5", null },
+            { "bytes=+5-9", null },
+            { "bytes=0-+9", null },
+            { "bytes=-", null },
+            { "bytes=0-9,x", null },                          // one bad spec spoils the header
+            { "bytes=99999999999999999999-", null },          // does not fit in a long
+    };
+
+    @Test
+    public void parse() {
+        for (String[] c : CASES) {
+            assertEquals(String.valueOf(c[0]), c[1], format(ByteRange.parse(c[0], LENGTH)));
+        }
+    }
+
+    @Test
+    public void tooManyRangesAreIgnored() {
+        StringBuilder apart = new StringBuilder("bytes=0-0");
+        StringBuilder touching = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= ByteRange.MAX_RANGES; i++) {
+            apart.append(',').append(2 * i).append('-').append(2 * i);
+            touching.append(',').append(i).append('-').append(i);
+        }
+        assertNull(ByteRange.parse(apart.toString(), LENGTH));
+        assertEquals("0-" + ByteRange.MAX_RANGES, format(ByteRange.parse(touching.toString(), LENGTH)));   // counted after coalescing
+    }
+
+    @Test
+    public void anEmptyFileHasNoSatisfiableRanges() {
+        assertEquals("", format(ByteRange.parse("bytes=0-", 0)));
+        assertEquals("", format(ByteRange.parse("bytes=-10", 0)));
+    }
+
+    @Test
+    public void multipartLengthIsTheLengthOfTheBody() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=0-9,100-149", LENGTH);
+        long length = ByteRange.multipartTrailer("B").length;
+        for (ByteRange range : ranges) {
+            length += ByteRange.partHeader("B", "image/jpeg", range, LENGTH).length + range.length();
+        }
+        assertEquals(length, ByteRange.multipartLength("B", "image/jpeg", ranges, LENGTH));
+        assertEquals("\r\n--B\r\nContent-Type: image/jpeg\r\nContent-Range: bytes 100-149/1000\r\n\r\n",
+                     new String(ByteRange.partHeader("B", "image/jpeg", ranges.get(1), LENGTH)));
+    }
+
+    private static String format(List<ByteRange> ranges) {
+        if (ranges == null) {
+            return null;
+        }
+        StringBuilder buf = new StringBuilder();
+        for (ByteRange range : ranges) {
+            buf.append((buf.length() == 0) ? "" : ",").append(range);
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,82 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+
+public class FileMetadataCacheTest {
+
+    private static final long TTL_MILLIS = 60000;
+
+    @Test
+    public void invalidatingADirectoryRemovesEverythingBelowItAndNothingElse() {
+        FileMetadataCache cache = new FileMetadataCache(1000, TTL_MILLIS, FileMetadataCache.Policy.LRU);
+        for (String path : new String[] { "a/x.jpg", "a/b/y.jpg", "a/b/c/z.jpg", "ab/x.jpg", "a.jpg", "b/x.jpg" }) {
+            put(cache, "D", path);
+        }
+        put(cache, "D1", "a/x.jpg");
+        cache.invalidate("D", "a", true);
+        assertNull(cache.get("D", "a/x.jpg"));
+        assertNull(cache.get("D", "a/b/y.jpg"));
+        assertNull(cache.get("D", "a/b/c/z.jpg"));
+        assertNotNull(cache.get("D", "ab/x.jpg"));
+        assertNotNull(cache.get("D", "a.jpg"));
+        assertNotNull(cache.get("D1", "a/x.jpg"));
+        assertEquals(3, cache.getInvalidations());
+
+        cache.invalidate("D", "b/x.jpg", false);
+        assertNull(cache.get("D", "b/x.jpg"));
+        cache.invalidate("D", null, true);
+        assertEquals(1, cache.size());
+        assertNotNull(cache.get("D1", "a/x.jpg"));
+    }
+
+    @Test
+    public void invalidatingAFileRemovesEveryKeyForIt() {
+        FileMetadataCache cache = new FileMetadataCache(1000, TTL_MILLIS, FileMetadataCache.Policy.LRU);
+        cache.put("D", "a/x.jpg", entry("/disks/d/a/x.jpg"));
+        cache.put("E", "d/a/x.jpg", entry("/disks/d/a/x.jpg"));   // a disk inside another
+        cache.put("D", "a/x.jpg.gz", entry("/disks/d/a/x.jpg.gz"));
+        cache.invalidateFile("/disks/d/a/x.jpg");
+        assertNull(cache.get("D", "a/x.jpg"));
+        assertNull(cache.get("E", "d/a/x.jpg"));
+        assertNotNull(cache.get("D", "a/x.jpg.gz"));
+    }
+
+    /**
+     * Entries that leave the cache by eviction, expiry or replacement must leave the indexes too, or
+     * invalidation would count them.
+     */
+    @Test
+    public void entriesThatLeaveTheCacheLeaveTheIndexes() throws InterruptedException {
+        FileMetadataCache cache = new FileMetadataCache(16, TTL_MILLIS, FileMetadataCache.Policy.FIFO);
+        for (int i = 0; i < 1000; i++) {
+            put(cache, "D", "d/" + i + ".jpg");
+        }
+        int size = cache.size();
+        cache.put("D", "d/999.jpg", entry("/elsewhere/999.jpg"));
+        cache.invalidateFile("/D/d/999.jpg");
+        assertEquals(0, cache.getInvalidations());
+        cache.invalidate("D", "d", true);
+        assertEquals(size, cache.getInvalidations());
+        assertEquals(0, cache.size());
+
+        FileMetadataCache expiring = new FileMetadataCache(1000, 1, FileMetadataCache.Policy.LRU);
+        put(expiring, "D", "a/x.jpg");
+        Thread.sleep(5);
+        assertNull(expiring.get("D", "a/x.jpg"));
+        expiring.invalidate("D", null, true);
+        assertEquals(0, expiring.getInvalidations());
+    }
+
+    private static void put(FileMetadataCache cache, String diskName, String relativePath) {
+        cache.put(diskName, relativePath, entry('/' + diskName + '/' + relativePath));
+    }
+
+    private static FileMetadataCache.Entry entry(String filePath) {
+        return new FileMetadataCache.Entry(filePath, 100, 0, "0-64-0", true, "image/jpeg", System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,203 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+
+public class GaloisFieldTest {
+
+    @Test
+    public void everyNonZeroElementHasAnInverse() {
+        for (int a = 1; a < 256; a++) {
+            assertEquals("a=" + a, 1, GaloisField.multiply(a, GaloisField.inverse(a)));
+        }
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void zeroHasNoInverse() {
+        GaloisField.inverse(0);
+    }
+
+    @Test
+    public void multiplicationDistributesOverAddition() {
+        Random random = new Random(1);
+        for (int n = 0; n < 10000; n++) {
+            int a = random.nextInt(256);
+            int b = random.nextInt(256);
+            int c = random.nextInt(256);
+            assertEquals(GaloisField.multiply(a, b), GaloisField.multiply(b, a));
+            assertEquals(GaloisField.multiply(a, b ^ c), GaloisField.multiply(a, b) ^ GaloisField.multiply(a, c));
+        }
+    }
+
+    @Test
+    public void firstParityRowIsXor() {
+        for (int dataDisks = 1; dataDisks < 20; dataDisks++) {
+            for (int column = 0; column < dataDisks; column++) {
+                assertEquals(1, GaloisField.coefficient(0, column, dataDisks));
+            }
+        }
+    }
+
+    /**
+     * With m parity rows, any m lost members can be rebuilt: the square matrix of the parity rows'
+     * coefficients for those members must be invertible, whichever members they are.
+     */
+    @Test
+    public void everySquareSubmatrixOfTheCoefficientsIsInvertible() {
+        int dataDisks = 10;
+        int parityRows = 3;
+        for (int lost = 1; lost <= parityRows; lost++) {
+            for (int[] columns : combinations(dataDisks, lost)) {
+                for (int[] rows : combinations(parityRows, lost)) {
+                    int[][] matrix = new int[lost][lost];
+                    for (int i = 0; i < lost; i++) {
+                        for (int j = 0; j < lost; j++) {
+                            matrix[i][j] = GaloisField.coefficient(rows[i], columns[j], dataDisks);
+                        }
+                    }
+                    assertIdentity(multiply(GaloisField.invert(matrix), matrix));
+                }
+            }
+        }
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void singularMatrixIsRefused() {
+        GaloisField.invert(new int[][] { { 1, 2 }, { 2, 4 } });
+    }
+
+    @Test
+    public void bulkOperationsMatchTheScalarOnes() {
+        Random random = new Random(2);
+        int length = 1000 + 13;   // not a multiple of 8 or 32, so the tails are used too
+        byte[] source = new byte[length];
+        byte[] target = new byte[length];
+        random.nextBytes(source);
+        random.nextBytes(target);
+        for (int coefficient : new int[] { 0, 1, 2, 0x53, 255 }) {
+            ByteBuffer targetBuffer = direct(target);
+            GaloisField.multiplyAdd(targetBuffer, direct(source), coefficient, length);
+            byte[] expected = new byte[length];
+            for (int i = 0; i < length; i++) {
+                expected[i] = (byte) (target[i] ^ GaloisField.multiply(coefficient, source[i] & 0xFF));
+            }
+            assertArrayEquals("coefficient=" + coefficient, expected, bytes(targetBuffer, length));
+        }
+    }
+
+    /**
+     * Computes two parity rows over four members, loses two members, and rebuilds them from the other
+     * two and the parity, as ParityReconstruction does.
+     */
+    @Test
+    public void lostMembersAreRebuiltFromParity() {
+        int members = 4;
+        int length = 64;
+        Random random = new Random(3);
+        byte[][] data = new byte[members][length];
+        for (byte[] member : data) {
+            random.nextBytes(member);
+        }
+        ByteBuffer[] parity = new ByteBuffer[2];
+        for (int k = 0; k < parity.length; k++) {
+            parity[k] = direct(new byte[length]);
+            for (int j = 0; j < members; j++) {
+                GaloisField.multiplyAdd(parity[k], direct(data[j]), GaloisField.coefficient(k, j, members), length);
+            }
+        }
+
+        int[] lost = { 1, 3 };
+        int[] survivors = { 0, 2 };
+        ByteBuffer[] syndromes = new ByteBuffer[lost.length];   // parity with the survivors taken out
+        for (int k = 0; k < lost.length; k++) {
+            syndromes[k] = direct(bytes(parity[k], length));
+            for (int j : survivors) {
+                GaloisField.multiplyAdd(syndromes[k], direct(data[j]), GaloisField.coefficient(k, j, members), length);
+            }
+        }
+        int[][] matrix = new int[lost.length][lost.length];
+        for (int k = 0; k < lost.length; k++) {
+            for (int i = 0; i < lost.length; i++) {
+                matrix[k][i] = GaloisField.coefficient(k, lost[i], members);
+            }
+        }
+        int[][] inverse = GaloisField.invert(matrix);
+        for (int i = 0; i < lost.length; i++) {
+            ByteBuffer rebuilt = direct(new byte[length]);
+            for (int k = 0; k < lost.length; k++) {
+                GaloisField.multiplyAdd(rebuilt, syndromes[k], inverse[i][k], length);
+            }
+            assertArrayEquals("member " + lost[i], data[lost[i]], bytes(rebuilt, length));
+        }
+    }
+
+    private static int[][] multiply(int[][] a, int[][] b) {
+        int n = a.length;
+        int[][] product = new int[n][n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                for (int k = 0; k < n; k++) {
+                    product[i][j] ^= GaloisField.multiply(a[i][k], b[k][j]);
+                }
+            }
+        }
+        return product;
+    }
+
+    private static void assertIdentity(int[][] matrix) {
+        for (int i = 0; i < matrix.length; i++) {
+            for (int j = 0; j < matrix.length; j++) {
+                assertEquals((i == j) ? 1 : 0, matrix[i][j]);
+            }
+        }
+    }
+
+    /**
+     * Returns every choice of k of the numbers 0 to n - 1, in increasing order.
+     */
+    private static List<int[]> combinations(int n, int k) {
+        List<int[]> combinations = new ArrayList<>();
+        int[] chosen = new int[k];
+        for (int i = 0; i < k; i++) {
+            chosen[i] = i;
+        }
+        while (true) {
+            combinations.add(chosen.clone());
+            int i = k - 1;
+            while ((i >= 0) && (chosen[i] == n - k + i)) {
+                i--;
+            }
+            if (i < 0) {
+                return combinations;
+            }
+            chosen[i]++;
+            for (int j = i + 1; j < k; j++) {
+                chosen[j] = chosen[j - 1] + 1;
+            }
+        }
+    }
+
+    private static ByteBuffer direct(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length).order(ByteOrder.nativeOrder());
+        buffer.put(bytes);
+        buffer.clear();
+        return buffer;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer copy = buffer.duplicate();
+        copy.clear();
+        copy.get(bytes, 0, length);
+        return bytes;
+    }
+}
@@ -0,0 +1,129 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class HashRingTest {
+
+    private static final List<String> NODES = Arrays.asList("http://10.0.0.1:8080", "http://10.0.0.2:8080",
+                                                            "http://10.0.0.3:8080");
+
+    /**
+     * With one point per node, the owner of a key is the node at the first point at or after the key's hash,
+     * or, past the last point, the node at the first one.
+     */
+    @Test
+    public void keysPastTheLastPointWrapAroundToTheFirst() {
+        HashRing ring = new HashRing(NODES, 1);
+        String lowest = null;
+        String highest = null;
+        for (String node : NODES) {
+            if ((lowest == null) || (point(node) < point(lowest))) {
+                lowest = node;
+            }
+            if ((highest == null) || (point(node) > point(highest))) {
+                highest = node;
+            }
+        }
+        int pastTheLast = 0;
+        int beforeTheFirst = 0;
+        for (int i = 0; i < 10000; i++) {
+            String key = "Disk" + i;
+            long hash = HashRing.hash(key);
+            if (hash > point(highest)) {
+                pastTheLast++;
+                assertEquals(key, lowest, ring.owner(key));
+            } else if (hash <= point(lowest)) {
+                beforeTheFirst++;
+                assertEquals(key, lowest, ring.owner(key));
+            } else {
+                assertEquals(key, successor(hash), ring.owner(key));
+            }
+        }
+        assertTrue("no key hashed past the last point", pastTheLast > 0);
+        assertTrue("no key hashed before the first point", beforeTheFirst > 0);
+    }
+
+    @Test
+    public void aKeyAtAPointBelongsToThatPointsNode() {
+        HashRing ring = new HashRing(NODES, 1);
+        for (String node : NODES) {
+            assertEquals(node, ring.owner(node + "#0"));   // the key hashes to the node's only point
+        }
+    }
+
+    @Test
+    public void placementDoesNotDependOnTheOrderOfTheNodes() {
+        HashRing ring = new HashRing(NODES, 16);
+        HashRing reversed = new HashRing(Arrays.asList(NODES.get(2), NODES.get(1), NODES.get(0)), 16);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(ring.owner("Disk" + i), reversed.owner("Disk" + i));
+        }
+        assertEquals(NODES, reversed.nodes());
+    }
+
+    @Test
+    public void addingANodeMovesKeysOnlyToIt() {
+        HashRing before = new HashRing(NODES, 128);
+        String added = "http://10.0.0.4:8080";
+        HashRing after = new HashRing(Arrays.asList(NODES.get(0), NODES.get(1), NODES.get(2), added), 128);
+        int moved = 0;
+        for (int i = 0; i < 10000; i++) {
+            String key = "Disk" + i;
+            String owner = after.owner(key);
+            if (!owner.equals(before.owner(key))) {
+                assertEquals(key, added, owner);
+                moved++;
+            }
+        }
+        assertTrue("moved " + moved, (moved > 1500) && (moved < 3500));   // about a quarter
+    }
+
+    @Test
+    public void virtualNodesEvenOutTheShares() {
+        HashRing ring = new HashRing(NODES, 128);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 30000; i++) {
+            counts.merge(ring.owner("Disk" + i), 1, Integer::sum);
+        }
+        for (String node : NODES) {
+            int count = counts.getOrDefault(node, 0);
+            assertTrue(node + " has " + count, (count > 7000) && (count < 13000));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aRingNeedsNodes() {
+        new HashRing(Arrays.asList(), 128);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aRingNeedsVirtualNodes() {
+        new HashRing(NODES, 0);
+    }
+
+    private static long point(String node) {
+        return HashRing.hash(node + "#0");
+    }
+
+    /**
+     * Returns the node whose point is the first at or after the hash, with one point per node.
+     */
+    private static String successor(long hash) {
+        String owner = null;
+        for (String node : NODES) {
+            if ((point(node) >= hash) && ((owner == null) || (point(node) < point(owner)))) {
+                owner = node;
+            }
+        }
+        return owner;
+    }
+}
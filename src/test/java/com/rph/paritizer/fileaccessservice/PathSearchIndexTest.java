@@ -0,0 +1,140 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class PathSearchIndexTest {
+
+    @Test
+    public void starAndQuestionMarkStayWithinAComponent() {
+        Pattern glob = PathSearchIndex.compileGlob("2017/*.jpg");
+        assertTrue(matches(glob, "2017/IMG_0001.jpg"));
+        assertTrue(matches(glob, "2017/.jpg"));
+        assertFalse(matches(glob, "2017/a/IMG_0001.jpg"));
+        assertFalse(matches(glob, "2018/IMG_0001.jpg"));
+
+        Pattern one = PathSearchIndex.compileGlob("IMG_000?.jpg");
+        assertTrue(matches(one, "IMG_0001.jpg"));
+        assertFalse(matches(one, "IMG_00010.jpg"));
+        assertFalse(matches(one, "IMG_000/.jpg"));
+    }
+
+    @Test
+    public void doubleStarCrossesComponents() {
+        Pattern glob = PathSearchIndex.compileGlob("**/*.jpg");
+        assertTrue(matches(glob, "IMG_0001.jpg"));   // "**/" matches no directories too
+        assertTrue(matches(glob, "a/IMG_0001.jpg"));
+        assertTrue(matches(glob, "a/b/c/IMG_0001.jpg"));
+        assertFalse(matches(glob, "a/b/c/IMG_0001.png"));
+
+        Pattern within = PathSearchIndex.compileGlob("a/**");
+        assertTrue(matches(within, "a/b/c"));
+        assertFalse(matches(within, "b/c"));
+    }
+
+    @Test
+    public void dotsAndOtherRegexCharactersAreLiteral() {
+        assertFalse(matches(PathSearchIndex.compileGlob("*.jpg"), "IMGxjpg"));
+        assertTrue(matches(PathSearchIndex.compileGlob("a+b (1)^$|.txt"), "a+b (1)^$|.txt"));
+        assertFalse(matches(PathSearchIndex.compileGlob("a+b.txt"), "aab.txt"));
+    }
+
+    @Test
+    public void classesNeverMatchASlash() {
+        Pattern glob = PathSearchIndex.compileGlob("IMG_[0-9][!a-z].jpg");
+        assertTrue(matches(glob, "IMG_12.jpg"));
+        assertFalse(matches(glob, "IMG_1a.jpg"));
+        assertFalse(matches(glob, "IMG_a1.jpg"));
+        assertFalse(matches(PathSearchIndex.compileGlob("a[!x]b"), "a/b"));
+        assertTrue(matches(PathSearchIndex.compileGlob("a[&]b"), "a&b"));
+    }
+
+    @Test
+    public void bracesAreAlternatives() {
+        Pattern glob = PathSearchIndex.compileGlob("*.{jpg,jpeg,png}");
+        assertTrue(matches(glob, "x.jpg"));
+        assertTrue(matches(glob, "x.jpeg"));
+        assertTrue(matches(glob, "x.png"));
+        assertFalse(matches(glob, "x.gif"));
+        assertTrue(matches(PathSearchIndex.compileGlob("a,b"), "a,b"));   // a comma outside braces is literal
+        assertTrue(matches(PathSearchIndex.compileGlob("{a,{b,c}}d"), "cd"));
+    }
+
+    @Test
+    public void backslashEscapes() {
+        Pattern glob = PathSearchIndex.compileGlob("\\*\\{x\\}");
+        assertTrue(matches(glob, "*{x}"));
+        assertFalse(matches(glob, "a{x}"));
+    }
+
+    @Test
+    public void malformedGlobsAreRefused() {
+        for (String glob : Arrays.asList("a{b", "a}b", "a[b", "a\\")) {
+            try {
+                PathSearchIndex.compileGlob(glob);
+                throw new AssertionError("accepted " + glob);
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * A glob with a file name part is matched in two pieces (directory, then name); the result must be the same
+     * as matching the whole path.
+     */
+    @Test
+    public void searchMatchesSplitGlobsAsWholeOnes() throws IOException {
+        Map<String, DiskIndex.FileInfo> files = new TreeMap<>();
+        for (String path : Arrays.asList("IMG_1.jpg", "a/IMG_2.jpg", "a/b/IMG_3.jpg", "a/b/IMG_4.png",
+                                         "ab/IMG_5.jpg", "b/IMG_6.jpg")) {
+            files.put(path, new DiskIndex.FileInfo(100, 0));
+        }
+        PathSearchIndex index = PathSearchIndex.build("disk", "1", files.entrySet(), files.size());
+
+        assertEquals(Arrays.asList("IMG_1.jpg", "a/IMG_2.jpg", "a/b/IMG_3.jpg", "ab/IMG_5.jpg", "b/IMG_6.jpg"),
+                     search(index, "**/*.jpg"));
+        assertEquals(Arrays.asList("a/IMG_2.jpg", "a/b/IMG_3.jpg"), search(index, "a/**/*.jpg"));
+        assertEquals(Arrays.asList("a/b/IMG_3.jpg", "a/b/IMG_4.png"), search(index, "a/*/IMG_?.*"));
+        assertEquals(Arrays.asList("a/IMG_2.jpg", "ab/IMG_5.jpg"), search(index, "a*/*.jpg"));
+    }
+
+    @Test
+    public void searchStopsAtTheLimitAndResumes() throws IOException {
+        Map<String, DiskIndex.FileInfo> files = new TreeMap<>();
+        for (int i = 0; i < 5; i++) {
+            files.put("d/f" + i + ".jpg", new DiskIndex.FileInfo(i, 0));
+        }
+        PathSearchIndex index = PathSearchIndex.build("disk", "1", files.entrySet(), files.size());
+        PathSearchIndex.Query query = PathSearchIndex.Query.parse(null, "**/*.jpg", null, null, null, null, null);
+        List<String> found = new ArrayList<>();
+        String next = index.search(query, null, 3, (relativePath, size, lastModified) -> found.add(relativePath));
+        assertEquals("d/f2.jpg", next);
+        assertNull(index.search(query, next, 3, (relativePath, size, lastModified) -> found.add(relativePath)));
+        assertEquals(new ArrayList<>(files.keySet()), found);
+    }
+
+    private static boolean matches(Pattern glob, String path) {
+        return glob.matcher(path).matches();
+    }
+
+    private static List<String> search(PathSearchIndex index, String glob) throws IOException {
+        List<String> found = new ArrayList<>();
+        PathSearchIndex.Query query = PathSearchIndex.Query.parse(null, glob, null, null, null, null, null);
+        index.search(query, null, 1000, (relativePath, size, lastModified) -> found.add(relativePath));
+        return found;
+    }
+}
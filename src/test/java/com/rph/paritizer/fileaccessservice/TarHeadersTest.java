@@ -0,0 +1,111 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class TarHeadersTest {
+
+    private static final long MTIME = 1500000000000L;
+
+    @Test
+    public void shortPathGoesInTheNameField() {
+        byte[] header = TarHeaders.header("photos/a.jpg", 1234, MTIME);
+        assertEquals(TarHeaders.BLOCK_SIZE, header.length);
+        assertEquals("photos/a.jpg", string(header, 0, 100));
+        assertEquals("", string(header, 345, 155));
+        assertEquals(1234, octal(header, 124, 12));
+        assertEquals(MTIME / 1000, octal(header, 136, 12));
+        assertEquals('0', header[156]);
+        assertEquals("ustar", string(header, 257, 6));
+        assertChecksum(header, 0);
+    }
+
+    @Test
+    public void longPathIsSplitIntoPrefixAndName() {
+        String directory = repeat('d', 120);
+        String name = repeat('n', 60) + ".txt";
+        byte[] header = TarHeaders.header(directory + '/' + name, 1, MTIME);
+        assertEquals(TarHeaders.BLOCK_SIZE, header.length);
+        assertEquals(name, string(header, 0, 100));
+        assertEquals(directory, string(header, 345, 155));
+        assertChecksum(header, 0);
+    }
+
+    @Test
+    public void unsplittablePathGetsALongNameEntry() {
+        String path = repeat('x', 300);
+        byte[] header = TarHeaders.header(path, 42, MTIME);
+        // long name header, the name itself (NUL terminated, padded to a block), the file's header
+        assertEquals(3 * TarHeaders.BLOCK_SIZE, header.length);
+        assertEquals("././@LongLink", string(header, 0, 100));
+        assertEquals('L', header[156]);
+        assertEquals(path.length() + 1, octal(header, 124, 12));
+        assertChecksum(header, 0);
+        assertEquals(path, string(header, TarHeaders.BLOCK_SIZE, TarHeaders.BLOCK_SIZE));
+
+        int file = 2 * TarHeaders.BLOCK_SIZE;
+        assertEquals(path.substring(0, 100), new String(header, file, 100, StandardCharsets.US_ASCII));
+        assertEquals('0', header[file + 156]);
+        assertEquals(42, octal(header, file + 124, 12));
+        assertChecksum(header, file);
+    }
+
+    @Test
+    public void hugeSizeIsWrittenInBase256() {
+        long size = 10L * 1024 * 1024 * 1024;
+        byte[] header = TarHeaders.header("big.bin", size, MTIME);
+        assertEquals((byte) 0x80, header[124]);
+        long decoded = 0;
+        for (int i = 128; i < 136; i++) {
+            decoded = (decoded << 8) | (header[i] & 0xFF);
+        }
+        assertEquals(size, decoded);
+        assertChecksum(header, 0);
+    }
+
+    @Test
+    public void paddingFillsTheLastBlock() {
+        assertEquals(0, TarHeaders.padding(0));
+        assertEquals(511, TarHeaders.padding(1));
+        assertEquals(0, TarHeaders.padding(512));
+        assertEquals(1, TarHeaders.padding(1023));
+        assertEquals(0, TarHeaders.padding(10L * 1024 * 1024 * 1024));
+    }
+
+    private static void assertChecksum(byte[] header, int offset) {
+        long sum = 0;
+        for (int i = 0; i < TarHeaders.BLOCK_SIZE; i++) {
+            boolean inChecksumField = (i >= 148) && (i < 156);
+            sum += inChecksumField ? ' ' : (header[offset + i] & 0xFF);
+        }
+        assertEquals(sum, octal(header, offset + 148, 7));
+        assertTrue(header[offset + 155] == ' ');
+    }
+
+    private static long octal(byte[] header, int offset, int length) {
+        return Long.parseLong(string(header, offset, length).trim(), 8);
+    }
+
+    /**
+     * Returns the NUL-terminated string in the given field.
+     */
+    private static String string(byte[] header, int offset, int length) {
+        int end = offset;
+        while ((end < offset + length) && (header[end] != 0)) {
+            end++;
+        }
+        return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,258 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Starts two nodes of a cluster on localhost, each in a JVM of its own (the service keeps its disks and
+ * its cluster in static state), with the same two disks given to both, and checks that each node adds only
+ * the disk placed on it, and serves the other through its peer. A third disk, placed on the second node,
+ * is the only disk of a parity group; the other two make a group that spans both nodes.
+ */
+public class TwoNodeClusterTest {
+
+    private static final long START_MILLIS = 60000;
+
+    private static Path directory;
+    private static final List<Process> processes = new ArrayList<>();
+    private static final String[] nodes = new String[2];
+    private static final String[] disks = new String[2];   // disks[i] is placed on nodes[i]
+    private static String parityDisk;                          // placed on nodes[1]
+
+    @BeforeClass
+    public static void startNodes() throws Exception {
+        directory = Files.createTempDirectory("TwoNodeClusterTest");
+        int[] ports = { freePort(), freePort() };
+        for (int i = 0; i < 2; i++) {
+            nodes[i] = "http://localhost:" + ports[i];
+        }
+        HashRing ring = new HashRing(Arrays.asList(nodes), 128);
+        for (int n = 0; (disks[0] == null) || (disks[1] == null) || (parityDisk == null); n++) {
+            String diskName = "Disk" + n;
+            int owner = ring.owner(diskName).equals(nodes[0]) ? 0 : 1;
+            if (disks[owner] == null) {
+                disks[owner] = diskName;
+            } else if ((owner == 1) && (parityDisk == null)) {
+                parityDisk = diskName;
+            } else {
+                continue;
+            }
+            Path top = Files.createDirectories(directory.resolve(diskName));
+            Files.write(top.resolve("hello.txt"), ("hello from " + diskName).getBytes(StandardCharsets.UTF_8));
+        }
+        for (int i = 0; i < 2; i++) {
+            processes.add(startNode(i, ports[i]));
+        }
+        for (int i = 0; i < 2; i++) {
+            awaitStarted(i);
+        }
+    }
+
+    @AfterClass
+    public static void stopNodes() throws Exception {
+        for (Process process : processes) {
+            process.destroy();
+        }
+        for (Process process : processes) {
+            process.waitFor();
+        }
+        if (directory != null) {
+            try (Stream<Path> paths = Files.walk(directory)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    @Test
+    public void eachNodeAddsOnlyTheDiskPlacedOnIt() throws IOException {
+        for (int i = 0; i < 2; i++) {
+            String local = get(i, "diskList?local=true");
+            assertTrue(local, local.contains('"' + disks[i] + '"'));
+            assertTrue(local, !local.contains('"' + disks[1 - i] + '"'));
+        }
+    }
+
+    @Test
+    public void bothNodesAgreeOnThePlacement() throws IOException {
+        for (int i = 0; i < 2; i++) {
+            for (String disk : disks) {
+                String cluster = get(i, "cluster?disk=" + disk);
+                String owner = disk.equals(disks[0]) ? nodes[0] : nodes[1];
+                assertTrue(cluster, cluster.contains("\"owner\" : \"" + owner + '"'));
+            }
+        }
+    }
+
+    @Test
+    public void theDiskListListsTheDisksOfBothNodes() throws IOException {
+        String diskList = get(0, "diskList");
+        for (int i = 0; i < 2; i++) {
+            assertTrue(diskList, diskList.contains('"' + nodes[i] + '"'));
+            assertTrue(diskList, diskList.contains('"' + disks[i] + '"'));
+        }
+    }
+
+    @Test
+    public void filesOfTheOtherNodesDiskAreForwarded() throws IOException {
+        for (int i = 0; i < 2; i++) {
+            for (String disk : disks) {
+                assertEquals("hello from " + disk, get(i, "file/" + disk + "/hello.txt"));
+            }
+        }
+        assertEquals(404, status(0, "file/" + disks[1] + "/missing.txt"));
+    }
+
+    @Test
+    public void batchesAndManifestsOfTheOtherNodesDiskAreForwarded() throws IOException {
+        for (int i = 0; i < 2; i++) {
+            for (String disk : disks) {
+                String batch = post(i, "batch/" + disk, "hello.txt\nmissing.txt\n");
+                assertTrue(batch, batch.contains("hello from " + disk));
+                String manifest = post(i, "manifest/" + disk, "hello.txt\n");
+                String id = manifest.replaceAll("(?s).*\"manifest\" : \"([^\"]*)\".*", "$1");
+                assertTrue(manifest, manifest.contains("\"url\" : \"" + nodes[i] + '/'));   // back to the node asked
+                assertTrue(get(i, "batch/" + disk + '/' + id).contains("hello from " + disk));
+            }
+        }
+    }
+
+    @Test
+    public void duplicatesOfTheOtherNodesDiskAreForwarded() throws IOException {
+        for (int i = 0; i < 2; i++) {
+            for (String disk : disks) {
+                String dupes = get(i, "dupes/" + disk);
+                assertTrue(dupes, dupes.contains("\"disk\" : \"" + disk + '"'));
+            }
+        }
+    }
+
+    @Test
+    public void parityRequestsAreRedirectedToTheNodeOfTheGroupsDisks() throws IOException {
+        for (int i = 0; i < 2; i++) {
+            String status = get(i, "parity/Single");   // node 0 redirects, and HttpURLConnection follows
+            assertTrue(status, status.contains("\"group\" : \"Single\""));
+            assertEquals(409, status(i, "parity/Spread"));
+        }
+        HttpURLConnection connection = open(0, "parity/Single");
+        connection.setInstanceFollowRedirects(false);
+        assertEquals(307, connection.getResponseCode());
+        assertEquals(nodes[1] + "/FileAccessService/api/fileAccessor/parity/Single", connection.getHeaderField("Location"));
+        connection.disconnect();
+    }
+
+    private static Process startNode(int i, int port) throws IOException {
+        Path tmp = Files.createDirectories(directory.resolve("tmp" + i));
+        String javaCommand = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        // the static files (src/main/webapp) are packaged only into the jar, so they are added from the source tree
+        String classPath = System.getProperty("java.class.path") + File.pathSeparator
+                           + new File("src/main").getAbsolutePath();
+        List<String> command = new ArrayList<>(Arrays.asList(
+                javaCommand, "-Xmx256m", "-Djava.io.tmpdir=" + tmp, "-cp", classPath,
+                EmbeddedJerseyService.class.getName(),
+                "--port", Integer.toString(port),
+                "--self", nodes[i], "--peers", nodes[0] + ',' + nodes[1]));
+        for (String disk : new String[] { disks[0], disks[1], parityDisk }) {
+            command.addAll(Arrays.asList("--disk", disk, directory.resolve(disk).toString()));
+        }
+        command.addAll(Arrays.asList("--parity-group", "Single", directory.resolve("parity-single").toString(), parityDisk,
+                                     "--parity-group", "Spread", directory.resolve("parity-spread").toString(),
+                                     disks[0] + ',' + disks[1]));
+        return new ProcessBuilder(command)
+                .directory(tmp.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(directory.resolve("node" + i + ".log").toFile())
+                .start();
+    }
+
+    private static void awaitStarted(int i) throws Exception {
+        long deadline = System.currentTimeMillis() + START_MILLIS;
+        while (true) {
+            try {
+                if (status(i, "diskList?local=true") == 200) {
+                    return;
+                }
+            } catch (IOException ex) {
+                // not listening yet
+            }
+            if (!processes.get(i).isAlive() || (System.currentTimeMillis() > deadline)) {
+                throw new IllegalStateException("node " + nodes[i] + " did not start:\n"
+                                                + new String(Files.readAllBytes(directory.resolve("node" + i + ".log")),
+                                                             StandardCharsets.UTF_8));
+            }
+            Thread.sleep(200);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static HttpURLConnection open(int i, String path) throws IOException {
+        URL url = new URL(nodes[i] + "/FileAccessService/api/fileAccessor/" + path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(5000);
+        connection.setReadTimeout(10000);
+        return connection;
+    }
+
+    private static int status(int i, String path) throws IOException {
+        HttpURLConnection connection = open(i, path);
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static String get(int i, String path) throws IOException {
+        return read(open(i, path), path);
+    }
+
+    private static String post(int i, String path, String body) throws IOException {
+        HttpURLConnection connection = open(i, path);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "text/plain; charset=UTF-8");
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        return read(connection, path);
+    }
+
+    private static String read(HttpURLConnection connection, String path) throws IOException {
+        assertEquals(path, 200, connection.getResponseCode());
+        try (InputStream in = connection.getInputStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.rph.paritizer.fileaccessservice;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+
+public class UrlEncoderTest {
+
+    /**
+     * Each row is a relative path and its encoded form.
+     */
+    private static final String[][] CASES = {
+            { "", "" },
+            { "a/b/IMG_0001.jpg", "a/b/IMG_0001.jpg" },
+            { "Roll 01/IMG 1.jpg", "Roll%2001/IMG%201.jpg" },
+            { "a+b&c=d?e#f", "a%2Bb%26c%3Dd%3Fe%23f" },
+            { "100%.txt", "100%25.txt" },
+            { "$,:;@<>", "%24%2C%3A%3B%40%3C%3E" },
+            { "say \"hi\"\\", "say%20%22hi%22%5C" },            // safe to write into a JSON string as it is
+            { "tab\there\u007F", "tab%09here%7F" },
+            { "-_.!~*'()[]{}|^`", "-_.!~*'()[]{}|^`" },
+            { "caf\u00E9", "caf%C3%A9" },                       // two UTF-8 bytes
+            { "\u65E5\u672C/\u5199\u771F.jpg", "%E6%97%A5%E6%9C%AC/%E5%86%99%E7%9C%9F.jpg" },   // three
+            { "\uD83D\uDCF7.jpg", "%F0%9F%93%B7.jpg" },         // a surrogate pair: four
+            { "a\uD83Db", "a%3Fb" },                            // an unpaired surrogate, as getBytes() has it
+            { "a\uDCF7", "a%3F" },
+    };
+
+    @Test
+    public void encode() {
+        for (String[] c : CASES) {
+            assertEquals(c[0], c[1], UrlEncoder.encode(c[0]));
+        }
+    }
+
+    @Test
+    public void encodeMatchesTheUtf8BytesOfThePath() {
+        StringBuilder path = new StringBuilder();
+        for (char c = 1; c < 0x3000; c += 7) {
+            if (!Character.isSurrogate(c)) {
+                path.append(c);
+            }
+        }
+        StringBuilder expected = new StringBuilder();
+        for (byte b : path.toString().getBytes(StandardCharsets.UTF_8)) {
+            if ((b >= 0) && !UrlEncoder.isUnsafe((char) b)) {
+                expected.append((char) b);
+            } else {
+                expected.append(String.format("%%%02X", b & 0xFF));
+            }
+        }
+        assertEquals(expected.toString(), UrlEncoder.encode(path.toString()));
+    }
+
+    @Test
+    public void aPathWithNothingToEncodeIsReturnedAsItIs() {
+        String path = "2017/Roll_01/IMG_0001.jpg";
+        assertSame(path, UrlEncoder.encode(path));
+    }
+
+    /**
+     * A small buffer makes writeEncoded() flush in the middle of paths, and between the chars of surrogate pairs.
+     */
+    @Test
+    public void asciiWriterWritesWhatEncodeReturns() throws IOException {
+        StringBuilder expected = new StringBuilder();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        UrlEncoder.AsciiWriter writer = new UrlEncoder.AsciiWriter(out, 1);
+        for (int n = 0; n < 50; n++) {
+            for (String[] c : CASES) {
+                String path = c[0] + n + "\uD83D\uDCF7";
+                writer.write("{\"");
+                writer.writeEncoded(path);
+                writer.write('"');
+                writer.write(new byte[] { ',', '\n' });
+                expected.append("{\"").append(c[1]).append(n).append("%F0%9F%93%B7\",\n");
+            }
+        }
+        writer.flush();
+        assertEquals(expected.toString(), new String(out.toByteArray(), StandardCharsets.US_ASCII));
+    }
+}